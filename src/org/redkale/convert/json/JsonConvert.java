@@ -9,6 +9,7 @@ import java.io.*;
 import java.lang.reflect.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.util.Iterator;
 import java.util.function.*;
 import org.redkale.convert.*;
 import org.redkale.service.RetResult;
@@ -323,6 +324,33 @@ public class JsonConvert extends TextConvert<JsonReader, JsonWriter> {
         writer.directTo(array);
     }
 
+    /**
+     * 将Iterator中的元素依次序列化成json数组追加到array中, array长度达到limit时暂停, 以返回的下标再次调用可继续输出, 用于分块输出大数组
+     *
+     * @param array         ByteArray
+     * @param componentType 元素类型, 为null时按元素实际类型输出
+     * @param it            Iterator
+     * @param index         已输出的元素个数, 为0时先输出数组开始符
+     * @param limit         array长度上限
+     *
+     * @return 已输出的元素个数, 全部输出完(含数组结束符)返回-1
+     */
+    public int convertToBytes(final ByteArray array, final Type componentType, final Iterator<?> it, int index, final int limit) {
+        JsonBytesWriter writer = configWrite(new JsonBytesWriter(tiny, array));
+        Encodeable encoder = componentType == null ? factory.getAnyEncoder() : factory.loadEncoder(componentType);
+        if (index == 0) writer.writeTo('[');
+        while (writer.count() < limit && it.hasNext()) {
+            if (index++ > 0) writer.writeTo(',');
+            encoder.convertTo(writer, it.next());
+        }
+        if (!it.hasNext()) {
+            writer.writeTo(']');
+            index = -1;
+        }
+        writer.directTo(array);
+        return index;
+    }
+
     public void convertTo(final OutputStream out, final Object value) {
         if (value == null) {
             configWrite(new JsonStreamWriter(tiny, out)).writeNull();
@@ -42,9 +42,20 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
 
     private final Consumer<ByteBuffer> bufferConsumer;
 
+    //pipeline模式下顺序到达的响应合并写入的ByteBufferWriter
     private ByteBufferWriter pipelineWriter;
 
-    private PipelineDataNode pipelineDataNode;
+    //pipeline模式下已按顺序排好的待写ByteBuffer, 读模式
+    private List<ByteBuffer> pipelineReadyBuffers;
+
+    //pipeline模式下乱序到达的响应, 下标为pipelineIndex
+    private ByteBuffer[][] pipelineSlots;
+
+    //下一个可顺序写入的pipelineIndex
+    private int pipelineNextIndex = 1;
+
+    //本批pipeline的请求数, 0表示最后一个请求的响应尚未到达
+    private int pipelineMaxCount;
 
     private ByteBuffer readBuffer;
 
@@ -88,6 +99,15 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
         return this.bufferConsumer;
     }
 
+    /**
+     * 连接所属的IO线程, 非NIO实现的连接返回null
+     *
+     * @return AsyncIOThread
+     */
+    public AsyncIOThread getIOThread() {
+        return null;
+    }
+
     public final long getLastReadTime() {
         return readtime;
     }
@@ -138,6 +158,15 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
 
     public abstract void read(CompletionHandler<Integer, ByteBuffer> handler);
 
+    /**
+     * 暂停或恢复IO线程主动读取新请求, 暂停期间只在调用read时才从连接读取数据, 用于请求body由Servlet分批读取的场景 <br>
+     * 默认为空实现, 只对始终关注OP_READ的服务端连接有意义
+     *
+     * @param suspended 是否暂停
+     */
+    public void suspendRead(boolean suspended) {
+    }
+
     //src会写完才会回调
     public abstract <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler);
 
@@ -213,14 +242,72 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
     //srcs会写完才会回调
     public abstract <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment, CompletionHandler<Integer, ? super A> handler);
 
+    /**
+     * 输出文件从position开始的count个字节, 全部写完才会回调, 回调结果为输出的文件字节数 <br>
+     * 默认实现以写缓存分段读取文件再写出, 支持零拷贝的连接会覆盖此方法
+     *
+     * @param <A>         泛型
+     * @param fileChannel 文件通道, 由调用方负责关闭
+     * @param position    文件起始位置
+     * @param count       输出的字节数
+     * @param attachment  附件
+     * @param handler     回调函数
+     */
+    public <A> void transferFile(FileChannel fileChannel, long position, long count, A attachment, CompletionHandler<Long, ? super A> handler) {
+        final ByteBuffer buffer = pollWriteBuffer();
+        CompletionHandler<Integer, Void> newhandler = new CompletionHandler<Integer, Void>() {
+
+            //写操作可能同步回调, 以计数循环代替递归, 避免大文件导致栈溢出
+            private final AtomicInteger wip = new AtomicInteger();
+
+            private long pos = position;
+
+            private long remain = count;
+
+            @Override
+            public void completed(Integer result, Void a) {
+                if (wip.getAndIncrement() != 0) return;
+                do {
+                    if (remain <= 0) {
+                        offerBuffer(buffer);
+                        handler.completed(count, attachment);
+                        return;
+                    }
+                    try {
+                        buffer.clear();
+                        if (remain < buffer.capacity()) buffer.limit((int) remain);
+                        int rs = fileChannel.read(buffer, pos);
+                        if (rs <= 0) throw new EOFException("file truncated at position " + pos);
+                        pos += rs;
+                        remain -= rs;
+                        buffer.flip();
+                    } catch (IOException e) {
+                        failed(e, a);
+                        return;
+                    }
+                    write(buffer, null, this);
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void a) {
+                offerBuffer(buffer);
+                handler.failed(exc, attachment);
+            }
+        };
+        newhandler.completed(0, null);
+    }
+
     public void setReadBuffer(ByteBuffer buffer) {
         if (this.readBuffer != null) throw new RuntimeException("repeat AsyncConnection.setReadBuffer");
         this.readBuffer = buffer;
     }
 
     public boolean hasPipelineData() {
-        ByteBufferWriter writer = this.pipelineWriter;
-        return writer != null && writer.position() > 0;
+        synchronized (this) {
+            ByteBufferWriter writer = this.pipelineWriter;
+            return (writer != null && writer.position() > 0) || (pipelineReadyBuffers != null && !pipelineReadyBuffers.isEmpty());
+        }
     }
 
     public final void flushPipelineData(CompletionHandler<Integer, Void> handler) {
@@ -228,12 +315,13 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
     }
 
     public <A> void flushPipelineData(A attachment, CompletionHandler<Integer, ? super A> handler) {
-        ByteBufferWriter writer = this.pipelineWriter;
-        this.pipelineWriter = null;
-        if (writer == null) {
+        ByteBuffer[] srcs;
+        synchronized (this) {
+            srcs = takePipelineBuffers();
+        }
+        if (srcs == null) {
             handler.completed(0, attachment);
         } else {
-            ByteBuffer[] srcs = writer.toBuffers();
             CompletionHandler<Integer, ? super A> newhandler = new CompletionHandler<Integer, A>() {
                 @Override
                 public void completed(Integer result, A attachment) {
@@ -262,35 +350,7 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
 
     //返回 是否over
     public boolean writePipelineData(int pipelineIndex, int pipelineCount, byte[] bs, int offset, int length) {
-        synchronized (this) {
-            ByteBufferWriter writer = this.pipelineWriter;
-            if (writer == null) {
-                writer = ByteBufferWriter.create(getBufferSupplier());
-                this.pipelineWriter = writer;
-            }
-            if (this.pipelineDataNode == null && pipelineIndex == writer.getWriteBytesCounter() + 1) {
-                writer.put(bs, offset, length);
-                return (pipelineIndex == pipelineCount);
-            } else {
-                PipelineDataNode dataNode = this.pipelineDataNode;
-                if (dataNode == null) {
-                    dataNode = new PipelineDataNode();
-                    this.pipelineDataNode = dataNode;
-                }
-                if (pipelineIndex == pipelineCount) { //此时pipelineCount为最大值
-                    dataNode.pipelineCount = pipelineCount;
-                }
-                dataNode.put(pipelineIndex, bs, offset, length);
-                if (writer.getWriteBytesCounter() + dataNode.itemsize == dataNode.pipelineCount) {
-                    for (PipelineDataItem item : dataNode.arrayItems()) {
-                        writer.put(item.data);
-                    }
-                    this.pipelineDataNode = null;
-                    return true;
-                }
-                return false;
-            }
-        }
+        return writePipelineData(pipelineIndex, pipelineCount, bs, offset, length, null, 0, 0);
     }
 
     //返回 是否over
@@ -298,124 +358,94 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
         return writePipelineData(pipelineIndex, pipelineCount, header.content(), header.offset(), header.length(), body == null ? null : body.content(), body == null ? 0 : body.offset(), body == null ? 0 : body.length());
     }
 
-    //返回 是否over
+    /**
+     * 按pipelineIndex顺序输出响应数据 <br>
+     * 顺序到达的响应合并写入同一组ByteBuffer; 乱序到达的响应拷贝到各自的池化ByteBuffer并按pipelineIndex暂存,
+     * 前面的响应到齐后直接拼接到待写队列, 不再二次拷贝和排序; 全部到齐后由flushPipelineData一次聚集写出。
+     * pipelineIndex小于1表示追加在已有数据之后。
+     *
+     * @param pipelineIndex pipelineIndex, 从1开始
+     * @param pipelineCount pipelineCount, 只有最后一个请求的值等于其pipelineIndex
+     * @param headerContent header
+     * @param headerOffset  header偏移量
+     * @param headerLength  header长度
+     * @param bodyContent   body
+     * @param bodyOffset    body偏移量
+     * @param bodyLength    body长度
+     *
+     * @return 是否over
+     */
     public boolean writePipelineData(int pipelineIndex, int pipelineCount, byte[] headerContent, int headerOffset, int headerLength, byte[] bodyContent, int bodyOffset, int bodyLength) {
         synchronized (this) {
-            ByteBufferWriter writer = this.pipelineWriter;
-            if (writer == null) {
-                writer = ByteBufferWriter.create(getBufferSupplier());
-                this.pipelineWriter = writer;
-            }
-            if (this.pipelineDataNode == null && pipelineIndex == writer.getWriteBytesCounter() + 1) {
-                writer.put(headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
-                return (pipelineIndex == pipelineCount);
-            } else {
-                PipelineDataNode dataNode = this.pipelineDataNode;
-                if (dataNode == null) {
-                    dataNode = new PipelineDataNode();
-                    this.pipelineDataNode = dataNode;
+            if (pipelineIndex < 1 || pipelineIndex == this.pipelineNextIndex) {
+                ByteBufferWriter writer = this.pipelineWriter;
+                if (writer == null) {
+                    writer = ByteBufferWriter.create(getBufferSupplier());
+                    this.pipelineWriter = writer;
                 }
-                if (pipelineIndex == pipelineCount) { //此时pipelineCount为最大值
-                    dataNode.pipelineCount = pipelineCount;
+                writer.put(headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
+                if (pipelineIndex < 1) return false;
+                this.pipelineNextIndex++;
+                ByteBuffer[][] slots = this.pipelineSlots;
+                while (slots != null && this.pipelineNextIndex < slots.length && slots[this.pipelineNextIndex] != null) {
+                    readyPipelineBuffers(slots[this.pipelineNextIndex]);
+                    slots[this.pipelineNextIndex++] = null;
                 }
-                dataNode.put(pipelineIndex, headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
-                if (writer.getWriteBytesCounter() + dataNode.itemsize == dataNode.pipelineCount) {
-                    for (PipelineDataItem item : dataNode.arrayItems()) {
-                        writer.put(item.data);
-                    }
-                    this.pipelineDataNode = null;
-                    return true;
+            } else {
+                ByteBuffer[][] slots = this.pipelineSlots;
+                if (slots == null || pipelineIndex >= slots.length) {
+                    slots = slots == null ? new ByteBuffer[Math.max(8, pipelineIndex + 1)][] : Arrays.copyOf(slots, Math.max(slots.length * 2, pipelineIndex + 1));
+                    this.pipelineSlots = slots;
                 }
-                return false;
+                final int length = headerLength + bodyLength;
+                ByteBufferWriter writer = ByteBufferWriter.create(getBufferSupplier(), pollWriteBuffer(Math.min(length, bufferCapacity)));
+                writer.put(headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
+                slots[pipelineIndex] = writer.toBuffers();
             }
-        }
-    }
-
-    private static class PipelineDataNode {
-
-        public int pipelineCount;
-
-        public int itemsize;
-
-        private PipelineDataItem head;
-
-        private PipelineDataItem tail;
-
-        public PipelineDataItem[] arrayItems() {
-            PipelineDataItem[] items = new PipelineDataItem[itemsize];
-            PipelineDataItem item = head;
-            int i = 0;
-            while (item != null) {
-                items[i] = item;
-                item = item.next;
-                items[i].next = null;
-                i++;
+            if (pipelineIndex == pipelineCount) { //此时pipelineCount为最大值
+                this.pipelineMaxCount = pipelineCount;
             }
-            Arrays.sort(items);
-            return items;
-        }
-
-        public void put(int pipelineIndex, byte[] bs, int offset, int length) {
-            if (tail == null) {
-                head = new PipelineDataItem(pipelineIndex, bs, offset, length);
-                tail = head;
-            } else {
-                PipelineDataItem item = new PipelineDataItem(pipelineIndex, bs, offset, length);
-                tail.next = item;
-                tail = item;
+            if (this.pipelineMaxCount > 0 && this.pipelineNextIndex > this.pipelineMaxCount) {
+                this.pipelineNextIndex = 1;
+                this.pipelineMaxCount = 0;
+                return true;
             }
-            itemsize++;
+            return false;
         }
-
-        public void put(int pipelineIndex, byte[] headerContent, int headerOffset, int headerLength, byte[] bodyContent, int bodyOffset, int bodyLength) {
-            if (tail == null) {
-                head = new PipelineDataItem(pipelineIndex, headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
-                tail = head;
-            } else {
-                PipelineDataItem item = new PipelineDataItem(pipelineIndex, headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
-                tail.next = item;
-                tail = item;
-            }
-            itemsize++;
-        }
-
     }
 
-    private static class PipelineDataItem implements Comparable<PipelineDataItem> {
-
-        final byte[] data;
-
-        final int index;
-
-        public PipelineDataItem next;
-
-        public PipelineDataItem(int index, byte[] bs, int offset, int length) {
-            this.index = index;
-            this.data = Arrays.copyOfRange(bs, offset, offset + length);
-        }
-
-        public PipelineDataItem(int index, byte[] headerContent, int headerOffset, int headerLength, byte[] bodyContent, int bodyOffset, int bodyLength) {
-            this.index = index;
-            this.data = bodyLength > 0 ? copyOfRange(headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength)
-                : Arrays.copyOfRange(headerContent, headerOffset, headerOffset + headerLength);
-        }
-
-        private static byte[] copyOfRange(byte[] headerContent, int headerOffset, int headerLength, byte[] bodyContent, int bodyOffset, int bodyLength) {
-            byte[] result = new byte[headerLength + bodyLength];
-            System.arraycopy(headerContent, headerOffset, result, 0, headerLength);
-            System.arraycopy(bodyContent, bodyOffset, result, headerLength, bodyLength);
-            return result;
+    //乱序暂存的ByteBuffer按顺序追加到待写队列, 之前合并写入的数据需先放入队列
+    private void readyPipelineBuffers(ByteBuffer[] buffers) {
+        if (this.pipelineReadyBuffers == null) this.pipelineReadyBuffers = new ArrayList<>();
+        ByteBufferWriter writer = this.pipelineWriter;
+        if (writer != null) {
+            for (ByteBuffer buf : writer.toBuffers()) {
+                if (buf.hasRemaining()) {
+                    this.pipelineReadyBuffers.add(buf);
+                } else {
+                    offerBuffer(buf);
+                }
+            }
+            this.pipelineWriter = null;
         }
-
-        @Override
-        public int compareTo(PipelineDataItem o) {
-            return this.index - o.index;
+        for (ByteBuffer buf : buffers) {
+            this.pipelineReadyBuffers.add(buf);
         }
+    }
 
-        @Override
-        public String toString() {
-            return "{\"index\":" + index + "}";
+    //取出全部可写的pipeline数据, 没有数据返回null
+    private ByteBuffer[] takePipelineBuffers() {
+        ByteBufferWriter writer = this.pipelineWriter;
+        List<ByteBuffer> list = this.pipelineReadyBuffers;
+        this.pipelineWriter = null;
+        if (list == null || list.isEmpty()) return writer == null ? null : writer.toBuffers();
+        this.pipelineReadyBuffers = null;
+        if (writer != null) {
+            for (ByteBuffer buf : writer.toBuffers()) {
+                list.add(buf);
+            }
         }
+        return list.toArray(new ByteBuffer[list.size()]);
     }
 
     public ByteBuffer pollReadBuffer() {
@@ -424,9 +454,29 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
             this.readBuffer = null;
             return rs;
         }
+        return createReadBuffer();
+    }
+
+    //新建读缓存, 子类可根据连接的读取情况调整大小
+    protected ByteBuffer createReadBuffer() {
         return bufferSupplier.get();
     }
 
+    /**
+     * 读缓存已被半包数据占满时, 换成更大的读缓存并复制已有数据, 原读缓存会被回收
+     *
+     * @param buffer 写模式的读缓存
+     *
+     * @return 写模式的ByteBuffer
+     */
+    protected ByteBuffer expandReadBuffer(ByteBuffer buffer) {
+        ByteBuffer rs = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        buffer.flip();
+        rs.put(buffer);
+        offerBuffer(buffer);
+        return rs;
+    }
+
     public void offerBuffer(ByteBuffer buffer) {
         if (buffer == null) return;
         bufferConsumer.accept(buffer);
@@ -444,6 +494,11 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
         return bufferSupplier.get();
     }
 
+    //获取容量尽量接近size的写缓存, 默认与pollWriteBuffer()相同
+    public ByteBuffer pollWriteBuffer(int size) {
+        return bufferSupplier.get();
+    }
+
     public void dispose() {//同close， 只是去掉throws IOException
         try {
             this.close();
@@ -475,6 +530,17 @@ public abstract class AsyncConnection implements ChannelContext, Channel, AutoCl
         if (this.readBuffer != null) {
             Consumer<ByteBuffer> consumer = this.bufferConsumer;
             if (consumer != null) consumer.accept(this.readBuffer);
+            this.readBuffer = null;
+        }
+        synchronized (this) {
+            ByteBuffer[] pipelineBuffers = takePipelineBuffers();
+            if (pipelineBuffers != null) offerBuffer(pipelineBuffers);
+            if (this.pipelineSlots != null) {
+                for (ByteBuffer[] buffers : this.pipelineSlots) {
+                    if (buffers != null) offerBuffer(buffers);
+                }
+                this.pipelineSlots = null;
+            }
         }
         if (attributes == null) return;
         try {
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.Objects;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import org.redkale.util.*;
@@ -36,7 +37,10 @@ public class AsyncIOGroup extends AsyncGroup {
 
     final int bufferCapacity;
 
-    private final AtomicInteger readIndex = new AtomicInteger();
+    //堆外ByteBuffer分配器, 所有IO线程共用
+    final ByteBufferArena bufferArena;
+
+    private AsyncIOThreadStrategy ioThreadStrategy = new AsyncIOThreadStrategy.RoundRobinStrategy();
 
     //创建数
     final AtomicLong connCreateCounter = new AtomicLong();
@@ -47,50 +51,32 @@ public class AsyncIOGroup extends AsyncGroup {
     //在线数
     final AtomicLong connClosedCounter = new AtomicLong();
 
-    private ScheduledThreadPoolExecutor timeoutExecutor;
-
     public AsyncIOGroup(final int bufferCapacity, final int bufferPoolSize) {
         this(null, Runtime.getRuntime().availableProcessors(), bufferCapacity, bufferPoolSize);
     }
 
     public AsyncIOGroup(final ExecutorService workExecutor,
         final int iothreads, final int bufferCapacity, final int bufferPoolSize) {
-        this(null, workExecutor, iothreads, bufferCapacity, ObjectPool.createSafePool(null, null, bufferPoolSize,
-            (Object... params) -> ByteBuffer.allocateDirect(bufferCapacity), null, (e) -> {
-                if (e == null || e.isReadOnly() || e.capacity() != bufferCapacity) return false;
-                e.clear();
-                return true;
-            }));
+        this(null, workExecutor, iothreads, new ByteBufferArena(bufferCapacity, (long) bufferCapacity * Math.max(bufferPoolSize, 1)));
     }
 
-    public AsyncIOGroup(String threadPrefixName0, ExecutorService workExecutor,
-        int iothreads, final int bufferCapacity, ObjectPool<ByteBuffer> safeBufferPool) {
-        this.bufferCapacity = bufferCapacity;
+    public AsyncIOGroup(String threadPrefixName0, ExecutorService workExecutor, int iothreads, ByteBufferArena bufferArena) {
+        this.bufferCapacity = bufferArena.getDefaultCapacity();
+        this.bufferArena = bufferArena;
         final String threadPrefixName = threadPrefixName0 == null ? "Redkale-Client-IOThread" : threadPrefixName0;
         this.ioThreads = new AsyncIOThread[Math.max(iothreads, 1)];
         try {
             for (int i = 0; i < this.ioThreads.length; i++) {
-                ObjectPool<ByteBuffer> unsafeBufferPool = ObjectPool.createUnsafePool(safeBufferPool, safeBufferPool.getCreatCounter(),
-                    safeBufferPool.getCycleCounter(), 512, safeBufferPool.getCreator(), safeBufferPool.getPrepare(), safeBufferPool.getRecycler());
                 String name = threadPrefixName + "-" + (i >= 9 ? (i + 1) : ("0" + (i + 1)));
-
-                this.ioThreads[i] = new AsyncIOThread(true, name, workExecutor, Selector.open(), unsafeBufferPool, safeBufferPool);
+                this.ioThreads[i] = new AsyncIOThread(true, name, workExecutor, Selector.open(), bufferArena);
             }
             {
-                ObjectPool<ByteBuffer> unsafeBufferPool = ObjectPool.createUnsafePool(safeBufferPool, safeBufferPool.getCreatCounter(),
-                    safeBufferPool.getCycleCounter(), 512, safeBufferPool.getCreator(), safeBufferPool.getPrepare(), safeBufferPool.getRecycler());
                 String name = threadPrefixName.replace("ServletThread", "ConnectThread").replace("Redkale-Client-IOThread", "Redkale-Client-ConnectThread");
-                this.connectThread = new AsyncIOThread(false, name, workExecutor, Selector.open(), unsafeBufferPool, safeBufferPool);
+                this.connectThread = new AsyncIOThread(false, name, workExecutor, Selector.open(), bufferArena);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        this.timeoutExecutor = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, (Runnable r) -> {
-            Thread t = new Thread(r);
-            t.setName(threadPrefixName + "-Timeout");
-            t.setDaemon(true);
-            return t;
-        });
     }
 
     public int size() {
@@ -113,7 +99,6 @@ public class AsyncIOGroup extends AsyncGroup {
             thread.close();
         }
         connectThread.close();
-        this.timeoutExecutor.shutdownNow();
         closed = true;
     }
 
@@ -130,16 +115,40 @@ public class AsyncIOGroup extends AsyncGroup {
     }
 
     public AsyncIOThread nextIOThread() {
-        return ioThreads[Math.abs(readIndex.getAndIncrement()) % ioThreads.length];
+        return ioThreadStrategy.select(ioThreads);
+    }
+
+    public AsyncIOThreadStrategy getIOThreadStrategy() {
+        return ioThreadStrategy;
+    }
+
+    public void setIOThreadStrategy(AsyncIOThreadStrategy ioThreadStrategy) {
+        this.ioThreadStrategy = Objects.requireNonNull(ioThreadStrategy);
+    }
+
+    public ByteBufferArena getBufferArena() {
+        return bufferArena;
+    }
+
+    public AsyncIOThread[] getIOThreads() {
+        return ioThreads.clone();
     }
 
     public AsyncIOThread connectThread() {
         return connectThread;
     }
 
+    //在当前IO线程的时间轮中执行，非本组IO线程调用时按线程ID分配
     @Override
     public ScheduledFuture scheduleTimeout(Runnable callable, long delay, TimeUnit unit) {
-        return timeoutExecutor.schedule(callable, delay, unit);
+        Thread thread = Thread.currentThread();
+        if (thread instanceof AsyncIOThread) {
+            for (AsyncIOThread ioThread : ioThreads) {
+                if (ioThread == thread) return ioThread.scheduleTimeout(callable, delay, unit);
+            }
+            if (connectThread == thread) return connectThread.scheduleTimeout(callable, delay, unit);
+        }
+        return ioThreads[(int) (thread.getId() % ioThreads.length)].scheduleTimeout(callable, delay, unit);
     }
 
     public void interestOpsOr(AsyncIOThread thread, SelectionKey key, int opt) {
@@ -9,7 +9,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import org.redkale.util.*;
@@ -32,28 +32,92 @@ public class AsyncIOThread extends WorkThread {
 
     final AtomicInteger connCounter = new AtomicInteger();
 
+    //累计读写的字节数, 写操作可能在工作线程中
+    final LongAdder ioBytesCounter = new LongAdder();
+
+    //累计的selectedKey数, 只在本线程中修改
+    private volatile long selectedKeyCounter;
+
+    private long lastSelectedKeyCount;
+
+    private long lastIOBytesCount;
+
+    //上次采样负载的时间, 采样由分配连接时读取负载触发, 空闲的IO线程不需要定时任务
+    private volatile long lastSampleTime = System.currentTimeMillis();
+
+    private final Object sampleLock = new Object();
+
+    //最近每秒的selectedKey数(指数衰减平均)
+    private volatile long selectedKeyRate;
+
+    //最近每秒读写的字节数(指数衰减平均)
+    private volatile long ioBytesRate;
+
+    //堆外ByteBuffer分配器, 同一AsyncIOGroup共用
+    final ByteBufferArena bufferArena;
+
+    //本线程独占的ByteBuffer缓存
+    private final ByteBufferArena.Cache bufferCache;
+
+    //bufferArena的尺寸级别, 供连接自适应读缓存使用
+    final int[] bufferSizes;
+
+    //自适应读缓存的初始级别, 不小于2K的最小级别
+    final int bufferInitIndex;
+
     private final Supplier<ByteBuffer> bufferSupplier;
 
     private final Consumer<ByteBuffer> bufferConsumer;
 
     private final ConcurrentLinkedQueue<Consumer<Selector>> registers = new ConcurrentLinkedQueue<>();
 
+    //已唤醒selector且registers尚未处理, 期间的register无需再次唤醒
+    private final AtomicBoolean registerWakeup = new AtomicBoolean();
+
+    //读写超时与keep-alive超时的时间轮
+    final AsyncIOTimer timer;
+
     private boolean closed;
 
     int invoker = 0;
 
-    public AsyncIOThread(final boolean readable, String name, ExecutorService workExecutor, Selector selector,
-        ObjectPool<ByteBuffer> unsafeBufferPool, ObjectPool<ByteBuffer> safeBufferPool) {
+    public AsyncIOThread(final boolean readable, String name, ExecutorService workExecutor, Selector selector, ByteBufferArena bufferArena) {
         super(name, workExecutor, null);
         this.selector = selector;
         this.setDaemon(true);
-        this.bufferSupplier = () -> (inCurrThread() ? unsafeBufferPool : safeBufferPool).get();
-        this.bufferConsumer = (v) -> (inCurrThread() ? unsafeBufferPool : safeBufferPool).accept(v);
+        this.bufferArena = bufferArena;
+        this.bufferCache = bufferArena.createCache();
+        this.bufferSizes = bufferArena.getSizes();
+        int index = 0;
+        while (index < bufferSizes.length - 1 && bufferSizes[index] < 2048) index++;
+        this.bufferInitIndex = index;
+        this.bufferSupplier = () -> inCurrThread() ? bufferCache.get() : bufferArena.get();
+        this.bufferConsumer = (v) -> {
+            if (inCurrThread()) {
+                bufferCache.accept(v);
+            } else {
+                bufferArena.accept(v);
+            }
+        };
+        this.timer = new AsyncIOTimer(this);
+    }
+
+    /**
+     * 在本IO线程的时间轮上执行定时任务， 任务会在IO线程中执行，不能有阻塞操作
+     *
+     * @param callable 任务
+     * @param delay    延迟时间
+     * @param unit     时间单位
+     *
+     * @return ScheduledFuture
+     */
+    public ScheduledFuture<?> scheduleTimeout(Runnable callable, long delay, TimeUnit unit) {
+        return timer.schedule(callable, delay, unit);
     }
 
     public void register(Consumer<Selector> consumer) {
         registers.offer(consumer);
-        selector.wakeup();
+        if (!inCurrThread() && registerWakeup.compareAndSet(false, true)) selector.wakeup();
     }
 
     public Supplier<ByteBuffer> getBufferSupplier() {
@@ -64,21 +128,73 @@ public class AsyncIOThread extends WorkThread {
         return bufferConsumer;
     }
 
+    /**
+     * 获取容量不小于size的ByteBuffer, 用完后需通过getBufferConsumer()归还
+     *
+     * @param size 最小容量
+     *
+     * @return ByteBuffer
+     */
+    public ByteBuffer pollBuffer(int size) {
+        return inCurrThread() ? bufferCache.get(size) : bufferArena.get(size);
+    }
+
+    public ByteBufferArena getBufferArena() {
+        return bufferArena;
+    }
+
     public int currConnections() {
         return connCounter.get();
     }
 
+    public long getSelectedKeyRate() {
+        sampleLoad();
+        return selectedKeyRate;
+    }
+
+    public long getIOBytesRate() {
+        sampleLoad();
+        return ioBytesRate;
+    }
+
+    //距上次采样超过1秒时重新计算每秒的负载, 多个线程同时读取时只有一个线程计算
+    private void sampleLoad() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastSampleTime < 1000) return;
+        synchronized (sampleLock) {
+            long elapsed = now - this.lastSampleTime;
+            if (elapsed < 1000) return;
+            long keys = this.selectedKeyCounter;
+            long bytes = this.ioBytesCounter.sum();
+            this.selectedKeyRate = (this.selectedKeyRate + (keys - this.lastSelectedKeyCount) * 1000 / elapsed) / 2;
+            this.ioBytesRate = (this.ioBytesRate + (bytes - this.lastIOBytesCount) * 1000 / elapsed) / 2;
+            this.lastSelectedKeyCount = keys;
+            this.lastIOBytesCount = bytes;
+            this.lastSampleTime = now;
+        }
+    }
+
     @Override
     public void run() {
         this.localThread = Thread.currentThread();
         while (!this.closed) {
             try {
                 Consumer<Selector> register;
+                registerWakeup.set(false);
                 while ((register = registers.poll()) != null) {
                     register.accept(selector);
                 }
-                int count = selector.select();
-                if (count == 0) continue;
+                final AsyncIOTimer wheel = this.timer;
+                wheel.idleSelecting = true;
+                final boolean idle = wheel.isEmpty();
+                if (!idle) wheel.idleSelecting = false;
+                int count = idle ? selector.select() : selector.select(wheel.tickMillis);
+                wheel.idleSelecting = false;
+                if (count == 0) {
+                    wheel.tick(System.currentTimeMillis());
+                    continue;
+                }
+                this.selectedKeyCounter += count;
                 Set<SelectionKey> keys = selector.selectedKeys();
                 Iterator<SelectionKey> it = keys.iterator();
                 while (it.hasNext()) {
@@ -86,6 +202,10 @@ public class AsyncIOThread extends WorkThread {
                     it.remove();
                     invoker = 0;
                     if (!key.isValid()) continue;
+                    if (key.isAcceptable()) { //SO_REUSEPORT模式下注册在本线程的监听通道
+                        ((Runnable) key.attachment()).run();
+                        continue;
+                    }
                     AsyncNioConnection conn = (AsyncNioConnection) key.attachment();
                     if (conn.client) {
                         if (key.isConnectable()) {
@@ -103,26 +223,36 @@ public class AsyncIOThread extends WorkThread {
                     } else {
                         if (key.isReadable()) {
                             conn.currReadInvoker = 0;
-                            //key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
-                            conn.doRead(true);
+                            if (conn.readSuspended && !conn.readPending) { //等待调用read时再读取
+                                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                            } else {
+                                conn.doRead(true);
+                            }
                         } else if (conn.writeCompletionHandler != null && key.isWritable()) {
                             conn.currWriteInvoker = 0;
                             key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
                             conn.doWrite(true);
+                        } else if (conn.readPending && conn.sslNetOutBuffer != null && key.isWritable()) { //SSL握手数据未写完
+                            conn.currReadInvoker = 0;
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            conn.doRead(true);
                         } else if (key.isConnectable()) {
                             key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT);
                             conn.doConnect();
                         }
                     }
                 }
+                wheel.tick(System.currentTimeMillis());
             } catch (Exception ex) {
                 if (!this.closed) logger.log(Level.FINE, getName() + " selector run failed", ex);
             }
         }
+        this.bufferCache.clear();
     }
 
     public void close() {
         this.closed = true;
+        this.timer.clear();
         this.interrupt();
         try {
             this.selector.close();
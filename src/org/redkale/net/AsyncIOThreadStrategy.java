@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 新连接分配IO线程的策略
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.3.0
+ */
+public interface AsyncIOThreadStrategy {
+
+    /**
+     * 为新连接选择一个IO线程
+     *
+     * @param ioThreads IO线程集合
+     *
+     * @return AsyncIOThread
+     */
+    public AsyncIOThread select(AsyncIOThread[] ioThreads);
+
+    /**
+     * 根据名称创建策略， 支持 roundrobin、leastconns、leastbytes、p2c 或自定义类名
+     *
+     * @param name 策略名
+     *
+     * @return AsyncIOThreadStrategy
+     */
+    public static AsyncIOThreadStrategy create(String name) {
+        if (name == null || name.trim().isEmpty()) return new RoundRobinStrategy();
+        switch (name.trim().toLowerCase()) {
+            case "roundrobin":
+                return new RoundRobinStrategy();
+            case "leastconns":
+                return new LeastConnectionsStrategy();
+            case "leastbytes":
+                return new LeastRecentBytesStrategy();
+            case "p2c":
+                return new PowerOfTwoChoicesStrategy();
+            default:
+                try {
+                    Class<?> clazz = Thread.currentThread().getContextClassLoader().loadClass(name.trim());
+                    return (AsyncIOThreadStrategy) clazz.getDeclaredConstructor().newInstance();
+                } catch (Exception e) {
+                    throw new RuntimeException(AsyncIOThreadStrategy.class.getSimpleName() + "(" + name + ") newinstance error", e);
+                }
+        }
+    }
+
+    /**
+     * 轮询
+     */
+    public static class RoundRobinStrategy implements AsyncIOThreadStrategy {
+
+        private final AtomicInteger index = new AtomicInteger();
+
+        @Override
+        public AsyncIOThread select(AsyncIOThread[] ioThreads) {
+            return ioThreads[Math.abs(index.getAndIncrement()) % ioThreads.length];
+        }
+    }
+
+    /**
+     * 最少连接数
+     */
+    public static class LeastConnectionsStrategy implements AsyncIOThreadStrategy {
+
+        @Override
+        public AsyncIOThread select(AsyncIOThread[] ioThreads) {
+            AsyncIOThread rs = ioThreads[0];
+            int min = rs.currConnections();
+            for (int i = 1; i < ioThreads.length; i++) {
+                int c = ioThreads[i].currConnections();
+                if (c < min) {
+                    min = c;
+                    rs = ioThreads[i];
+                }
+            }
+            return rs;
+        }
+    }
+
+    /**
+     * 最近读写字节速率最低， 速率相同时取连接数少的
+     */
+    public static class LeastRecentBytesStrategy implements AsyncIOThreadStrategy {
+
+        @Override
+        public AsyncIOThread select(AsyncIOThread[] ioThreads) {
+            AsyncIOThread rs = ioThreads[0];
+            for (int i = 1; i < ioThreads.length; i++) {
+                AsyncIOThread t = ioThreads[i];
+                long r1 = t.getIOBytesRate();
+                long r2 = rs.getIOBytesRate();
+                if (r1 < r2 || (r1 == r2 && t.currConnections() < rs.currConnections())) rs = t;
+            }
+            return rs;
+        }
+    }
+
+    /**
+     * 随机取两个IO线程， 选择selectedKey速率(实际工作量)较低的那个
+     */
+    public static class PowerOfTwoChoicesStrategy implements AsyncIOThreadStrategy {
+
+        @Override
+        public AsyncIOThread select(AsyncIOThread[] ioThreads) {
+            if (ioThreads.length == 1) return ioThreads[0];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(ioThreads.length);
+            int j = random.nextInt(ioThreads.length - 1);
+            if (j >= i) j++;
+            AsyncIOThread t1 = ioThreads[i];
+            AsyncIOThread t2 = ioThreads[j];
+            long r1 = t1.getSelectedKeyRate();
+            long r2 = t2.getSelectedKeyRate();
+            if (r1 == r2) return t1.currConnections() <= t2.currConnections() ? t1 : t2;
+            return r1 < r2 ? t1 : t2;
+        }
+    }
+}
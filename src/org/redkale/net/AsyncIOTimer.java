@@ -0,0 +1,246 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+/**
+ * 协议处理IO线程的哈希时间轮, 只能由所属的AsyncIOThread在select循环中驱动 <br>
+ * 在IO线程内的schedule/cancel均为O(1)且无锁, 其他线程的schedule通过无锁队列在下一次tick时放入时间轮
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.3.0
+ */
+class AsyncIOTimer {
+
+    protected static final Logger logger = Logger.getLogger(AsyncIOTimer.class.getSimpleName());
+
+    static final int TICK_MILLIS = Integer.getInteger("net.timer.tick.millis", 100);
+
+    static final int WHEEL_SIZE = Integer.highestOneBit(Math.max(Integer.getInteger("net.timer.wheel.size", 512), 16));
+
+    final long tickMillis;
+
+    private final AsyncIOThread thread;
+
+    //每格是一个带哨兵的双向链表
+    private final TimerTask[] wheel;
+
+    private final int mask;
+
+    private final long startTime;
+
+    //已处理到的tick数
+    private long currTick;
+
+    //时间轮中的任务数(含已取消但尚未移除的)
+    private int size;
+
+    //非IO线程提交的任务
+    private final ConcurrentLinkedQueue<TimerTask> pendings = new ConcurrentLinkedQueue<>();
+
+    //IO线程是否正在无超时地select
+    volatile boolean idleSelecting;
+
+    public AsyncIOTimer(AsyncIOThread thread) {
+        this(thread, TICK_MILLIS, WHEEL_SIZE);
+    }
+
+    public AsyncIOTimer(AsyncIOThread thread, long tickMillis, int wheelSize) {
+        this.thread = thread;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.wheel = new TimerTask[wheelSize];
+        this.mask = wheelSize - 1;
+        for (int i = 0; i < wheelSize; i++) {
+            TimerTask head = new TimerTask(null, null, 0, 0);
+            head.prev = head;
+            head.next = head;
+            this.wheel[i] = head;
+        }
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        final long now = System.currentTimeMillis();
+        final long delayMillis = Math.max(0, unit.toMillis(delay));
+        final long deadlineTick = (now - startTime + delayMillis + tickMillis - 1) / tickMillis;
+        final TimerTask task = new TimerTask(this, command, deadlineTick, now + delayMillis);
+        if (thread.inCurrThread()) {
+            link(task);
+        } else {
+            pendings.offer(task);
+            if (idleSelecting) thread.selector.wakeup();
+        }
+        return task;
+    }
+
+    public boolean isEmpty() {
+        return size == 0 && pendings.isEmpty();
+    }
+
+    //由IO线程调用
+    public void tick(final long now) {
+        TimerTask task;
+        while ((task = pendings.poll()) != null) {
+            if (task.state.get() == TimerTask.STATE_WAITING) link(task);
+        }
+        final long targetTick = (now - startTime) / tickMillis;
+        if (targetTick <= currTick) return;
+        if (size == 0) {
+            currTick = targetTick;
+            return;
+        }
+        long from = currTick + 1;
+        if (targetTick - from >= wheel.length) from = targetTick - wheel.length + 1; //每格最多访问一次
+        for (long t = from; t <= targetTick && size > 0; t++) {
+            final TimerTask head = wheel[(int) (t & mask)];
+            TimerTask node = head.next;
+            while (node != head) {
+                TimerTask next = node.next;
+                if (node.state.get() != TimerTask.STATE_WAITING) {
+                    unlink(node);
+                } else if (node.deadlineTick <= targetTick) {
+                    unlink(node);
+                    node.expire();
+                }
+                node = next;
+            }
+        }
+        currTick = targetTick;
+    }
+
+    private void link(TimerTask task) {
+        //已过期的任务放入下一格
+        final TimerTask head = wheel[(int) (Math.max(task.deadlineTick, currTick + 1) & mask)];
+        task.prev = head.prev;
+        task.next = head;
+        head.prev.next = task;
+        head.prev = task;
+        size++;
+    }
+
+    private void unlink(TimerTask task) {
+        if (task.prev == null) return;
+        task.prev.next = task.next;
+        task.next.prev = task.prev;
+        task.prev = null;
+        task.next = null;
+        size--;
+    }
+
+    void clear() {
+        pendings.clear();
+        for (TimerTask head : wheel) {
+            head.prev = head;
+            head.next = head;
+        }
+        size = 0;
+    }
+
+    static final class TimerTask implements ScheduledFuture<Object> {
+
+        static final int STATE_WAITING = 0;
+
+        static final int STATE_DONE = 1;
+
+        static final int STATE_CANCELLED = 2;
+
+        final AsyncIOTimer timer;
+
+        final Runnable command;
+
+        final long deadlineTick;
+
+        final long deadlineMillis;
+
+        final AtomicInteger state = new AtomicInteger(STATE_WAITING);
+
+        TimerTask prev;
+
+        TimerTask next;
+
+        TimerTask(AsyncIOTimer timer, Runnable command, long deadlineTick, long deadlineMillis) {
+            this.timer = timer;
+            this.command = command;
+            this.deadlineTick = deadlineTick;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(STATE_WAITING, STATE_DONE)) return;
+            try {
+                command.run();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "AsyncIOTimer run task(" + command + ") error", t);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!state.compareAndSet(STATE_WAITING, STATE_CANCELLED)) return false;
+            //非IO线程中取消的任务到期时再移除
+            if (timer.thread.inCurrThread()) timer.unlink(this);
+            synchronized (this) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return state.get() != STATE_WAITING;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            synchronized (this) {
+                while (!isDone()) {
+                    wait();
+                }
+            }
+            if (isCancelled()) throw new CancellationException();
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            final long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            synchronized (this) {
+                while (!isDone()) {
+                    long remain = end - System.currentTimeMillis();
+                    if (remain <= 0) throw new TimeoutException();
+                    wait(remain);
+                }
+            }
+            if (isCancelled()) throw new CancellationException();
+            return null;
+        }
+    }
+}
@@ -41,10 +41,37 @@ class AsyncNioCompletionHandler<A> implements CompletionHandler<Integer, A>, Run
         this.attachment = attachment;
     }
 
+    CompletionHandler<Integer, A> handler() {
+        return handler;
+    }
+
     public void attachment(A attachment) {
         this.attachment = attachment;
     }
 
+    A attachment() {
+        return attachment;
+    }
+
+    //取消超时、归还缓存并取出原回调, 之后本对象可立即被新的操作复用
+    CompletionHandler<Integer, A> release() {
+        ScheduledFuture<?> future = this.timeoutFuture;
+        if (future != null) {
+            this.timeoutFuture = null;
+            future.cancel(true);
+        }
+        if (conn != null) {
+            if (buffers != null) {
+                conn.offerBuffer(buffers);
+            } else if (buffer != null) {
+                conn.offerBuffer(buffer);
+            }
+        }
+        CompletionHandler<Integer, A> handler0 = handler;
+        clear();
+        return handler0;
+    }
+
     public void buffers(ByteBuffer... buffs) {
         this.buffers = buffs;
     }
@@ -5,15 +5,16 @@
  */
 package org.redkale.net;
 
-import java.io.IOException;
+import java.io.*;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.Objects;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.*;
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.*;
 import org.redkale.util.*;
 
 /**
@@ -29,6 +30,9 @@ abstract class AsyncNioConnection extends AsyncConnection {
 
     protected static final int MAX_INVOKER_ONSTACK = Integer.getInteger("net.invoker.max.onstack", 16);
 
+    //单次可写事件中零拷贝输出文件的字节数上限, 达到上限即让出ioThread, 避免大文件下载阻塞同线程的其他连接
+    protected static final int MAX_TRANSFER_ONCE = Integer.getInteger("net.transfer.max.once", 256 * 1024);
+
     final AsyncIOThread ioThread;
 
     final AsyncIOThread connectThread;
@@ -59,8 +63,23 @@ abstract class AsyncNioConnection extends AsyncConnection {
 
     protected boolean readPending;
 
+    //为true时IO线程不再主动读取新请求, 只在调用read时读取
+    volatile boolean readSuspended;
+
     protected SelectionKey readKey;
 
+    //读写缓存是否来自ioThread的ByteBufferArena, 是则可按尺寸获取
+    protected boolean ioThreadBuffer;
+
+    //是否启用自适应读缓存: 空闲时不持有读缓存, 读满则扩大, 连续两次可被小一级容纳则缩小
+    protected boolean readAdaptive;
+
+    //自适应读缓存当前的尺寸级别, 对应ioThread.bufferSizes的下标
+    int readSizeIndex;
+
+    //连续读取量不足小一级尺寸的次数
+    int readShrinkTimes;
+
     //-------------------------------- 写操作 --------------------------------------
     protected final AsyncNioCompletionHandler<Object> writeTimeoutCompletionHandler = new AsyncNioCompletionHandler<>(this);
 
@@ -101,6 +120,31 @@ abstract class AsyncNioConnection extends AsyncConnection {
 
     protected SelectionKey writeKey;
 
+    //零拷贝输出文件, writeFileChannel有值时doWrite以transferTo从writeFilePosition续写
+    protected FileChannel writeFileChannel;
+
+    protected long writeFilePosition;
+
+    protected long writeFileRemain;
+
+    //保护writePending与writeQueue的锁, 写请求可能来自多个工作线程
+    private final Object writeLock = new Object();
+
+    //写操作进行中时其他线程提交的写请求, 当前写完成后合并为一次聚集写
+    private List<AsyncNioWriteEntry> writeQueue;
+
+    //-------------------------------- SSL操作 --------------------------------------
+    protected SSLEngine sslEngine;
+
+    //已从网络读取但尚未解密的数据, 写模式
+    protected ByteBuffer sslNetInBuffer;
+
+    //已解密但readByteBuffer容纳不下的数据, 读模式
+    protected ByteBuffer sslAppInBuffer;
+
+    //已加密但尚未写出的数据, 读模式
+    protected ByteBuffer sslNetOutBuffer;
+
     public AsyncNioConnection(boolean client, AsyncIOGroup ioGroup, AsyncIOThread ioThread, AsyncIOThread connectThread,
         final int bufferCapacity, ObjectPool<ByteBuffer> bufferPool, SSLContext sslContext, AtomicLong livingCounter, AtomicLong closedCounter) {
         super(client, bufferCapacity, bufferPool, sslContext, livingCounter, closedCounter);
@@ -122,6 +166,11 @@ abstract class AsyncNioConnection extends AsyncConnection {
         return remoteAddress;
     }
 
+    @Override
+    public AsyncIOThread getIOThread() {
+        return ioThread;
+    }
+
     @Override
     public void setReadTimeoutSeconds(int readTimeoutSeconds) {
         this.readTimeoutSeconds = readTimeoutSeconds;
@@ -161,20 +210,35 @@ abstract class AsyncNioConnection extends AsyncConnection {
     @Override
     public void read(CompletionHandler<Integer, ByteBuffer> handler) {
         Objects.requireNonNull(handler);
+        if (!client && !this.ioThread.inCurrThread()) {
+            //服务端连接始终关注OP_READ, ioThread随时可能读取数据, 工作线程发起的读操作需转到ioThread中执行
+            this.ioThread.register(selector -> read(handler));
+            return;
+        }
         if (!this.isConnected()) {
             handler.failed(new NotYetConnectedException(), null);
             return;
         }
+        //暂停期间新请求(如分批读取body的请求)已在读取中, 之前的响应发起的等待新请求的读操作可忽略
+        if (this.readSuspended && handler == protocolCodec) return;
         if (this.readPending) {
+            //写操作排队合并后, 多个pipeline批次的响应可能先后发起等待新请求的读操作;
+            //工作线程的响应转到ioThread发起读操作前, ioThread也可能已开始读取下一个请求, 已在读取则忽略
+            if (handler == protocolCodec) return;
             handler.failed(new ReadPendingException(), null);
             return;
         }
         this.readPending = true;
-        if (this.readTimeoutSeconds > 0) {
+        int timeoutSeconds = this.readTimeoutSeconds;
+        if (handler == protocolCodec && protocolCodec != null) { //等待新请求的空闲连接使用keep-alive超时
+            int aliveTimeoutSeconds = protocolCodec.getAliveTimeoutSeconds();
+            if (aliveTimeoutSeconds > 0) timeoutSeconds = aliveTimeoutSeconds;
+        }
+        if (timeoutSeconds > 0) {
             AsyncNioCompletionHandler newhandler = this.readTimeoutCompletionHandler;
             newhandler.handler(handler, this.readByteBuffer);   // new AsyncNioCompletionHandler(handler, this.readByteBuffer);
             this.readCompletionHandler = newhandler;
-            newhandler.timeoutFuture = ioGroup.scheduleTimeout(newhandler, this.readTimeoutSeconds, TimeUnit.SECONDS);
+            newhandler.timeoutFuture = ioThread.scheduleTimeout(newhandler, timeoutSeconds, TimeUnit.SECONDS);
         } else {
             this.readCompletionHandler = handler;
         }
@@ -189,11 +253,17 @@ abstract class AsyncNioConnection extends AsyncConnection {
             handler.failed(new NotYetConnectedException(), null);
             return;
         }
-        if (this.writePending) {
-            handler.failed(new WritePendingException(), null);
-            return;
+        synchronized (writeLock) {
+            if (this.writePending) {
+                //数据拷贝到写缓存后排队, bodyCallback可立即执行
+                ByteBufferWriter writer = ByteBufferWriter.create(getBufferSupplier(), pollWriteBuffer(Math.min(headerLength + bodyLength, bufferCapacity)));
+                writer.put(headerContent, headerOffset, headerLength, bodyContent, bodyOffset, bodyLength);
+                if (bodyLength > 0 && bodyCallback != null) bodyCallback.accept(bodyAttachment);
+                queueWrite(new AsyncNioWriteEntry(writer.toBuffers(), true, null, (CompletionHandler) handler));
+                return;
+            }
+            this.writePending = true;
         }
-        this.writePending = true;
         this.writeByteTuple1Array = headerContent;
         this.writeByteTuple1Offset = headerOffset;
         this.writeByteTuple1Length = headerLength;
@@ -207,7 +277,7 @@ abstract class AsyncNioConnection extends AsyncConnection {
             AsyncNioCompletionHandler newhandler = this.writeTimeoutCompletionHandler;
             newhandler.handler(handler, null);   // new AsyncNioCompletionHandler(handler, null);
             this.writeCompletionHandler = newhandler;
-            newhandler.timeoutFuture = ioGroup.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
+            newhandler.timeoutFuture = ioThread.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
         } else {
             AsyncNioCompletionHandler newhandler = this.writeTimeoutCompletionHandler;
             newhandler.handler(handler, null);   // new AsyncNioCompletionHandler(handler, null);
@@ -224,18 +294,20 @@ abstract class AsyncNioConnection extends AsyncConnection {
             handler.failed(new NotYetConnectedException(), attachment);
             return;
         }
-        if (this.writePending) {
-            handler.failed(new WritePendingException(), attachment);
-            return;
+        synchronized (writeLock) {
+            if (this.writePending) {
+                queueWrite(new AsyncNioWriteEntry(new ByteBuffer[]{src}, false, attachment, (CompletionHandler) handler));
+                return;
+            }
+            this.writePending = true;
         }
-        this.writePending = true;
         this.writeByteBuffer = src;
         this.writeAttachment = attachment;
         if (this.writeTimeoutSeconds > 0) {
             AsyncNioCompletionHandler newhandler = this.writeTimeoutCompletionHandler;
             newhandler.handler(handler, attachment);   // new AsyncNioCompletionHandler(handler, attachment);
             this.writeCompletionHandler = newhandler;
-            newhandler.timeoutFuture = ioGroup.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
+            newhandler.timeoutFuture = ioThread.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
         } else {
             this.writeCompletionHandler = (CompletionHandler) handler;
         }
@@ -250,11 +322,18 @@ abstract class AsyncNioConnection extends AsyncConnection {
             handler.failed(new NotYetConnectedException(), attachment);
             return;
         }
-        if (this.writePending) {
-            handler.failed(new WritePendingException(), attachment);
-            return;
+        synchronized (writeLock) {
+            if (this.writePending) {
+                queueWrite(new AsyncNioWriteEntry(offset == 0 && length == srcs.length ? srcs : Arrays.copyOfRange(srcs, offset, offset + length), false, attachment, (CompletionHandler) handler));
+                return;
+            }
+            this.writePending = true;
         }
-        this.writePending = true;
+        writeBuffers(srcs, offset, length, attachment, handler);
+    }
+
+    //writePending已置为true后发起聚集写
+    private <A> void writeBuffers(ByteBuffer[] srcs, int offset, int length, A attachment, CompletionHandler<Integer, ? super A> handler) {
         this.writeByteBuffers = srcs;
         this.writeOffset = offset;
         this.writeLength = length;
@@ -263,13 +342,70 @@ abstract class AsyncNioConnection extends AsyncConnection {
             AsyncNioCompletionHandler newhandler = this.writeTimeoutCompletionHandler;
             newhandler.handler(handler, attachment);   // new AsyncNioCompletionHandler(handler, attachment);
             this.writeCompletionHandler = newhandler;
-            newhandler.timeoutFuture = ioGroup.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
+            newhandler.timeoutFuture = ioThread.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
         } else {
             this.writeCompletionHandler = (CompletionHandler) handler;
         }
         doWrite(true || !client || currWriteInvoker < MAX_INVOKER_ONSTACK); // this.ioThread.inCurrThread() // !client && ioThread.workExecutor == null
     }
 
+    @Override
+    public <A> void transferFile(FileChannel fileChannel, long position, long count, A attachment, CompletionHandler<Long, ? super A> handler) {
+        if (sslEngine != null || !isTCP()) { //SSL需加密、UDP需分包, 无法零拷贝
+            super.transferFile(fileChannel, position, count, attachment, handler);
+            return;
+        }
+        Objects.requireNonNull(fileChannel);
+        Objects.requireNonNull(handler);
+        if (!this.isConnected()) {
+            handler.failed(new NotYetConnectedException(), attachment);
+            return;
+        }
+        synchronized (writeLock) {
+            if (this.writePending) {
+                queueWrite(new AsyncNioWriteEntry(fileChannel, position, count, attachment, (CompletionHandler) handler));
+                return;
+            }
+            this.writePending = true;
+        }
+        writeFile(fileChannel, position, count, attachment, handler);
+    }
+
+    //writePending已置为true后发起文件输出
+    private <A> void writeFile(FileChannel fileChannel, long position, long count, A attachment, CompletionHandler<Long, ? super A> handler) {
+        this.writeFileChannel = fileChannel;
+        this.writeFilePosition = position;
+        this.writeFileRemain = count;
+        this.writeAttachment = attachment;
+        CompletionHandler<Integer, A> filehandler = new CompletionHandler<Integer, A>() {
+            @Override
+            public void completed(Integer result, A attachment) {
+                handler.completed(count, attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, A attachment) {
+                handler.failed(exc, attachment);
+            }
+        };
+        if (this.writeTimeoutSeconds > 0) {
+            AsyncNioCompletionHandler newhandler = this.writeTimeoutCompletionHandler;
+            newhandler.handler(filehandler, attachment);
+            this.writeCompletionHandler = newhandler;
+            newhandler.timeoutFuture = ioThread.scheduleTimeout(newhandler, this.writeTimeoutSeconds, TimeUnit.SECONDS);
+        } else {
+            this.writeCompletionHandler = (CompletionHandler) filehandler;
+        }
+        doWrite(true);
+    }
+
+    @Override
+    public void suspendRead(boolean suspended) {
+        this.readSuspended = suspended;
+        //暂停期间可能已取消关注OP_READ, 恢复时需重新关注
+        if (!suspended && !client && readKey != null) ioGroup.interestOpsOr(ioThread, readKey, SelectionKey.OP_READ);
+    }
+
     public void doRead(boolean direct) {
         try {
             this.readtime = System.currentTimeMillis();
@@ -277,27 +413,51 @@ abstract class AsyncNioConnection extends AsyncConnection {
             if (direct) {
                 currReadInvoker++;
                 if (this.readByteBuffer == null) {
-                    this.readByteBuffer = pollReadBuffer();
-                    if (this.readTimeoutSeconds > 0) {
+                    ByteBuffer buffer = pollReadBuffer();
+                    if (readAdaptive && buffer.position() == 0 && buffer.capacity() < ioThread.bufferSizes[readSizeIndex]) {
+                        offerBuffer(buffer); //沿用的读缓存已偏小
+                        buffer = createReadBuffer();
+                    }
+                    this.readByteBuffer = buffer;
+                    if (this.readCompletionHandler == this.readTimeoutCompletionHandler) {
                         this.readTimeoutCompletionHandler.attachment(this.readByteBuffer);
                     }
                 }
-                readCount = implRead(readByteBuffer);
+                final int space = readByteBuffer.remaining();
+                readCount = sslEngine == null ? implRead(readByteBuffer) : sslRead(readByteBuffer);
+                if (readAdaptive) {
+                    if (readCount > 0) {
+                        adaptReadSize(readCount, readCount >= space);
+                    } else if (readCount == 0 && readByteBuffer.position() == 0) {
+                        //没有数据可读时归还读缓存, 空闲的长连接不占用ByteBuffer, 等到OP_READ就绪时再获取
+                        offerBuffer(readByteBuffer);
+                        this.readByteBuffer = null;
+                        if (this.readCompletionHandler == this.readTimeoutCompletionHandler) {
+                            this.readTimeoutCompletionHandler.attachment(null);
+                        }
+                    }
+                }
             }
 
+            if (readCount > 0) ioThread.ioBytesCounter.add(readCount);
             if (readCount != 0) {
                 handleRead(readCount, null);
+            } else if (!direct && sslEngine != null && (sslAppInBuffer != null || (sslNetInBuffer != null && sslNetInBuffer.position() > 0))) {
+                ioThread.register(selector -> doRead(true)); //已缓存的SSL数据不会再触发OP_READ
             } else if (readKey == null) {
+                //SSL握手数据未写完时需同时关注OP_WRITE
+                final int ops = sslNetOutBuffer == null ? SelectionKey.OP_READ : (SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                 ioThread.register(selector -> {
                     try {
-                        readKey = implRegister(selector, SelectionKey.OP_READ);
+                        readKey = implRegister(selector, ops);
                         readKey.attach(this);
                     } catch (ClosedChannelException e) {
                         handleRead(0, e);
                     }
                 });
             } else {
-                if (client || !direct) ioGroup.interestOpsOr(ioThread, readKey, SelectionKey.OP_READ);
+                if (client || !direct || readSuspended) ioGroup.interestOpsOr(ioThread, readKey, SelectionKey.OP_READ);
+                if (sslNetOutBuffer != null) ioGroup.interestOpsOr(ioThread, readKey, SelectionKey.OP_WRITE);
             }
         } catch (Exception e) {
             handleRead(0, e);
@@ -305,6 +465,10 @@ abstract class AsyncNioConnection extends AsyncConnection {
     }
 
     public void doWrite(boolean direct) {
+        if (writeFileChannel != null) {
+            doTransfer();
+            return;
+        }
         try {
             this.writetime = System.currentTimeMillis();
             final boolean invokeDirect = direct;
@@ -360,10 +524,10 @@ abstract class AsyncNioConnection extends AsyncConnection {
                 }
                 int writeCount;
                 if (writeByteBuffer != null) {
-                    writeCount = implWrite(writeByteBuffer);
+                    writeCount = sslEngine == null ? implWrite(writeByteBuffer) : sslWrite(new ByteBuffer[]{writeByteBuffer}, 0, 1);
                     hasRemain = writeByteBuffer.hasRemaining();
                 } else {
-                    writeCount = implWrite(writeByteBuffers, writeOffset, writeLength);
+                    writeCount = sslEngine == null ? implWrite(writeByteBuffers, writeOffset, writeLength) : sslWrite(writeByteBuffers, writeOffset, writeLength);
                     boolean remain = false;
                     for (int i = writeByteBuffers.length - 1; i >= writeOffset; i--) {
                         if (writeByteBuffers[i].hasRemaining()) {
@@ -373,6 +537,7 @@ abstract class AsyncNioConnection extends AsyncConnection {
                     }
                     hasRemain = remain;
                 }
+                if (!hasRemain && sslNetOutBuffer != null) hasRemain = true; //密文未写完
                 if (writeCount <= 0) {
                     if (totalCount == 0) totalCount = writeCount;
                     break;
@@ -382,25 +547,290 @@ abstract class AsyncNioConnection extends AsyncConnection {
                 if (!hasRemain) break;
             }
 
-            if (totalCount != 0 || !hasRemain) {
+            if (totalCount > 0) ioThread.ioBytesCounter.add(totalCount);
+            if (!hasRemain) { //数据(含SSL密文)全部写完才回调
                 handleWrite(totalCount, null);
-            } else if (writeKey == null) {
-                ioThread.register(selector -> {
-                    try {
-                        writeKey = implRegister(selector, SelectionKey.OP_WRITE);
-                        writeKey.attach(this);
-                    } catch (ClosedChannelException e) {
-                        handleWrite(0, e);
-                    }
-                });
             } else {
-                ioGroup.interestOpsOr(ioThread, writeKey, SelectionKey.OP_WRITE);
+                registerWrite();
             }
         } catch (IOException e) {
             handleWrite(0, e);
         }
     }
 
+    //零拷贝输出文件: socket缓存写满则关注OP_WRITE, 可写时从保存的位置续传
+    private void doTransfer() {
+        try {
+            this.writetime = System.currentTimeMillis();
+            long totalCount = 0;
+            while (writeFileRemain > 0 && totalCount < MAX_TRANSFER_ONCE) {
+                long c = implTransfer(writeFileChannel, writeFilePosition, Math.min(writeFileRemain, MAX_TRANSFER_ONCE - totalCount));
+                if (c <= 0) break;
+                writeFilePosition += c;
+                writeFileRemain -= c;
+                totalCount += c;
+            }
+            if (totalCount > 0) ioThread.ioBytesCounter.add(totalCount);
+            if (writeFileRemain <= 0) {
+                handleWrite((int) Math.min(totalCount, Integer.MAX_VALUE), null);
+            } else if (totalCount == 0 && writeFilePosition >= writeFileChannel.size()) {
+                throw new EOFException("file truncated at position " + writeFilePosition);
+            } else {
+                registerWrite();
+            }
+        } catch (IOException e) {
+            handleWrite(0, e);
+        }
+    }
+
+    //关注OP_WRITE, 等待可写时继续doWrite
+    private void registerWrite() {
+        if (writeKey == null) {
+            ioThread.register(selector -> {
+                try {
+                    //同一Selector中同一通道只有一个SelectionKey, 重新注册会覆盖已关注的OP_READ
+                    SelectionKey key = readKey;
+                    int ops = key != null && key.isValid() && key.selector() == selector ? (key.interestOps() | SelectionKey.OP_WRITE) : SelectionKey.OP_WRITE;
+                    writeKey = implRegister(selector, ops);
+                    writeKey.attach(this);
+                } catch (ClosedChannelException e) {
+                    handleWrite(0, e);
+                }
+            });
+        } else {
+            ioGroup.interestOpsOr(ioThread, writeKey, SelectionKey.OP_WRITE);
+        }
+    }
+
+    //返回解密后的字节数, -1表示连接已关闭
+    protected int sslRead(ByteBuffer dst) throws IOException {
+        if (sslAppInBuffer != null) return sslDrainAppIn(dst);
+        if (!sslHandshake(true)) return sslEngine.isInboundDone() ? -1 : 0;
+        int readCount = sslNetInBuffer == null || sslNetInBuffer.position() == 0 ? sslFillNetIn() : 0;
+        for (;;) {
+            final ByteBuffer netIn = this.sslNetInBuffer;
+            if (netIn == null || netIn.position() == 0) {
+                sslReleaseNetIn();
+                return readCount < 0 ? -1 : 0;
+            }
+            netIn.flip();
+            SSLEngineResult result = sslEngine.unwrap(netIn, dst);
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                ByteBuffer appIn = pollSslBuffer(sslEngine.getSession().getApplicationBufferSize());
+                result = sslEngine.unwrap(netIn, appIn);
+                appIn.flip();
+                if (appIn.hasRemaining()) {
+                    this.sslAppInBuffer = appIn;
+                } else {
+                    offerBuffer(appIn);
+                }
+            }
+            netIn.compact();
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) sslRunTasks();
+            if (sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) sslHandshake(true); //TLS1.3的KeyUpdate等握手后消息
+            if (result.getStatus() == Status.CLOSED) {
+                if (result.bytesProduced() > 0) return result.bytesProduced();
+                return sslAppInBuffer == null ? -1 : sslDrainAppIn(dst);
+            }
+            if (result.getStatus() == Status.BUFFER_UNDERFLOW || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                if (readCount < 0) return -1;
+                if (!netIn.hasRemaining()) this.sslNetInBuffer = sslEnlarge(netIn, sslEngine.getSession().getPacketBufferSize());
+                readCount = sslFillNetIn();
+                if (readCount == 0) return 0;
+                continue;
+            }
+            if (sslAppInBuffer != null) return result.bytesProduced() + sslDrainAppIn(dst);
+            if (result.bytesProduced() > 0) return result.bytesProduced();
+            //只消费了握手后消息(如NewSessionTicket), 继续读取
+            if (netIn.position() == 0) readCount = sslFillNetIn();
+        }
+    }
+
+    //返回已加密的明文字节数, 密文未能全部写出时保留在sslNetOutBuffer中
+    protected int sslWrite(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        synchronized (sslEngine) {
+            if (!sslFlushNetOut()) return 0;
+            //写操作不能读取channel(可能存在并发的读操作), NEED_UNWRAP由读操作推进
+            if (!sslHandshake(false)) return 0;
+            int consumed = 0;
+            for (;;) {
+                SSLEngineResult result = sslWrap(srcs, offset, length);
+                consumed += result.bytesConsumed();
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) sslRunTasks();
+                if (!sslFlushNetOut()) break;
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break;
+                boolean remain = false;
+                for (int i = offset + length - 1; i >= offset; i--) {
+                    if (srcs[i].hasRemaining()) {
+                        remain = true;
+                        break;
+                    }
+                }
+                if (!remain) break;
+            }
+            return consumed;
+        }
+    }
+
+    //返回握手是否已完成
+    private boolean sslHandshake(boolean readable) throws IOException {
+        final SSLEngine engine = this.sslEngine;
+        HandshakeStatus hs = engine.getHandshakeStatus();
+        while (hs != HandshakeStatus.NOT_HANDSHAKING && hs != HandshakeStatus.FINISHED) {
+            if (hs == HandshakeStatus.NEED_TASK) {
+                sslRunTasks();
+            } else if (hs == HandshakeStatus.NEED_WRAP) {
+                synchronized (engine) {
+                    if (!sslFlushNetOut()) return false;
+                    if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        SSLEngineResult result = sslWrap(new ByteBuffer[]{ByteBuffer.allocate(0)}, 0, 1);
+                        if (result.getStatus() == Status.CLOSED) throw new SSLException("SSLEngine closed while handshaking");
+                    }
+                    if (!sslFlushNetOut()) return false;
+                }
+            } else if (!readable) { //NEED_UNWRAP or NEED_UNWRAP_AGAIN
+                return false;
+            } else {
+                if (hs != HandshakeStatus.NEED_UNWRAP_AGAIN && (sslNetInBuffer == null || sslNetInBuffer.position() == 0)) {
+                    int count = sslFillNetIn();
+                    if (count < 0) throw new EOFException("channel closed while handshaking");
+                    if (count == 0) return false;
+                }
+                final ByteBuffer netIn = this.sslNetInBuffer;
+                ByteBuffer appIn = pollSslBuffer(engine.getSession().getApplicationBufferSize());
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                appIn.flip();
+                if (appIn.hasRemaining() && sslAppInBuffer == null) {
+                    this.sslAppInBuffer = appIn; //客户端紧随Finished发送的应用数据
+                } else {
+                    offerBuffer(appIn);
+                }
+                if (result.getStatus() == Status.CLOSED) throw new SSLException("SSLEngine closed while handshaking");
+                if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+                    if (!netIn.hasRemaining()) this.sslNetInBuffer = sslEnlarge(netIn, engine.getSession().getPacketBufferSize());
+                    int count = sslFillNetIn();
+                    if (count < 0) throw new EOFException("channel closed while handshaking");
+                    if (count == 0) return false;
+                }
+            }
+            hs = engine.getHandshakeStatus();
+        }
+        return true;
+    }
+
+    private SSLEngineResult sslWrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ByteBuffer netOut = this.sslNetOutBuffer;
+        if (netOut == null) {
+            netOut = pollSslBuffer(sslEngine.getSession().getPacketBufferSize());
+        } else {
+            netOut.compact();
+        }
+        SSLEngineResult result;
+        for (;;) {
+            result = sslEngine.wrap(srcs, offset, length, netOut);
+            if (result.getStatus() != Status.BUFFER_OVERFLOW) break;
+            netOut = sslEnlarge(netOut, sslEngine.getSession().getPacketBufferSize());
+        }
+        netOut.flip();
+        this.sslNetOutBuffer = netOut;
+        return result;
+    }
+
+    //返回密文是否已全部写出
+    private boolean sslFlushNetOut() throws IOException {
+        ByteBuffer netOut = this.sslNetOutBuffer;
+        if (netOut == null) return true;
+        while (netOut.hasRemaining()) {
+            if (implWrite(netOut) < 1) return false;
+        }
+        this.sslNetOutBuffer = null;
+        offerBuffer(netOut);
+        return true;
+    }
+
+    private int sslFillNetIn() throws IOException {
+        ByteBuffer netIn = this.sslNetInBuffer;
+        if (netIn == null) {
+            netIn = pollSslBuffer(sslEngine.getSession().getPacketBufferSize());
+            this.sslNetInBuffer = netIn;
+        }
+        return implRead(netIn);
+    }
+
+    private void sslReleaseNetIn() {
+        ByteBuffer netIn = this.sslNetInBuffer;
+        if (netIn != null && netIn.position() == 0) { //空闲的keep-alive连接不占用缓冲区
+            this.sslNetInBuffer = null;
+            offerBuffer(netIn);
+        }
+    }
+
+    private int sslDrainAppIn(ByteBuffer dst) {
+        ByteBuffer appIn = this.sslAppInBuffer;
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        if (count == appIn.remaining()) {
+            dst.put(appIn);
+            this.sslAppInBuffer = null;
+            offerBuffer(appIn);
+        } else {
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + count);
+            dst.put(appIn);
+            appIn.limit(limit);
+        }
+        return count;
+    }
+
+    private void sslRunTasks() {
+        Runnable task;
+        while ((task = sslEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    //写模式的buffer扩容
+    private ByteBuffer sslEnlarge(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer newBuffer = pollSslBuffer(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        newBuffer.put(buffer);
+        offerBuffer(buffer);
+        return newBuffer;
+    }
+
+    //优先使用AsyncIOThread的池化ByteBuffer, 容量不足时才单独创建(回收时会被池丢弃)
+    private ByteBuffer pollSslBuffer(int size) {
+        if (size <= bufferCapacity) {
+            ByteBuffer buffer = pollWriteBuffer();
+            if (buffer.capacity() >= size) return buffer;
+            offerBuffer(buffer);
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    protected void sslClose() {
+        final SSLEngine engine = this.sslEngine;
+        if (engine == null) return;
+        synchronized (engine) {
+            try {
+                if (!engine.isOutboundDone()) {
+                    engine.closeOutbound();
+                    sslWrap(new ByteBuffer[]{ByteBuffer.allocate(0)}, 0, 1);
+                    sslFlushNetOut(); //close_notify尽力写出即可
+                }
+            } catch (Exception e) {
+                //do nothing
+            }
+            if (sslNetOutBuffer != null) offerBuffer(sslNetOutBuffer);
+            if (sslNetInBuffer != null) offerBuffer(sslNetInBuffer);
+            if (sslAppInBuffer != null) offerBuffer(sslAppInBuffer);
+            this.sslNetOutBuffer = null;
+            this.sslNetInBuffer = null;
+            this.sslAppInBuffer = null;
+        }
+    }
+
     protected void handleConnect(Throwable t) {
         if (connectKey != null) {
             connectKey.cancel();
@@ -422,6 +852,45 @@ abstract class AsyncNioConnection extends AsyncConnection {
         }
     }
 
+    @Override
+    protected ByteBuffer createReadBuffer() {
+        return readAdaptive ? ioThread.pollBuffer(ioThread.bufferSizes[readSizeIndex]) : super.createReadBuffer();
+    }
+
+    @Override
+    public ByteBuffer pollWriteBuffer(int size) {
+        return ioThreadBuffer ? ioThread.pollBuffer(size) : super.pollWriteBuffer(size);
+    }
+
+    @Override
+    protected ByteBuffer expandReadBuffer(ByteBuffer buffer) {
+        if (!readAdaptive) return super.expandReadBuffer(buffer);
+        final int[] sizes = ioThread.bufferSizes;
+        while (readSizeIndex < sizes.length - 1 && sizes[readSizeIndex] <= buffer.capacity()) readSizeIndex++;
+        readShrinkTimes = 0;
+        ByteBuffer rs = ioThread.pollBuffer(Math.max(sizes[readSizeIndex], buffer.capacity() * 2));
+        buffer.flip();
+        rs.put(buffer);
+        offerBuffer(buffer);
+        return rs;
+    }
+
+    //读满则扩大下次读缓存的尺寸级别, 连续两次读取量可被小一级容纳则缩小
+    private void adaptReadSize(int readCount, boolean full) {
+        final int[] sizes = ioThread.bufferSizes;
+        if (full) {
+            if (readSizeIndex < sizes.length - 1) readSizeIndex++;
+            readShrinkTimes = 0;
+        } else if (readSizeIndex > 0 && readCount <= sizes[readSizeIndex - 1]) {
+            if (++readShrinkTimes >= 2) {
+                readSizeIndex--;
+                readShrinkTimes = 0;
+            }
+        } else {
+            readShrinkTimes = 0;
+        }
+    }
+
     protected void handleRead(final int totalCount, Throwable t) {
         CompletionHandler<Integer, ByteBuffer> handler = this.readCompletionHandler;
         ByteBuffer attach = this.readByteBuffer;
@@ -448,6 +917,11 @@ abstract class AsyncNioConnection extends AsyncConnection {
     protected void handleWrite(final int totalCount, Throwable t) {
         CompletionHandler<Integer, Object> handler = this.writeCompletionHandler;
         Object attach = this.writeAttachment;
+        if (handler == this.writeTimeoutCompletionHandler) {
+            //释放writePending后其他线程可能立即复用writeTimeoutCompletionHandler发起写操作, 须提前取出原回调
+            attach = this.writeTimeoutCompletionHandler.attachment();
+            handler = this.writeTimeoutCompletionHandler.release();
+        }
         //清空写参数
         this.writeCompletionHandler = null;
         this.writeAttachment = null;
@@ -455,13 +929,175 @@ abstract class AsyncNioConnection extends AsyncConnection {
         this.writeByteBuffers = null;
         this.writeOffset = 0;
         this.writeLength = 0;
-        this.writePending = false; //必须放最后
+        this.writeFileChannel = null;
+        this.writeFilePosition = 0;
+        this.writeFileRemain = 0;
+        List<AsyncNioWriteEntry> queue;
+        synchronized (writeLock) {
+            queue = this.writeQueue;
+            this.writeQueue = null;
+            //有排队的写请求时保持writePending, 回调中新提交的写请求继续排在其后
+            if (queue == null || t != null) this.writePending = false; //必须放最后
+        }
 
         if (t == null) {
             handler.completed(totalCount, attach);
         } else {
             handler.failed(t, attach);
         }
+        if (queue == null) return;
+        if (t != null) {
+            for (AsyncNioWriteEntry entry : queue) {
+                entry.failed(t);
+            }
+            return;
+        }
+        //文件输出不能与写缓存合并, 其前的写请求先合并写出, 其余的放回队列头部等待下次写完
+        int split = 0;
+        while (split < queue.size() && queue.get(split).fileChannel == null) split++;
+        if (split == 0) split = 1;
+        if (split < queue.size()) {
+            synchronized (writeLock) {
+                List<AsyncNioWriteEntry> rest = new ArrayList<>(queue.subList(split, queue.size()));
+                if (this.writeQueue != null) rest.addAll(this.writeQueue);
+                this.writeQueue = rest;
+            }
+            queue = queue.subList(0, split);
+        }
+        if (queue.get(0).fileChannel != null) {
+            AsyncNioWriteEntry entry = queue.get(0);
+            writeFile(entry.fileChannel, entry.filePosition, entry.fileCount, entry, this.writeQueueFileHandler);
+        } else if (queue.size() == 1) {
+            AsyncNioWriteEntry entry = queue.get(0);
+            writeBuffers(entry.buffers, 0, entry.buffers.length, entry, this.writeQueueHandler);
+        } else {
+            int count = 0;
+            for (AsyncNioWriteEntry entry : queue) {
+                count += entry.buffers.length;
+            }
+            ByteBuffer[] srcs = new ByteBuffer[count];
+            int index = 0;
+            for (AsyncNioWriteEntry entry : queue) {
+                System.arraycopy(entry.buffers, 0, srcs, index, entry.buffers.length);
+                index += entry.buffers.length;
+            }
+            writeBuffers(srcs, 0, srcs.length, queue, this.writeQueueHandler);
+        }
+    }
+
+    //调用方需持有writeLock
+    private void queueWrite(AsyncNioWriteEntry entry) {
+        if (this.writeQueue == null) this.writeQueue = new ArrayList<>();
+        this.writeQueue.add(entry);
+    }
+
+    //合并写出的排队写请求, attachment为单个AsyncNioWriteEntry或其List
+    private final CompletionHandler<Integer, Object> writeQueueHandler = new CompletionHandler<Integer, Object>() {
+
+        @Override
+        public void completed(Integer result, Object attachment) {
+            if (attachment instanceof AsyncNioWriteEntry) {
+                ((AsyncNioWriteEntry) attachment).completed();
+            } else {
+                for (AsyncNioWriteEntry entry : (List<AsyncNioWriteEntry>) attachment) {
+                    entry.completed();
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Object attachment) {
+            if (attachment instanceof AsyncNioWriteEntry) {
+                ((AsyncNioWriteEntry) attachment).failed(exc);
+            } else {
+                for (AsyncNioWriteEntry entry : (List<AsyncNioWriteEntry>) attachment) {
+                    entry.failed(exc);
+                }
+            }
+        }
+    };
+
+    //排队的文件输出
+    private final CompletionHandler<Long, AsyncNioWriteEntry> writeQueueFileHandler = new CompletionHandler<Long, AsyncNioWriteEntry>() {
+
+        @Override
+        public void completed(Long result, AsyncNioWriteEntry attachment) {
+            attachment.completed();
+        }
+
+        @Override
+        public void failed(Throwable exc, AsyncNioWriteEntry attachment) {
+            attachment.failed(exc);
+        }
+    };
+
+    //排队等待合并写出的写请求, fileChannel有值时为文件输出
+    private class AsyncNioWriteEntry {
+
+        final ByteBuffer[] buffers;
+
+        final FileChannel fileChannel;
+
+        final long filePosition;
+
+        final long fileCount;
+
+        final CompletionHandler<Long, Object> fileHandler;
+
+        //buffers是否为排队时拷贝的写缓存, 写完需回收
+        final boolean release;
+
+        final Object attachment;
+
+        final CompletionHandler<Integer, Object> handler;
+
+        final int length;
+
+        public AsyncNioWriteEntry(ByteBuffer[] buffers, boolean release, Object attachment, CompletionHandler<Integer, Object> handler) {
+            this.buffers = buffers;
+            this.release = release;
+            this.attachment = attachment;
+            this.handler = handler;
+            int len = 0;
+            for (ByteBuffer buf : buffers) {
+                len += buf.remaining();
+            }
+            this.length = len;
+            this.fileChannel = null;
+            this.filePosition = 0;
+            this.fileCount = 0;
+            this.fileHandler = null;
+        }
+
+        public AsyncNioWriteEntry(FileChannel fileChannel, long filePosition, long fileCount, Object attachment, CompletionHandler<Long, Object> fileHandler) {
+            this.buffers = null;
+            this.release = false;
+            this.attachment = attachment;
+            this.handler = null;
+            this.length = 0;
+            this.fileChannel = fileChannel;
+            this.filePosition = filePosition;
+            this.fileCount = fileCount;
+            this.fileHandler = fileHandler;
+        }
+
+        public void completed() {
+            if (fileHandler != null) {
+                fileHandler.completed(fileCount, attachment);
+                return;
+            }
+            if (release) offerBuffer(buffers);
+            handler.completed(length, attachment);
+        }
+
+        public void failed(Throwable exc) {
+            if (fileHandler != null) {
+                fileHandler.failed(exc, attachment);
+                return;
+            }
+            if (release) offerBuffer(buffers);
+            handler.failed(exc, attachment);
+        }
     }
 
     protected abstract SelectionKey implRegister(Selector sel, int ops) throws ClosedChannelException;
@@ -472,6 +1108,8 @@ abstract class AsyncNioConnection extends AsyncConnection {
 
     protected abstract int implWrite(ByteBuffer[] srcs, int offset, int length) throws IOException;
 
+    protected abstract long implTransfer(FileChannel src, long position, long count) throws IOException;
+
     public abstract boolean isConnected();
 
     public abstract void doConnect();
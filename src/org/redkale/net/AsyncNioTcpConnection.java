@@ -12,7 +12,7 @@ import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.*;
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.*;
 
 /**
  *
@@ -40,6 +40,11 @@ class AsyncNioTcpConnection extends AsyncNioConnection {
             }
         }
         this.remoteAddress = addr;
+        this.sslEngine = createSSLEngine(client, sslContext);
+        this.ioThreadBuffer = true;
+        //客户端的读取逻辑多数假设一次读取能容纳完整的响应, 只对服务端连接启用自适应读缓存
+        this.readAdaptive = !client;
+        this.readSizeIndex = ioThread.bufferInitIndex;
         ioThread.connCounter.incrementAndGet();
     }
 
@@ -56,6 +61,15 @@ class AsyncNioTcpConnection extends AsyncNioConnection {
             }
         }
         this.remoteAddress = addr;
+        this.sslEngine = createSSLEngine(client, sslContext);
+    }
+
+    //目前只支持服务端的SSL, SSLContext自带的session缓存可实现会话复用; 客户端连接不支持SSL, 故SncpServer配置ssl时启动失败
+    private static SSLEngine createSSLEngine(boolean client, SSLContext sslContext) {
+        if (sslContext == null || client) return null;
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
     }
 
     @Override
@@ -114,12 +128,44 @@ class AsyncNioTcpConnection extends AsyncNioConnection {
 
     @Override
     public ReadableByteChannel readableByteChannel() {
-        return this.channel;
+        if (this.sslEngine == null) return this.channel;
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return sslRead(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                AsyncNioTcpConnection.this.close();
+            }
+        };
     }
 
     @Override
     public WritableByteChannel writableByteChannel() {
-        return this.channel;
+        if (this.sslEngine == null) return this.channel;
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return sslWrite(new ByteBuffer[]{src}, 0, 1);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                AsyncNioTcpConnection.this.close();
+            }
+        };
     }
 
     @Override
@@ -147,6 +193,11 @@ class AsyncNioTcpConnection extends AsyncNioConnection {
         return (int) this.channel.write(srcs, offset, length);
     }
 
+    @Override
+    protected long implTransfer(FileChannel src, long position, long count) throws IOException {
+        return src.transferTo(position, count, this.channel);
+    }
+
     public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
         if (channel.isConnected()) {
             throw new AlreadyConnectedException();
@@ -190,6 +241,7 @@ class AsyncNioTcpConnection extends AsyncNioConnection {
     @Override
     public final void close() throws IOException {
         super.close();
+        sslClose();
         ioThread.connCounter.decrementAndGet();
         channel.shutdownInput();
         channel.shutdownOutput();
@@ -257,7 +309,7 @@ class AsyncNioTcpConnection extends AsyncNioConnection {
                     bb.clear();
                 }
                 try {
-                    int size = channel.read(bb);
+                    int size = sslEngine == null ? channel.read(bb) : sslRead(bb);
                     bb.flip();
                     return size;
                 } catch (IOException ioe) {
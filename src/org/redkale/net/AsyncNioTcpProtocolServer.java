@@ -7,11 +7,11 @@ package org.redkale.net;
 
 import java.io.IOException;
 import java.net.*;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.*;
+import java.util.logging.Level;
 import org.redkale.boot.Application;
 import org.redkale.util.*;
 
@@ -26,8 +26,16 @@ import org.redkale.util.*;
  */
 class AsyncNioTcpProtocolServer extends ProtocolServer {
 
+    //单次OP_ACCEPT就绪时最多接收的连接数, 重连高峰时避免反复select
+    private static final int MAX_ACCEPT_ONCE = 256;
+
     private ServerSocketChannel serverChannel;
 
+    //全部监听通道, 第一个为serverChannel; 多于一个时使用SO_REUSEPORT监听同一端口
+    private ServerSocketChannel[] serverChannels;
+
+    private Acceptor[] acceptors;
+
     private Selector selector;
 
     private AsyncIOGroup ioGroup;
@@ -40,36 +48,68 @@ class AsyncNioTcpProtocolServer extends ProtocolServer {
 
     private Consumer<Response> responseConsumer;
 
+    private AsyncIOThreadStrategy ioThreadStrategy;
+
+    //IO线程数， open时确定， accept时按此数创建AsyncIOGroup
+    private int ioThreadCount;
+
     public AsyncNioTcpProtocolServer(Context context) {
         super(context);
     }
 
     @Override
     public void open(AnyValue config) throws IOException {
-        this.serverChannel = ServerSocketChannel.open();
-        this.serverChannel.configureBlocking(false);
-        this.selector = Selector.open();
-        final Set<SocketOption<?>> options = this.serverChannel.supportedOptions();
+        this.ioThreadStrategy = AsyncIOThreadStrategy.create(config == null ? null : config.getValue("ioThreadStrategy"));
+        this.ioThreadCount = Runtime.getRuntime().availableProcessors();
+        int count = config == null ? 1 : config.getIntValue("acceptors", 1);
+        if (count < 1) count = this.ioThreadCount; //0表示与IO线程数相同
+        this.serverChannel = openServerChannel();
+        if (count > 1 && !this.serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            context.logger.log(Level.WARNING, "SO_REUSEPORT not supported on this platform, acceptors(" + count + ") fallback to 1");
+            count = 1;
+        }
+        this.serverChannels = new ServerSocketChannel[count];
+        this.serverChannels[0] = this.serverChannel;
+        for (int i = 1; i < count; i++) {
+            this.serverChannels[i] = openServerChannel();
+        }
+        if (count > 1) {
+            for (ServerSocketChannel channel : this.serverChannels) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+        }
+    }
+
+    private ServerSocketChannel openServerChannel() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        final Set<SocketOption<?>> options = channel.supportedOptions();
         if (options.contains(StandardSocketOptions.TCP_NODELAY)) {
-            this.serverChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
         }
         if (options.contains(StandardSocketOptions.SO_KEEPALIVE)) {
-            this.serverChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
         }
         if (options.contains(StandardSocketOptions.SO_REUSEADDR)) {
-            this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
         }
         if (options.contains(StandardSocketOptions.SO_RCVBUF)) {
-            this.serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
         }
         if (options.contains(StandardSocketOptions.SO_SNDBUF)) {
-            this.serverChannel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
         }
+        return channel;
     }
 
     @Override
     public void bind(SocketAddress local, int backlog) throws IOException {
         this.serverChannel.bind(local, backlog);
+        //端口为0时其他监听通道需绑定到第一个通道实际分配的端口
+        SocketAddress addr = this.serverChannel.getLocalAddress();
+        for (int i = 1; i < this.serverChannels.length; i++) {
+            this.serverChannels[i].bind(addr, backlog);
+        }
     }
 
     @Override
@@ -79,21 +119,18 @@ class AsyncNioTcpProtocolServer extends ProtocolServer {
 
     @Override
     public <T> void setOption(SocketOption<T> name, T value) throws IOException {
-        this.serverChannel.setOption(name, value);
+        for (ServerSocketChannel channel : this.serverChannels) {
+            channel.setOption(name, value);
+        }
     }
 
     @Override
     public void accept(Application application, Server server) throws IOException {
-        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
-
-        AtomicLong createBufferCounter = new AtomicLong();
-        AtomicLong cycleBufferCounter = new AtomicLong();
-
-        ObjectPool<ByteBuffer> bufferPool = server.createBufferPool(createBufferCounter, cycleBufferCounter, server.bufferPoolSize);
+        ByteBufferArena bufferArena = new ByteBufferArena(server.bufferCapacity, (long) server.bufferCapacity * Math.max(server.bufferPoolSize, 1));
         AtomicLong createResponseCounter = new AtomicLong();
         AtomicLong cycleResponseCounter = new AtomicLong();
         ObjectPool<Response> safeResponsePool = server.createResponsePool(createResponseCounter, cycleResponseCounter, server.responsePoolSize);
-        final int threads = Runtime.getRuntime().availableProcessors();
+        final int threads = this.ioThreadCount;
         ThreadLocal<ObjectPool<Response>> localResponsePool = ThreadLocal.withInitial(() -> {
             if (!(Thread.currentThread() instanceof WorkThread)) return null;
             return ObjectPool.createUnsafePool(safeResponsePool, safeResponsePool.getCreatCounter(),
@@ -108,60 +145,69 @@ class AsyncNioTcpProtocolServer extends ProtocolServer {
             (pool == null ? safeResponsePool : pool).accept(v);
         };
         final String threadPrefixName = server.name == null || server.name.isEmpty() ? "Redkale-IOServletThread" : ("Redkale-" + server.name.replace("Server-", "") + "-IOServletThread");
-        this.ioGroup = new AsyncIOGroup(threadPrefixName, null, threads, server.bufferCapacity, bufferPool);
+        this.ioGroup = new AsyncIOGroup(threadPrefixName, null, threads, bufferArena);
+        this.ioGroup.setIOThreadStrategy(ioThreadStrategy);
         this.ioGroup.start();
-        this.acceptThread = new Thread() {
-            {
-                setName(threadPrefixName.replace("ServletThread", "AcceptThread"));
-            }
+        final AsyncIOThread[] ioThreads = this.ioGroup.ioThreads;
+        this.acceptors = new Acceptor[this.serverChannels.length];
+        if (this.acceptors.length == 1) {
+            final Acceptor acceptor = new Acceptor(this.serverChannel, null);
+            this.acceptors[0] = acceptor;
+            this.selector = Selector.open();
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            this.acceptThread = new Thread() {
+                {
+                    setName(threadPrefixName.replace("ServletThread", "AcceptThread"));
+                }
 
-            @Override
-            public void run() {
-                while (!closed) {
-                    try {
-                        int count = selector.select();
-                        if (count == 0) continue;
-                        Set<SelectionKey> keys = selector.selectedKeys();
-                        Iterator<SelectionKey> it = keys.iterator();
-                        while (it.hasNext()) {
-                            SelectionKey key = it.next();
-                            it.remove();
-                            if (key.isAcceptable()) accept(key);
+                @Override
+                public void run() {
+                    while (!closed) {
+                        try {
+                            int count = selector.select();
+                            if (count == 0) continue;
+                            Set<SelectionKey> keys = selector.selectedKeys();
+                            Iterator<SelectionKey> it = keys.iterator();
+                            while (it.hasNext()) {
+                                SelectionKey key = it.next();
+                                it.remove();
+                                if (key.isAcceptable()) acceptor.run();
+                            }
+                        } catch (Throwable t) {
+                            t.printStackTrace();
                         }
-                    } catch (Throwable t) {
-                        t.printStackTrace();
                     }
                 }
+            };
+            this.acceptThread.start();
+        } else {
+            //每个监听通道注册到各自的IO线程中, 由内核在监听通道间分配新连接
+            for (int i = 0; i < this.acceptors.length; i++) {
+                final AsyncIOThread ioThread = ioThreads[i % ioThreads.length];
+                final Acceptor acceptor = new Acceptor(this.serverChannels[i], ioThread);
+                this.acceptors[i] = acceptor;
+                ioThread.register(selector -> {
+                    try {
+                        acceptor.channel.register(selector, SelectionKey.OP_ACCEPT, acceptor);
+                    } catch (ClosedChannelException e) {
+                        context.logger.log(Level.WARNING, "acceptor register failed", e);
+                    }
+                });
             }
-        };
-        this.acceptThread.start();
-    }
-
-    private void accept(SelectionKey key) throws IOException {
-        SocketChannel channel = this.serverChannel.accept();
-        channel.configureBlocking(false);
-        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
-        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-        channel.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
-        channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
-        AsyncIOThread readThread = ioGroup.nextIOThread();
-        ioGroup.connCreateCounter.incrementAndGet();
-        ioGroup.connLivingCounter.incrementAndGet();
-        AsyncNioTcpConnection conn = new AsyncNioTcpConnection(false, ioGroup, readThread, ioGroup.connectThread(), channel, context.getSSLContext(), null, ioGroup.connLivingCounter, ioGroup.connClosedCounter);
-        ProtocolCodec codec = new ProtocolCodec(context, responseSupplier, responseConsumer, conn);
-        conn.protocolCodec = codec;
-        codec.run(null);
+            context.logger.info(threadPrefixName.replace("-IOServletThread", "") + " listen with " + this.acceptors.length + " acceptors (SO_REUSEPORT)");
+        }
     }
 
     @Override
     public void close() throws IOException {
         if (this.closed) return;
         this.closed = true;
-        this.selector.wakeup();
+        if (this.selector != null) this.selector.wakeup();
         this.ioGroup.close();
-        this.serverChannel.close();
-        this.selector.close();
+        for (ServerSocketChannel channel : this.serverChannels) {
+            channel.close();
+        }
+        if (this.selector != null) this.selector.close();
     }
 
     @Override
@@ -178,4 +224,114 @@ class AsyncNioTcpProtocolServer extends ProtocolServer {
     public long getLivingConnectionCount() {
         return ioGroup.connLivingCounter.get();
     }
+
+    @Override
+    public long[] getAcceptConnectionCounts() {
+        Acceptor[] array = this.acceptors;
+        if (array == null) return new long[0];
+        long[] rs = new long[array.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = array[i].acceptCount;
+        }
+        return rs;
+    }
+
+    @Override
+    public long[] getAcceptConnectionRates() {
+        Acceptor[] array = this.acceptors;
+        if (array == null) return new long[0];
+        long[] rs = new long[array.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = array[i].getAcceptRate();
+        }
+        return rs;
+    }
+
+    /**
+     * 监听通道的连接接收器 <br>
+     * ioThread为null时由独立的accept线程执行, 新连接按ioThreadStrategy分配IO线程; <br>
+     * 否则在ioThread中执行, 监听通道数不少于IO线程数时新连接直接由该IO线程处理, 否则仍按ioThreadStrategy分配
+     */
+    private class Acceptor implements Runnable {
+
+        final ServerSocketChannel channel;
+
+        final AsyncIOThread ioThread;
+
+        //累计接收的连接数, 只在单一线程中修改
+        volatile long acceptCount;
+
+        //最近每秒接收的连接数(指数衰减平均)， 读取时距上次采样超过1秒才重新计算， 不占用IO线程的时间轮
+        private volatile long acceptRate;
+
+        private long lastAcceptCount;
+
+        private volatile long lastSampleTime = System.currentTimeMillis();
+
+        public Acceptor(ServerSocketChannel channel, AsyncIOThread ioThread) {
+            this.channel = channel;
+            this.ioThread = ioThread;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_ACCEPT_ONCE; i++) {
+                SocketChannel ch;
+                try {
+                    ch = channel.accept();
+                } catch (IOException e) {
+                    if (!closed) context.logger.log(Level.WARNING, "accept connection failed", e);
+                    return;
+                }
+                if (ch == null) return;
+                acceptCount++;
+                try {
+                    accept(ch);
+                } catch (Throwable t) {
+                    context.logger.log(Level.WARNING, "init accepted connection failed", t);
+                    try {
+                        ch.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        private void accept(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+            final boolean own = ioThread != null && acceptors.length >= ioGroup.ioThreads.length;
+            AsyncIOThread readThread = own ? ioThread : ioGroup.nextIOThread();
+            ioGroup.connCreateCounter.incrementAndGet();
+            ioGroup.connLivingCounter.incrementAndGet();
+            AsyncNioTcpConnection conn = new AsyncNioTcpConnection(false, ioGroup, readThread, ioGroup.connectThread(), channel, context.getSSLContext(), null, ioGroup.connLivingCounter, ioGroup.connClosedCounter);
+            ProtocolCodec codec = new ProtocolCodec(context, responseSupplier, responseConsumer, conn);
+            conn.protocolCodec = codec;
+            if (own) {
+                codec.run(null);
+            } else {
+                //首次读取也在所属的IO线程中进行, 避免SSL握手或iothread模式的Servlet在accept线程中执行
+                readThread.register(selector -> codec.run(null));
+            }
+        }
+
+        long getAcceptRate() {
+            long now = System.currentTimeMillis();
+            if (now - this.lastSampleTime < 1000) return this.acceptRate;
+            synchronized (this) {
+                long elapsed = now - this.lastSampleTime;
+                if (elapsed >= 1000) {
+                    long count = this.acceptCount;
+                    this.acceptRate = (this.acceptRate + (count - this.lastAcceptCount) * 1000 / elapsed) / 2;
+                    this.lastAcceptCount = count;
+                    this.lastSampleTime = now;
+                }
+            }
+            return this.acceptRate;
+        }
+    }
 }
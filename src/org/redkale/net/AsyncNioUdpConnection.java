@@ -142,6 +142,21 @@ class AsyncNioUdpConnection extends AsyncNioConnection {
         return 0;
     }
 
+    //UDP连接的文件输出通常由AsyncConnection.transferFile分段发送; 直接调用时每次读取不超过bufferCapacity的内容作为一个数据报发出
+    @Override
+    protected long implTransfer(FileChannel src, long position, long count) throws IOException {
+        ByteBuffer buffer = pollWriteBuffer();
+        try {
+            if (count < buffer.remaining()) buffer.limit(buffer.position() + (int) count);
+            int len = src.read(buffer, position);
+            if (len <= 0) return len < 0 ? 0 : len;
+            buffer.flip();
+            return this.channel.send(buffer, remoteAddress) == 0 ? 0 : len; //数据报要么整体发出要么不发
+        } finally {
+            offerBuffer(buffer);
+        }
+    }
+
     public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
         this.connectAttachment = attachment;
         this.connectCompletionHandler = (CompletionHandler<Void, Object>) handler;
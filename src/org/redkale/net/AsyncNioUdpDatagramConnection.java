@@ -0,0 +1,224 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.redkale.util.ByteBufferArena;
+
+/**
+ * UDP批量收包模式下的无状态数据报连接 <br>
+ * 一个数据报对应一次Request/Response, 不注册到Selector、不计入连接数; 响应通过服务端DatagramChannel同步发送给对端,
+ * 关闭后连同绑定的ProtocolCodec回收到对象池供下一个数据报复用。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+class AsyncNioUdpDatagramConnection extends AsyncConnection {
+
+    private final DatagramChannel channel;
+
+    private final Consumer<AsyncNioUdpDatagramConnection> recycler;
+
+    //是否已分配给数据报, 避免重复关闭导致重复回收
+    private final AtomicBoolean using = new AtomicBoolean();
+
+    private SocketAddress remoteAddress;
+
+    public AsyncNioUdpDatagramConnection(DatagramChannel channel, ByteBufferArena bufferArena, Consumer<AsyncNioUdpDatagramConnection> recycler) {
+        super(false, bufferArena.getDefaultCapacity(), bufferArena::get, bufferArena::accept, null, null, null);
+        this.channel = channel;
+        this.recycler = recycler;
+    }
+
+    //分配给新的数据报
+    void prepare(SocketAddress address) {
+        this.remoteAddress = address;
+        this.readtime = System.currentTimeMillis();
+        this.using.set(true);
+    }
+
+    @Override
+    protected void continueRead() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public boolean isTCP() {
+        return false;
+    }
+
+    @Override
+    public boolean shutdownInput() {
+        return true;
+    }
+
+    @Override
+    public boolean shutdownOutput() {
+        return true;
+    }
+
+    @Override
+    public <T> boolean setOption(SocketOption<T> name, T value) {
+        return false;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return this.channel.supportedOptions();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getReadTimeoutSeconds() {
+        return 0;
+    }
+
+    @Override
+    public int getWriteTimeoutSeconds() {
+        return 0;
+    }
+
+    @Override
+    public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+    }
+
+    @Override
+    public void setWriteTimeoutSeconds(int writeTimeoutSeconds) {
+    }
+
+    //数据报已完整读入Request, 没有后续可读的数据
+    @Override
+    public ReadableByteChannel readableByteChannel() {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!isOpen()) throw new ClosedChannelException();
+                return -1;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return using.get() && channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                AsyncNioUdpDatagramConnection.this.close();
+            }
+        };
+    }
+
+    //每次write作为一个数据报发给对端
+    @Override
+    public WritableByteChannel writableByteChannel() {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (!isOpen()) throw new ClosedChannelException();
+                writetime = System.currentTimeMillis();
+                return channel.send(src, remoteAddress);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return using.get() && channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                AsyncNioUdpDatagramConnection.this.close();
+            }
+        };
+    }
+
+    @Override
+    protected InputStream newInputStream() {
+        return Channels.newInputStream(readableByteChannel());
+    }
+
+    //数据报已完整收取, 等待新请求即表示本次请求结束; 其他读操作说明数据报被截断
+    @Override
+    public void read(CompletionHandler<Integer, ByteBuffer> handler) {
+        if (handler == protocolCodec) {
+            dispose();
+        } else {
+            handler.failed(new EOFException("datagram truncated"), null);
+        }
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        try {
+            this.writetime = System.currentTimeMillis();
+            handler.completed(channel.send(src, remoteAddress), attachment);
+        } catch (IOException e) {
+            handler.failed(e, attachment);
+        }
+    }
+
+    //一个响应必须以一个数据报发出, 多个ByteBuffer需先合并
+    @Override
+    public <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (length == 1) {
+            write(srcs[offset], attachment, handler);
+            return;
+        }
+        int total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        ByteBuffer buffer = total <= bufferCapacity ? pollWriteBuffer() : ByteBuffer.allocate(total);
+        for (int i = offset; i < offset + length; i++) {
+            buffer.put(srcs[i]);
+        }
+        buffer.flip();
+        try {
+            this.writetime = System.currentTimeMillis();
+            int rs = channel.send(buffer, remoteAddress);
+            if (total <= bufferCapacity) offerBuffer(buffer);
+            handler.completed(rs, attachment);
+        } catch (IOException e) {
+            if (total <= bufferCapacity) offerBuffer(buffer);
+            handler.failed(e, attachment);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!using.compareAndSet(true, false)) return;
+        super.close();
+        setSubobject(null);
+        this.remoteAddress = null;
+        recycler.accept(this);
+    }
+}
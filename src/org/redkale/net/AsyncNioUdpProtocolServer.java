@@ -12,6 +12,7 @@ import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.*;
+import java.util.logging.Level;
 import org.redkale.boot.Application;
 import org.redkale.util.*;
 
@@ -39,6 +40,16 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
 
     private Consumer<Response> responseConsumer;
 
+    private AsyncIOThreadStrategy ioThreadStrategy;
+
+    //批量收包时每批的最大数据报数, 0表示每个数据报单独创建连接
+    private int receiveBatch;
+
+    //批量收包模式下复用的无状态数据报连接
+    private ObjectPool<AsyncNioUdpDatagramConnection> datagramPool;
+
+    private ByteBufferArena bufferArena;
+
     public AsyncNioUdpProtocolServer(Context context) {
         super(context);
     }
@@ -48,6 +59,8 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
         this.serverChannel = DatagramChannel.open();
         this.serverChannel.configureBlocking(false);
         this.selector = Selector.open();
+        this.ioThreadStrategy = AsyncIOThreadStrategy.create(config == null ? null : config.getValue("ioThreadStrategy"));
+        this.receiveBatch = Math.max(0, config == null ? 0 : config.getIntValue("receiveBatch", 0));
         final Set<SocketOption<?>> options = this.serverChannel.supportedOptions();
         if (options.contains(StandardSocketOptions.TCP_NODELAY)) {
             this.serverChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
@@ -58,8 +71,8 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
         if (options.contains(StandardSocketOptions.SO_REUSEADDR)) {
             this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
         }
-        if (options.contains(StandardSocketOptions.SO_RCVBUF)) {
-            this.serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+        if (options.contains(StandardSocketOptions.SO_RCVBUF)) { //批量收包面向高速率场景, 需更大的接收缓冲区容纳两次select之间到达的数据报
+            this.serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBatch > 0 ? 1024 * 1024 : 16 * 1024);
         }
         if (options.contains(StandardSocketOptions.SO_SNDBUF)) {
             this.serverChannel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
@@ -83,10 +96,8 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
 
     @Override
     public void accept(Application application, Server server) throws IOException {
-        AtomicLong createBufferCounter = new AtomicLong();
-        AtomicLong cycleBufferCounter = new AtomicLong();
-
-        ObjectPool<ByteBuffer> safeBufferPool = server.createBufferPool(createBufferCounter, cycleBufferCounter, server.bufferPoolSize);
+        ByteBufferArena bufferArena = new ByteBufferArena(server.bufferCapacity, (long) server.bufferCapacity * Math.max(server.bufferPoolSize, 1));
+        this.bufferArena = bufferArena;
         AtomicLong createResponseCounter = new AtomicLong();
         AtomicLong cycleResponseCounter = new AtomicLong();
         ObjectPool<Response> safeResponsePool = server.createResponsePool(createResponseCounter, cycleResponseCounter, server.responsePoolSize);
@@ -105,13 +116,23 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
             (pool == null ? safeResponsePool : pool).accept(v);
         };
         final String threadPrefixName = server.name == null || server.name.isEmpty() ? "Redkale-IOServletThread" : ("Redkale-" + server.name.replace("Server-", "") + "-IOServletThread");
-        this.ioGroup = new AsyncIOGroup(threadPrefixName, null, threads, server.bufferCapacity, safeBufferPool);
-        this.ioGroup.start();
         this.serverChannel.register(this.selector, SelectionKey.OP_READ);
+        if (receiveBatch > 0) {
+            this.datagramPool = ObjectPool.createSafePool(null, null, Math.max(receiveBatch, server.responsePoolSize), () -> {
+                AsyncNioUdpDatagramConnection conn = new AsyncNioUdpDatagramConnection(serverChannel, bufferArena, c -> datagramPool.accept(c));
+                conn.protocolCodec = new ProtocolCodec(context, responseSupplier, responseConsumer, conn);
+                return conn;
+            }, null, c -> true);
+            this.acceptThread = new BatchReceiveThread(threadPrefixName.replace("ServletThread", "AcceptThread"), bufferArena.createCache());
+            this.acceptThread.start();
+            return;
+        }
+        this.ioGroup = new AsyncIOGroup(threadPrefixName, null, threads, bufferArena);
+        this.ioGroup.setIOThreadStrategy(ioThreadStrategy);
+        this.ioGroup.start();
 
         this.acceptThread = new Thread() {
-            ObjectPool<ByteBuffer> unsafeBufferPool = ObjectPool.createUnsafePool(safeBufferPool, safeBufferPool.getCreatCounter(),
-                safeBufferPool.getCycleCounter(), 512, safeBufferPool.getCreator(), safeBufferPool.getPrepare(), safeBufferPool.getRecycler());
+            ByteBufferArena.Cache bufferCache = bufferArena.createCache();
 
             {
                 setName(threadPrefixName.replace("ServletThread", "AcceptThread"));
@@ -120,13 +141,26 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
             @Override
             public void run() {
                 while (!closed) {
-                    final ByteBuffer buffer = unsafeBufferPool.get();
                     try {
-                        SocketAddress address = serverChannel.receive(buffer);
-                        buffer.flip();
-                        accept(address, buffer);
+                        if (selector.select() < 1) continue;
+                        selector.selectedKeys().clear();
                     } catch (Throwable t) {
-                        unsafeBufferPool.accept(buffer);
+                        continue;
+                    }
+                    for (;;) {
+                        final ByteBuffer buffer = bufferCache.get();
+                        try {
+                            SocketAddress address = serverChannel.receive(buffer);
+                            if (address == null) { //已无待收数据报
+                                bufferCache.accept(buffer);
+                                break;
+                            }
+                            buffer.flip();
+                            accept(address, buffer);
+                        } catch (Throwable t) {
+                            bufferCache.accept(buffer);
+                            break;
+                        }
                     }
                 }
             }
@@ -144,12 +178,134 @@ class AsyncNioUdpProtocolServer extends ProtocolServer {
         codec.run(buffer);
     }
 
+    /**
+     * 批量收包线程 <br>
+     * 每次select后读完所有待收数据报, 按对端地址哈希分组, 每组攒满receiveBatch个或本轮读完后整批交给同一个工作线程执行,
+     * 同一对端的数据报始终按接收顺序在同一线程中处理, 每个数据报使用对象池中的无状态连接, 不经过IO线程。
+     */
+    private class BatchReceiveThread extends Thread {
+
+        private final ByteBufferArena.Cache bufferCache;
+
+        //分组数, 与工作线程数一致
+        private final int groups;
+
+        private final DatagramBatch[] batches;
+
+        public BatchReceiveThread(String name, ByteBufferArena.Cache bufferCache) {
+            setName(name);
+            this.bufferCache = bufferCache;
+            this.groups = context.workHashExecutor == null ? 1 : context.workHashExecutor.size();
+            this.batches = new DatagramBatch[groups];
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    if (selector.select() < 1) continue;
+                    selector.selectedKeys().clear();
+                } catch (Throwable t) {
+                    continue;
+                }
+                for (;;) {
+                    final ByteBuffer buffer = bufferCache.get();
+                    SocketAddress address;
+                    try {
+                        address = serverChannel.receive(buffer);
+                    } catch (Throwable t) {
+                        address = null;
+                    }
+                    if (address == null) { //已无待收数据报
+                        bufferCache.accept(buffer);
+                        break;
+                    }
+                    buffer.flip();
+                    final int index = (address.hashCode() & 0x7fffffff) % groups;
+                    DatagramBatch batch = batches[index];
+                    if (batch == null) {
+                        batch = new DatagramBatch(receiveBatch);
+                        batches[index] = batch;
+                    }
+                    if (batch.add(address, buffer)) {
+                        batches[index] = null;
+                        dispatch(index, batch);
+                    }
+                }
+                for (int i = 0; i < groups; i++) {
+                    if (batches[i] != null) {
+                        dispatch(i, batches[i]);
+                        batches[i] = null;
+                    }
+                }
+            }
+        }
+
+        private void dispatch(int index, DatagramBatch batch) {
+            try {
+                if (context.workHashExecutor != null) {
+                    context.workHashExecutor.execute(index + 1, batch); //hash为0时会随机分配线程
+                } else if (context.workExecutor != null) {
+                    context.workExecutor.execute(batch);
+                } else {
+                    batch.run();
+                }
+            } catch (Throwable t) {
+                context.logger.log(Level.WARNING, "dispatch datagram batch error", t);
+                batch.release();
+            }
+        }
+    }
+
+    //同一分组的一批数据报
+    private class DatagramBatch implements Runnable {
+
+        private final SocketAddress[] addresses;
+
+        private final ByteBuffer[] buffers;
+
+        private int size;
+
+        public DatagramBatch(int capacity) {
+            this.addresses = new SocketAddress[capacity];
+            this.buffers = new ByteBuffer[capacity];
+        }
+
+        //返回是否已满
+        public boolean add(SocketAddress address, ByteBuffer buffer) {
+            addresses[size] = address;
+            buffers[size] = buffer;
+            return ++size == buffers.length;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < size; i++) {
+                AsyncNioUdpDatagramConnection conn = datagramPool.get();
+                conn.prepare(addresses[i]);
+                try {
+                    conn.protocolCodec.run(buffers[i]);
+                } catch (Throwable t) {
+                    context.logger.log(Level.WARNING, "datagram process error", t);
+                    conn.dispose();
+                }
+            }
+        }
+
+        public void release() {
+            for (int i = 0; i < size; i++) {
+                bufferArena.accept(buffers[i]);
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
         if (this.closed) return;
         this.closed = true;
-        this.ioGroup.close();
+        if (this.ioGroup != null) this.ioGroup.close();
         this.serverChannel.close();
+        this.selector.close();
     }
 
     @Override
@@ -74,10 +74,18 @@ public class Context {
     //字符集
     protected Charset charset;
 
+    //是否在IO线程中直接执行Servlet(thread-per-core), 适用于非阻塞的Servlet
+    protected boolean ioThreadExecute;
+
+    //IO线程中执行Servlet超过该毫秒数视为阻塞并告警, 为0表示不检测
+    protected int ioThreadBlockMillis;
+
     public Context(ContextConfig config) {
         this(config.serverStartTime, config.logger, config.workExecutor, config.sslContext,
             config.bufferCapacity, config.maxconns, config.maxbody, config.charset, config.address, config.resourceFactory,
             config.prepare, config.aliveTimeoutSeconds, config.readTimeoutSeconds, config.writeTimeoutSeconds);
+        this.ioThreadExecute = config.ioThreadExecute;
+        this.ioThreadBlockMillis = config.ioThreadBlockMillis;
     }
 
     public Context(long serverStartTime, Logger logger, ExecutorService workExecutor, SSLContext sslContext,
@@ -107,7 +115,11 @@ public class Context {
     }
 
     protected void executePrepareServlet(Request request, Response response) {
-        if (workHashExecutor != null) {
+        if (ioThreadExecute) {
+            executePrepareServletInIOThread(request, response, null);
+        } else if (request.channel instanceof AsyncNioUdpDatagramConnection) { //UDP批量收包模式下整批数据报已在工作线程中执行
+            prepare.prepare(request, response);
+        } else if (workHashExecutor != null) {
             workHashExecutor.execute(request.getHashid(), () -> prepare.prepare(request, response));
         } else if (workExecutor != null) {
             workExecutor.execute(() -> prepare.prepare(request, response));
@@ -116,6 +128,21 @@ public class Context {
         }
     }
 
+    //由ProtocolCodec在IO线程中调用, decode、dispatch、encode均在同一个IO线程中完成, 不经过workExecutor
+    //name: 请求的描述, 用于阻塞告警日志, request执行完后可能已被回收因此需提前获取
+    protected void executePrepareServletInIOThread(Request request, Response response, String name) {
+        if (ioThreadBlockMillis < 1) {
+            prepare.prepare(request, response);
+            return;
+        }
+        final long s = System.nanoTime();
+        prepare.prepare(request, response);
+        final long cha = (System.nanoTime() - s) / 1_000_000;
+        if (cha >= ioThreadBlockMillis && logger.isLoggable(Level.WARNING)) {
+            logger.log(Level.WARNING, "io thread(" + Thread.currentThread().getName() + ") blocked " + cha + "ms by servlet" + (name == null ? "" : ("(" + name + ")")) + ", blocking call should not run in io thread");
+        }
+    }
+
     public void execute(Servlet servlet, Request request, Response response) {
         if (workHashExecutor != null) {
             workHashExecutor.execute(request.getHashid(), () -> {
@@ -196,6 +223,14 @@ public class Context {
         return readTimeoutSeconds;
     }
 
+    public boolean isIOThreadExecute() {
+        return ioThreadExecute;
+    }
+
+    public int getIOThreadBlockMillis() {
+        return ioThreadBlockMillis;
+    }
+
     public int getWriteTimeoutSeconds() {
         return writeTimeoutSeconds;
     }
@@ -246,6 +281,12 @@ public class Context {
         //IO写入的超时时间
         public int writeTimeoutSeconds;
 
+        //是否在IO线程中直接执行Servlet
+        public boolean ioThreadExecute;
+
+        //IO线程中执行Servlet超过该毫秒数视为阻塞并告警
+        public int ioThreadBlockMillis;
+
         //日志Logger
         public Logger logger;
 
@@ -34,6 +34,10 @@ class ProtocolCodec implements CompletionHandler<Integer, ByteBuffer> {
         this.responseConsumer = responseConsumer;
     }
 
+    int getAliveTimeoutSeconds() {
+        return context.aliveTimeoutSeconds;
+    }
+
     public ProtocolCodec response(Response resp) {
         this.resp = resp;
         return this;
@@ -143,7 +147,8 @@ class ProtocolCodec implements CompletionHandler<Integer, ByteBuffer> {
                 }
             }
         } else {
-            channel.setReadBuffer(buffer);
+            //readHeader返回正数时buffer为写模式, 半包数据占满了读缓存则换成更大的读缓存
+            channel.setReadBuffer(buffer.hasRemaining() ? buffer : channel.expandReadBuffer(buffer));
             channel.read(new CompletionHandler<Integer, ByteBuffer>() {
 
                 @Override
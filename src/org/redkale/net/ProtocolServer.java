@@ -71,4 +71,22 @@ public abstract class ProtocolServer {
     public abstract long getClosedConnectionCount();
 
     public abstract long getLivingConnectionCount();
+
+    /**
+     * 每个监听通道累计接收的连接数， 只有一个监听通道时长度为1
+     *
+     * @return long[]
+     */
+    public long[] getAcceptConnectionCounts() {
+        return new long[]{getCreateConnectionCount()};
+    }
+
+    /**
+     * 每个监听通道最近每秒接收的连接数， 不支持统计时返回-1
+     *
+     * @return long[]
+     */
+    public long[] getAcceptConnectionRates() {
+        return new long[]{-1};
+    }
 }
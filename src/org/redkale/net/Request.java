@@ -67,7 +67,8 @@ public abstract class Request<C extends Context> {
     }
 
     /**
-     * 返回值：Integer.MIN_VALUE: 帧数据； -1：数据不合法； 0：解析完毕； &gt;0: 需再读取的字节数。
+     * 返回值：Integer.MIN_VALUE: 帧数据； -1：数据不合法； 0：解析完毕； &gt;0: 需再读取的字节数。 <br>
+     * 返回&gt;0时buffer须为写模式(未解析完的数据保留在buffer开头), 后续读取的数据会追加在其后。
      *
      * @param buffer ByteBuffer对象
      * @param last   同一Channel的上一个Request
@@ -12,7 +12,7 @@ import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.atomic.*;
 import java.util.logging.*;
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.*;
 import org.redkale.boot.Application;
 import org.redkale.util.*;
 
@@ -103,6 +103,12 @@ public abstract class Server<K extends Serializable, C extends Context, R extend
     //IO写入 的超时秒数，小于1视为不设置
     protected int writeTimeoutSeconds;
 
+    //是否在IO线程中直接执行Servlet，不经过workExecutor
+    protected boolean ioThreadExecute;
+
+    //IO线程中执行Servlet的阻塞告警毫秒数，小于1视为不检测
+    protected int ioThreadBlockMillis;
+
     protected Server(Application application, long serverStartTime, String netprotocol, ResourceFactory resourceFactory, PrepareServlet<K, C, R, P, S> servlet) {
         this.serverStartTime = serverStartTime;
         this.netprotocol = netprotocol;
@@ -119,6 +125,8 @@ public abstract class Server<K extends Serializable, C extends Context, R extend
         this.aliveTimeoutSeconds = config.getIntValue("aliveTimeoutSeconds", 30);
         this.readTimeoutSeconds = config.getIntValue("readTimeoutSeconds", 0);
         this.writeTimeoutSeconds = config.getIntValue("writeTimeoutSeconds", 0);
+        this.ioThreadExecute = config.getBoolValue("ioThreadExecute", false);
+        this.ioThreadBlockMillis = config.getIntValue("ioThreadBlockMillis", 100);
         this.backlog = parseLenth(config.getValue("backlog"), 1024);
         this.maxbody = parseLenth(config.getValue("maxbody"), 64 * 1024);
         int bufCapacity = parseLenth(config.getValue("bufferCapacity"), "UDP".equalsIgnoreCase(netprotocol) ? 1350 : 32 * 1024);
@@ -140,6 +148,11 @@ public abstract class Server<K extends Serializable, C extends Context, R extend
             }
             this.resourceFactory.inject(creator);
             this.sslContext = creator.create(this, sslConf);
+            SSLSessionContext sessionContext = this.sslContext == null ? null : this.sslContext.getServerSessionContext();
+            if (sessionContext != null) { //会话复用
+                sessionContext.setSessionCacheSize(sslConf.getIntValue("sessionCacheSize", 10240));
+                sessionContext.setSessionTimeout(sslConf.getIntValue("sessionTimeout", 86400));
+            }
         }
     }
 
@@ -236,6 +249,14 @@ public abstract class Server<K extends Serializable, C extends Context, R extend
         return writeTimeoutSeconds;
     }
 
+    public boolean isIOThreadExecute() {
+        return ioThreadExecute;
+    }
+
+    public int getIOThreadBlockMillis() {
+        return ioThreadBlockMillis;
+    }
+
     public int getMaxconns() {
         return maxconns;
     }
@@ -432,6 +453,16 @@ public abstract class Server<K extends Serializable, C extends Context, R extend
         return serverChannel == null ? -1 : serverChannel.getLivingConnectionCount();
     }
 
+    //每个监听通道(acceptor)的累计接收数
+    public long[] getAcceptConnectionCounts() {
+        return serverChannel == null ? new long[0] : serverChannel.getAcceptConnectionCounts();
+    }
+
+    //每个监听通道(acceptor)最近每秒的接收数
+    public long[] getAcceptConnectionRates() {
+        return serverChannel == null ? new long[0] : serverChannel.getAcceptConnectionRates();
+    }
+
     public static URL[] loadLib(final RedkaleClassLoader classLoader, final Logger logger, final String lib) throws Exception {
         if (lib == null || lib.isEmpty()) return new URL[0];
         final Set<URL> set = new HashSet<>();
@@ -175,7 +175,7 @@ public abstract class Client<R extends ClientRequest, P> {
             final ClientConnection conn = this.connArray[index];
             if (conn == null || !conn.isOpen()) {
                 if (this.connFlags[index].compareAndSet(false, true)) {
-                    CompletableFuture<ClientConnection> future = group.create(tcp, address, readTimeoutSeconds, writeTimeoutSeconds).thenApply(c -> createClientConnection(index, c));
+                    CompletableFuture<ClientConnection> future = createChannel().thenApply(c -> createClientConnection(index, c));
                     return (authenticate == null ? future : authenticate.apply(future)).thenApply(c -> {
                         c.authenticated = true;
                         this.connArray[index] = c;
@@ -204,6 +204,24 @@ public abstract class Client<R extends ClientRequest, P> {
         return new ClientConnection(this, index, channel);
     }
 
+    //创建新连接
+    protected CompletableFuture<AsyncConnection> createChannel() {
+        return group.create(tcp, address, readTimeoutSeconds, writeTimeoutSeconds);
+    }
+
+    /**
+     * 执行请求超时等定时任务， 默认使用timeoutScheduler
+     *
+     * @param callable 任务
+     * @param delay    延迟时间
+     * @param unit     时间单位
+     *
+     * @return ScheduledFuture
+     */
+    protected ScheduledFuture<?> scheduleTimeout(Runnable callable, long delay, TimeUnit unit) {
+        return timeoutScheduler.schedule(callable, delay, unit);
+    }
+
     public int getReadTimeoutSeconds() {
         return readTimeoutSeconds;
     }
@@ -28,7 +28,17 @@ public abstract class ClientCodec<R extends ClientRequest, P> {
     }
 
     //返回true后array会clear
-    public abstract boolean codecResult(ClientConnection conn, List<R> requests, ByteBuffer buffer, ByteArray array);
+    public abstract boolean codecResult(ClientConnection<R, P> conn, List<R> requests, ByteBuffer buffer, ByteArray array);
+
+    //连接被对方关闭时调用， 可将已读取的数据作为最后一个结果(如HTTP以关闭连接表示body结束)， 返回true表示产生了结果
+    public boolean codecClosed(ClientConnection<R, P> conn, List<R> requests, ByteArray array) {
+        return false;
+    }
+
+    //输出已解析的结果后是否关闭连接(如HTTP响应带有Connection: close)， 未输出的请求以ClosedChannelException结束
+    public boolean isClosing() {
+        return false;
+    }
 
     public List<ClientResult<P>> removeResults() {
         if (results.isEmpty()) return null;
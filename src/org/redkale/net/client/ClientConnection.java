@@ -98,6 +98,10 @@ public class ClientConnection<R extends ClientRequest, P> implements Consumer<As
         public void completed(Integer count, ByteBuffer attachment) {
             if (count < 1) {
                 channel.setReadBuffer(attachment);
+                if (codec != null && codec.codecClosed(ClientConnection.this, currRequests(), readArray)) {
+                    readArray.clear();
+                    pollResults(codec);
+                }
                 dispose(new NonReadableChannelException());
                 return;
             }
@@ -112,29 +116,13 @@ public class ClientConnection<R extends ClientRequest, P> implements Consumer<As
         }
 
         public void codecResponse(ByteBuffer buffer) {
-            Stream<R> reqstream = responseQueue.stream().map(r -> (R) r.request);
-            List<R> requests = reqstream.collect(Collectors.toList());
-            if (codec.codecResult(ClientConnection.this, requests, buffer, readArray)) { //成功了
+            if (codec.codecResult(ClientConnection.this, currRequests(), buffer, readArray)) { //成功了
                 readArray.clear();
-                List<ClientResult<P>> results = codec.removeResults();
-                if (results != null) {
-                    for (ClientResult<P> rs : results) {
-                        ClientFuture respFuture = responseQueue.poll();
-                        if (respFuture != null) {
-                            respCounter.decrementAndGet();
-                            if (isAuthenticated()) client.pollRespCounter.incrementAndGet();
-                            try {
-                                if (respFuture.timeout != null) respFuture.timeout.cancel(true);
-                                if (rs.exc != null) {
-                                    respFuture.completeExceptionally(rs.exc);
-                                } else {
-                                    respFuture.complete(rs.result);
-                                }
-                            } catch (Throwable t) {
-                                t.printStackTrace();
-                            }
-                        }
-                    }
+                pollResults(codec);
+                if (codec.isClosing()) {
+                    channel.setReadBuffer(buffer);
+                    dispose(null);
+                    return;
                 }
                 {
                     CompletableFuture<ClientConnection> connFuture = client.connQueue.poll();
@@ -169,6 +157,33 @@ public class ClientConnection<R extends ClientRequest, P> implements Consumer<As
         }
     };
 
+    private List<R> currRequests() {
+        Stream<R> reqstream = responseQueue.stream().map(r -> (R) r.request);
+        return reqstream.collect(Collectors.toList());
+    }
+
+    private void pollResults(ClientCodec<R, P> codec) {
+        List<ClientResult<P>> results = codec.removeResults();
+        if (results == null) return;
+        for (ClientResult<P> rs : results) {
+            ClientFuture respFuture = responseQueue.poll();
+            if (respFuture != null) {
+                respCounter.decrementAndGet();
+                if (isAuthenticated()) client.pollRespCounter.incrementAndGet();
+                try {
+                    if (respFuture.timeout != null) respFuture.timeout.cancel(true);
+                    if (rs.exc != null) {
+                        respFuture.completeExceptionally(rs.exc);
+                    } else {
+                        respFuture.complete(rs.result);
+                    }
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
     protected boolean authenticated;
 
     protected int currPipelineIndex;
@@ -193,7 +208,7 @@ public class ClientConnection<R extends ClientRequest, P> implements Consumer<As
             int rts = this.channel.getReadTimeoutSeconds();
             if (rts > 0 && respFuture.request != null) {
                 respFuture.responseQueue = responseQueue;
-                respFuture.timeout = client.timeoutScheduler.schedule(respFuture, rts, TimeUnit.SECONDS);
+                respFuture.timeout = client.scheduleTimeout(respFuture, rts, TimeUnit.SECONDS);
             }
         }
         synchronized (requestQueue) { //保证顺序一致
@@ -16,7 +16,7 @@ import org.redkale.util.ByteArray;
  * @author zhangjx
  * @since 2.3.0
  */
-public interface ClientRequest extends BiConsumer<ClientConnection, ByteArray> {
+public interface ClientRequest extends BiConsumer<ClientConnection<?, ?>, ByteArray> {
 
     public static class ClientBytesRequest implements ClientRequest {
 
@@ -27,7 +27,7 @@ public interface ClientRequest extends BiConsumer<ClientConnection, ByteArray> {
         }
 
         @Override
-        public void accept(ClientConnection conn, ByteArray array) {
+        public void accept(ClientConnection<?, ?> conn, ByteArray array) {
             array.put(bytes);
         }
 
@@ -0,0 +1,849 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.Level;
+import org.redkale.net.*;
+import org.redkale.util.ByteArray;
+
+/**
+ * HTTP/2 连接的帧编解码(RFC 7540) <br>
+ * 由 Upgrade: h2c 升级请求或 prior-knowledge 的连接前言接管HTTP/1.1连接,
+ * 每个流对应一个Http2StreamConnection与一对HttpRequest/HttpResponse, 请求按HTTP/1.1相同的方式交由HttpPrepareServlet处理,
+ * 响应由Http2StreamConnection转换成HEADERS、DATA帧。 <br>
+ * 读操作只在IO线程中进行; 流的状态、发送窗口、HPACK编码器和输出缓存由本对象锁保护, 输出缓存同一时刻只有一个写操作。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+class Http2Codec implements CompletionHandler<Integer, ByteBuffer> {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    //"PRI * HTTP/2.0\r\n" 已由HttpRequest读取
+    static final int PREFACE_METHOD_LINE_LENGTH = 16;
+
+    static final byte[] SWITCHING_PROTOCOLS_BYTES = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final int FRAME_HEADER_LENGTH = 9;
+
+    static final int FRAME_DATA = 0x0;
+
+    static final int FRAME_HEADERS = 0x1;
+
+    static final int FRAME_PRIORITY = 0x2;
+
+    static final int FRAME_RST_STREAM = 0x3;
+
+    static final int FRAME_SETTINGS = 0x4;
+
+    static final int FRAME_PUSH_PROMISE = 0x5;
+
+    static final int FRAME_PING = 0x6;
+
+    static final int FRAME_GOAWAY = 0x7;
+
+    static final int FRAME_WINDOW_UPDATE = 0x8;
+
+    static final int FRAME_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+
+    static final int FLAG_ACK = 0x1;
+
+    static final int FLAG_END_HEADERS = 0x4;
+
+    static final int FLAG_PADDED = 0x8;
+
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int NO_ERROR = 0x0;
+
+    static final int PROTOCOL_ERROR = 0x1;
+
+    static final int INTERNAL_ERROR = 0x2;
+
+    static final int FLOW_CONTROL_ERROR = 0x3;
+
+    static final int STREAM_CLOSED = 0x5;
+
+    static final int FRAME_SIZE_ERROR = 0x6;
+
+    static final int REFUSED_STREAM = 0x7;
+
+    static final int CANCEL = 0x8;
+
+    static final int COMPRESSION_ERROR = 0x9;
+
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    //连接级的接收窗口, 建立连接后即通过WINDOW_UPDATE从默认的64K扩大
+    static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+
+    static final int MAX_CONCURRENT_STREAMS = 128;
+
+    static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+    //输出缓存超过此值时暂停把流的数据转成DATA帧, 待连接写完后继续, 以免慢速客户端占用大量内存
+    static final int OUT_BUFFER_HIGH_WATER = 256 * 1024;
+
+    protected final HttpContext context;
+
+    protected final AsyncConnection channel;
+
+    private final Supplier<Response> responseSupplier;
+
+    private final Consumer<Response> responseConsumer;
+
+    //---------- 以下仅在IO线程中使用 ----------
+    private final Http2Hpack.Decoder hpackDecoder = new Http2Hpack.Decoder(Http2Hpack.DEFAULT_TABLE_SIZE);
+
+    private final ByteArray readArray = new ByteArray();
+
+    private final ByteArray headerBlock = new ByteArray();
+
+    //已校验的连接前言字节数
+    private int prefaceIndex;
+
+    //等待CONTINUATION帧的流
+    private int headerStreamId;
+
+    private boolean headerEndStream;
+
+    private int lastStreamId;
+
+    //连接级的接收窗口, 对端发送的DATA超出时按FLOW_CONTROL_ERROR关闭连接
+    private int recvWindow = CONNECTION_WINDOW_SIZE;
+
+    //连接级已消费但未发送WINDOW_UPDATE的字节数
+    private int recvUnacked;
+
+    //---------- 以下由this锁保护 ----------
+    private final Http2Hpack.Encoder hpackEncoder = new Http2Hpack.Encoder();
+
+    private final Map<Integer, Http2StreamConnection> streams = new HashMap<>();
+
+    private final ByteArray headerEncodeArray = new ByteArray();
+
+    private ByteArray outArray = new ByteArray();
+
+    private ByteArray writingArray = new ByteArray();
+
+    private boolean writing;
+
+    //连接级发送窗口
+    private int sendWindow = DEFAULT_WINDOW_SIZE;
+
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    //收到或发出GOAWAY后不再接受新流
+    private boolean goaway;
+
+    //已发出GOAWAY, 输出缓存写完后关闭连接
+    private volatile boolean closing;
+
+    private volatile boolean closed;
+
+    private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<Integer, Void>() {
+
+        @Override
+        public void completed(Integer result, Void attachment) {
+            List<Runnable> callbacks;
+            boolean closeNow;
+            synchronized (Http2Codec.this) {
+                writingArray.clear();
+                writing = false;
+                callbacks = flushBlocked();
+                closeNow = closing && outArray.isEmpty();
+            }
+            runCallbacks(callbacks);
+            if (closeNow) {
+                close();
+            } else {
+                flushOut();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            synchronized (Http2Codec.this) {
+                writing = false;
+            }
+            if (exc != null && context.getLogger().isLoggable(Level.FINEST)) {
+                context.getLogger().log(Level.FINEST, "Http2Codec write channel erroneous, force to close channel ", exc);
+            }
+            close();
+        }
+    };
+
+    private Http2Codec(HttpContext context, AsyncConnection channel, Supplier<Response> responseSupplier, Consumer<Response> responseConsumer) {
+        this.context = context;
+        this.channel = channel;
+        this.responseSupplier = responseSupplier;
+        this.responseConsumer = responseConsumer;
+    }
+
+    /**
+     * 接管HTTP/1.1连接, 须在IO线程中调用
+     *
+     * @param context  HttpContext
+     * @param request  PRI连接前言或h2c升级请求
+     * @param response 对应的HttpResponse
+     *
+     * @return HTTP2-Settings不合法时返回false, 请求按HTTP/1.1继续处理
+     */
+    static boolean start(HttpContext context, HttpRequest request, HttpResponse response) {
+        if (request.isHttp2Preface()) {
+            byte[] data = request.getBody();
+            Http2Codec codec = new Http2Codec(context, response.removeChannel(), response.getResponseSupplier(), response.getResponseConsumer());
+            codec.prefaceIndex = PREFACE_METHOD_LINE_LENGTH;
+            response.finish(true); //连接已移除, 仅回收Response
+            synchronized (codec) {
+                codec.writeSettings();
+            }
+            if (data != null) codec.readArray.put(data);
+            codec.decode();
+            codec.flushOut();
+            codec.startRead();
+            return true;
+        }
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(request.getHeader("HTTP2-Settings").trim());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (settings.length % 6 != 0) return false;
+        Http2Codec codec = new Http2Codec(context, response.removeChannel(), response.getResponseSupplier(), response.getResponseConsumer());
+        //升级请求作为1号流, 处于半关闭(remote)状态
+        Http2StreamConnection stream = new Http2StreamConnection(codec, 1, response);
+        request.upgradeHttp2();
+        response.initHttp2(stream, codec.responseSupplier, codec.responseConsumer);
+        stream.headOnly = "HEAD".equals(request.getMethod());
+        stream.requestEnded = true;
+        codec.lastStreamId = 1;
+        try {
+            synchronized (codec) {
+                codec.outArray.put(SWITCHING_PROTOCOLS_BYTES);
+                codec.writeSettings();
+                codec.applySettings(settings, 0, settings.length, false);
+                stream.sendWindow = codec.initialSendWindow;
+                codec.streams.put(1, stream);
+            }
+        } catch (Http2Exception e) {
+            codec.goaway(e.error, e.getMessage());
+            return true;
+        }
+        codec.flushOut();
+        context.executePrepareServlet(request, response);
+        codec.startRead();
+        return true;
+    }
+
+    private void startRead() {
+        if (closing || closed) return;
+        try {
+            channel.read(this);
+        } catch (Exception e) {
+            close();
+        }
+    }
+
+    @Override
+    public void completed(Integer count, ByteBuffer buffer) {
+        if (count < 1) {
+            channel.offerBuffer(buffer);
+            close();
+            return;
+        }
+        buffer.flip();
+        readArray.put(buffer);
+        buffer.clear();
+        channel.setReadBuffer(buffer);
+        decode();
+        flushOut(); //一次读取产生的所有控制帧合并输出
+        startRead();
+    }
+
+    @Override
+    public void failed(Throwable exc, ByteBuffer buffer) {
+        channel.offerBuffer(buffer);
+        if (exc != null && context.getLogger().isLoggable(Level.FINEST)) {
+            context.getLogger().log(Level.FINEST, "Http2Codec read channel erroneous, force to close channel ", exc);
+        }
+        close();
+    }
+
+    private void decode() {
+        final byte[] bs = readArray.content();
+        final int end = readArray.length();
+        int pos = 0;
+        try {
+            while (prefaceIndex < PREFACE.length) {
+                if (pos >= end) {
+                    readArray.clear();
+                    return;
+                }
+                if (bs[pos++] != PREFACE[prefaceIndex++]) throw new Http2Exception(PROTOCOL_ERROR, "invalid connection preface");
+            }
+            while (end - pos >= FRAME_HEADER_LENGTH && !closing) {
+                int length = ((bs[pos] & 0xff) << 16) | ((bs[pos + 1] & 0xff) << 8) | (bs[pos + 2] & 0xff);
+                if (length > DEFAULT_MAX_FRAME_SIZE) throw new Http2Exception(FRAME_SIZE_ERROR, "frame size " + length + " exceeds " + DEFAULT_MAX_FRAME_SIZE);
+                if (end - pos < FRAME_HEADER_LENGTH + length) break;
+                int type = bs[pos + 3] & 0xff;
+                int flags = bs[pos + 4] & 0xff;
+                int streamid = readInt(bs, pos + 5) & 0x7fffffff;
+                readFrame(type, flags, streamid, bs, pos + FRAME_HEADER_LENGTH, length);
+                pos += FRAME_HEADER_LENGTH + length;
+            }
+        } catch (Http2Exception e) {
+            goaway(e.error, e.getMessage());
+            return;
+        }
+        int remain = end - pos;
+        readArray.clear();
+        if (remain > 0) readArray.put(bs, pos, remain);
+    }
+
+    private void readFrame(int type, int flags, int streamid, byte[] bs, int offset, int length) throws Http2Exception {
+        if (headerStreamId != 0 && (type != FRAME_CONTINUATION || streamid != headerStreamId)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "expected CONTINUATION frame of stream " + headerStreamId);
+        }
+        switch (type) {
+            case FRAME_DATA:
+                readData(flags, streamid, bs, offset, length);
+                break;
+            case FRAME_HEADERS:
+                readHeaders(flags, streamid, bs, offset, length);
+                break;
+            case FRAME_PRIORITY: //不支持优先级, 忽略
+                if (streamid == 0) throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY frame with stream 0");
+                if (length != 5) throw new Http2Exception(FRAME_SIZE_ERROR, "PRIORITY frame size " + length);
+                break;
+            case FRAME_RST_STREAM:
+                if (streamid == 0) throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM frame with stream 0");
+                if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM frame size " + length);
+                if (streamid > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM frame on idle stream " + streamid);
+                resetStream(streamid);
+                break;
+            case FRAME_SETTINGS:
+                if (streamid != 0) throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS frame with stream " + streamid);
+                if ((flags & FLAG_ACK) != 0) {
+                    if (length != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK frame size " + length);
+                    break;
+                }
+                if (length % 6 != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS frame size " + length);
+                List<Runnable> callbacks;
+                synchronized (this) {
+                    callbacks = applySettings(bs, offset, length, true);
+                }
+                runCallbacks(callbacks);
+                break;
+            case FRAME_PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE frame from client");
+            case FRAME_PING:
+                if (streamid != 0) throw new Http2Exception(PROTOCOL_ERROR, "PING frame with stream " + streamid);
+                if (length != 8) throw new Http2Exception(FRAME_SIZE_ERROR, "PING frame size " + length);
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (this) {
+                        writeFrameHeader(8, FRAME_PING, FLAG_ACK, 0);
+                        outArray.put(bs, offset, 8);
+                    }
+                }
+                break;
+            case FRAME_GOAWAY:
+                if (streamid != 0) throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY frame with stream " + streamid);
+                boolean closeNow;
+                synchronized (this) {
+                    goaway = true;
+                    closeNow = streams.isEmpty();
+                }
+                if (closeNow) close();
+                break;
+            case FRAME_WINDOW_UPDATE:
+                if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE frame size " + length);
+                windowUpdate(streamid, readInt(bs, offset) & 0x7fffffff);
+                break;
+            case FRAME_CONTINUATION:
+                if (headerStreamId == 0) throw new Http2Exception(PROTOCOL_ERROR, "unexpected CONTINUATION frame");
+                if (headerBlock.length() + length > MAX_HEADER_BLOCK_SIZE) throw new Http2Exception(ENHANCE_YOUR_CALM, "header block too large");
+                headerBlock.put(bs, offset, length);
+                if ((flags & FLAG_END_HEADERS) != 0) endHeaders();
+                break;
+            default: //未知类型的帧须忽略
+        }
+    }
+
+    private void readHeaders(int flags, int streamid, byte[] bs, int offset, int length) throws Http2Exception {
+        if (streamid == 0 || (streamid & 1) == 0) throw new Http2Exception(PROTOCOL_ERROR, "HEADERS frame with stream " + streamid);
+        int off = offset;
+        int len = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (len < 1) throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS frame size " + length);
+            len -= 1 + (bs[off++] & 0xff);
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            off += 5;
+            len -= 5;
+        }
+        if (len < 0) throw new Http2Exception(PROTOCOL_ERROR, "HEADERS frame padding exceeds payload");
+        headerBlock.clear();
+        headerBlock.put(bs, off, len);
+        headerStreamId = streamid;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) endHeaders();
+    }
+
+    private void endHeaders() throws Http2Exception {
+        final int streamid = headerStreamId;
+        headerStreamId = 0;
+        List<String> nameValues = new ArrayList<>();
+        try {
+            hpackDecoder.decode(headerBlock.content(), 0, headerBlock.length(), nameValues);
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        Http2StreamConnection stream;
+        synchronized (this) {
+            stream = streams.get(streamid);
+        }
+        if (stream != null) { //trailers, 忽略其内容
+            if (!headerEndStream) throw new Http2Exception(PROTOCOL_ERROR, "trailers without END_STREAM on stream " + streamid);
+            if (!stream.requestEnded) endRequest(stream);
+            return;
+        }
+        if (streamid <= lastStreamId) throw new Http2Exception(STREAM_CLOSED, "HEADERS frame on closed stream " + streamid);
+        lastStreamId = streamid;
+        synchronized (this) {
+            if (goaway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+                writeRstStream(streamid, REFUSED_STREAM);
+                return;
+            }
+        }
+        HttpResponse response = (HttpResponse) responseSupplier.get();
+        stream = new Http2StreamConnection(this, streamid, response);
+        response.initHttp2(stream, responseSupplier, responseConsumer);
+        HttpRequest request = response.getRequest();
+        try {
+            request.initHttp2(nameValues);
+        } catch (RuntimeException e) {
+            if (context.getLogger().isLoggable(Level.FINEST)) {
+                context.getLogger().log(Level.FINEST, "Http2Codec parse headers erroneous, reset stream " + streamid, e);
+            }
+            synchronized (this) {
+                stream.reset = true;
+                writeRstStream(streamid, PROTOCOL_ERROR);
+            }
+            response.finish(true);
+            return;
+        }
+        stream.headOnly = "HEAD".equals(request.getMethod());
+        synchronized (this) {
+            stream.sendWindow = initialSendWindow;
+            streams.put(streamid, stream);
+        }
+        if (headerEndStream) endRequest(stream);
+    }
+
+    private void readData(int flags, int streamid, byte[] bs, int offset, int length) throws Http2Exception {
+        if (streamid == 0) throw new Http2Exception(PROTOCOL_ERROR, "DATA frame with stream 0");
+        int off = offset;
+        int len = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (len < 1) throw new Http2Exception(FRAME_SIZE_ERROR, "DATA frame size " + length);
+            len -= 1 + (bs[off++] & 0xff);
+            if (len < 0) throw new Http2Exception(PROTOCOL_ERROR, "DATA frame padding exceeds payload");
+        }
+        //整帧(含填充)都计入流量控制
+        if (length > recvWindow) throw new Http2Exception(FLOW_CONTROL_ERROR, "DATA frame size " + length + " exceeds connection window " + recvWindow);
+        recvWindow -= length;
+        Http2StreamConnection stream;
+        synchronized (this) {
+            stream = streams.get(streamid);
+        }
+        if (stream == null || stream.requestEnded) {
+            if (streamid > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on idle stream " + streamid);
+            consumeData(null, length); //已重置或已结束的流, 丢弃的数据也须归还连接窗口
+            return;
+        }
+        if (length > stream.recvWindow) { //流级的窗口超出只重置该流
+            abortStream(stream, FLOW_CONTROL_ERROR);
+            consumeData(null, length);
+            return;
+        }
+        stream.recvWindow -= length;
+        if (!stream.response.getRequest().putHttp2Body(bs, off, len)) { //超出maxbody
+            abortStream(stream, CANCEL);
+            consumeData(null, length);
+            return;
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            consumeData(null, length);
+            endRequest(stream);
+        } else {
+            consumeData(stream, length);
+        }
+    }
+
+    /**
+     * DATA帧的数据已放入请求的body(或已丢弃)后才归还接收窗口, 流级窗口不超过maxbody剩余可接收的字节数
+     *
+     * @param stream 流, 为null表示只归还连接窗口
+     * @param length 整帧长度
+     */
+    private void consumeData(Http2StreamConnection stream, int length) {
+        recvUnacked += length;
+        synchronized (this) {
+            if (recvUnacked >= CONNECTION_WINDOW_SIZE / 2) {
+                writeWindowUpdate(0, recvUnacked);
+                recvWindow += recvUnacked;
+                recvUnacked = 0;
+            }
+            if (stream == null) return;
+            stream.recvUnacked += length;
+            if (stream.recvUnacked < DEFAULT_WINDOW_SIZE / 2) return;
+            int increment = Math.min(stream.recvUnacked, stream.response.getRequest().getHttp2BodyCapacity() - stream.recvWindow);
+            if (increment > 0) {
+                writeWindowUpdate(stream.streamid, increment);
+                stream.recvWindow += increment;
+                stream.recvUnacked -= increment;
+            }
+        }
+    }
+
+    //请求body未接收完时重置流
+    private void abortStream(Http2StreamConnection stream, int error) {
+        synchronized (this) {
+            streams.remove(stream.streamid);
+            stream.reset = true;
+            writeRstStream(stream.streamid, error);
+        }
+        stream.response.finish(true);
+    }
+
+    //请求已完整, 交由HttpPrepareServlet处理
+    private void endRequest(Http2StreamConnection stream) {
+        synchronized (this) {
+            if (closed || stream.reset) return;
+            stream.requestEnded = true;
+        }
+        HttpRequest request = stream.response.getRequest();
+        request.endHttp2Body();
+        context.executePrepareServlet(request, stream.response);
+    }
+
+    private void resetStream(int streamid) {
+        Runnable callback;
+        Http2StreamConnection stream;
+        synchronized (this) {
+            stream = streams.remove(streamid);
+            if (stream == null) return;
+            stream.reset = true;
+            callback = stream.takeWriteCallback(new ClosedChannelException());
+        }
+        if (callback != null) callback.run();
+        if (!stream.requestEnded) stream.response.finish(true);
+    }
+
+    private void windowUpdate(int streamid, int increment) throws Http2Exception {
+        if (increment == 0) throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE with 0 increment on stream " + streamid);
+        List<Runnable> callbacks = null;
+        synchronized (this) {
+            if (streamid == 0) {
+                if ((long) sendWindow + increment > Integer.MAX_VALUE) throw new Http2Exception(FLOW_CONTROL_ERROR, "connection window overflow");
+                sendWindow += increment;
+                callbacks = flushBlocked();
+            } else {
+                Http2StreamConnection stream = streams.get(streamid);
+                if (stream == null) return;
+                if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) throw new Http2Exception(FLOW_CONTROL_ERROR, "stream " + streamid + " window overflow");
+                stream.sendWindow += increment;
+                if (stream.writeHandler != null && flushStream(stream)) {
+                    callbacks = new ArrayList<>(1);
+                    callbacks.add(stream.takeWriteCallback(null));
+                }
+            }
+        }
+        runCallbacks(callbacks);
+    }
+
+    //须在锁内调用
+    private List<Runnable> applySettings(byte[] bs, int offset, int length, boolean ack) throws Http2Exception {
+        boolean grown = false;
+        for (int i = offset; i < offset + length; i += 6) {
+            int id = ((bs[i] & 0xff) << 8) | (bs[i + 1] & 0xff);
+            int value = readInt(bs, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    hpackEncoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) throw new Http2Exception(PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH " + value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) throw new Http2Exception(FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE " + value);
+                    int delta = value - initialSendWindow;
+                    initialSendWindow = value;
+                    for (Http2StreamConnection stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    if (delta > 0) grown = true;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) throw new Http2Exception(PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE " + value);
+                    maxFrameSize = value;
+                    break;
+                default: //未知的设置项须忽略
+            }
+        }
+        if (ack) writeFrameHeader(0, FRAME_SETTINGS, FLAG_ACK, 0);
+        return grown ? flushBlocked() : null;
+    }
+
+    //须在锁内调用, 服务端的SETTINGS帧与连接级接收窗口
+    private void writeSettings() {
+        writeFrameHeader(6, FRAME_SETTINGS, 0, 0);
+        outArray.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS);
+        outArray.putInt(MAX_CONCURRENT_STREAMS);
+        writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+    }
+
+    //须在锁内调用
+    private void writeWindowUpdate(int streamid, int increment) {
+        writeFrameHeader(4, FRAME_WINDOW_UPDATE, 0, streamid);
+        outArray.putInt(increment);
+    }
+
+    //须在锁内调用
+    private void writeRstStream(int streamid, int error) {
+        writeFrameHeader(4, FRAME_RST_STREAM, 0, streamid);
+        outArray.putInt(error);
+    }
+
+    //须在锁内调用
+    private void writeFrameHeader(int length, int type, int flags, int streamid) {
+        ByteArray out = outArray;
+        out.put((byte) (length >>> 16));
+        out.put((byte) (length >>> 8));
+        out.put((byte) length);
+        out.put((byte) type);
+        out.put((byte) flags);
+        out.putInt(streamid);
+    }
+
+    /**
+     * 输出响应头, 头部块超过对端的最大帧长度时拆成HEADERS与CONTINUATION帧, 须在锁内调用
+     *
+     * @param stream     流
+     * @param nameValues 按 name, value 依次存放, name均为小写
+     * @param endStream  是否没有body
+     */
+    void writeHeaders(Http2StreamConnection stream, List<String> nameValues, boolean endStream) {
+        ByteArray block = headerEncodeArray;
+        block.clear();
+        hpackEncoder.begin(block);
+        for (int i = 0; i < nameValues.size(); i += 2) {
+            hpackEncoder.encode(block, nameValues.get(i), nameValues.get(i + 1));
+        }
+        final int length = block.length();
+        int offset = 0;
+        boolean first = true;
+        do {
+            int n = Math.min(length - offset, maxFrameSize);
+            int flags = offset + n == length ? FLAG_END_HEADERS : 0;
+            if (first && endStream) flags |= FLAG_END_STREAM;
+            writeFrameHeader(n, first ? FRAME_HEADERS : FRAME_CONTINUATION, flags, stream.streamid);
+            outArray.put(block.content(), offset, n);
+            offset += n;
+            first = false;
+        } while (offset < length);
+        if (endStream) endStream(stream);
+    }
+
+    /**
+     * 把流的待发数据在发送窗口内转成DATA帧放入输出缓存, 须在锁内调用
+     *
+     * @param stream 流
+     *
+     * @return 待发数据是否已全部放入输出缓存
+     */
+    boolean flushStream(Http2StreamConnection stream) {
+        if (stream.reset || closed) return false;
+        ByteArray data = stream.pendingData;
+        int remain = data.length() - stream.pendingOffset;
+        while (remain > 0) {
+            if (outArray.length() >= OUT_BUFFER_HIGH_WATER) return false;
+            int n = Math.min(Math.min(remain, maxFrameSize), Math.min(sendWindow, stream.sendWindow));
+            if (n <= 0) return false;
+            stream.bodySent += n;
+            boolean end = (stream.endPending && n == remain) || (stream.contentLength >= 0 && stream.bodySent >= stream.contentLength);
+            writeFrameHeader(n, FRAME_DATA, end ? FLAG_END_STREAM : 0, stream.streamid);
+            outArray.put(data.content(), stream.pendingOffset, n);
+            sendWindow -= n;
+            stream.sendWindow -= n;
+            stream.pendingOffset += n;
+            remain -= n;
+            if (end) {
+                endStream(stream);
+                break;
+            }
+        }
+        data.clear();
+        stream.pendingOffset = 0;
+        if (stream.endPending && !stream.endSent) {
+            writeFrameHeader(0, FRAME_DATA, FLAG_END_STREAM, stream.streamid);
+            endStream(stream);
+        }
+        return true;
+    }
+
+    //须在锁内调用, 发送窗口变大或输出缓存写完后继续输出被阻塞的流
+    private List<Runnable> flushBlocked() {
+        if (streams.isEmpty()) return null;
+        List<Runnable> callbacks = null;
+        for (Http2StreamConnection stream : new ArrayList<>(streams.values())) {
+            if (stream.writeHandler == null && !stream.endPending) continue;
+            if (flushStream(stream)) {
+                Runnable callback = stream.takeWriteCallback(null);
+                if (callback != null) {
+                    if (callbacks == null) callbacks = new ArrayList<>();
+                    callbacks.add(callback);
+                }
+            }
+            if (outArray.length() >= OUT_BUFFER_HIGH_WATER) break;
+        }
+        return callbacks;
+    }
+
+    //须在锁内调用, END_STREAM已发出
+    private void endStream(Http2StreamConnection stream) {
+        stream.endSent = true;
+        streams.remove(stream.streamid);
+        if (goaway && streams.isEmpty()) closing = true;
+    }
+
+    /**
+     * 流被HttpResponse关闭: 未输出过响应头的重置流, 否则在待发数据输出完后结束流
+     *
+     * @param stream 流
+     */
+    void closeStream(Http2StreamConnection stream) {
+        synchronized (this) {
+            if (stream.reset || stream.endSent || closed) return;
+            if (!stream.headSent) {
+                stream.reset = true;
+                streams.remove(stream.streamid);
+                writeRstStream(stream.streamid, INTERNAL_ERROR);
+            } else {
+                stream.endPending = true;
+                flushStream(stream);
+            }
+        }
+        flushOut();
+    }
+
+    //把输出缓存写入连接, 同一时刻只有一个写操作, 写的过程中新加入的帧在写完后合并输出
+    void flushOut() {
+        ByteArray array;
+        synchronized (this) {
+            if (writing || closed || outArray.isEmpty()) return;
+            writing = true;
+            array = outArray;
+            outArray = writingArray;
+            writingArray = array;
+        }
+        channel.write(array.content(), 0, array.length(), writeHandler);
+    }
+
+    private void goaway(int error, String message) {
+        synchronized (this) {
+            if (closing || closed) return;
+            closing = true;
+            goaway = true;
+            writeFrameHeader(8, FRAME_GOAWAY, 0, 0);
+            outArray.putInt(lastStreamId);
+            outArray.putInt(error);
+        }
+        if (context.getLogger().isLoggable(Level.FINEST)) {
+            context.getLogger().log(Level.FINEST, "Http2Codec send GOAWAY(" + error + "): " + message + ", force to close channel");
+        }
+        flushOut();
+    }
+
+    void close() {
+        List<Http2StreamConnection> list;
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            list = new ArrayList<>(streams.values());
+            streams.clear();
+            for (Http2StreamConnection stream : list) {
+                stream.reset = true;
+                Runnable callback = stream.takeWriteCallback(new ClosedChannelException());
+                if (callback != null) callbacks.add(callback);
+            }
+        }
+        runCallbacks(callbacks);
+        for (Http2StreamConnection stream : list) {
+            if (!stream.requestEnded) stream.response.finish(true);
+        }
+        channel.dispose();
+    }
+
+    boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    private static void runCallbacks(List<Runnable> callbacks) {
+        if (callbacks == null) return;
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private static int readInt(byte[] bs, int offset) {
+        return ((bs[offset] & 0xff) << 24) | ((bs[offset + 1] & 0xff) << 16) | ((bs[offset + 2] & 0xff) << 8) | (bs[offset + 3] & 0xff);
+    }
+
+    static class Http2Exception extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int error;
+
+        public Http2Exception(int error, String message) {
+            super(message);
+            this.error = error;
+        }
+    }
+}
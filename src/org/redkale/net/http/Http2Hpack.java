@@ -0,0 +1,439 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.redkale.util.ByteArray;
+
+/**
+ * HTTP/2 的 HPACK 头部压缩(RFC 7541) <br>
+ * 包含静态表、Huffman编码表以及各自维护动态表的Decoder、Encoder, 一个HTTP/2连接各持有一个, 须在同一线程或锁内使用
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+class Http2Hpack {
+
+    //动态表条目的额外开销
+    static final int ENTRY_OVERHEAD = 32;
+
+    //默认动态表大小
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+        {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+        {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+        {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+        {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""}, {"content-location", ""}, {"content-range", ""},
+        {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""},
+        {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+        {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""},
+        {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+        {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+        {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+        {"www-authenticate", ""}
+    };
+
+    //name -> 静态表中该name第一次出现的序号(从1开始), 同名条目在静态表中是连续的
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+
+    //每个请求都不同的值不放入动态表, 以免挤掉可复用的条目
+    private static final Set<String> NEVER_CACHE_NAMES = new HashSet<>(Arrays.asList(
+        "content-length", "content-range", "date", "etag", "last-modified", "location", "set-cookie"));
+
+    static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    //Huffman解码树, 每个节点占两个int(0/1分支): 正数为子节点位置, 负数为 -(字符+1)
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+        }
+        int[] tree = new int[512 * 2];
+        int size = 2;
+        for (int sym = 0; sym < 256; sym++) {
+            int code = HUFFMAN_CODES[sym];
+            int len = HUFFMAN_LENGTHS[sym];
+            int node = 0;
+            for (int i = len - 1; i > 0; i--) {
+                int pos = node + ((code >>> i) & 1);
+                if (tree[pos] == 0) {
+                    tree[pos] = size;
+                    size += 2;
+                }
+                node = tree[pos];
+            }
+            tree[node + (code & 1)] = -(sym + 1);
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    private Http2Hpack() {
+    }
+
+    //按RFC 7541 5.1写整数
+    static void writeInt(ByteArray out, int prefixBits, int flags, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.put((byte) (flags | value));
+            return;
+        }
+        out.put((byte) (flags | max));
+        value -= max;
+        while (value >= 0x80) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    //Huffman编码更短时使用Huffman编码
+    static void writeString(ByteArray out, String value) {
+        byte[] bs = value.getBytes(StandardCharsets.UTF_8);
+        long bits = 0;
+        for (byte b : bs) {
+            bits += HUFFMAN_LENGTHS[b & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) >>> 3);
+        if (huffmanLength >= bs.length) {
+            writeInt(out, 7, 0, bs.length);
+            out.put(bs);
+            return;
+        }
+        writeInt(out, 7, 0x80, huffmanLength);
+        long current = 0;
+        int n = 0;
+        for (byte b : bs) {
+            int sym = b & 0xff;
+            current = (current << HUFFMAN_LENGTHS[sym]) | HUFFMAN_CODES[sym];
+            n += HUFFMAN_LENGTHS[sym];
+            while (n >= 8) {
+                n -= 8;
+                out.put((byte) (current >>> n));
+            }
+            current &= (1L << n) - 1;
+        }
+        if (n > 0) out.put((byte) ((current << (8 - n)) | (0xff >>> n))); //以EOS的高位(全1)补齐
+    }
+
+    /**
+     * 解码器, 对应对端Encoder的动态表
+     */
+    static class Decoder {
+
+        //新条目在前
+        private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<>();
+
+        private final ByteArray huffmanArray = new ByteArray();
+
+        //SETTINGS_HEADER_TABLE_SIZE 约定的上限
+        private final int maxTableSize;
+
+        private int tableSize;
+
+        private int currTableMaxSize;
+
+        private byte[] bs;
+
+        private int pos;
+
+        private int end;
+
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.currTableMaxSize = maxTableSize;
+        }
+
+        /**
+         * 解码一个完整的头部块, 结果按 name, value 依次放入list
+         *
+         * @param content 头部块
+         * @param offset  偏移量
+         * @param length  长度
+         * @param list    结果
+         *
+         * @throws IOException 格式不正确时抛出, 连接须以COMPRESSION_ERROR关闭
+         */
+        public void decode(byte[] content, int offset, int length, List<String> list) throws IOException {
+            this.bs = content;
+            this.pos = offset;
+            this.end = offset + length;
+            try {
+                boolean first = true;
+                while (pos < end) {
+                    int b = bs[pos] & 0xff;
+                    if ((b & 0x80) != 0) { //Indexed Header Field
+                        String[] entry = entry(readInt(7));
+                        list.add(entry[0]);
+                        list.add(entry[1]);
+                    } else if ((b & 0x40) != 0) { //Literal Header Field with Incremental Indexing
+                        int index = readInt(6);
+                        String name = index == 0 ? readString() : entry(index)[0];
+                        String value = readString();
+                        list.add(name);
+                        list.add(value);
+                        addEntry(name, value);
+                    } else if ((b & 0x20) != 0) { //Dynamic Table Size Update, 只能出现在头部块开头
+                        if (!first) throw new IOException("hpack table size update not at the beginning of header block");
+                        int size = readInt(5);
+                        if (size > maxTableSize) throw new IOException("hpack table size " + size + " exceeds " + maxTableSize);
+                        this.currTableMaxSize = size;
+                        evict(0);
+                        continue;
+                    } else { //Literal Header Field without Indexing / Never Indexed
+                        int index = readInt(4);
+                        String name = index == 0 ? readString() : entry(index)[0];
+                        list.add(name);
+                        list.add(readString());
+                    }
+                    first = false;
+                }
+            } finally {
+                this.bs = null;
+            }
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            int dindex = index - STATIC_TABLE.length - 1;
+            if (index < 1 || dindex >= dynamicTable.size()) throw new IOException("hpack index " + index + " out of range");
+            Iterator<String[]> it = dynamicTable.iterator();
+            for (int i = 0; i < dindex; i++) it.next();
+            return it.next();
+        }
+
+        private void addEntry(String name, String value) {
+            int size = entrySize(name, value);
+            if (size > currTableMaxSize) { //条目比整个表还大则清空表
+                dynamicTable.clear();
+                tableSize = 0;
+                return;
+            }
+            evict(size);
+            dynamicTable.addFirst(new String[]{name, value});
+            tableSize += size;
+        }
+
+        private void evict(int need) {
+            while (tableSize + need > currTableMaxSize && !dynamicTable.isEmpty()) {
+                String[] old = dynamicTable.removeLast();
+                tableSize -= entrySize(old[0], old[1]);
+            }
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = bs[pos++] & max;
+            if (value < max) return value;
+            int shift = 0;
+            for (;;) {
+                if (pos >= end) throw new IOException("hpack integer truncated");
+                int b = bs[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if (value < 0 || shift > 28) throw new IOException("hpack integer overflow");
+                if ((b & 0x80) == 0) return value;
+                shift += 7;
+            }
+        }
+
+        private String readString() throws IOException {
+            if (pos >= end) throw new IOException("hpack string truncated");
+            boolean huffman = (bs[pos] & 0x80) != 0;
+            int len = readInt(7);
+            if (len > end - pos) throw new IOException("hpack string truncated");
+            int start = pos;
+            pos += len;
+            if (!huffman) return new String(bs, start, len, StandardCharsets.UTF_8);
+            ByteArray array = this.huffmanArray;
+            array.clear();
+            int[] tree = HUFFMAN_TREE;
+            int node = 0;
+            int depth = 0; //当前未完成字符已读的位数
+            boolean ones = true; //未完成字符的位是否全为1
+            for (int i = start; i < pos; i++) {
+                int b = bs[i] & 0xff;
+                for (int j = 7; j >= 0; j--) {
+                    int bit = (b >>> j) & 1;
+                    int next = tree[node + bit];
+                    if (next < 0) {
+                        array.put((byte) (-next - 1));
+                        node = 0;
+                        depth = 0;
+                        ones = true;
+                    } else if (next == 0) {
+                        throw new IOException("hpack huffman invalid code");
+                    } else {
+                        node = next;
+                        depth++;
+                        if (bit == 0) ones = false;
+                    }
+                }
+            }
+            //补齐位须为EOS的前缀且不超过7位
+            if (depth > 7 || !ones) throw new IOException("hpack huffman invalid padding");
+            return array.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 编码器, 动态表大小不超过对端SETTINGS_HEADER_TABLE_SIZE与DEFAULT_TABLE_SIZE的较小值
+     */
+    static class Encoder {
+
+        //新条目在前
+        private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<>();
+
+        private int tableSize;
+
+        private int currTableMaxSize = DEFAULT_TABLE_SIZE;
+
+        //需在下一个头部块开头通知对端的表大小, -1表示无需通知
+        private int pendingTableMaxSize = -1;
+
+        //对端SETTINGS_HEADER_TABLE_SIZE变化时调用
+        public void setMaxTableSize(int size) {
+            int newsize = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (newsize == currTableMaxSize) return;
+            this.currTableMaxSize = newsize;
+            this.pendingTableMaxSize = this.pendingTableMaxSize < 0 ? newsize : Math.min(newsize, this.pendingTableMaxSize);
+            evict(0);
+        }
+
+        //开始一个新的头部块
+        public void begin(ByteArray out) {
+            if (pendingTableMaxSize >= 0) {
+                if (pendingTableMaxSize < currTableMaxSize) writeInt(out, 5, 0x20, pendingTableMaxSize);
+                writeInt(out, 5, 0x20, currTableMaxSize);
+                pendingTableMaxSize = -1;
+            }
+        }
+
+        /**
+         * 编码一个头, name须为小写
+         *
+         * @param out   输出
+         * @param name  名称
+         * @param value 值
+         */
+        public void encode(ByteArray out, String name, String value) {
+            int nameIndex = 0;
+            Integer sindex = STATIC_NAME_INDEX.get(name);
+            if (sindex != null) {
+                nameIndex = sindex;
+                for (int i = sindex - 1; i < STATIC_TABLE.length && STATIC_TABLE[i][0].equals(name); i++) {
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        writeInt(out, 7, 0x80, i + 1);
+                        return;
+                    }
+                }
+            }
+            int index = STATIC_TABLE.length + 1;
+            for (String[] entry : dynamicTable) {
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        writeInt(out, 7, 0x80, index);
+                        return;
+                    }
+                    if (nameIndex == 0) nameIndex = index;
+                }
+                index++;
+            }
+            if (NEVER_CACHE_NAMES.contains(name)) {
+                writeInt(out, 4, 0x00, nameIndex);
+            } else {
+                writeInt(out, 6, 0x40, nameIndex);
+                addEntry(name, value);
+            }
+            if (nameIndex == 0) writeString(out, name);
+            writeString(out, value);
+        }
+
+        private void addEntry(String name, String value) {
+            int size = entrySize(name, value);
+            if (size > currTableMaxSize) {
+                dynamicTable.clear();
+                tableSize = 0;
+                return;
+            }
+            evict(size);
+            dynamicTable.addFirst(new String[]{name, value});
+            tableSize += size;
+        }
+
+        private void evict(int need) {
+            while (tableSize + need > currTableMaxSize && !dynamicTable.isEmpty()) {
+                String[] old = dynamicTable.removeLast();
+                tableSize -= entrySize(old[0], old[1]);
+            }
+        }
+    }
+
+    //条目大小按字节数计算, 须与对端一致
+    static int entrySize(String name, String value) {
+        return utf8Length(name) + utf8Length(value) + ENTRY_OVERHEAD;
+    }
+
+    private static int utf8Length(String value) {
+        int len = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) return value.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.redkale.net.AsyncConnection;
+import org.redkale.util.ByteArray;
+
+/**
+ * HTTP/2 连接中的一个流, 作为HttpRequest/HttpResponse的AsyncConnection <br>
+ * HttpResponse输出的HTTP/1.1响应头被转换成HEADERS帧, body按流量控制窗口转换成DATA帧; 写回调在数据全部放入连接的输出缓存后才触发,
+ * 被流量控制阻塞时等待对端的WINDOW_UPDATE。 除final字段外的状态由所属Http2Codec的锁保护。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+class Http2StreamConnection extends AsyncConnection {
+
+    final Http2Codec codec;
+
+    final int streamid;
+
+    final HttpResponse response;
+
+    //---------- 以下仅在IO线程中使用 ----------
+    //接收窗口, 初始值为默认的SETTINGS_INITIAL_WINDOW_SIZE
+    int recvWindow = Http2Codec.DEFAULT_WINDOW_SIZE;
+
+    //已消费但未发送WINDOW_UPDATE的字节数
+    int recvUnacked;
+
+    //请求已完整(END_STREAM), 已交由HttpPrepareServlet处理
+    volatile boolean requestEnded;
+
+    //---------- 以下由codec锁保护 ----------
+    boolean headOnly;
+
+    int sendWindow;
+
+    //正在收集的HTTP/1.1响应头
+    private final ByteArray headArray = new ByteArray(256);
+
+    boolean headSent;
+
+    //响应没有body: HEAD请求、1xx、204、304
+    private boolean noBody;
+
+    long contentLength = -1;
+
+    long bodySent;
+
+    final ByteArray pendingData = new ByteArray();
+
+    int pendingOffset;
+
+    //HttpResponse已关闭, 待发数据输出完后结束流
+    boolean endPending;
+
+    boolean endSent;
+
+    boolean reset;
+
+    CompletionHandler<Integer, Object> writeHandler;
+
+    private Object writeAttachment;
+
+    private int writeResult;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private static final int WRITE_DONE = 1;
+
+    private static final int WRITE_WAITING = 2;
+
+    private static final int WRITE_FAILED = 3;
+
+    public Http2StreamConnection(Http2Codec codec, int streamid, HttpResponse response) {
+        super(false, codec.context.getBufferCapacity(), codec.channel.getBufferSupplier(), codec.channel.getBufferConsumer(), null, null, null);
+        this.codec = codec;
+        this.streamid = streamid;
+        this.response = response;
+    }
+
+    @Override
+    protected void continueRead() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && codec.isOpen();
+    }
+
+    @Override
+    public boolean isTCP() {
+        return true;
+    }
+
+    @Override
+    public boolean shutdownInput() {
+        return true;
+    }
+
+    @Override
+    public boolean shutdownOutput() {
+        return true;
+    }
+
+    @Override
+    public <T> boolean setOption(SocketOption<T> name, T value) {
+        return false;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return codec.channel.supportedOptions();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return codec.channel.getRemoteAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return codec.channel.getLocalAddress();
+    }
+
+    @Override
+    public int getReadTimeoutSeconds() {
+        return codec.channel.getReadTimeoutSeconds();
+    }
+
+    @Override
+    public int getWriteTimeoutSeconds() {
+        return codec.channel.getWriteTimeoutSeconds();
+    }
+
+    @Override
+    public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+    }
+
+    @Override
+    public void setWriteTimeoutSeconds(int writeTimeoutSeconds) {
+    }
+
+    //请求body在分发前已全部收取, 没有后续可读的数据
+    @Override
+    public ReadableByteChannel readableByteChannel() {
+        return Channels.newChannel(newInputStream());
+    }
+
+    //写入的数据与write一样转成本流的帧, 放入待发缓存后即返回, 被流量控制阻塞的数据在对端WINDOW_UPDATE后发出
+    @Override
+    public WritableByteChannel writableByteChannel() {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                final int len = src.remaining();
+                final IOException[] error = new IOException[1];
+                Http2StreamConnection.this.write(src, null, new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer result, Void attachment) {
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        error[0] = exc instanceof IOException ? (IOException) exc : new IOException(exc);
+                    }
+                });
+                if (error[0] != null) throw error[0];
+                return len;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return Http2StreamConnection.this.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                Http2StreamConnection.this.close();
+            }
+        };
+    }
+
+    //请求body在分发前已全部收取
+    @Override
+    protected InputStream newInputStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public void read(CompletionHandler<Integer, ByteBuffer> handler) {
+        handler.failed(new IOException("read not supported in http2 stream"), null);
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        write(new ByteBuffer[]{src}, 0, 1, attachment, handler);
+    }
+
+    @Override
+    public <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        int total = 0;
+        int state;
+        synchronized (codec) {
+            if (reset) {
+                state = WRITE_FAILED;
+            } else {
+                for (int i = offset; i < offset + length; i++) {
+                    ByteBuffer src = srcs[i];
+                    total += src.remaining();
+                    while (src.hasRemaining() && !headSent) {
+                        appendHead(src.get());
+                    }
+                    if (noBody || endSent) {
+                        src.position(src.limit());
+                    } else {
+                        pendingData.put(src, src.remaining());
+                    }
+                }
+                state = writeState(total, attachment, handler);
+            }
+        }
+        afterWrite(state, total, attachment, handler);
+    }
+
+    //不经过写缓存直接转成帧数据
+    @Override
+    @SuppressWarnings("unchecked")
+    public void write(byte[] headerContent, int headerOffset, int headerLength, byte[] bodyContent, int bodyOffset, int bodyLength, Consumer bodyCallback, Object bodyAttachment, CompletionHandler<Integer, Void> handler) {
+        int state;
+        synchronized (codec) {
+            if (reset) {
+                state = WRITE_FAILED;
+            } else {
+                append(headerContent, headerOffset, headerLength);
+                if (bodyLength > 0) append(bodyContent, bodyOffset, bodyLength);
+                state = writeState(headerLength + bodyLength, null, handler);
+            }
+        }
+        if (bodyLength > 0 && bodyCallback != null) bodyCallback.accept(bodyAttachment);
+        afterWrite(state, headerLength + bodyLength, null, handler);
+    }
+
+    private void append(byte[] bs, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && !headSent) {
+            appendHead(bs[i++]);
+        }
+        if (i < end && !noBody && !endSent) pendingData.put(bs, i, end - i);
+    }
+
+    private void appendHead(byte b) {
+        ByteArray head = headArray;
+        head.put(b);
+        int len = head.length();
+        if (b == '\n' && len >= 4 && head.get(len - 2) == '\r' && head.get(len - 3) == '\n' && head.get(len - 4) == '\r') {
+            sendHead();
+        }
+    }
+
+    //HTTP/1.1响应头转成HEADERS帧, 去掉HTTP/2禁止的连接相关头
+    private void sendHead() {
+        final byte[] bs = headArray.content();
+        final int end = headArray.length() - 2;
+        int pos = indexOfLine(bs, 0, end);
+        int status = 200;
+        int sp = indexOf(bs, 0, pos, (byte) ' ');
+        if (sp > 0) {
+            int code = 0;
+            for (int i = sp + 1; i < pos && bs[i] >= '0' && bs[i] <= '9'; i++) {
+                code = code * 10 + (bs[i] - '0');
+            }
+            if (code > 0) status = code;
+        }
+        List<String> nameValues = new ArrayList<>();
+        nameValues.add(":status");
+        nameValues.add(String.valueOf(status));
+        pos += 2;
+        while (pos < end) {
+            int lineEnd = indexOfLine(bs, pos, end);
+            int colon = indexOf(bs, pos, lineEnd, (byte) ':');
+            if (colon > pos) {
+                String name = new String(bs, pos, colon - pos, StandardCharsets.ISO_8859_1).trim().toLowerCase(Locale.ENGLISH);
+                String value = new String(bs, colon + 1, lineEnd - colon - 1, StandardCharsets.UTF_8).trim();
+                switch (name) {
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "transfer-encoding":
+                    case "upgrade":
+                        break;
+                    case "content-length":
+                        try {
+                            this.contentLength = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                        }
+                        nameValues.add(name); //仍作为普通头输出
+                        nameValues.add(value);
+                        break;
+                    default:
+                        nameValues.add(name);
+                        nameValues.add(value);
+                }
+            }
+            pos = lineEnd + 2;
+        }
+        headArray.clear();
+        this.headSent = true;
+        this.noBody = headOnly || status < 200 || status == 204 || status == 304;
+        codec.writeHeaders(this, nameValues, noBody || contentLength == 0);
+    }
+
+    private static int indexOfLine(byte[] bs, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bs[i] == '\r' && bs[i + 1] == '\n') return i;
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] bs, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (bs[i] == b) return i;
+        }
+        return -1;
+    }
+
+    //须在codec锁内调用, 数据未能全部放入输出缓存时保存回调等待发送窗口
+    @SuppressWarnings("unchecked")
+    private <A> int writeState(int result, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (codec.flushStream(this)) return WRITE_DONE;
+        if (reset) return WRITE_FAILED;
+        this.writeHandler = (CompletionHandler<Integer, Object>) handler;
+        this.writeAttachment = attachment;
+        this.writeResult = result;
+        return WRITE_WAITING;
+    }
+
+    private <A> void afterWrite(int state, int total, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (state == WRITE_FAILED) {
+            handler.failed(new ClosedChannelException(), attachment);
+            return;
+        }
+        codec.flushOut();
+        if (state == WRITE_DONE) handler.completed(total, attachment);
+    }
+
+    /**
+     * 取出等待中的写回调, 须在codec锁内调用, 返回的回调须在锁外执行
+     *
+     * @param exc 为null表示写完成
+     *
+     * @return 回调, 没有等待中的写操作返回null
+     */
+    Runnable takeWriteCallback(Throwable exc) {
+        final CompletionHandler<Integer, Object> handler = this.writeHandler;
+        if (handler == null) return null;
+        final Object attachment = this.writeAttachment;
+        final int result = this.writeResult;
+        this.writeHandler = null;
+        this.writeAttachment = null;
+        return exc == null ? () -> handler.completed(result, attachment) : () -> handler.failed(exc, attachment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) return;
+        super.close();
+        codec.closeStream(this);
+    }
+}
@@ -6,17 +6,18 @@
 package org.redkale.net.http;
 
 import java.net.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.CompletionHandler;
-import java.nio.charset.*;
-import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import org.redkale.net.*;
-import static org.redkale.net.http.HttpRequest.parseHeaderName;
+import org.redkale.net.client.*;
 import org.redkale.util.*;
 
 /**
- * 简单的HttpClient实现, 存在以下情况不能使用此类: <br>
+ * HTTP/1.1 客户端， 按host:port维护keep-alive连接池， 可开启pipeline， 支持chunked与gzip、deflate响应 <br>
+ * 存在以下情况不能使用此类: <br>
  * 1、使用HTTPS；<br>
  * 2、上传下载文件；<br>
  * 3、返回超大响应包；<br>
@@ -37,6 +38,25 @@ public class HttpClient {
 
     protected int writeTimeoutSeconds = 6;
 
+    protected int connectTimeoutSeconds = 6;
+
+    //单个host的最大连接数
+    protected int maxConnsPerHost = Runtime.getRuntime().availableProcessors();
+
+    //单个连接最大并行处理数， 大于1表示开启pipeline， 开启后非幂等的请求也会与其他请求共用连接
+    protected int maxPipelines = 1;
+
+    //最多保留的host连接池数， 超过时关闭最久未使用的空闲连接池
+    protected int maxHosts = 256;
+
+    //host连接池空闲超过该秒数后在新建连接池时关闭， 小于1表示不按空闲时间关闭
+    protected int hostIdleSeconds = 60;
+
+    //响应body的最大字节数， 压缩的body按解压前与解压后分别限制， 超过时请求失败
+    protected int maxbody = 64 * 1024 * 1024;
+
+    protected final ConcurrentHashMap<String, HttpHostClient> hostClients = new ConcurrentHashMap<>();
+
     protected HttpClient(AsyncGroup asyncGroup) {
         this.asyncGroup = asyncGroup;
     }
@@ -94,43 +114,184 @@ public class HttpClient {
     }
 
     public CompletableFuture<HttpResult<byte[]>> sendAsync(String method, String url, Map<String, String> headers, byte[] body) {
-        final URI uri = URI.create(url);
-        final SocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : (url.startsWith("https:") ? 443 : 80));
-        return asyncGroup.createTCP(address, readTimeoutSeconds, writeTimeoutSeconds).thenCompose(conn -> {
-            final ByteArray array = new ByteArray();
-            int urlpos = url.indexOf("/", url.indexOf("//") + 3);
-            array.put((method + " " + (urlpos > 0 ? url.substring(urlpos) : "/") + " HTTP/1.1\r\n"
-                + "Host: " + uri.getHost() + "\r\n"
-                + "Content-Length: " + (body == null ? 0 : body.length) + "\r\n").getBytes(StandardCharsets.UTF_8));
-            if (headers == null || !headers.containsKey("User-Agent")) {
-                array.put(("User-Agent: redkale-httpclient/" + Redkale.getDotedVersion() + "\r\n").getBytes(StandardCharsets.UTF_8));
-            }
-            if (headers == null || !headers.containsKey("Connection")) {
-                array.put(("Connection: close\r\n").getBytes(StandardCharsets.UTF_8));
-            }
-            if (headers != null) {
-                headers.forEach((k, v) -> {
-                    array.put((k + ": " + v + "\r\n").getBytes(StandardCharsets.UTF_8));
+        final URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            return CompletableFuture.failedFuture(new UnsupportedOperationException("HttpClient only support http url, but " + url));
+        }
+        final String host = uri.getHost();
+        final int port = uri.getPort() > 0 ? uri.getPort() : 80;
+        final HttpHostClient client = acquireHostClient(host, port);
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) path = "/";
+        if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+        final HttpClientRequest request = new HttpClientRequest(method, path, port == 80 ? host : (host + ":" + port), headers, body);
+        final CompletableFuture<HttpResult<byte[]>> future = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        client.sendAsync(request).whenComplete((r, t) -> {
+            //空闲连接可能已被对方关闭， 幂等的请求换个连接重试一次
+            if (t != null && request.isIdempotent() && isStaleConnection(t)) {
+                client.sendAsync(request).whenComplete((r2, t2) -> {
+                    client.stats.record(System.nanoTime() - start, t2 != null);
+                    client.release();
+                    if (t2 != null) {
+                        future.completeExceptionally(t2);
+                    } else {
+                        future.complete(r2);
+                    }
                 });
+                return;
             }
-            array.put((byte) '\r', (byte) '\n');
-            if (body != null) array.put(body);
-            System.out.println(array);
-            final CompletableFuture<HttpResult<byte[]>> future = new CompletableFuture();
-            conn.write(array, new CompletionHandler<Integer, Void>() {
-                @Override
-                public void completed(Integer result, Void attachment) {
-                    conn.read(new ClientReadCompletionHandler(conn, array.clear(), future));
-                }
+            client.stats.record(System.nanoTime() - start, t != null);
+            client.release();
+            if (t != null) {
+                future.completeExceptionally(t);
+            } else {
+                future.complete(r);
+            }
+        });
+        return future;
+    }
 
-                @Override
-                public void failed(Throwable exc, Void attachment) {
-                    conn.dispose();
-                    future.completeExceptionally(exc);
+    //获取并占用host连接池， 占用期间不会被关闭
+    private HttpHostClient acquireHostClient(String host, int port) {
+        final String key = host + ":" + port;
+        for (;;) {
+            HttpHostClient client = hostClients.get(key);
+            if (client == null) {
+                HttpHostClient newClient = new HttpHostClient(key, new InetSocketAddress(host, port));
+                client = hostClients.putIfAbsent(key, newClient);
+                if (client == null) {
+                    client = newClient;
+                    evictHostClients(newClient);
+                } else {
+                    newClient.close();
                 }
-            });
-            return future;
-        });
+            }
+            if (client.acquire()) return client;
+            hostClients.remove(key, client); //已被关闭， 重新获取
+        }
+    }
+
+    //关闭空闲超时的连接池， 数量仍超过maxHosts时按最久未使用的顺序关闭空闲的连接池
+    private void evictHostClients(HttpHostClient exclude) {
+        final long now = System.currentTimeMillis();
+        final int idle = this.hostIdleSeconds;
+        if (idle > 0) {
+            for (HttpHostClient client : hostClients.values()) {
+                if (client != exclude && now - client.lastAccessTime > idle * 1000L) evictHostClient(client);
+            }
+        }
+        int over = hostClients.size() - Math.max(1, this.maxHosts);
+        if (over <= 0) return;
+        List<HttpHostClient> clients = new ArrayList<>(hostClients.values());
+        clients.remove(exclude);
+        clients.sort(Comparator.comparingLong(c -> c.lastAccessTime));
+        for (HttpHostClient client : clients) {
+            if (over <= 0) break;
+            if (evictHostClient(client)) over--;
+        }
+    }
+
+    private boolean evictHostClient(HttpHostClient client) {
+        if (!client.evict()) return false;
+        hostClients.remove(client.name, client);
+        client.close();
+        return true;
+    }
+
+    private static boolean isStaleConnection(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t instanceof ClosedChannelException || t instanceof NonReadableChannelException;
+    }
+
+    /**
+     * 获取每个host:port的请求数、 失败数与延迟统计
+     *
+     * @return Map
+     */
+    public Map<String, HttpHostStats> getHostStats() {
+        Map<String, HttpHostStats> map = new TreeMap<>();
+        hostClients.forEach((k, v) -> map.put(k, v.stats));
+        return map;
+    }
+
+    public void close() {
+        for (HttpHostClient client : hostClients.values()) {
+            client.close();
+        }
+        hostClients.clear();
+    }
+
+    public int getReadTimeoutSeconds() {
+        return readTimeoutSeconds;
+    }
+
+    public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+        this.readTimeoutSeconds = readTimeoutSeconds;
+    }
+
+    public int getWriteTimeoutSeconds() {
+        return writeTimeoutSeconds;
+    }
+
+    public void setWriteTimeoutSeconds(int writeTimeoutSeconds) {
+        this.writeTimeoutSeconds = writeTimeoutSeconds;
+    }
+
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    public int getMaxConnsPerHost() {
+        return maxConnsPerHost;
+    }
+
+    //只对之后新建的host连接池有效
+    public void setMaxConnsPerHost(int maxConnsPerHost) {
+        this.maxConnsPerHost = maxConnsPerHost;
+    }
+
+    public int getMaxPipelines() {
+        return maxPipelines;
+    }
+
+    //只对之后新建的host连接池有效
+    public void setMaxPipelines(int maxPipelines) {
+        this.maxPipelines = maxPipelines;
+    }
+
+    public int getMaxHosts() {
+        return maxHosts;
+    }
+
+    public void setMaxHosts(int maxHosts) {
+        this.maxHosts = maxHosts;
+    }
+
+    public int getHostIdleSeconds() {
+        return hostIdleSeconds;
+    }
+
+    public void setHostIdleSeconds(int hostIdleSeconds) {
+        this.hostIdleSeconds = hostIdleSeconds;
+    }
+
+    public int getMaxbody() {
+        return maxbody;
+    }
+
+    //只对之后新建的连接有效
+    public void setMaxbody(int maxbody) {
+        this.maxbody = maxbody;
     }
 
     public static void main(String[] args) throws Throwable {
@@ -141,207 +302,163 @@ public class HttpClient {
         System.out.println(client.getAsync(url).join());
     }
 
-    protected static class ClientReadCompletionHandler implements CompletionHandler<Integer, ByteBuffer> {
+    //单个host:port的连接池， 超时任务在IO线程的时间轮上执行
+    protected class HttpHostClient extends Client<HttpClientRequest, HttpResult<byte[]>> {
 
-        protected static final int READ_STATE_ROUTE = 1;
+        protected final String name;
 
-        protected static final int READ_STATE_HEADER = 2;
+        protected final HttpHostStats stats = new HttpHostStats();
 
-        protected static final int READ_STATE_BODY = 3;
+        //正在处理的请求数， 为-1表示已关闭
+        private final AtomicInteger using = new AtomicInteger();
 
-        protected static final int READ_STATE_END = 4;
+        protected volatile long lastAccessTime = System.currentTimeMillis();
 
-        protected final AsyncConnection conn;
+        protected HttpHostClient(String name, SocketAddress address) {
+            super(asyncGroup, true, address, Math.max(1, HttpClient.this.maxConnsPerHost), Math.max(1, HttpClient.this.maxPipelines), (Object... params) -> new HttpClientCodec(HttpClient.this.maxbody));
+            this.name = name;
+            this.readTimeoutSeconds = HttpClient.this.readTimeoutSeconds;
+            this.writeTimeoutSeconds = HttpClient.this.writeTimeoutSeconds;
+        }
 
-        protected final ByteArray array;
+        boolean acquire() {
+            for (;;) {
+                int count = using.get();
+                if (count < 0) return false;
+                if (using.compareAndSet(count, count + 1)) return true;
+            }
+        }
 
-        protected final CompletableFuture<HttpResult<byte[]>> future;
+        void release() {
+            lastAccessTime = System.currentTimeMillis();
+            using.decrementAndGet();
+        }
 
-        protected HttpResult<byte[]> responseResult;
+        //没有正在处理的请求时标记为已关闭
+        boolean evict() {
+            return using.compareAndSet(0, -1);
+        }
 
-        protected int readState = READ_STATE_ROUTE;
+        @Override
+        protected CompletableFuture<AsyncConnection> createChannel() {
+            CompletableFuture<AsyncConnection> future = super.createChannel();
+            final int seconds = connectTimeoutSeconds;
+            if (seconds < 1) return future;
+            final CompletableFuture<AsyncConnection> rs = new CompletableFuture<>();
+            final ScheduledFuture<?> timeout = scheduleTimeout(() -> rs.completeExceptionally(new TimeoutException("connect " + name + " timeout")), seconds, TimeUnit.SECONDS);
+            future.whenComplete((c, t) -> {
+                timeout.cancel(true);
+                if (t != null) {
+                    rs.completeExceptionally(t);
+                } else if (!rs.complete(c)) { //已超时
+                    c.dispose();
+                }
+            });
+            return rs;
+        }
 
-        protected int contentLength = -1;
+        @Override
+        protected HttpClientConnection createClientConnection(final int index, AsyncConnection channel) {
+            return new HttpClientConnection(this, index, channel);
+        }
 
-        public ClientReadCompletionHandler(AsyncConnection conn, ByteArray array, CompletableFuture<HttpResult<byte[]>> future) {
-            this.conn = conn;
-            this.array = array;
-            this.future = future;
+        @Override
+        protected ScheduledFuture<?> scheduleTimeout(Runnable callable, long delay, TimeUnit unit) {
+            return group.scheduleTimeout(callable, delay, unit);
         }
 
         @Override
-        public void completed(Integer count, ByteBuffer buffer) {
-            buffer.flip();
-            if (this.readState == READ_STATE_ROUTE) {
-                if (this.responseResult == null) {
-                    this.responseResult = new HttpResult<>();
-                }
-                int rs = readStatusLine(buffer);
-                if (rs != 0) {
-                    buffer.clear();
-                    conn.setReadBuffer(buffer);
-                    conn.read(this);
-                    return;
-                }
-                this.readState = READ_STATE_HEADER;
-            }
-            if (this.readState == READ_STATE_HEADER) {
-                int rs = readHeaderLines(buffer);
-                if (rs != 0) {
-                    buffer.clear();
-                    conn.setReadBuffer(buffer);
-                    conn.read(this);
-                    return;
-                }
-                this.readState = READ_STATE_BODY;
-            }
-            if (this.readState == READ_STATE_BODY) {
-                if (this.contentLength > 0) {
-                    array.put(buffer, Math.min((int) this.contentLength, buffer.remaining()));
-                    int lr = (int) this.contentLength - array.length();
-                    if (lr == 0) {
-                        this.readState = READ_STATE_END;
-                    } else {
-                        buffer.clear();
-                        conn.setReadBuffer(buffer);
-                        conn.read(this);
-                        return;
-                    }
-                }
-                if (buffer.hasRemaining()) array.put(buffer, buffer.remaining());
-                this.readState = READ_STATE_END;
-            }
-            this.responseResult.setResult(array.getBytes());
-            this.future.complete(this.responseResult);
-            conn.offerBuffer(buffer);
-            conn.dispose();
+        public String toString() {
+            return name;
         }
+    }
 
-        //解析 HTTP/1.1 200 OK  
-        private int readStatusLine(final ByteBuffer buffer) {
-            int remain = buffer.remaining();
-            ByteArray bytes = array;
-            for (;;) {
-                if (remain-- < 1) {
-                    buffer.clear();
-                    return 1;
-                }
-                byte b = buffer.get();
-                if (b == '\r') {
-                    if (remain-- < 1) {
-                        buffer.clear();
-                        buffer.put((byte) '\r');
-                        return 1;
-                    }
-                    if (buffer.get() != '\n') return -1;
-                    break;
-                }
-                bytes.put(b);
-            }
-            String value = bytes.toString(null);
-            int pos = value.indexOf(' ');
-            this.responseResult.setStatus(Integer.decode(value.substring(pos + 1, value.indexOf(" ", pos + 2))));
-            bytes.clear();
-            return 0;
+    protected static class HttpClientConnection extends ClientConnection<HttpClientRequest, HttpResult<byte[]>> {
+
+        public HttpClientConnection(Client<HttpClientRequest, HttpResult<byte[]>> client, int index, AsyncConnection channel) {
+            super(client, index, channel);
         }
 
-        //解析Header Connection: keep-alive
-        private int readHeaderLines(final ByteBuffer buffer) {
-            int remain = buffer.remaining();
-            ByteArray bytes = array;
-            HttpResult<byte[]> result = responseResult;
-            for (;;) {
-                bytes.clear();
-                if (remain-- < 2) {
-                    if (remain == 1) {
-                        byte one = buffer.get();
-                        buffer.clear();
-                        buffer.put(one);
-                        return 1;
-                    }
-                    buffer.clear();
-                    return 1;
-                }
-                remain--;
-                byte b1 = buffer.get();
-                byte b2 = buffer.get();
-                if (b1 == '\r' && b2 == '\n') return 0;
-                bytes.put(b1, b2);
-                for (;;) {  // name
-                    if (remain-- < 1) {
-                        buffer.clear();
-                        buffer.put(bytes.content(), 0, bytes.length());
-                        return 1;
-                    }
-                    byte b = buffer.get();
-                    if (b == ':') break;
-                    bytes.put(b);
-                }
-                String name = parseHeaderName(bytes, null);
-                bytes.clear();
-                boolean first = true;
-                int space = 0;
-                for (;;) {  // value
-                    if (remain-- < 1) {
-                        buffer.clear();
-                        buffer.put(name.getBytes());
-                        buffer.put((byte) ':');
-                        if (space == 1) {
-                            buffer.put((byte) ' ');
-                        } else if (space > 0) {
-                            for (int i = 0; i < space; i++) buffer.put((byte) ' ');
-                        }
-                        buffer.put(bytes.content(), 0, bytes.length());
-                        return 1;
-                    }
-                    byte b = buffer.get();
-                    if (b == '\r') {
-                        if (remain-- < 1) {
-                            buffer.clear();
-                            buffer.put(name.getBytes());
-                            buffer.put((byte) ':');
-                            if (space == 1) {
-                                buffer.put((byte) ' ');
-                            } else if (space > 0) {
-                                for (int i = 0; i < space; i++) buffer.put((byte) ' ');
-                            }
-                            buffer.put(bytes.content(), 0, bytes.length());
-                            buffer.put((byte) '\r');
-                            return 1;
-                        }
-                        if (buffer.get() != '\n') return -1;
-                        break;
-                    }
-                    if (first) {
-                        if (b <= ' ') {
-                            space++;
-                            continue;
-                        }
-                        first = false;
-                    }
-                    bytes.put(b);
-                }
-                String value;
-                switch (name) {
-                    case "Content-Length":
-                    case "content-length":
-                        value = bytes.toString(null);
-                        this.contentLength = Integer.decode(value);
-                        result.header(name, value);
-                        break;
-                    default:
-                        value = bytes.toString(null);
-                        result.header(name, value);
+        //读超时后连接上后续的响应无法与请求对应， 需关闭连接
+        @Override
+        protected ClientFuture<HttpResult<byte[]>> createClientFuture(HttpClientRequest request) {
+            return new ClientFuture<HttpResult<byte[]>>(request) {
+                @Override
+                public void run() {
+                    dispose(new TimeoutException("read " + client + " timeout"));
                 }
+            };
+        }
+    }
+
+    /**
+     * 单个host:port的请求统计， 延迟按2的幂次微秒分桶， 百分位为所在桶的上限
+     */
+    public static class HttpHostStats {
+
+        protected final LongAdder requestCounter = new LongAdder();
+
+        protected final LongAdder failureCounter = new LongAdder();
+
+        protected final LongAdder latencyNanos = new LongAdder();
+
+        protected final LongAccumulator maxLatencyNanos = new LongAccumulator(Long::max, 0L);
+
+        //第i个桶记录延迟小于2^i微秒的请求数
+        protected final AtomicLongArray buckets = new AtomicLongArray(40);
+
+        protected void record(long nanos, boolean failed) {
+            requestCounter.increment();
+            if (failed) failureCounter.increment();
+            latencyNanos.add(nanos);
+            maxLatencyNanos.accumulate(nanos);
+            long micros = nanos / 1000;
+            buckets.incrementAndGet(Math.min(buckets.length() - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        public long getRequestCount() {
+            return requestCounter.sum();
+        }
+
+        public long getFailureCount() {
+            return failureCounter.sum();
+        }
+
+        public long getAvgLatencyMicros() {
+            long count = requestCounter.sum();
+            return count == 0 ? 0 : latencyNanos.sum() / count / 1000;
+        }
+
+        public long getMaxLatencyMicros() {
+            return maxLatencyNanos.get() / 1000;
+        }
+
+        /**
+         * 获取延迟的百分位
+         *
+         * @param percent 百分比， 如99表示99%的请求延迟不超过返回值
+         *
+         * @return 微秒
+         */
+        public long getLatencyMicros(double percent) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
             }
+            if (total == 0) return 0;
+            long target = (long) Math.ceil(total * percent / 100);
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+                if (count >= target) return Math.min(1L << i, getMaxLatencyMicros());
+            }
+            return getMaxLatencyMicros();
         }
 
         @Override
-        public void failed(Throwable exc, ByteBuffer attachment) {
-            conn.offerBuffer(attachment);
-            conn.dispose();
-            future.completeExceptionally(exc);
+        public String toString() {
+            return "{\"requests\":" + getRequestCount() + ",\"failures\":" + getFailureCount() + ",\"avgMicros\":" + getAvgLatencyMicros()
+                + ",\"p99Micros\":" + getLatencyMicros(99) + ",\"maxMicros\":" + getMaxLatencyMicros() + "}";
         }
-
     }
 }
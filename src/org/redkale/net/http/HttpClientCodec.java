@@ -0,0 +1,281 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.*;
+import org.redkale.net.client.*;
+import org.redkale.util.ByteArray;
+
+/**
+ * HttpClient的响应解析， 每个连接一个实例， 按请求顺序逐个解析响应 <br>
+ * body支持Content-Length、chunked与以关闭连接结束三种方式， Content-Encoding为gzip、deflate的body会被解压 <br>
+ * body解压前或解压后超过maxbody时请求失败， 超过时连接中剩余的数据无法继续解析， 连接随之关闭
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ */
+class HttpClientCodec extends ClientCodec<HttpClientRequest, HttpResult<byte[]>> {
+
+    private static final int READ_HEAD = 1;
+
+    private static final int READ_BODY = 2;
+
+    private static final int READ_CHUNK_SIZE = 3;
+
+    private static final int READ_CHUNK_DATA = 4;
+
+    private static final int READ_CHUNK_END = 5;
+
+    private static final int READ_TRAILER = 6;
+
+    private static final int READ_UNTIL_CLOSE = 7;
+
+    private int state = READ_HEAD;
+
+    //状态行与header
+    private final ByteArray head = new ByteArray();
+
+    //chunk长度行、trailer行
+    private final ByteArray line = new ByteArray(32);
+
+    private final ByteArray body = new ByteArray();
+
+    private HttpResult<byte[]> result;
+
+    //body或当前chunk尚未读取的字节数
+    private long remain;
+
+    private boolean chunked;
+
+    private long contentLength;
+
+    private boolean keepAlive;
+
+    private String encoding;
+
+    private boolean closing;
+
+    private final int maxbody;
+
+    public HttpClientCodec(int maxbody) {
+        this.maxbody = maxbody;
+    }
+
+    @Override
+    public boolean codecResult(ClientConnection<HttpClientRequest, HttpResult<byte[]>> conn, List<HttpClientRequest> requests, ByteBuffer buffer, ByteArray array) {
+        for (;;) {
+            switch (state) {
+                case READ_HEAD:
+                    if (!readLine(buffer, head, true)) return false;
+                    HttpClientRequest request = requests.isEmpty() ? null : requests.get(0);
+                    if (request == null) throw new IllegalStateException("HttpClient received response without request");
+                    parseHead();
+                    int status = result.getStatus();
+                    if (status >= 100 && status < 200 && status != 101) { //100 Continue等中间响应
+                        resetHead();
+                        continue;
+                    }
+                    if (request.isHead() || status == 204 || status == 304 || (status >= 100 && status < 200)) {
+                        return complete();
+                    } else if (chunked) {
+                        state = READ_CHUNK_SIZE;
+                    } else if (contentLength >= 0) {
+                        if (contentLength == 0) return complete();
+                        if (contentLength > maxbody) return exceed();
+                        remain = contentLength;
+                        state = READ_BODY;
+                    } else {
+                        keepAlive = false;
+                        state = READ_UNTIL_CLOSE;
+                    }
+                    break;
+                case READ_BODY:
+                    if (!readData(buffer)) return false;
+                    return complete();
+                case READ_CHUNK_SIZE:
+                    if (!readLine(buffer, line, false)) return false;
+                    String size = line.toString(StandardCharsets.ISO_8859_1).trim();
+                    line.clear();
+                    int pos = size.indexOf(';');
+                    remain = Long.parseLong(pos < 0 ? size : size.substring(0, pos).trim(), 16);
+                    if (body.length() + remain > maxbody) return exceed();
+                    state = remain == 0 ? READ_TRAILER : READ_CHUNK_DATA;
+                    break;
+                case READ_CHUNK_DATA:
+                    if (!readData(buffer)) return false;
+                    state = READ_CHUNK_END;
+                    break;
+                case READ_CHUNK_END:
+                    if (!readLine(buffer, line, false)) return false;
+                    line.clear();
+                    state = READ_CHUNK_SIZE;
+                    break;
+                case READ_TRAILER:
+                    if (!readLine(buffer, line, false)) return false;
+                    if (line.length() <= 2) {
+                        line.clear();
+                        return complete();
+                    }
+                    addHeader(line.toString(0, line.length() - 2, StandardCharsets.UTF_8));
+                    line.clear();
+                    break;
+                case READ_UNTIL_CLOSE:
+                    if (body.length() + buffer.remaining() > maxbody) return exceed();
+                    body.put(buffer, buffer.remaining());
+                    return false;
+                default:
+                    throw new IllegalStateException("HttpClient codec state error: " + state);
+            }
+        }
+    }
+
+    @Override
+    public boolean codecClosed(ClientConnection<HttpClientRequest, HttpResult<byte[]>> conn, List<HttpClientRequest> requests, ByteArray array) {
+        if (state != READ_UNTIL_CLOSE) return false;
+        return complete();
+    }
+
+    @Override
+    public boolean isClosing() {
+        return closing;
+    }
+
+    //读取一行(含\r\n)， head为true时读到空行为止
+    private boolean readLine(ByteBuffer buffer, ByteArray array, boolean head) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            array.put(b);
+            if (b != '\n') continue;
+            int len = array.length();
+            if (!head) return true;
+            if (len >= 4 && array.get(len - 2) == '\r' && array.get(len - 3) == '\n' && array.get(len - 4) == '\r') return true;
+        }
+        return false;
+    }
+
+    private boolean readData(ByteBuffer buffer) {
+        int len = (int) Math.min(remain, buffer.remaining());
+        if (len > 0) body.put(buffer, len);
+        remain -= len;
+        return remain == 0;
+    }
+
+    private void parseHead() {
+        String[] lines = head.toString(StandardCharsets.UTF_8).split("\r\n");
+        this.result = new HttpResult<>();
+        this.chunked = false;
+        this.contentLength = -1;
+        this.encoding = null;
+        String statusLine = lines[0];
+        int pos = statusLine.indexOf(' ');
+        int end = statusLine.indexOf(' ', pos + 1);
+        this.result.setStatus(Integer.parseInt(end < 0 ? statusLine.substring(pos + 1).trim() : statusLine.substring(pos + 1, end)));
+        String connection = null;
+        for (int i = 1; i < lines.length; i++) {
+            String[] kv = addHeader(lines[i]);
+            if (kv == null) continue;
+            String name = kv[0];
+            String value = kv[1];
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                this.contentLength = Long.parseLong(value);
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                this.chunked = value.toLowerCase().contains("chunked");
+            } else if ("Content-Encoding".equalsIgnoreCase(name)) {
+                this.encoding = value.toLowerCase();
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                connection = value.toLowerCase();
+            } else if ("Content-Type".equalsIgnoreCase(name)) {
+                this.result.setContentType(value);
+            }
+        }
+        if (statusLine.startsWith("HTTP/1.0")) {
+            this.keepAlive = connection != null && connection.contains("keep-alive");
+        } else {
+            this.keepAlive = connection == null || !connection.contains("close");
+        }
+        head.clear();
+    }
+
+    private String[] addHeader(String headerLine) {
+        int pos = headerLine.indexOf(':');
+        if (pos <= 0) return null;
+        String name = headerLine.substring(0, pos).trim();
+        String value = headerLine.substring(pos + 1).trim();
+        result.header(name, value);
+        return new String[]{name, value};
+    }
+
+    private void resetHead() {
+        head.clear();
+        this.result = null;
+    }
+
+    private boolean complete() {
+        HttpResult<byte[]> rs = this.result;
+        byte[] bs = body.getBytes();
+        body.clear();
+        this.result = null;
+        this.state = READ_HEAD;
+        this.closing = !keepAlive;
+        try {
+            if (bs.length > 0 && ("gzip".equals(encoding) || "x-gzip".equals(encoding))) {
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bs))) {
+                    bs = readAll(in);
+                }
+            } else if (bs.length > 0 && "deflate".equals(encoding)) {
+                bs = inflate(bs);
+            }
+        } catch (IOException e) {
+            addResult(e);
+            return true;
+        }
+        rs.setResult(bs);
+        addResult(rs);
+        return true;
+    }
+
+    //body超过maxbody, 当前请求失败并关闭连接
+    private boolean exceed() {
+        body.clear();
+        this.result = null;
+        this.state = READ_HEAD;
+        this.closing = true;
+        addResult(new IOException("HttpClient response body exceeds maxbody " + maxbody));
+        return true;
+    }
+
+    //deflate按规范为zlib格式， 部分服务端输出的是不带zlib头的原始deflate格式
+    private byte[] inflate(byte[] bs) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(bs))) {
+            return readAll(in);
+        } catch (ZipException e) {
+            Inflater inflater = new Inflater(true);
+            try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(bs), inflater)) {
+                return readAll(in);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    //分段解压, 解压后超过maxbody时中止, 避免压缩炸弹耗尽内存
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArray out = new ByteArray();
+        byte[] bytes = new byte[8192];
+        int n;
+        while ((n = in.read(bytes)) >= 0) {
+            if (out.length() + n > maxbody) throw new IOException("HttpClient response inflated body exceeds maxbody " + maxbody);
+            out.put(bytes, 0, n);
+        }
+        return out.getBytes();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.redkale.net.client.*;
+import org.redkale.util.*;
+
+/**
+ * HttpClient的请求， 请求报文在创建时生成， 重试时可直接复用
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ */
+class HttpClientRequest implements ClientRequest {
+
+    private static final byte[] USER_AGENT_BYTES = ("User-Agent: redkale-httpclient/" + Redkale.getDotedVersion() + "\r\n").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ACCEPT_ENCODING_BYTES = "Accept-Encoding: gzip, deflate\r\n".getBytes(StandardCharsets.UTF_8);
+
+    protected final String method;
+
+    protected final String path;
+
+    protected final byte[] bytes;
+
+    public HttpClientRequest(String method, String path, String host, Map<String, String> headers, byte[] body) {
+        this.method = method.toUpperCase();
+        this.path = path;
+        ByteArray array = new ByteArray();
+        array.put((this.method + " " + path + " HTTP/1.1\r\nHost: " + host + "\r\n").getBytes(StandardCharsets.UTF_8));
+        if (body != null || !("GET".equals(this.method) || "HEAD".equals(this.method))) {
+            array.put(("Content-Length: " + (body == null ? 0 : body.length) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (!containsHeader(headers, "User-Agent")) array.put(USER_AGENT_BYTES);
+        if (!containsHeader(headers, "Accept-Encoding")) array.put(ACCEPT_ENCODING_BYTES);
+        if (headers != null) {
+            headers.forEach((k, v) -> {
+                if ("Content-Length".equalsIgnoreCase(k) || "Host".equalsIgnoreCase(k)) return;
+                array.put((k + ": " + v + "\r\n").getBytes(StandardCharsets.UTF_8));
+            });
+        }
+        array.put((byte) '\r', (byte) '\n');
+        if (body != null) array.put(body);
+        this.bytes = array.getBytes();
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        if (headers == null) return false;
+        for (String key : headers.keySet()) {
+            if (name.equalsIgnoreCase(key)) return true;
+        }
+        return false;
+    }
+
+    //连接失效时是否可以重发
+    public boolean isIdempotent() {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "PUT":
+            case "DELETE":
+            case "TRACE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public boolean isHead() {
+        return "HEAD".equals(method);
+    }
+
+    @Override
+    public void accept(ClientConnection<?, ?> conn, ByteArray array) {
+        array.put(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + path;
+    }
+}
@@ -32,10 +32,13 @@ public class HttpContext extends Context {
 
     protected boolean lazyHeaders; //存在动态改值
 
+    protected final boolean http2; //是否支持HTTP/2
+
 //    protected RequestURINode[] uriCacheNodes;
     public HttpContext(HttpContextConfig config) {
         super(config);
         this.remoteAddrHeader = config.remoteAddrHeader;
+        this.http2 = config.http2;
         random.setSeed(Math.abs(System.nanoTime()));
     }
 
@@ -54,6 +57,25 @@ public class HttpContext extends Context {
 //            this.uriCacheNodes = Utility.append(this.uriCacheNodes, node);
 //        }
 //    }
+    @Override
+    protected void executePrepareServlet(Request request, Response response) {
+        //@HttpMapping.iothread=true 的url在IO线程中直接执行
+        final HttpRequest req = (HttpRequest) request;
+        //HTTP/2 接管连接, 在IO线程中执行
+        if (http2 && req.isHttp2Upgrade() && Http2Codec.start(this, req, (HttpResponse) response)) return;
+        final String uri = req.getRequestURI();
+        if (ioThreadExecute || ((HttpPrepareServlet) prepare).isIOThreadURI(uri)) {
+            executePrepareServletInIOThread(request, response, uri);
+        } else {
+            super.executePrepareServlet(request, response);
+        }
+    }
+
+    //@HttpMapping.streambody=true 的url收到请求头后即分发
+    protected boolean isStreamBodyURI(String uri) {
+        return ((HttpPrepareServlet) prepare).isStreamBodyURI(uri);
+    }
+
     protected String createSessionid() {
         byte[] bytes = new byte[16];
         random.nextBytes(bytes);
@@ -177,6 +199,8 @@ public class HttpContext extends Context {
 
         public String remoteAddrHeader;
 
+        public boolean http2;
+
     }
 
     protected static class RequestURINode {
@@ -0,0 +1,273 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * HttpRequest的header容器 <br>
+ * 解析时只记录每个header的name/value在原始字节中的位置, 常用header名直接复用常量, value在首次get时才生成String并缓存。
+ * 同名header以最后一个为准, 遍历时按首次出现的顺序输出最后一个value, 与LinkedHashMap的put语义一致; 遍历与size不复制条目。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+final class HttpHeaderIndex extends AbstractMap<String, String> {
+
+    //已删除的条目
+    private static final int REMOVED = -2;
+
+    //put进来的条目, 没有原始字节
+    private static final int NOBYTES = -1;
+
+    //原始header数据
+    private byte[] source;
+
+    private Charset charset;
+
+    private int count;
+
+    //每个条目4个int: name起始位置, name长度, value起始位置, value长度
+    private int[] positions = new int[16 * 4];
+
+    private String[] names = new String[16];
+
+    private String[] values = new String[16];
+
+    /**
+     * 设置原始header数据, 之后通过add添加的位置都指向该数据
+     *
+     * @param source  原始字节
+     * @param charset 字符集
+     */
+    void source(byte[] source, Charset charset) {
+        this.source = source;
+        this.charset = charset;
+    }
+
+    /**
+     * 添加原始字节中的header, 不判断重名
+     *
+     * @param name        header名常量, 为null表示name需从原始字节生成
+     * @param nameOffset  name起始位置
+     * @param nameLength  name长度
+     * @param value       value常量, 为null表示value需从原始字节生成
+     * @param valueOffset value起始位置
+     * @param valueLength value长度
+     */
+    void add(String name, int nameOffset, int nameLength, String value, int valueOffset, int valueLength) {
+        final int index = count;
+        if (index == names.length) {
+            this.names = Arrays.copyOf(names, index * 2);
+            this.values = Arrays.copyOf(values, index * 2);
+            this.positions = Arrays.copyOf(positions, index * 2 * 4);
+        }
+        final int[] pos = this.positions;
+        final int p = index * 4;
+        pos[p] = nameOffset;
+        pos[p + 1] = nameLength;
+        pos[p + 2] = valueOffset;
+        pos[p + 3] = valueLength;
+        this.names[index] = name;
+        this.values[index] = value;
+        this.count = index + 1;
+    }
+
+    //从后往前查找, 同名header以最后一个为准
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) return -1;
+        final String name = (String) key;
+        final int[] pos = this.positions;
+        for (int i = count - 1; i >= 0; i--) {
+            final int nlen = pos[i * 4 + 1];
+            if (nlen == REMOVED) continue;
+            final String n = names[i];
+            if (n != null) {
+                if (n == name || n.equals(name)) return i;
+            } else if (nlen == name.length() && equalsBytes(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //两个条目的name是否相同, 尽量不生成String
+    private boolean sameName(int i, int j) {
+        final String n1 = names[i];
+        final String n2 = names[j];
+        if (n1 != null && n2 != null) return n1 == n2 || n1.equals(n2);
+        if (n1 != null) return positions[j * 4 + 1] == n1.length() && equalsBytes(j, n1);
+        if (n2 != null) return positions[i * 4 + 1] == n2.length() && equalsBytes(i, n2);
+        final int len = positions[i * 4 + 1];
+        if (len != positions[j * 4 + 1]) return false;
+        final byte[] bs = this.source;
+        final int o1 = positions[i * 4];
+        final int o2 = positions[j * 4];
+        for (int k = 0; k < len; k++) {
+            if (bs[o1 + k] != bs[o2 + k]) return false;
+        }
+        return true;
+    }
+
+    //是否为同名header中第一个未删除的条目
+    private boolean isFirst(int index) {
+        if (positions[index * 4 + 1] == REMOVED) return false;
+        for (int i = 0; i < index; i++) {
+            if (positions[i * 4 + 1] != REMOVED && sameName(i, index)) return false;
+        }
+        return true;
+    }
+
+    //同名header中最后一个条目
+    private int lastOf(int index) {
+        for (int i = count - 1; i > index; i--) {
+            if (positions[i * 4 + 1] != REMOVED && sameName(i, index)) return i;
+        }
+        return index;
+    }
+
+    private boolean equalsBytes(int index, String name) {
+        final byte[] bs = this.source;
+        final int offset = positions[index * 4];
+        final int length = positions[index * 4 + 1];
+        for (int i = 0; i < length; i++) {
+            byte b = bs[offset + i];
+            if (b < 0) return name(index).equals(name); //非ASCII字符按字符集比较
+            if (b != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String name(int index) {
+        String name = names[index];
+        if (name == null) {
+            final int p = index * 4;
+            name = new String(source, positions[p], positions[p + 1], charset);
+            names[index] = name;
+        }
+        return name;
+    }
+
+    private String value(int index) {
+        String value = values[index];
+        final int p = index * 4;
+        if (value == null && positions[p + 1] != NOBYTES) {
+            value = new String(source, positions[p + 2], positions[p + 3], charset);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : value(index);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            String old = value(index);
+            name(index);
+            this.positions[index * 4 + 1] = NOBYTES;
+            this.values[index] = value;
+            return old;
+        }
+        add(key, 0, NOBYTES, value, 0, 0);
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        String old = null;
+        int index;
+        while ((index = indexOf(key)) >= 0) {
+            if (old == null) old = value(index);
+            this.positions[index * 4 + 1] = REMOVED;
+            this.names[index] = null;
+            this.values[index] = null;
+        }
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        this.count = 0;
+        this.source = null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < count; i++) {
+            if (positions[i * 4 + 1] != REMOVED) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (isFirst(i)) size++;
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return HttpHeaderIndex.this.size();
+            }
+        };
+    }
+
+    //按首次出现的顺序遍历, 只读
+    private class EntryIterator implements Iterator<Entry<String, String>> {
+
+        private int next = seek(0);
+
+        private int seek(int from) {
+            for (int i = from; i < count; i++) {
+                if (isFirst(i)) return i;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            final int index = next;
+            if (index >= count) throw new NoSuchElementException();
+            this.next = seek(index + 1);
+            return new SimpleImmutableEntry<>(name(index), value(lastOf(index)));
+        }
+    }
+}
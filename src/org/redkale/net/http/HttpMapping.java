@@ -46,6 +46,34 @@ public @interface HttpMapping {
      */
     int cacheseconds() default 0;
 
+    /**
+     * 结果缓存的最大条目数， 超出后按访问频率淘汰， 只有cacheseconds大于0才有效
+     *
+     * @return int
+     */
+    int cachelimit() default 1024;
+
+    /**
+     * 结果缓存的key是否包含请求参数(url中的query部分)， 默认为true， 只有cacheseconds大于0才有效
+     *
+     * @return boolean
+     */
+    boolean cacheparams() default true;
+
+    /**
+     * 结果缓存的key是否包含当前用户ID， 输出结果与当前用户有关时需设置为true， 只有cacheseconds大于0才有效
+     *
+     * @return boolean
+     */
+    boolean cacheuser() default false;
+
+    /**
+     * 结果缓存的key包含的header名， 如 Accept-Language， 只有cacheseconds大于0才有效
+     *
+     * @return String[]
+     */
+    String[] cacheheaders() default {};
+
     /**
      * 是否只接受RPC请求， 默认为false
      *
@@ -60,6 +88,24 @@ public @interface HttpMapping {
      */
     boolean auth() default true;
 
+    /**
+     * 是否在IO线程中直接执行(thread-per-core)， 默认为false <br>
+     * 为true时请求的解析、分发和响应输出均在所属的IO线程中完成，不经过workExecutor， 仅对非正则的url生效 <br>
+     * 方法内不能有阻塞操作(如同步的数据库、远程调用)，只适用于直接返回结果或CompletableFuture的方法 <br>
+     *
+     * @return boolean
+     */
+    boolean iothread() default false;
+
+    /**
+     * 是否流式读取请求body， 默认为false <br>
+     * 为true时收到请求头后即分发， 不受maxbody限制， body需通过HttpRequest.readBody/readBodyTo/getMultiContext 分批读取， 仅对非正则的url生效 <br>
+     * 适用于大文件上传等场景， 避免整个body缓存在内存中
+     *
+     * @return boolean
+     */
+    boolean streambody() default false;
+
     /**
      * 允许方法(不区分大小写),如:GET/POST/PUT,为空表示允许所有方法
      *
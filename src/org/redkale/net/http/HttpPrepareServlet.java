@@ -8,6 +8,7 @@ package org.redkale.net.http;
 import org.redkale.util.AnyValue.DefaultAnyValue;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.regex.*;
@@ -35,8 +36,16 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
 
     protected MappingEntry[] regWsArray = null;
 
+    private HttpRouter regRouter = HttpRouter.EMPTY; //由regArray编译的路由表, 须与regArray保持一致
+
+    private HttpRouter regWsRouter = HttpRouter.EMPTY; //由regWsArray编译的路由表, 须与regWsArray保持一致
+
     protected Map<String, WebSocketServlet> wsmappings = new HashMap<>(); //super.mappings 包含 wsmappings
 
+    protected Set<String> ioThreadURIs = new HashSet<>(); //在IO线程中执行的url, 只含非正则的url
+
+    protected Set<String> streamBodyURIs = new HashSet<>(); //流式读取body的url, 只含非正则的url
+
     protected final Map<String, Class> allMapStrings = new HashMap<>();
 
     private final Object excludeLock = new Object();
@@ -49,6 +58,8 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
 
     private BiPredicate<String, String>[] forbidURIPredicates; //禁用的URL的Predicate, 必须与 forbidURIMaps 保持一致
 
+    private static final int FORBID_PATTERN_CACHE_SIZE = 256; //每个禁用规则最多缓存的HttpServlet前缀数
+
     private List<HttpServlet> removeHttpServlet(final Predicate<MappingEntry> predicateEntry, final Predicate<Map.Entry<String, WebSocketServlet>> predicateFilter) {
         List<HttpServlet> servlets = new ArrayList<>();
         synchronized (allMapStrings) {
@@ -80,8 +91,15 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
             }
             if (newwsmappings.size() != wsmappings.size()) this.wsmappings = newwsmappings;
             if (!keys.isEmpty()) {
+                Set<String> newiouris = new HashSet<>(ioThreadURIs);
+                newiouris.removeAll(keys);
+                this.ioThreadURIs = newiouris;
+                Set<String> newbodyuris = new HashSet<>(streamBodyURIs);
+                newbodyuris.removeAll(keys);
+                this.streamBodyURIs = newbodyuris;
                 this.regArray = Utility.remove(this.regArray, predicateEntry);
                 this.regWsArray = Utility.remove(this.regWsArray, predicateEntry);
+                updateRouters();
                 for (HttpServlet rs : servlets) {
                     super.removeServlet(rs);
                 }
@@ -163,9 +181,20 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
             }
             final String reg = mapping;
             final boolean begin = mapping.charAt(0) == '^';
-            final Predicate regPredicate = Pattern.compile(reg).asPredicate();
+            final Predicate<String> regPredicate = Pattern.compile(reg).asPredicate();
+            //形如 /pipes/.* 的规则与HttpServlet前缀拼接后是纯字符前缀, 直接比较字符串, 与HttpRouter前缀树的判断方式一致
+            final String literal = begin ? HttpRouter.literalPrefix(reg) : HttpRouter.literalPrefix("^" + reg);
+            final Map<String, Pattern> prefixPatterns = new ConcurrentHashMap<>(); //HttpServlet前缀与规则拼接后预编译的正则
             BiPredicate<String, String> predicate = (prefix, uri) -> {
-                return begin || prefix.isEmpty() ? regPredicate.test(uri) : uri.matches(prefix + reg);
+                if (begin) return literal != null ? uri.startsWith(literal) : regPredicate.test(uri);
+                if (prefix.isEmpty()) return regPredicate.test(uri);
+                if (literal != null) return uri.startsWith(prefix) && uri.startsWith(literal, prefix.length());
+                Pattern pattern = prefixPatterns.get(prefix);
+                if (pattern == null) {
+                    pattern = Pattern.compile(prefix + reg);
+                    if (prefixPatterns.size() < FORBID_PATTERN_CACHE_SIZE) prefixPatterns.putIfAbsent(prefix, pattern);
+                }
+                return pattern.matcher(uri).matches();
             };
             forbidURIMaps.put(urlreg, predicate);
             forbidURIPredicates = Utility.append(forbidURIPredicates, predicate);
@@ -213,6 +242,14 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
             s.preInit(context, getServletConf(s));
             s.init(context, getServletConf(s));
         });
+        synchronized (allMapStrings) {
+            Set<String> newiouris = new HashSet<>(ioThreadURIs);
+            servlets.forEach(s -> s.collectIOThreadURIs(newiouris));
+            this.ioThreadURIs = newiouris;
+            Set<String> newbodyuris = new HashSet<>(streamBodyURIs);
+            servlets.forEach(s -> s.collectStreamBodyURIs(newbodyuris));
+            this.streamBodyURIs = newbodyuris;
+        }
         { //设置ResourceServlet
             AnyValue resConfig = config.getAnyValue("resource-servlet");
             if ((resConfig instanceof DefaultAnyValue) && resConfig.getValue("webroot", "").isEmpty()) {
@@ -261,28 +298,14 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
             }
             if (request.isWebSocket()) {
                 servlet = wsmappings.get(uri);
-                if (servlet == null && this.regWsArray != null) {
-                    for (MappingEntry en : regWsArray) {
-                        if (en.predicate.test(uri)) {
-                            servlet = en.servlet;
-                            break;
-                        }
-                    }
-                }
+                if (servlet == null) servlet = this.regWsRouter.match(uri);
                 if (servlet == null) {
                     response.finish(500, null);
                     return;
                 }
             } else {
                 servlet = mappingServlet(uri);
-                if (servlet == null && this.regArray != null) {
-                    for (MappingEntry en : regArray) {
-                        if (en.predicate.test(uri)) {
-                            servlet = en.servlet;
-                            break;
-                        }
-                    }
-                }
+                if (servlet == null) servlet = this.regRouter.match(uri);
                 //找不到匹配的HttpServlet则使用静态资源HttpResourceServlet
                 if (servlet == null) servlet = this.resourceHttpServlet;
             }
@@ -360,7 +383,18 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
                 } else if (mappingpath != null && !mappingpath.isEmpty()) {
                     if (servlet._actionmap != null && servlet._actionmap.containsKey(mappingpath)) {
                         //context.addRequestURINode(mappingpath);
-                        putMapping(mappingpath, new HttpServlet.HttpActionServlet(servlet._actionmap.get(mappingpath), servlet));
+                        HttpServlet.ActionEntry action = servlet._actionmap.get(mappingpath);
+                        putMapping(mappingpath, new HttpServlet.HttpActionServlet(action, servlet));
+                        if (action.iothread) {
+                            Set<String> newiouris = new HashSet<>(ioThreadURIs);
+                            newiouris.add(mappingpath);
+                            this.ioThreadURIs = newiouris;
+                        }
+                        if (action.streambody) {
+                            Set<String> newbodyuris = new HashSet<>(streamBodyURIs);
+                            newbodyuris.add(mappingpath);
+                            this.streamBodyURIs = newbodyuris;
+                        }
                     } else {
                         putMapping(mappingpath, servlet);
                     }
@@ -376,12 +410,37 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
                 }
                 this.allMapStrings.put(mappingpath, servlet.getClass());
             }
+            updateRouters();
             setServletConf(servlet, conf);
             servlet._prefix = prefix.toString();
             putServlet(servlet);
         }
     }
 
+    /**
+     * 判断请求url是否需要在IO线程中直接执行
+     *
+     * @param uri 请求url
+     *
+     * @return boolean
+     */
+    public boolean isIOThreadURI(String uri) {
+        Set<String> uris = this.ioThreadURIs;
+        return !uris.isEmpty() && uris.contains(uri);
+    }
+
+    /**
+     * 判断请求url是否流式读取body
+     *
+     * @param uri 请求url
+     *
+     * @return boolean
+     */
+    public boolean isStreamBodyURI(String uri) {
+        Set<String> uris = this.streamBodyURIs;
+        return !uris.isEmpty() && uris.contains(uri);
+    }
+
     /**
      * 设置静态资源HttpServlet
      *
@@ -429,6 +488,13 @@ public class HttpPrepareServlet extends PrepareServlet<String, HttpContext, Http
         this.wsmappings.clear();
         this.regArray = null;
         this.regWsArray = null;
+        updateRouters();
+    }
+
+    //regArray、regWsArray变化后重建路由表, 须在allMapStrings锁内调用
+    private void updateRouters() {
+        this.regRouter = new HttpRouter(this.regArray);
+        this.regWsRouter = new HttpRouter(this.regWsArray);
     }
 
     protected static class MappingEntry {
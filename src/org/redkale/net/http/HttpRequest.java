@@ -10,8 +10,11 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Array;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.*;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import org.redkale.convert.*;
@@ -65,6 +68,16 @@ public class HttpRequest extends Request<HttpContext> {
 
     protected static final String KEY_HOST = "Host";
 
+    //常用header名, 按长度分组, 解析时直接复用常量而不生成String
+    private static final String[][] KNOWN_HEADER_NAMES = knownHeaderNames(KEY_HOST, KEY_ACCEPT, KEY_CONNECTION, KEY_CONTENT_TYPE, KEY_COOKIE,
+        "Content-Length", "Upgrade", "User-Agent", "Accept-Encoding", "Accept-Language", "Accept-Charset", "Authorization",
+        "Cache-Control", "Pragma", "Referer", "Origin", "Range", "If-None-Match", "If-Modified-Since", "Upgrade-Insecure-Requests",
+        "X-Requested-With", "X-Forwarded-For", "X-Real-IP", "Sec-WebSocket-Key", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions",
+        "Sec-WebSocket-Protocol", "HTTP2-Settings", "host", "accept", "connection", "content-type", "content-length", "cookie",
+        "upgrade", "user-agent", "accept-encoding", "accept-language", "cache-control", "referer", "origin",
+        Rest.REST_HEADER_RESOURCE_NAME, Rest.REST_HEADER_RPC_NAME, Rest.REST_HEADER_CURRUSERID_NAME, Rest.REST_HEADER_PARAM_FROM_BODY,
+        Rest.REST_HEADER_REQ_CONVERT_TYPE, Rest.REST_HEADER_RESP_CONVERT_TYPE);
+
     public static final String SESSIONID_NAME = "JSESSIONID";
 
     //---------- header 相关参数 开始 ----------
@@ -85,6 +98,10 @@ public class HttpRequest extends Request<HttpContext> {
 
     private boolean maybews = false; //是否可能是WebSocket
 
+    private boolean maybeh2c = false; //是否可能是HTTP/2 h2c升级
+
+    protected boolean http2; //是否是HTTP/2连接中的流
+
     protected boolean rpc;
 
     protected int readState = READ_STATE_ROUTE;
@@ -104,7 +121,10 @@ public class HttpRequest extends Request<HttpContext> {
 
     protected Convert respConvert;
 
-    protected final Map<String, String> headers = new HashMap<>();
+    //header的位置索引, value在获取时才生成String
+    private final HttpHeaderIndex headerIndex = new HttpHeaderIndex();
+
+    protected final Map<String, String> headers = headerIndex;
     //---------- header 相关参数 结束 ----------
 
     @Comment("Method GET/POST/...")
@@ -124,6 +144,21 @@ public class HttpRequest extends Request<HttpContext> {
 
     protected boolean boundary = false;
 
+    //@HttpMapping.streambody=true 的请求, 收到请求头即分发, body由readBody分批读取
+    protected boolean streamBody = false;
+
+    //流式body中尚未从连接读取的字节数
+    private long streamBodyRemain;
+
+    //流式body读完后恢复的keepAlive值
+    private boolean streamBodyAlive;
+
+    //随请求头一起读到的body(array中的数据)是否已由readBody返回
+    private boolean bodyPrefixRead;
+
+    //上一次readBody返回的读缓存, 下一次readBody时回收
+    private ByteBuffer bodyBuffer;
+
     protected int moduleid;
 
     protected int actionid;
@@ -140,6 +175,9 @@ public class HttpRequest extends Request<HttpContext> {
 
     private byte[] headerBytes;
 
+    //非lazyHeaders模式下的header原始数据, 可跨多次读取
+    private final ByteArray headerRaw = new ByteArray();
+
     private boolean headerParsed = false;
 
     private boolean bodyParsed = false;
@@ -223,6 +261,172 @@ public class HttpRequest extends Request<HttpContext> {
         return maybews && "Upgrade".equalsIgnoreCase(getHeader("Connection")) && "GET".equalsIgnoreCase(method);
     }
 
+    //HTTP/2 prior-knowledge 的连接前言 PRI * HTTP/2.0 或 Upgrade: h2c 升级请求
+    protected boolean isHttp2Upgrade() {
+        if (isHttp2Preface()) return true;
+        return maybeh2c && getHeader("HTTP2-Settings") != null;
+    }
+
+    protected boolean isHttp2Preface() {
+        return "PRI".equals(method) && "HTTP/2.0".equals(protocol);
+    }
+
+    protected boolean isHttp2() {
+        return http2;
+    }
+
+    //h2c升级请求作为HTTP/2的1号流继续处理
+    void upgradeHttp2() {
+        this.maybeh2c = false;
+        this.http2 = true;
+        this.keepAlive = false;
+        this.protocol = "HTTP/2.0";
+    }
+
+    /**
+     * 以HTTP/2 HEADERS帧解码后的头初始化请求
+     *
+     * @param nameValues 按 name, value 依次存放, name均为小写
+     */
+    void initHttp2(List<String> nameValues) {
+        this.http2 = true;
+        this.keepAlive = false;
+        this.protocol = "HTTP/2.0";
+        String path = null;
+        String authority = null;
+        for (int i = 0; i < nameValues.size(); i += 2) {
+            String name = nameValues.get(i);
+            String value = nameValues.get(i + 1);
+            switch (name) {
+                case ":method":
+                    if (KEY_GET.equals(value)) {
+                        this.method = KEY_GET;
+                        this.getmethod = true;
+                    } else if (KEY_POST.equals(value)) {
+                        this.method = KEY_POST;
+                        this.getmethod = false;
+                    } else {
+                        this.method = value;
+                        this.getmethod = false;
+                    }
+                    break;
+                case ":path":
+                    path = value;
+                    break;
+                case ":authority":
+                    authority = value;
+                    break;
+                case ":scheme":
+                    break;
+                case "content-type":
+                    this.contentType = value;
+                    break;
+                case "content-length":
+                    this.contentLength = Long.decode(value);
+                    break;
+                case "host":
+                    this.host = value;
+                    break;
+                case "cookie": //HTTP/2 允许cookie拆成多个头
+                    if (this.cookie == null || this.cookie.isEmpty()) {
+                        this.cookie = value;
+                    } else {
+                        this.cookie += "; " + value;
+                    }
+                    break;
+                case Rest.REST_HEADER_RPC_NAME:
+                    this.rpc = "true".equalsIgnoreCase(value);
+                    headers.put(name, value);
+                    break;
+                case Rest.REST_HEADER_CURRUSERID_NAME:
+                    this.hashid = value.hashCode();
+                    this.currentUserid = value;
+                    headers.put(name, value);
+                    break;
+                case Rest.REST_HEADER_PARAM_FROM_BODY:
+                    this.frombody = "true".equalsIgnoreCase(value);
+                    headers.put(name, value);
+                    break;
+                case Rest.REST_HEADER_REQ_CONVERT_TYPE:
+                    reqConvertType = ConvertType.valueOf(value);
+                    reqConvert = ConvertFactory.findConvert(reqConvertType);
+                    headers.put(name, value);
+                    break;
+                case Rest.REST_HEADER_RESP_CONVERT_TYPE:
+                    respConvertType = ConvertType.valueOf(value);
+                    respConvert = ConvertFactory.findConvert(respConvertType);
+                    headers.put(name, value);
+                    break;
+                default:
+                    if (name.isEmpty() || name.charAt(0) == ':') break;
+                    headers.put(http2HeaderName(name), value);
+            }
+        }
+        if (this.host == null) this.host = authority;
+        if (this.contentType != null && this.contentType.contains("boundary=")) this.boundary = true;
+        if (path == null) path = "/";
+        Charset charset = this.context.getCharset();
+        ByteArray bytes = array;
+        bytes.clear();
+        bytes.put(path.getBytes(charset == null ? StandardCharsets.UTF_8 : charset));
+        int size = bytes.length();
+        int qst = path.indexOf('?');
+        boolean decodeable = path.indexOf('%') >= 0 || path.indexOf('+') >= 0;
+        if (qst > 0) {
+            this.requestURI = decodeable ? bytes.toDecodeString(0, qst, charset) : bytes.toString(0, qst, charset);
+            this.queryBytes = bytes.getBytes(qst + 1, size - qst - 1);
+            try {
+                addParameter(bytes, qst + 1, size - qst - 1);
+            } catch (Exception e) {
+                this.context.getLogger().log(Level.WARNING, "HttpRequest.addParameter error: " + path, e);
+            }
+        } else {
+            this.requestURI = decodeable ? bytes.toDecodeString(charset) : bytes.toString(charset);
+            this.queryBytes = EMPTY_BYTES;
+        }
+        bytes.clear();
+        this.headerParsed = true;
+        this.readState = READ_STATE_BODY;
+    }
+
+    //HTTP/2 DATA帧中的body数据, 超出maxbody返回false
+    boolean putHttp2Body(byte[] bs, int offset, int length) {
+        if (array.length() + length > context.getMaxbody()) return false;
+        array.put(bs, offset, length);
+        return true;
+    }
+
+    //HTTP/2 body在maxbody内还可接收的字节数
+    int getHttp2BodyCapacity() {
+        return context.getMaxbody() - array.length();
+    }
+
+    //HTTP/2 请求已收取完整(END_STREAM)
+    void endHttp2Body() {
+        this.readState = READ_STATE_END;
+        if (this.contentLength < 0 && !array.isEmpty()) this.contentLength = array.length();
+    }
+
+    //小写的header名转成HTTP/1.1的常见写法, 如: accept-encoding -> Accept-Encoding
+    static String http2HeaderName(String name) {
+        switch (name) {
+            case "accept":
+                return KEY_ACCEPT;
+            case "connection":
+                return KEY_CONNECTION;
+            case "user-agent":
+                return "User-Agent";
+        }
+        char[] chs = name.toCharArray();
+        boolean upper = true;
+        for (int i = 0; i < chs.length; i++) {
+            char ch = chs[i];
+            if (upper && ch >= 'a' && ch <= 'z') chs[i] = (char) (ch - 32);
+            upper = ch == '-';
+        }
+        return new String(chs);
+    }
+
     protected void setPipelineOver(boolean pipelineOver) {
         this.pipelineOver = pipelineOver;
     }
@@ -261,6 +465,11 @@ public class HttpRequest extends Request<HttpContext> {
         if (this.readState == READ_STATE_ROUTE) {
             int rs = readMethodLine(buffer);
             if (rs != 0) return rs;
+            if (isHttp2Preface()) { //HTTP/2 prior-knowledge, 余下的连接前言与帧数据交给Http2Codec处理
+                bytes.put(buffer, buffer.remaining());
+                this.readState = READ_STATE_END;
+                return 0;
+            }
             this.readState = READ_STATE_HEADER;
         }
         if (this.readState == READ_STATE_HEADER) {
@@ -300,27 +509,42 @@ public class HttpRequest extends Request<HttpContext> {
                 if (rs != 0) return rs;
                 this.headerParsed = false;
             } else {
-                int startpos = buffer.position();
-                int rs = readHeaderLines(buffer, bytes);
+                int rs = readHeaderLines(buffer);
                 if (rs != 0) {
-                    this.headerHalfLen = bytes.length();
+                    this.headerHalfLen = headerRaw.length();
                     return rs;
                 }
                 this.headerParsed = true;
-                this.headerLength = buffer.position() - startpos + this.headerHalfLen;
                 this.headerHalfLen = this.headerLength;
             }
             bytes.clear();
             this.readState = READ_STATE_BODY;
         }
         if (this.contentType != null && this.contentType.contains("boundary=")) this.boundary = true;
+        if (this.readState == READ_STATE_BODY && this.contentLength > 0 && context.isStreamBodyURI(this.requestURI)) {
+            //流式body不受maxbody限制, 已读到的部分放入array, 剩余部分由readBody从连接中读取
+            bytes.put(buffer, (int) Math.min(this.contentLength, buffer.remaining()));
+            this.streamBody = true;
+            this.streamBodyRemain = this.contentLength - bytes.length();
+            if (this.streamBodyRemain > 0) {
+                this.streamBodyAlive = this.keepAlive;
+                this.keepAlive = false; //body读完之前连接不能复用
+                channel.suspendRead(true); //剩余body只在readBody时读取, 不能被当成新请求
+            }
+            this.readState = READ_STATE_END;
+            return 0;
+        }
         if (this.boundary) this.keepAlive = false; //文件上传必须设置keepAlive为false，因为文件过大时用户不一定会skip掉多余的数据
         if (this.readState == READ_STATE_BODY) {
             if (this.contentLength > 0 && (this.contentType == null || !this.boundary)) {
                 if (this.contentLength > context.getMaxbody()) return -1;
-                bytes.put(buffer, Math.min((int) this.contentLength, buffer.remaining()));
+                bytes.put(buffer, Math.min((int) this.contentLength - bytes.length(), buffer.remaining()));
                 int lr = (int) this.contentLength - bytes.length();
-                if (lr == 0) this.readState = READ_STATE_END;
+                if (lr == 0) {
+                    this.readState = READ_STATE_END;
+                } else {
+                    buffer.clear();
+                }
                 return lr > 0 ? lr : 0;
             }
             if (buffer.hasRemaining() && (this.boundary || !this.keepAlive)) bytes.put(buffer, buffer.remaining()); //文件上传、HTTP1.0或Connection:close
@@ -432,6 +656,14 @@ public class HttpRequest extends Request<HttpContext> {
         if (this.requestURI == null) {
             int qst = -1;//?的位置
             boolean decodeable = false;
+            for (int i = 0; i < bytes.length(); i++) { //uri跨越两次读取时, 需从已读取部分恢复?的位置
+                byte b = bytes.get(i);
+                if (b == '?' && qst < 0) {
+                    qst = i;
+                } else if (!decodeable && (b == '+' || b == '%')) {
+                    decodeable = true;
+                }
+            }
             for (;;) {
                 if (remain-- < 1) {
                     buffer.clear();
@@ -481,14 +713,12 @@ public class HttpRequest extends Request<HttpContext> {
         //读protocol
         for (;;) {
             if (remain-- < 1) {
-                this.params.clear();
                 buffer.clear();
                 return 1;
             }
             byte b = buffer.get();
             if (b == '\r') {
                 if (remain-- < 1) {
-                    this.params.clear();
                     buffer.clear();
                     buffer.put((byte) '\r');
                     return 1;
@@ -509,189 +739,201 @@ public class HttpRequest extends Request<HttpContext> {
     }
 
     //解析Header Connection: keep-alive
-    private int readHeaderLines(final ByteBuffer buffer, ByteArray bytes) {
-        Charset charset = this.context.getCharset();
-        int remain = buffer.remaining();
-        for (;;) {
-            bytes.clear();
-            if (remain-- < 2) {
-                if (remain == 1) {
-                    byte one = buffer.get();
-                    buffer.clear();
-                    buffer.put(one);
-                    return 1;
-                }
-                buffer.clear();
-                return 1;
+    //header原始数据整段复制到headerRaw中, 读到空行后再建立name/value的位置索引
+    private int readHeaderLines(final ByteBuffer buffer) {
+        final ByteArray raw = this.headerRaw;
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+        final int rawlen = raw.length();
+        //上次已读取部分末尾的3个字节, 用于判断跨越两次读取的空行
+        byte p1 = rawlen > 0 ? raw.get(rawlen - 1) : 0;
+        byte p2 = rawlen > 1 ? raw.get(rawlen - 2) : 0;
+        byte p3 = rawlen > 2 ? raw.get(rawlen - 3) : 0;
+        for (int i = start; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n' && p1 == '\r' && (rawlen + i - start == 1 || (p2 == '\n' && p3 == '\r'))) {
+                raw.put(buffer, i + 1 - start);
+                this.headerLength = raw.length();
+                return parseHeaderLines(raw.content(), 0, raw.length());
             }
-            remain--;
-            byte b1 = buffer.get();
-            byte b2 = buffer.get();
-            if (b1 == '\r' && b2 == '\n') return 0;
-            bytes.put(b1, b2);
-            for (;;) {  // name
-                if (remain-- < 1) {
-                    buffer.clear();
-                    buffer.put(bytes.content(), 0, bytes.length());
-                    return 1;
-                }
-                byte b = buffer.get();
-                if (b == ':') break;
-                bytes.put(b);
+            p3 = p2;
+            p2 = p1;
+            p1 = b;
+        }
+        raw.put(buffer, limit - start);
+        buffer.clear();
+        return 1;
+    }
+
+    //按行建立header索引, bs须以空行结尾
+    private int parseHeaderLines(final byte[] bs, final int offset, final int length) {
+        final Charset charset = this.context.getCharset() == null ? StandardCharsets.UTF_8 : this.context.getCharset();
+        final HttpHeaderIndex index = this.headerIndex;
+        index.source(bs, charset);
+        final int end = offset + length;
+        int start = offset;
+        while (start < end) {
+            int cr = start;
+            while (cr < end && bs[cr] != '\r') cr++;
+            if (cr + 1 >= end || bs[cr + 1] != '\n') return -1;
+            if (cr == start) return 0;
+            int colon = start;
+            while (colon < cr && bs[colon] != ':') colon++;
+            if (colon < cr) {
+                int vstart = colon + 1;
+                while (vstart < cr && (bs[vstart] == ' ' || bs[vstart] == '\t')) vstart++;
+                readHeaderValue(index, bs, start, colon - start, vstart, cr - vstart, charset);
             }
-            String name = parseHeaderName(bytes, charset);
-            bytes.clear();
-            boolean first = true;
-            int space = 0;
-            for (;;) {  // value
-                if (remain-- < 1) {
-                    buffer.clear();
-                    buffer.put(name.getBytes());
-                    buffer.put((byte) ':');
-                    if (space == 1) {
-                        buffer.put((byte) ' ');
-                    } else if (space > 0) {
-                        for (int i = 0; i < space; i++) buffer.put((byte) ' ');
-                    }
-                    buffer.put(bytes.content(), 0, bytes.length());
-                    return 1;
-                }
-                byte b = buffer.get();
-                if (b == '\r') {
-                    if (remain-- < 1) {
-                        buffer.clear();
-                        buffer.put(name.getBytes());
-                        buffer.put((byte) ':');
-                        if (space == 1) {
-                            buffer.put((byte) ' ');
-                        } else if (space > 0) {
-                            for (int i = 0; i < space; i++) buffer.put((byte) ' ');
-                        }
-                        buffer.put(bytes.content(), 0, bytes.length());
-                        buffer.put((byte) '\r');
-                        return 1;
-                    }
-                    if (buffer.get() != '\n') return -1;
-                    break;
+            start = cr + 2;
+        }
+        return 0;
+    }
+
+    //常用header名直接复用常量, 只有需要赋值给字段的value才生成String
+    private void readHeaderValue(HttpHeaderIndex index, byte[] bs, int noffset, int nlength, int voffset, int vlength, Charset charset) {
+        final String name = knownHeaderName(bs, noffset, nlength);
+        if (name == null) {
+            index.add(null, noffset, nlength, null, voffset, vlength);
+            return;
+        }
+        String value;
+        switch (name) {
+            case "Content-Type":
+            case "content-type":
+                this.contentType = new String(bs, voffset, vlength, charset);
+                break;
+            case "Content-Length":
+            case "content-length":
+                this.contentLength = parseContentLength(bs, voffset, vlength, charset);
+                break;
+            case "Host":
+            case "host":
+                this.host = new String(bs, voffset, vlength, charset);
+                break;
+            case "Cookie":
+            case "cookie":
+                value = new String(bs, voffset, vlength, charset);
+                if (this.cookie == null || this.cookie.isEmpty()) {
+                    this.cookie = value;
+                } else {
+                    this.cookie += ";" + value;
                 }
-                if (first) {
-                    if (b <= ' ') {
-                        space++;
-                        continue;
-                    }
-                    first = false;
+                break;
+            case "Connection":
+            case "connection":
+                if (vlength == 0) {
+                    value = "";
+                } else if (equalsBytes(bs, voffset, vlength, "close")) {
+                    value = "close";
+                    this.setKeepAlive(false);
+                } else if (equalsBytes(bs, voffset, vlength, "keep-alive")) {
+                    value = "keep-alive";
+                    this.setKeepAlive(true);
+                } else {
+                    value = null;
+                    this.setKeepAlive(true);
                 }
-                bytes.put(b);
-            }
-            String value;
-            int vallen = bytes.length();
-            switch (name) {
-                case "Content-Type":
-                case "content-type":
-                    value = bytes.toString(charset);
-                    this.contentType = value;
-                    break;
-                case "Content-Length":
-                case "content-length":
-                    value = bytes.toString(charset);
-                    this.contentLength = Long.decode(value);
-                    break;
-                case "Host":
-                case "host":
-                    value = bytes.toString(charset);
-                    this.host = value;
-                    break;
-                case "Cookie":
-                case "cookie":
-                    value = bytes.toString(charset);
-                    if (this.cookie == null || this.cookie.isEmpty()) {
-                        this.cookie = value;
-                    } else {
-                        this.cookie += ";" + value;
-                    }
-                    break;
-                case "Connection":
-                case "connection":
-                    if (vallen > 0) {
-                        if (bytes.get(0) == 'c' && vallen == 5
-                            && bytes.get(1) == 'l' && bytes.get(2) == 'o'
-                            && bytes.get(3) == 's' && bytes.get(4) == 'e') {
-                            value = "close";
-                            this.setKeepAlive(false);
-                        } else if (bytes.get(0) == 'k' && vallen == 10
-                            && bytes.get(1) == 'e' && bytes.get(2) == 'e'
-                            && bytes.get(3) == 'p' && bytes.get(4) == '-'
-                            && bytes.get(5) == 'a' && bytes.get(6) == 'l'
-                            && bytes.get(7) == 'i' && bytes.get(8) == 'v'
-                            && bytes.get(9) == 'e') {
-                            value = "keep-alive";
-                            //if (context.getAliveTimeoutSeconds() >= 0) {
-                            this.setKeepAlive(true);
-                            //}
-                        } else {
-                            value = bytes.toString(charset);
-                            this.setKeepAlive(true);
-                        }
-                    } else {
-                        value = "";
-                    }
-                    headers.put("Connection", value);
-                    break;
-                case "Upgrade":
-                case "upgrade":
-                    value = bytes.toString(charset);
-                    this.maybews = "websocket".equalsIgnoreCase(value);
-                    headers.put("Upgrade", value);
-                    break;
-                case "user-agent":
-                    value = bytes.toString(charset);
-                    headers.put("User-Agent", value);
-                    break;
-                case Rest.REST_HEADER_RPC_NAME:
-                    value = bytes.toString(charset);
-                    this.rpc = "true".equalsIgnoreCase(value);
-                    headers.put(name, value);
-                    break;
-                case Rest.REST_HEADER_CURRUSERID_NAME:
-                    value = bytes.toString(charset);
-                    this.hashid = value.hashCode();
-                    this.currentUserid = value;
-                    headers.put(name, value);
-                    break;
-                case Rest.REST_HEADER_PARAM_FROM_BODY:
-                    value = bytes.toString(charset);
-                    this.frombody = "true".equalsIgnoreCase(value);
-                    headers.put(name, value);
-                    break;
-                case Rest.REST_HEADER_REQ_CONVERT_TYPE:
-                    value = bytes.toString(charset);
-                    reqConvertType = ConvertType.valueOf(value);
-                    reqConvert = ConvertFactory.findConvert(reqConvertType);
-                    headers.put(name, value);
-                    break;
-                case Rest.REST_HEADER_RESP_CONVERT_TYPE:
-                    value = bytes.toString(charset);
-                    respConvertType = ConvertType.valueOf(value);
-                    respConvert = ConvertFactory.findConvert(respConvertType);
-                    headers.put(name, value);
-                    break;
-                default:
-                    value = bytes.toString(charset);
-                    headers.put(name, value);
-            }
+                index.add(KEY_CONNECTION, noffset, nlength, value, voffset, vlength);
+                break;
+            case "Upgrade":
+            case "upgrade":
+                this.maybews = equalsIgnoreCaseBytes(bs, voffset, vlength, "websocket");
+                this.maybeh2c = equalsIgnoreCaseBytes(bs, voffset, vlength, "h2c");
+                index.add("Upgrade", noffset, nlength, null, voffset, vlength);
+                break;
+            case "user-agent":
+                index.add("User-Agent", noffset, nlength, null, voffset, vlength);
+                break;
+            case Rest.REST_HEADER_RPC_NAME:
+                value = new String(bs, voffset, vlength, charset);
+                this.rpc = "true".equalsIgnoreCase(value);
+                index.add(name, noffset, nlength, value, voffset, vlength);
+                break;
+            case Rest.REST_HEADER_CURRUSERID_NAME:
+                value = new String(bs, voffset, vlength, charset);
+                this.hashid = value.hashCode();
+                this.currentUserid = value;
+                index.add(name, noffset, nlength, value, voffset, vlength);
+                break;
+            case Rest.REST_HEADER_PARAM_FROM_BODY:
+                value = new String(bs, voffset, vlength, charset);
+                this.frombody = "true".equalsIgnoreCase(value);
+                index.add(name, noffset, nlength, value, voffset, vlength);
+                break;
+            case Rest.REST_HEADER_REQ_CONVERT_TYPE:
+                value = new String(bs, voffset, vlength, charset);
+                reqConvertType = ConvertType.valueOf(value);
+                reqConvert = ConvertFactory.findConvert(reqConvertType);
+                index.add(name, noffset, nlength, value, voffset, vlength);
+                break;
+            case Rest.REST_HEADER_RESP_CONVERT_TYPE:
+                value = new String(bs, voffset, vlength, charset);
+                respConvertType = ConvertType.valueOf(value);
+                respConvert = ConvertFactory.findConvert(respConvertType);
+                index.add(name, noffset, nlength, value, voffset, vlength);
+                break;
+            default:
+                index.add(name, noffset, nlength, null, voffset, vlength);
         }
     }
 
+    private static long parseContentLength(byte[] bs, int offset, int length, Charset charset) {
+        if (length < 1 || length > 18) return Long.decode(new String(bs, offset, length, charset));
+        long rs = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bs[i];
+            if (b < '0' || b > '9') return Long.decode(new String(bs, offset, length, charset));
+            rs = rs * 10 + (b - '0');
+        }
+        return rs;
+    }
+
+    private static boolean equalsBytes(byte[] bs, int offset, int length, String value) {
+        if (length != value.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (bs[offset + i] != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCaseBytes(byte[] bs, int offset, int length, String lowerValue) {
+        if (length != lowerValue.length()) return false;
+        for (int i = 0; i < length; i++) {
+            byte b = bs[offset + i];
+            if (b >= 'A' && b <= 'Z') b += 32;
+            if (b != lowerValue.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String[][] knownHeaderNames(String... names) {
+        int max = 0;
+        for (String name : names) {
+            max = Math.max(max, name.length());
+        }
+        String[][] table = new String[max + 1][];
+        for (String name : names) {
+            String[] group = table[name.length()];
+            table[name.length()] = group == null ? new String[]{name} : Utility.append(group, name);
+        }
+        return table;
+    }
+
+    static String knownHeaderName(byte[] bs, int offset, int length) {
+        if (length >= KNOWN_HEADER_NAMES.length) return null;
+        final String[] names = KNOWN_HEADER_NAMES[length];
+        if (names == null) return null;
+        for (String name : names) {
+            if (equalsBytes(bs, offset, length, name)) return name;
+        }
+        return null;
+    }
+
     private void parseHeader() {
         if (headerParsed) return;
         headerParsed = true;
         if (headerBytes == null) return;
-        if (array.isEmpty()) {
-            readHeaderLines(ByteBuffer.wrap(headerBytes), array);
-            array.clear();
-        } else { //array存有body数据
-            readHeaderLines(ByteBuffer.wrap(headerBytes), new ByteArray());
-        }
+        parseHeaderLines(headerBytes, 0, headerBytes.length);
     }
 
     static String parseHeaderName(ByteArray bytes, Charset charset) {
@@ -750,7 +992,7 @@ public class HttpRequest extends Request<HttpContext> {
 
     @Override
     protected void prepare() {
-        this.keepAlive = true; //默认HTTP/1.1
+        this.keepAlive = !http2; //默认HTTP/1.1, HTTP/2的流由Http2Codec管理连接
     }
 
     @Override
@@ -759,6 +1001,7 @@ public class HttpRequest extends Request<HttpContext> {
         this.headerLength = 0;
         this.headerHalfLen = 0;
         this.headerBytes = null;
+        this.headerRaw.clear();
         this.headerParsed = false;
         this.contentType = null;
         this.contentLength = -1;
@@ -766,6 +1009,8 @@ public class HttpRequest extends Request<HttpContext> {
         this.cookie = null;
         this.cookies = null;
         this.maybews = false;
+        this.maybeh2c = false;
+        this.http2 = false;
         this.rpc = false;
         this.readState = READ_STATE_ROUTE;
         this.currentUserid = CURRUSERID_NIL;
@@ -784,6 +1029,14 @@ public class HttpRequest extends Request<HttpContext> {
         this.requestURI = null;
         this.queryBytes = null;
         this.boundary = false;
+        this.streamBody = false;
+        this.streamBodyRemain = 0;
+        this.streamBodyAlive = false;
+        this.bodyPrefixRead = false;
+        if (this.bodyBuffer != null) {
+            if (this.channel != null) this.channel.offerBuffer(this.bodyBuffer);
+            this.bodyBuffer = null;
+        }
         this.bodyParsed = false;
         this.moduleid = 0;
         this.actionid = 0;
@@ -801,7 +1054,7 @@ public class HttpRequest extends Request<HttpContext> {
     }
 
     private void parseBody() {
-        if (this.boundary || bodyParsed) return;
+        if (this.boundary || this.streamBody || bodyParsed) return;
         bodyParsed = true;
         if (this.contentType != null && this.contentType.toLowerCase().contains("x-www-form-urlencoded")) {
             addParameter(array, 0, array.length());
@@ -1102,6 +1355,195 @@ public class HttpRequest extends Request<HttpContext> {
         return array.length() == 0 ? null : array.getBytes();
     }
 
+    /**
+     * 是否流式读取body的请求(&#64;HttpMapping.streambody=true)， 此类请求的getBody系列方法只能获取随请求头一起读到的部分body
+     *
+     * @return boolean
+     */
+    public boolean isStreamBody() {
+        return streamBody;
+    }
+
+    /**
+     * 分批读取请求body， 主要用于&#64;HttpMapping.streambody=true的请求， 其他请求会一次性返回已缓存的整个body <br>
+     * handler.completed的ByteBuffer为读模式，仅在下一次调用readBody之前有效；body读完时返回-1且ByteBuffer为null <br>
+     * 须在上一次的回调之后再调用， 每次只从连接读取一个缓存大小的数据， 由调用方控制读取速度； body未读完时连接不会被复用
+     *
+     * @param handler 回调
+     */
+    public void readBody(final CompletionHandler<Integer, ByteBuffer> handler) {
+        if (this.bodyBuffer != null) {
+            channel.offerBuffer(this.bodyBuffer);
+            this.bodyBuffer = null;
+        }
+        if (!this.bodyPrefixRead) {
+            this.bodyPrefixRead = true;
+            if (!array.isEmpty()) {
+                handler.completed(array.length(), ByteBuffer.wrap(array.content(), 0, array.length()));
+                return;
+            }
+        }
+        if (this.streamBodyRemain <= 0) {
+            handler.completed(-1, null);
+            return;
+        }
+        final AsyncConnection conn = this.channel;
+        conn.read(new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer count, ByteBuffer buffer) {
+                if (count < 1 || channel != conn) { //连接已关闭或请求已被回收
+                    conn.offerBuffer(buffer);
+                    handler.failed(new EOFException("request body remain " + streamBodyRemain + " bytes"), null);
+                    return;
+                }
+                buffer.flip();
+                if (buffer.remaining() > streamBodyRemain) { //body之后还有后续请求的数据, 不再复用连接
+                    buffer.limit(buffer.position() + (int) streamBodyRemain);
+                    streamBodyAlive = false;
+                }
+                streamBodyRemain -= buffer.remaining();
+                if (streamBodyRemain == 0) {
+                    keepAlive = streamBodyAlive;
+                    conn.suspendRead(false);
+                }
+                bodyBuffer = buffer;
+                handler.completed(buffer.remaining(), buffer);
+            }
+
+            @Override
+            public void failed(Throwable exc, ByteBuffer buffer) {
+                conn.offerBuffer(buffer);
+                handler.failed(exc, null);
+            }
+        });
+    }
+
+    /**
+     * 将请求body写入文件， 边读边写， 不在内存中缓存整个body
+     *
+     * @param file 文件
+     *
+     * @return 写入的字节数
+     */
+    public CompletableFuture<Long> readBodyTo(final File file) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        final AsynchronousFileChannel out;
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory()) parent.mkdirs();
+            out = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        readBody(new CompletionHandler<Integer, ByteBuffer>() {
+
+            private long position;
+
+            private final CompletionHandler<Integer, ByteBuffer> readHandler = this;
+
+            //文件写完当前数据后才读取下一批
+            private final CompletionHandler<Integer, ByteBuffer> writeHandler = new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer count, ByteBuffer buffer) {
+                    position += count;
+                    if (buffer.hasRemaining()) {
+                        out.write(buffer, position, buffer, this);
+                    } else {
+                        readBody(readHandler);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, ByteBuffer buffer) {
+                    readHandler.failed(exc, buffer);
+                }
+            };
+
+            @Override
+            public void completed(Integer count, ByteBuffer buffer) {
+                if (count < 0) {
+                    try {
+                        out.close();
+                        future.complete(position);
+                    } catch (IOException e) {
+                        future.completeExceptionally(e);
+                    }
+                } else {
+                    out.write(buffer, position, buffer, writeHandler);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, ByteBuffer buffer) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    //streambody请求的阻塞式body输入流, 会阻塞当前线程, 不能在IO线程中使用
+    private InputStream newBodyInputStream() {
+        return new InputStream() {
+
+            private ByteBuffer buffer;
+
+            private boolean eof;
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? (buffer.get() & 0xff) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (!fill()) return -1;
+                int size = Math.min(len, buffer.remaining());
+                buffer.get(b, off, size);
+                return size;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return buffer == null ? 0 : buffer.remaining();
+            }
+
+            private boolean fill() throws IOException {
+                if (buffer != null && buffer.hasRemaining()) return true;
+                if (eof) return false;
+                final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+                readBody(new CompletionHandler<Integer, ByteBuffer>() {
+                    @Override
+                    public void completed(Integer count, ByteBuffer attachment) {
+                        future.complete(attachment);
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, ByteBuffer attachment) {
+                        future.completeExceptionally(exc);
+                    }
+                });
+                if (!future.isDone() && Thread.currentThread() instanceof AsyncIOThread) { //在IO线程中等待会阻塞住读取本身
+                    throw new IOException("streambody request cannot be read by blocking stream in io thread, use readBody or readBodyTo");
+                }
+                try {
+                    buffer = future.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                if (buffer == null) eof = true;
+                return !eof;
+            }
+        };
+    }
+
     /**
      * 直接获取body对象
      *
@@ -1141,12 +1583,16 @@ public class HttpRequest extends Request<HttpContext> {
     }
 
     /**
-     * 获取文件上传对象
+     * 获取文件上传对象 <br>
+     * &#64;HttpMapping.streambody=true 的请求按需从连接读取body， 读取时会阻塞当前线程， 须在工作线程中使用
      *
      * @return 文件上传对象
      */
     @ConvertDisabled
     public final MultiContext getMultiContext() {
+        if (this.streamBody) { //按需从连接读取, 不在内存中缓存整个body
+            return new MultiContext(context.getCharset(), this.getContentType(), this.params, new BufferedInputStream(newBodyInputStream(), 8192), null);
+        }
         final InputStream in = newInputStream();
         return new MultiContext(context.getCharset(), this.getContentType(), this.params,
             new BufferedInputStream(in, Math.max(array.length(), 8192)) {
@@ -6,8 +6,12 @@
 package org.redkale.net.http;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import static java.nio.file.StandardWatchEventKinds.*;
 import java.nio.file.*;
+import java.time.*;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,7 +21,11 @@ import java.util.regex.*;
 import org.redkale.util.*;
 
 /**
- * 静态资源HttpServlet
+ * 静态资源HttpServlet <br>
+ * 配置了cache.limit时缓存文件内容， 缓存总大小超出limit时淘汰最久未访问的文件; cache.offheap=true时文件内容缓存在堆外内存中:
+ * 小文件复制到DirectByteBuffer， 开启cache.watch时大文件以MappedByteBuffer映射， 输出时直接写入socket。
+ * 未开启cache.watch时每次命中都比对文件的修改时间与大小， 有变化则重新载入， 文件已删除则移除缓存; 此时不使用映射。
+ * 映射的文件被原地修改或截断会影响输出的内容， 更新文件应先写新文件再重命名覆盖
  *
  * <p>
  * 详情见: https://redkale.org
@@ -83,8 +91,15 @@ public class HttpResourceServlet extends HttpServlet {
         }
     }
 
+    //小于该值的文件在offheap模式下复制到DirectByteBuffer， 否则以MappedByteBuffer映射
+    protected static final int MAPPED_LENGTH_MIN = 16 * 1024;
+
+    protected static final ZoneId ZONE_GMT = ZoneId.of("GMT");
+
     protected final LongAdder cachedLength = new LongAdder();
 
+    protected final LongAdder evictedCounter = new LongAdder();
+
     //缓存总大小, 默认0
     protected long cachelimit = 0 * 1024 * 1024L;
 
@@ -94,6 +109,9 @@ public class HttpResourceServlet extends HttpServlet {
     //是否监控缓存文件的变化， 默认不监控
     protected boolean watch = false;
 
+    //是否将文件内容缓存在堆外内存中， 默认缓存在堆内存
+    protected boolean offheap = false;
+
     protected File root = new File("./root/");
 
     protected String indexHtml = "index.html";
@@ -126,6 +144,7 @@ public class HttpResourceServlet extends HttpServlet {
                 this.cachelimit = parseLenth(cacheconf.getValue("limit"), 0 * 1024 * 1024L);
                 this.cachelengthmax = parseLenth(cacheconf.getValue("lengthmax"), 1 * 1024 * 1024L);
                 this.watch = cacheconf.getBoolValue("watch", false);
+                this.offheap = cacheconf.getBoolValue("offheap", false);
             }
             List<SimpleEntry<Pattern, String>> locations = new ArrayList<>();
             for (AnyValue av : config.getAnyValues("rewrite")) {
@@ -224,7 +243,7 @@ public class HttpResourceServlet extends HttpServlet {
         }
         //System.out.println(request);
         FileEntry entry;
-        if (watchThread == null && files.isEmpty()) {
+        if (cachelimit < 1 && files.isEmpty()) {
             entry = createFileEntry(uri);
         } else {  //有缓存
             entry = files.computeIfAbsent(uri, x -> createFileEntry(x));
@@ -232,10 +251,37 @@ public class HttpResourceServlet extends HttpServlet {
         if (entry == null) {
             if (logger.isLoggable(Level.FINER)) logger.log(Level.FINER, "Not found resource (404), url = " + request.getRequestURI());
             response.finish404();
+            return;
+        }
+        if (entry.file != null && watchThread == null && entry.isChanged()) { //未监控文件变化， 命中时比对文件
+            if (!entry.file.isFile()) {
+                if (files.remove(uri, entry)) entry.remove();
+                response.finish404();
+                return;
+            }
+            entry.update();
+        }
+        entry.accessed = System.nanoTime();
+        if (entry.file != null && cachelimit > 0 && !entry.uncacheable && !entry.isCached()) entry.load(); //被淘汰的文件重新载入
+        BufferBody body = entry.body;
+        if (body != null) { //堆外缓存
+            String encoding = request.getHeader("Range") != null ? null : response.compressEncoding(entry.contentType, body.buffer.remaining());
+            if (encoding != null) body = entry.getCompressedBody(response, encoding, body);
+            response.finishBuffer(entry.contentType, body.buffer, body.etag, entry.lastModified, body.encoding, body.header);
         } else {
             //file = null 表示资源内容在内存而不是在File中
             //file = null 时必须传 filename
-            response.finishFile(entry.file == null ? entry.filename : null, entry.file, entry.content);
+            ByteArray content = entry.content;
+            //Range请求输出原始内容
+            String encoding = content == null || request.getHeader("Range") != null ? null : response.compressEncoding(entry.contentType, content.length());
+            if (encoding != null) {
+                ByteArray compressed = entry.getCompressedContent(response, encoding, content);
+                if (compressed != content) {
+                    response.setHeader("Content-Encoding", encoding).setHeader("Vary", "Accept-Encoding");
+                    content = compressed;
+                }
+            }
+            response.finishFile(entry.file == null ? entry.filename : null, entry.file, content);
         }
     }
 
@@ -256,6 +302,41 @@ public class HttpResourceServlet extends HttpServlet {
         return en;
     }
 
+    /**
+     * 预留缓存空间， 超出缓存总大小时按最近访问时间从早到晚淘汰其他文件的缓存内容
+     *
+     * @param self   需要缓存的FileEntry， 不会被淘汰
+     * @param length 需要的字节数
+     *
+     * @return 是否预留成功
+     */
+    protected synchronized boolean reserve(FileEntry self, long length) {
+        if (length > this.cachelengthmax || length > this.cachelimit) return false;
+        if (this.cachedLength.sum() + length > this.cachelimit) {
+            List<FileEntry> entrys = new ArrayList<>();
+            for (FileEntry en : files.values()) {
+                if (en != self && en.file != null && en.isCached()) entrys.add(en);
+            }
+            entrys.sort((a, b) -> Long.compare(a.accessed, b.accessed));
+            for (FileEntry en : entrys) {
+                if (this.cachedLength.sum() + length <= this.cachelimit) break;
+                en.release();
+                evictedCounter.increment();
+            }
+            if (this.cachedLength.sum() + length > this.cachelimit) return false;
+        }
+        this.cachedLength.add(length);
+        return true;
+    }
+
+    public long getCachedLength() {
+        return cachedLength.sum();
+    }
+
+    public long getEvictedCount() {
+        return evictedCounter.sum();
+    }
+
     protected static class FileEntry {
 
         protected final String filename;
@@ -264,13 +345,42 @@ public class HttpResourceServlet extends HttpServlet {
 
         protected final HttpResourceServlet servlet;
 
+        protected final String contentType;
+
         protected ByteArray content;
 
+        //content的gzip、deflate压缩内容， 与content同时失效； 压缩后不比原内容小时为content本身
+        protected ByteArray gzipContent;
+
+        protected ByteArray deflateContent;
+
+        //offheap模式下的文件内容， 与content只有一个不为null
+        protected volatile BufferBody body;
+
+        protected BufferBody gzipBody;
+
+        protected BufferBody deflateBody;
+
+        protected String lastModified;
+
+        //最近访问时间， 用于淘汰缓存
+        protected volatile long accessed = System.nanoTime();
+
+        //文件大于cachelengthmax， 不缓存
+        protected volatile boolean uncacheable;
+
+        //最近一次载入时文件的修改时间与大小， 未开启cache.watch时用于判断文件是否变化
+        protected volatile long fileModified;
+
+        protected volatile long fileLength;
+
         @SuppressWarnings("OverridableMethodCallInConstructor")
         public FileEntry(final HttpResourceServlet servlet, File file) {
             this.servlet = servlet;
             this.file = file;
             this.filename = file.getName();
+            String type = MimeType.getByFilename(filename);
+            this.contentType = type == null ? "application/octet-stream" : type;
             update();
         }
 
@@ -278,6 +388,7 @@ public class HttpResourceServlet extends HttpServlet {
             this.servlet = servlet;
             this.file = null;
             this.filename = filename;
+            this.contentType = MimeType.getByFilename(filename);
             this.content = content;
             this.servlet.cachedLength.add(this.content.length());
         }
@@ -292,42 +403,224 @@ public class HttpResourceServlet extends HttpServlet {
             this.servlet = servlet;
             this.file = null;
             this.filename = filename;
+            this.contentType = MimeType.getByFilename(filename);
             this.content = out;
             this.servlet.cachedLength.add(this.content.length());
         }
 
         public void update() {
             if (this.file == null) return;
-            if (this.content != null) {
-                this.servlet.cachedLength.add(0L - this.content.length());
-                this.content = null;
-            }
+            release();
+            this.uncacheable = false;
+            load();
+        }
+
+        /**
+         * 在缓存空间足够或可淘汰其他文件时载入文件内容
+         */
+        public void load() {
+            if (this.file == null) return;
             long length = this.file.length();
-            if (length > this.servlet.cachelengthmax) return;
-            if (this.servlet.cachedLength.longValue() + length > this.servlet.cachelimit) return; //超过缓存总容量
+            long modified = this.file.lastModified();
+            this.fileModified = modified;
+            this.fileLength = length;
+            if (length > this.servlet.cachelengthmax) {
+                this.uncacheable = true;
+                return;
+            }
+            if (!this.servlet.reserve(this, length)) return; //超过缓存总容量
+            ByteArray out = null;
+            BufferBody newbody = null;
             try {
-                FileInputStream in = new FileInputStream(file);
-                 ByteArray out = new ByteArray((int) file.length());
-                byte[] bytes = new byte[10240];
-                int pos;
-                while ((pos = in.read(bytes)) != -1) {
-                    out.put(bytes, 0, pos);
+                if (this.servlet.offheap) {
+                    try (FileChannel fc = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+                        ByteBuffer buffer;
+                        if (length < MAPPED_LENGTH_MIN || this.servlet.watchThread == null) { //未监控的文件可能被原地修改， 不能映射
+                            buffer = ByteBuffer.allocateDirect((int) length);
+                            while (buffer.hasRemaining() && fc.read(buffer) >= 0);
+                            buffer.flip();
+                        } else {
+                            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                        }
+                        newbody = new BufferBody(buffer.asReadOnlyBuffer(), contentType, "\"" + Long.toHexString(modified) + "-" + Long.toHexString(length) + "\"",
+                            RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(modified), ZONE_GMT)), null);
+                    }
+                } else {
+                    FileInputStream in = new FileInputStream(file);
+                    out = new ByteArray((int) length);
+                    byte[] bytes = new byte[10240];
+                    int pos;
+                    while ((pos = in.read(bytes)) != -1) {
+                        out.put(bytes, 0, pos);
+                    }
+                    in.close();
                 }
-                in.close();
-                this.content = out;
-                this.servlet.cachedLength.add(this.content.length());
             } catch (Exception e) {
+                this.servlet.cachedLength.add(-length);
                 this.servlet.logger.log(Level.INFO, HttpResourceServlet.class.getSimpleName() + " update FileEntry(" + file + ") erroneous", e);
+                return;
+            }
+            synchronized (this) {
+                if (this.content != null || this.body != null) { //并发载入
+                    this.servlet.cachedLength.add(-length);
+                    return;
+                }
+                if (newbody != null) {
+                    this.lastModified = newbody.lastModified;
+                    this.body = newbody;
+                } else {
+                    this.content = out;
+                    //读取期间文件大小可能变化
+                    if (out.length() != length) this.servlet.cachedLength.add(out.length() - length);
+                }
+            }
+        }
+
+        /**
+         * 释放缓存的文件内容， 堆外内存在正在输出的响应结束后由GC回收
+         */
+        public void release() {
+            if (this.file == null) return;
+            removeCompressedContent();
+            synchronized (this) {
+                if (this.content != null) {
+                    this.servlet.cachedLength.add(0L - this.content.length());
+                    this.content = null;
+                }
+                if (this.body != null) {
+                    this.servlet.cachedLength.add(0L - this.body.buffer.capacity());
+                    this.body = null;
+                }
             }
         }
 
         public void remove() {
+            if (this.file != null) {
+                release();
+                return;
+            }
+            removeCompressedContent();
             if (this.content != null) this.servlet.cachedLength.add(0L - this.content.length());
         }
 
+        public boolean isChanged() {
+            return this.file != null && (this.file.lastModified() != this.fileModified || this.file.length() != this.fileLength);
+        }
+
+        public boolean isCached() {
+            return this.content != null || this.body != null;
+        }
+
+        /**
+         * 获取content的压缩内容， 每种压缩方式只压缩一次
+         *
+         * @param response HttpResponse
+         * @param encoding gzip、deflate
+         * @param content  原内容
+         *
+         * @return 压缩内容， 压缩后不比原内容小则返回content
+         */
+        public synchronized ByteArray getCompressedContent(HttpResponse response, String encoding, ByteArray content) {
+            final boolean gzip = "gzip".equals(encoding);
+            ByteArray compressed = gzip ? this.gzipContent : this.deflateContent;
+            if (compressed != null || content != this.content) return compressed == null ? content : compressed;
+            compressed = response.compress(encoding, content.content(), 0, content.length(), new ByteArray(content.length() / 2));
+            if (compressed.length() >= content.length()) {
+                compressed = content;
+            } else {
+                this.servlet.cachedLength.add(compressed.length());
+            }
+            if (gzip) {
+                this.gzipContent = compressed;
+            } else {
+                this.deflateContent = compressed;
+            }
+            return compressed;
+        }
+
+        /**
+         * 获取offheap模式下body的压缩内容， 每种压缩方式只压缩一次
+         *
+         * @param response HttpResponse
+         * @param encoding gzip、deflate
+         * @param body     原内容
+         *
+         * @return 压缩内容， 压缩后不比原内容小则返回body
+         */
+        public synchronized BufferBody getCompressedBody(HttpResponse response, String encoding, BufferBody body) {
+            final boolean gzip = "gzip".equals(encoding);
+            BufferBody compressed = gzip ? this.gzipBody : this.deflateBody;
+            if (compressed != null || body != this.body) return compressed == null ? body : compressed;
+            int length = body.buffer.remaining();
+            byte[] bs = new byte[length];
+            body.buffer.duplicate().get(bs);
+            ByteArray out = response.compress(encoding, bs, 0, length, new ByteArray(length / 2));
+            if (out.length() >= length) {
+                compressed = body;
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(out.length());
+                buffer.put(out.content(), 0, out.length());
+                buffer.flip();
+                String etag = body.etag.substring(0, body.etag.length() - 1) + "-" + encoding + "\"";
+                compressed = new BufferBody(buffer.asReadOnlyBuffer(), contentType, etag, body.lastModified, encoding);
+                this.servlet.cachedLength.add(out.length());
+            }
+            if (gzip) {
+                this.gzipBody = compressed;
+            } else {
+                this.deflateBody = compressed;
+            }
+            return compressed;
+        }
+
+        protected synchronized void removeCompressedContent() {
+            if (this.gzipContent != null && this.gzipContent != this.content) this.servlet.cachedLength.add(0L - this.gzipContent.length());
+            if (this.deflateContent != null && this.deflateContent != this.content) this.servlet.cachedLength.add(0L - this.deflateContent.length());
+            if (this.gzipBody != null && this.gzipBody != this.body) this.servlet.cachedLength.add(0L - this.gzipBody.buffer.capacity());
+            if (this.deflateBody != null && this.deflateBody != this.body) this.servlet.cachedLength.add(0L - this.deflateBody.buffer.capacity());
+            this.gzipContent = null;
+            this.deflateContent = null;
+            this.gzipBody = null;
+            this.deflateBody = null;
+        }
+
         public long getCachedLength() {
+            BufferBody b = this.body;
+            if (b != null) return b.buffer.capacity();
             return this.content == null ? 0L : this.content.length();
         }
 
     }
+
+    /**
+     * 缓存在堆外内存中的文件内容及预先生成的header行
+     */
+    protected static class BufferBody {
+
+        protected final ByteBuffer buffer; //只读
+
+        protected final String etag;
+
+        protected final String lastModified;
+
+        protected final String encoding;
+
+        //Content-Type、Content-Length、ETag、Last-Modified等header行
+        protected final byte[] header;
+
+        public BufferBody(ByteBuffer buffer, String contentType, String etag, String lastModified, String encoding) {
+            this.buffer = buffer;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.encoding = encoding;
+            StringBuilder sb = new StringBuilder();
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+            sb.append("Content-Length: ").append(buffer.remaining()).append("\r\n");
+            sb.append("ETag: ").append(etag).append("\r\n");
+            if (lastModified != null) sb.append("Last-Modified: ").append(lastModified).append("\r\n");
+            sb.append("Accept-Ranges: bytes\r\n");
+            if (encoding != null) sb.append("Content-Encoding: ").append(encoding).append("\r\nVary: Accept-Encoding\r\n");
+            this.header = sb.toString().getBytes();
+        }
+    }
 }
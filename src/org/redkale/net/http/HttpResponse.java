@@ -6,7 +6,7 @@
 package org.redkale.net.http;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.lang.reflect.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
@@ -14,9 +14,12 @@ import java.nio.file.*;
 import java.time.ZoneId;
 import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.Stream;
+import java.util.zip.*;
 import org.redkale.convert.*;
 import org.redkale.convert.json.JsonConvert;
 import org.redkale.net.*;
@@ -44,6 +47,21 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
 
     protected static final byte[] LINE = new byte[]{'\r', '\n'};
 
+    //gzip头: 魔数、deflate算法、无标志位、无修改时间、无额外标志、未知系统
+    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    //Transfer-Encoding: chunked
+    private static final int STREAM_CHUNKED = 1;
+
+    //HTTP/1.0、HTTP/2直接输出body
+    private static final int STREAM_RAW = 2;
+
+    //pipeline中的请求缓存全部chunk, 结束时按顺序输出
+    private static final int STREAM_BUFFERED = 3;
+
+    //pipeline中的HTTP/1.0请求不支持chunked且不能以关闭连接结束body, 缓存全部body, 结束时以Content-Length输出
+    private static final int STREAM_BUFFERED_RAW = 4;
+
     protected static final byte[] serverNameBytes = ("Server: " + System.getProperty("http.response.header.server", "redkale" + "/" + Redkale.getDotedVersion()) + "\r\n").getBytes();
 
     protected static final byte[] connectCloseBytes = "none".equalsIgnoreCase(System.getProperty("http.response.header.connection")) ? new byte[0] : "Connection: close\r\n".getBytes();
@@ -130,10 +148,43 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
 
     private int headWritedSize = -1; //0表示跳过header，正数表示header的字节长度。
 
+    //预先生成的Content-Type、Content-Length等header行, 不为null时createHeader不再逐项生成
+    private byte[] presetHeader;
+
     private BiConsumer<HttpResponse, byte[]> cacheHandler;
 
     private BiFunction<HttpRequest, org.redkale.service.RetResult, org.redkale.service.RetResult> retResultHandler;
 
+    //finishBuffer的写回调, 输出的ByteBuffer来自资源缓存, 不能归还给缓存池
+    private final CompletionHandler<Integer, Void> finishBodyBufferHandler = new CompletionHandler<Integer, Void>() {
+
+        @Override
+        public void completed(Integer result, Void attachment) {
+            finish();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            finish(true);
+        }
+    };
+
+    //压缩body的写回调, attachment为[响应头, 压缩结果...], 写完后将压缩结果归还给写缓存池
+    private final CompletionHandler<Integer, ByteBuffer[]> finishCompressBufferHandler = new CompletionHandler<Integer, ByteBuffer[]>() {
+
+        @Override
+        public void completed(Integer result, ByteBuffer[] attachment) {
+            offerCompressBuffers(attachment);
+            finish();
+        }
+
+        @Override
+        public void failed(Throwable exc, ByteBuffer[] attachment) {
+            offerCompressBuffers(attachment);
+            finish(true);
+        }
+    };
+
     //------------------------------------------------
     private final String plainContentType;
 
@@ -167,6 +218,41 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
 
     private final byte[][] jsonCloseContentLengthArray;
 
+    //body小于该值不压缩
+    private final int compressThreshold;
+
+    //可压缩的Content-Type前缀
+    private final String[] compressMimeTypes;
+
+    //为null表示不压缩
+    private final ObjectPool<Deflater> deflaterPool;
+
+    //deflate输出的zlib头, FLEVEL与压缩级别一致
+    private final byte[] zlibHeader;
+
+    //流式输出方式: 0表示非流式输出
+    private int streamMode;
+
+    //已输出的chunk数
+    private int chunkCount;
+
+    //chunk正在写
+    private boolean chunkWriting;
+
+    //已调用finishChunked
+    private boolean streamFinished;
+
+    private Map<String, ?> streamTrailers;
+
+    //chunk长度行, 同时作为流式输出的锁
+    private final ByteArray chunkHead = new ByteArray(32);
+
+    //流式json的序列化缓存
+    private final ByteArray chunkArray = new ByteArray();
+
+    //STREAM_BUFFERED_RAW方式缓存的body
+    private ByteArray streamBody;
+
     protected final CompletionHandler<Integer, Void> pipelineWriteHandler = new CompletionHandler<Integer, Void>() {
 
         @Override
@@ -205,6 +291,10 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         this.plainCloseContentLengthArray = config == null ? null : config.plainCloseContentLengthArray;
         this.jsonLiveContentLengthArray = config == null ? null : config.jsonLiveContentLengthArray;
         this.jsonCloseContentLengthArray = config == null ? null : config.jsonCloseContentLengthArray;
+        this.compressThreshold = config == null ? 0 : config.compressThreshold;
+        this.compressMimeTypes = config == null ? null : config.compressMimeTypes;
+        this.deflaterPool = config == null ? null : config.deflaterPool;
+        this.zlibHeader = config == null ? zlibHeader(Deflater.DEFAULT_COMPRESSION) : config.zlibHeader;
         this.contentType = this.plainContentType;
     }
 
@@ -217,6 +307,21 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         return channel;
     }
 
+    Supplier<Response> getResponseSupplier() {
+        return responseSupplier;
+    }
+
+    Consumer<Response> getResponseConsumer() {
+        return responseConsumer;
+    }
+
+    //HTTP/2的流与所在连接共用Response对象池
+    void initHttp2(AsyncConnection stream, Supplier<Response> supplier, Consumer<Response> consumer) {
+        this.responseSupplier = supplier;
+        this.responseConsumer = consumer;
+        init(stream);
+    }
+
     @Override
     protected void prepare() {
         super.prepare();
@@ -232,9 +337,18 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         //this.headBuffer = null;
         this.header.clear();
         this.headerArray.clear();
-        this.cacheHandler = null;
+        this.streamMode = 0;
+        this.chunkCount = 0;
+        this.chunkWriting = false;
+        this.streamFinished = false;
+        this.streamTrailers = null;
+        this.chunkHead.clear();
+        this.chunkArray.clear();
+        this.streamBody = null;
+        if (this.cacheHandler != null) releaseCacheHandler(null);
         this.retResultHandler = null;
         this.respHeadContainsConnection = false;
+        this.presetHeader = null;
         return super.recycle();
     }
 
@@ -578,6 +692,9 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
             finish(convert, (HttpResult) obj);
         } else if (obj instanceof HttpScope) {
             finish(convert, (HttpScope) obj);
+        } else if (obj instanceof Stream && convert instanceof JsonConvert) {
+            Type componentType = type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0] : null;
+            finishJson((JsonConvert) convert, componentType instanceof Class || componentType instanceof ParameterizedType ? componentType : null, (Stream) obj);
         } else {
             if (convert instanceof JsonConvert) {
                 this.contentType = this.jsonContentType;
@@ -675,14 +792,47 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         if (isClosed()) return; //避免重复关闭
         if (this.headWritedSize < 0) {
             if (contentType != null) this.contentType = contentType;
+            //结果缓存保存压缩前的body， 可在回调中设置header; 只有可缓存的200响应才复制body
+            if (cacheHandler != null) releaseCacheHandler(this.status != 200 ? null : (bs == null ? HttpRequest.EMPTY_BYTES : Arrays.copyOfRange(bs, offset, offset + length)));
+            String encoding = this.status == 200 ? compressEncoding(this.contentType, length) : null;
+            if (encoding != null) { //压缩结果暂存在写缓存中, 得到长度生成响应头后与响应头一起写出
+                List<ByteBuffer> zipped = compress(encoding, bs, offset, length);
+                if (callback != null) callback.accept(attachment);
+                this.header.setValue("Content-Encoding", encoding);
+                this.header.setValue("Vary", "Accept-Encoding");
+                int zippedLength = 0;
+                for (ByteBuffer buffer : zipped) {
+                    zippedLength += buffer.remaining();
+                }
+                this.contentLength = zippedLength;
+                createHeader();
+                if (request.getPipelineIndex() > 0 || this.channel.hasPipelineData()) { //pipeline需按顺序缓存输出, 只能拷贝
+                    for (ByteBuffer buffer : zipped) {
+                        headerArray.put(buffer);
+                        offerCompressBuffer(buffer);
+                    }
+                    finishData(headerArray);
+                    return;
+                }
+                ByteBuffer[] buffers = new ByteBuffer[zipped.size() + 1];
+                buffers[0] = ByteBuffer.wrap(headerArray.content(), 0, headerArray.length());
+                for (int i = 0; i < zipped.size(); i++) {
+                    buffers[i + 1] = zipped.get(i);
+                }
+                this.channel.write(buffers, buffers, finishCompressBufferHandler);
+                return;
+            }
             this.contentLength = length;
             createHeader();
         }
         ByteArray data = headerArray;
         data.put(bs, offset, length);
         if (callback != null) callback.accept(attachment);
-        if (cacheHandler != null) cacheHandler.accept(this, data.getBytes());
+        finishData(data);
+    }
 
+    //输出已包含响应头与body的data
+    private void finishData(ByteArray data) {
         int pipelineIndex = request.getPipelineIndex();
         if (pipelineIndex > 0) {
             boolean over = this.channel.writePipelineData(pipelineIndex, request.getPipelineCount(), data);
@@ -730,6 +880,411 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
 //        }
     }
 
+    /**
+     * 按压缩配置与请求的Accept-Encoding确定body的压缩方式， 已设置Content-Encoding的响应不再压缩
+     *
+     * @param contentType ContentType
+     * @param length      body长度
+     *
+     * @return gzip、deflate， 不压缩返回null
+     */
+    protected String compressEncoding(String contentType, long length) {
+        if (deflaterPool == null || length < compressThreshold || this.request.isWebSocket()) return null;
+        if (this.header.getValue("Content-Encoding") != null) return null;
+        if (contentType == null) contentType = this.plainContentType;
+        boolean matched = false;
+        for (String mime : compressMimeTypes) {
+            if (contentType.regionMatches(true, 0, mime, 0, mime.length())) {
+                matched = true;
+                break;
+            }
+        }
+        if (!matched) return null;
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null || accept.isEmpty()) return null;
+        String encoding = null;
+        for (String item : accept.split(",")) {
+            int pos = item.indexOf(';');
+            String name = (pos < 0 ? item : item.substring(0, pos)).trim().toLowerCase();
+            if (pos > 0) { //q=0 表示不接受
+                String q = item.substring(pos + 1).replace(" ", "");
+                if (q.startsWith("q=0") && !q.matches("q=0\\.\\d*[1-9]\\d*")) continue;
+            }
+            if ("gzip".equals(name) || "*".equals(name)) return "gzip";
+            if ("deflate".equals(name)) encoding = name;
+        }
+        return encoding;
+    }
+
+    /**
+     * 使用对象池中的Deflater将内容压缩成gzip或deflate(zlib)格式
+     *
+     * @param encoding gzip、deflate
+     * @param bs       内容
+     * @param offset   偏移量
+     * @param length   长度
+     * @param out      输出
+     *
+     * @return out
+     */
+    protected ByteArray compress(String encoding, byte[] bs, int offset, int length, ByteArray out) {
+        out.clear();
+        for (ByteBuffer buffer : compress(encoding, bs, offset, length)) {
+            out.put(buffer);
+            offerCompressBuffer(buffer);
+        }
+        return out;
+    }
+
+    //压缩结果依次写入连接的写缓存， 返回的ByteBuffer已flip， 用完需通过offerCompressBuffer归还
+    private List<ByteBuffer> compress(String encoding, byte[] bs, int offset, int length) {
+        final boolean gzip = "gzip".equals(encoding);
+        final Checksum checksum = gzip ? new CRC32() : new Adler32();
+        checksum.update(bs, offset, length);
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        ByteBuffer buffer = pollCompressBuffer();
+        buffer.put(gzip ? GZIP_HEADER : zlibHeader);
+        final Deflater deflater = deflaterPool.get();
+        try {
+            deflater.setInput(bs, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    buffers.add(buffer);
+                    buffer = pollCompressBuffer();
+                }
+                deflater.deflate(buffer);
+            }
+        } finally {
+            if (!deflaterPool.offer(deflater)) deflater.end(); //对象池已满时释放native内存
+        }
+        if (buffer.remaining() < 8) {
+            buffer.flip();
+            buffers.add(buffer);
+            buffer = pollCompressBuffer();
+        }
+        int value = (int) checksum.getValue();
+        if (gzip) { //CRC32与原始长度， 小端
+            buffer.put(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)});
+        } else { //Adler32， 大端
+            buffer.putInt(value);
+        }
+        buffer.flip();
+        buffers.add(buffer);
+        return buffers;
+    }
+
+    private ByteBuffer pollCompressBuffer() {
+        return channel == null ? ByteBuffer.allocate(8192) : channel.pollWriteBuffer();
+    }
+
+    private void offerCompressBuffer(ByteBuffer buffer) {
+        if (channel != null) channel.offerBuffer(buffer);
+    }
+
+    //第一个是响应头, 不归还
+    private void offerCompressBuffers(ByteBuffer[] buffers) {
+        for (int i = 1; i < buffers.length; i++) {
+            offerCompressBuffer(buffers[i]);
+        }
+    }
+
+    /**
+     * 生成zlib头: CMF为32K窗口的deflate, FLG中的FLEVEL按压缩级别取值, FCHECK使(CMF*256 + FLG)能被31整除
+     *
+     * @param level 压缩级别, -1表示默认级别
+     *
+     * @return zlib头
+     */
+    static byte[] zlibHeader(int level) {
+        int flevel;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            flevel = 2;
+        } else if (level <= 1) {
+            flevel = 0;
+        } else if (level <= 5) {
+            flevel = 1;
+        } else {
+            flevel = 3;
+        }
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += (31 - ((cmf << 8) + flg) % 31) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * 以流式方式输出一段body， 首次调用时输出响应头。 HTTP/1.1使用Transfer-Encoding: chunked编码， HTTP/1.0与HTTP/2直接输出body <br>
+     * 数据写入连接后才回调handler， 上一段未回调前不能再次调用， 调用方在回调中继续输出即可按连接的写速度控制内存占用
+     *
+     * @param <A>        泛型
+     * @param bs         输出内容， 回调前不能修改
+     * @param offset     偏移量
+     * @param length     长度
+     * @param attachment 附件
+     * @param handler    回调函数
+     */
+    public <A> void sendChunk(final byte[] bs, final int offset, final int length, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        ByteArray head = null;
+        Throwable error = null;
+        synchronized (chunkHead) {
+            if (isClosed() || streamFinished) {
+                error = new ClosedChannelException();
+            } else if (chunkWriting) {
+                error = new WritePendingException();
+            } else {
+                if (streamMode == 0) startStream();
+                if (streamMode == STREAM_BUFFERED_RAW) {
+                    if (length > 0) {
+                        streamBody.put(bs, offset, length);
+                        chunkCount++;
+                    }
+                } else if (streamMode == STREAM_BUFFERED) {
+                    if (length > 0) {
+                        putChunkSize(headerArray, length);
+                        headerArray.put(bs, offset, length);
+                        chunkCount++;
+                    }
+                } else if (length > 0) { //长度为0的chunk表示结束, 不能输出
+                    if (chunkCount == 0) {
+                        head = headerArray;
+                    } else {
+                        head = chunkHead;
+                        head.clear();
+                    }
+                    if (streamMode == STREAM_CHUNKED) putChunkSize(head, length);
+                    chunkCount++;
+                    chunkWriting = true;
+                }
+            }
+        }
+        if (error != null) {
+            handler.failed(error, attachment);
+        } else if (head == null) {
+            handler.completed(length, attachment);
+        } else {
+            this.channel.write(head.content(), 0, head.length(), bs, offset, length, null, null, new CompletionHandler<Integer, Void>() {
+
+                @Override
+                public void completed(Integer result, Void a) {
+                    boolean finishing;
+                    synchronized (chunkHead) {
+                        chunkWriting = false;
+                        finishing = streamFinished;
+                    }
+                    if (finishing) finishStream();
+                    handler.completed(length, attachment);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void a) {
+                    synchronized (chunkHead) {
+                        chunkWriting = false;
+                        streamFinished = true;
+                    }
+                    finish(true);
+                    handler.failed(exc, attachment);
+                }
+            });
+        }
+    }
+
+    /**
+     * 以流式方式输出一段body
+     *
+     * @param bs 输出内容， 完成前不能修改
+     *
+     * @return CompletableFuture 数据写入连接后完成
+     */
+    public CompletableFuture<Integer> sendChunk(final byte[] bs) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        sendChunk(bs, 0, bs.length, future, new CompletionHandler<Integer, CompletableFuture<Integer>>() {
+            @Override
+            public void completed(Integer result, CompletableFuture<Integer> f) {
+                f.complete(result);
+            }
+
+            @Override
+            public void failed(Throwable exc, CompletableFuture<Integer> f) {
+                f.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 结束流式输出
+     */
+    public void finishChunked() {
+        finishChunked(null);
+    }
+
+    /**
+     * 结束流式输出并附带trailer头， 正在输出的chunk写完后才结束。 只有chunked编码才输出trailer
+     *
+     * @param trailers trailer头， 可为null
+     */
+    public void finishChunked(Map<String, ?> trailers) {
+        synchronized (chunkHead) {
+            if (isClosed() || streamFinished) return;
+            if (streamMode == 0) startStream();
+            this.streamFinished = true;
+            this.streamTrailers = trailers;
+            if (chunkWriting) return;
+        }
+        finishStream();
+    }
+
+    private void startStream() {
+        final boolean http10 = !request.isHttp2() && "HTTP/1.0".equalsIgnoreCase(request.getProtocol());
+        final boolean pipeline = request.getPipelineIndex() > 0 || this.channel.hasPipelineData();
+        if (http10 && pipeline) { //先判断协议, HTTP/1.0不能使用chunked
+            this.streamMode = STREAM_BUFFERED_RAW;
+            this.streamBody = new ByteArray();
+        } else if (pipeline) {
+            this.streamMode = STREAM_BUFFERED;
+        } else if (http10 || request.isHttp2()) {
+            this.streamMode = STREAM_RAW;
+            if (http10) refuseAlive(); //HTTP/1.0以关闭连接表示body结束
+        } else {
+            this.streamMode = STREAM_CHUNKED;
+        }
+        if (this.cacheHandler != null) releaseCacheHandler(null); //分块输出的结果不缓存
+        if (this.streamMode == STREAM_BUFFERED_RAW) return; //body结束后才能确定Content-Length
+        if (this.headWritedSize < 0) {
+            this.contentLength = -1;
+            if (this.streamMode != STREAM_RAW) this.header.setValue("Transfer-Encoding", "chunked");
+            createHeader();
+        }
+    }
+
+    //上一个chunk的结束符与本chunk的长度行一起输出
+    private void putChunkSize(ByteArray array, int length) {
+        if (chunkCount > 0) array.put(LINE);
+        array.put(Integer.toHexString(length).getBytes());
+        array.put(LINE);
+    }
+
+    private void finishStream() {
+        if (this.streamMode == STREAM_BUFFERED_RAW) {
+            ByteArray body = this.streamBody;
+            finish(false, null, body.content(), 0, body.length(), null, null);
+            return;
+        }
+        if (this.streamMode == STREAM_RAW) {
+            if (chunkCount == 0) {
+                super.finish(false, headerArray.content(), 0, headerArray.length());
+            } else {
+                finish();
+            }
+            return;
+        }
+        final ByteArray data = chunkCount == 0 || this.streamMode == STREAM_BUFFERED ? headerArray : chunkHead;
+        if (data == chunkHead) data.clear();
+        if (chunkCount > 0) data.put(LINE);
+        data.put((byte) '0');
+        data.put(LINE);
+        if (this.streamTrailers != null) {
+            for (Map.Entry<String, ?> en : this.streamTrailers.entrySet()) {
+                if (en.getValue() != null) data.put((en.getKey() + ": " + en.getValue() + "\r\n").getBytes());
+            }
+        }
+        data.put(LINE);
+        if (this.streamMode == STREAM_BUFFERED) {
+            finish(false, null, HttpRequest.EMPTY_BYTES, 0, 0, null, null);
+        } else {
+            super.finish(false, data.content(), 0, data.length());
+        }
+    }
+
+    /**
+     * 将Stream中的元素以json数组流式输出， 每积累一个chunk就输出， 写完后再序列化后续元素， 内存占用与数组大小无关
+     *
+     * @param convert       JsonConvert
+     * @param componentType 元素类型， 为null时按元素实际类型输出
+     * @param stream        Stream， 输出结束后关闭
+     */
+    public void finishJson(final JsonConvert convert, final Type componentType, final Stream<?> stream) {
+        finishJson(convert, componentType, stream.iterator(), stream);
+    }
+
+    /**
+     * 将Iterator中的元素以json数组流式输出， 每积累一个chunk就输出， 写完后再序列化后续元素， 内存占用与数组大小无关
+     *
+     * @param convert       JsonConvert
+     * @param componentType 元素类型， 为null时按元素实际类型输出
+     * @param it            Iterator
+     */
+    public void finishJson(final JsonConvert convert, final Type componentType, final Iterator<?> it) {
+        finishJson(convert, componentType, it, null);
+    }
+
+    private void finishJson(final JsonConvert convert, final Type componentType, final Iterator<?> it, final AutoCloseable closer) {
+        if (isClosed()) return;
+        this.contentType = this.jsonContentType;
+        final int limit = Math.max(1024, context.getBufferCapacity());
+        final ByteArray array = this.chunkArray;
+        array.clear();
+        final int first;
+        try {
+            first = convert.convertToBytes(array, componentType, it, 0, limit);
+        } catch (RuntimeException e) {
+            closeQuietly(closer);
+            context.getLogger().log(Level.WARNING, "HttpResponse finishJson stream error, request = " + request, e);
+            finish(500, null);
+            return;
+        }
+        if (first < 0) { //一个chunk内已全部输出, 按Content-Length输出
+            closeQuietly(closer);
+            finish(false, null, array.content(), 0, array.length(), null, null);
+            return;
+        }
+        sendChunk(array.content(), 0, array.length(), null, new CompletionHandler<Integer, Void>() {
+
+            //chunk可能同步回调, 以计数循环代替递归
+            private final AtomicInteger wip = new AtomicInteger();
+
+            private int index = first;
+
+            @Override
+            public void completed(Integer result, Void a) {
+                if (wip.getAndIncrement() != 0) return;
+                do {
+                    if (index < 0) {
+                        closeQuietly(closer);
+                        finishChunked();
+                        return;
+                    }
+                    array.clear();
+                    try {
+                        index = convert.convertToBytes(array, componentType, it, index, limit);
+                    } catch (RuntimeException e) {
+                        failed(e, a);
+                        return;
+                    }
+                    sendChunk(array.content(), 0, array.length(), null, this);
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void a) {
+                closeQuietly(closer);
+                if (context.getLogger().isLoggable(Level.FINER)) context.getLogger().log(Level.FINER, "HttpResponse finishJson stream error, request = " + request, exc);
+                finish(true);
+            }
+        });
+    }
+
+    private static void closeQuietly(AutoCloseable closer) {
+        if (closer == null) return;
+        try {
+            closer.close();
+        } catch (Exception e) {
+        }
+    }
+
     /**
      * 以304状态码输出
      */
@@ -738,6 +1293,22 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         super.finish(false, bytes304);
     }
 
+    /**
+     * 以304状态码输出， 附带ETag与其他已设置的header， 不输出Content-Length
+     *
+     * @param etag ETag
+     */
+    void finishNotModified(String etag) {
+        if (isClosed()) return;
+        this.status = 304;
+        this.header.setValue("ETag", etag);
+        if (this.headWritedSize < 0) {
+            this.contentLength = -1;
+            createHeader();
+        }
+        finishData(headerArray);
+    }
+
     /**
      * 以404状态码输出
      */
@@ -748,7 +1319,7 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
 
     //Header大小
     protected void createHeader() {
-        if (this.status == 200 && !this.respHeadContainsConnection && !this.request.isWebSocket()
+        if (this.status == 200 && this.presetHeader == null && !this.respHeadContainsConnection && !this.request.isWebSocket()
             && (this.contentType == null || this.contentType == this.jsonContentType || this.contentType == this.plainContentType)
             && (this.contentLength >= 0 && this.contentLength < jsonLiveContentLengthArray.length)) {
             byte[][] lengthArray = this.plainLiveContentLengthArray;
@@ -782,7 +1353,9 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
                     headerArray.put(this.request.isKeepAlive() ? connectAliveBytes : connectCloseBytes);
                 }
             }
-            if (!this.request.isWebSocket()) {
+            if (this.presetHeader != null) {
+                headerArray.put(this.presetHeader);
+            } else if (!this.request.isWebSocket()) {
                 if (this.contentType == this.jsonContentType) {
                     headerArray.put(this.jsonContentTypeBytes);
                 } else if (this.contentType == null || this.contentType == this.plainContentType) {
@@ -791,7 +1364,7 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
                     headerArray.put(("Content-Type: " + this.contentType + "\r\n").getBytes());
                 }
             }
-            if (this.contentLength >= 0) {
+            if (this.contentLength >= 0 && this.presetHeader == null) {
                 if (this.contentLength < contentLengthArray.length) {
                     headerArray.put(contentLengthArray[(int) this.contentLength]);
                 } else {
@@ -933,6 +1506,28 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         finishFile(null, file, fileBody);
     }
 
+    /**
+     * 将多个文件按顺序拼接后输出， 如合并输出多个js、css文件
+     *
+     * @param filename 输出文件名， 为null则按第一个文件的后缀名确定Content-Type
+     * @param files    输出文件集合
+     *
+     * @throws IOException IO异常
+     */
+    public void finishFiles(final String filename, final File... files) throws IOException {
+        if (files == null || files.length == 0) {
+            finish404();
+            return;
+        }
+        for (File file : files) {
+            if (file == null || !file.isFile() || !file.canRead()) {
+                finish404();
+                return;
+            }
+        }
+        finishFile(filename, files, null);
+    }
+
     /**
      * 将指定文件句柄或文件内容按指定文件名输出，若fileBody不为null则只输出fileBody内容
      * file 与 fileBody 不能同时为空
@@ -949,86 +1544,236 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
             finish404();
             return;
         }
-        final long length = file == null ? fileBody.length() : file.length();
+        finishFile(filename, file == null ? null : new File[]{file}, fileBody);
+    }
+
+    //files按顺序拼接输出, fileBody不为null则只输出fileBody内容
+    private void finishFile(final String filename, final File[] files, ByteArray fileBody) throws IOException {
+        final long[] lengths = files == null ? null : new long[files.length];
+        long length = 0;
+        long lastModified = 0;
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                lengths[i] = files[i].length();
+                lastModified = Math.max(lastModified, files[i].lastModified());
+            }
+        }
+        if (fileBody != null) {
+            length = fileBody.length();
+        } else {
+            for (long len : lengths) {
+                length += len;
+            }
+        }
         final String match = request.getHeader("If-None-Match");
-        final String etag = (file == null ? 0L : file.lastModified()) + "-" + length;
+        final String etag = lastModified + "-" + length;
         if (match != null && etag.equals(match)) {
             //finish304();
             //return;
         }
         this.contentLength = length;
-        if (filename != null && !filename.isEmpty() && file != null) {
+        if (filename != null && !filename.isEmpty() && files != null) {
             if (this.header.getValue("Content-Disposition") == null) {
                 addHeader("Content-Disposition", "attachment;filename=" + URLEncoder.encode(filename, "UTF-8"));
             }
         }
-        this.contentType = MimeType.getByFilename(filename == null || filename.isEmpty() ? file.getName() : filename);
+        this.contentType = MimeType.getByFilename(filename == null || filename.isEmpty() ? files[0].getName() : filename);
         if (this.contentType == null) this.contentType = "application/octet-stream";
-        String range = request.getHeader("Range");
-        if (range != null && (!range.startsWith("bytes=") || range.indexOf(',') >= 0)) range = null;
-        long start = -1;
-        long len = -1;
+        long start = 0;
+        long end = length - 1;
+        long[] range = parseRange(length);
         if (range != null) {
-            range = range.substring("bytes=".length());
-            int pos = range.indexOf('-');
-            start = pos == 0 ? 0 : Integer.parseInt(range.substring(0, pos));
-            long end = (pos == range.length() - 1) ? -1 : Long.parseLong(range.substring(pos + 1));
-            long clen = end > 0 ? (end - start + 1) : (length - start);
+            if (range.length == 0) {
+                addHeader("Content-Range", "bytes */" + length);
+                finish(416, null);
+                return;
+            }
+            start = range[0];
+            end = range[1];
             this.status = 206;
             addHeader("Accept-Ranges", "bytes");
-            addHeader("Content-Range", "bytes " + start + "-" + (end > 0 ? end : length - 1) + "/" + length);
-            this.contentLength = clen;
-            len = end > 0 ? clen : end;
+            addHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            this.contentLength = end - start + 1;
         }
         this.addHeader("ETag", etag);
         createHeader();
         ByteArray data = headerArray;
         if (fileBody == null) {
-            if (this.recycleListener != null) this.output = file;
-            finishFile(data, file, start, len);
+            if (this.recycleListener != null) this.output = files.length == 1 ? files[0] : files;
+            finishFile(data, files, lengths, start, end - start + 1);
         } else { //一般HttpResourceServlet缓存file内容时fileBody不为空
-            if (start >= 0) data.put(fileBody, (int) start, (int) ((len > 0) ? len : fileBody.length() - start));
+            data.put(fileBody, (int) start, (int) (end - start + 1));
             super.finish(false, data.content(), 0, data.length());
         }
     }
 
-    //offset、length 为 -1 表示输出整个文件
-    private void finishFile(ByteArray headerData, File file, long offset, long length) throws IOException {
-        //this.channel.write(headerData,  new TransferFileHandler(file, offset, length));
+    //解析单段的Range请求头, 返回[start, end]; 范围无法满足返回空数组; 没有Range、多段或格式错误返回null, 此时输出全部内容
+    private long[] parseRange(long length) {
+        String range = request.getHeader("Range");
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) return null;
+        range = range.substring("bytes=".length()).trim();
+        int pos = range.indexOf('-');
+        long start;
+        long end = length - 1;
+        try {
+            if (pos == 0) { //bytes=-500 表示最后500个字节
+                start = Math.max(0, length - Long.parseLong(range.substring(1)));
+            } else if (pos > 0) {
+                start = Long.parseLong(range.substring(0, pos));
+                if (pos < range.length() - 1) end = Math.min(end, Long.parseLong(range.substring(pos + 1)));
+            } else {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (start >= length || start > end) return new long[0];
+        return new long[]{start, end};
+    }
+
+    /**
+     * 输出HttpResourceServlet缓存在堆外内存中的文件内容， 支持If-None-Match和单段的Range请求 <br>
+     * body以只读视图与响应头一起写入socket， 不复制到堆内存; pipeline中的请求需按顺序输出， 此时复制body后按byte[]输出
+     *
+     * @param contentType  Content-Type
+     * @param body         文件内容， 必须是只读的ByteBuffer， 不会改变其position
+     * @param etag         ETag
+     * @param lastModified Last-Modified， 可为null
+     * @param encoding     body的压缩方式， 没有压缩为null
+     * @param presetHeader 预先生成的Content-Type、Content-Length、ETag等header行， 输出整个body时使用， 可为null
+     */
+    protected void finishBuffer(final String contentType, final ByteBuffer body, final String etag, final String lastModified, final String encoding, final byte[] presetHeader) {
+        if (isClosed()) return; //避免重复关闭
+        final String match = request.getHeader("If-None-Match");
+        if (match != null && HttpResponse.matchETag(match, etag)) {
+            if (lastModified != null) this.header.setValue("Last-Modified", lastModified);
+            finishNotModified(etag);
+            return;
+        }
+        final long length = body.remaining();
+        long[] range = encoding == null ? parseRange(length) : null;
+        ByteBuffer slice = body.duplicate();
+        if (range != null) {
+            if (range.length == 0) {
+                addHeader("Content-Range", "bytes */" + length);
+                finish(416, null);
+                return;
+            }
+            this.status = 206;
+            this.header.setValue("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            slice.position(slice.position() + (int) range[0]);
+            slice.limit(slice.position() + (int) (range[1] - range[0] + 1));
+        }
+        final boolean pipeline = request.getPipelineIndex() > 0 || this.channel.hasPipelineData();
+        if (range != null || presetHeader == null || pipeline || this.headWritedSize >= 0) {
+            this.header.setValue("ETag", etag);
+            if (lastModified != null) this.header.setValue("Last-Modified", lastModified);
+            this.header.setValue("Accept-Ranges", "bytes");
+            if (encoding != null) this.header.setValue("Content-Encoding", encoding).setValue("Vary", "Accept-Encoding");
+        } else {
+            this.presetHeader = presetHeader;
+        }
+        if (pipeline) {
+            byte[] bs = new byte[slice.remaining()];
+            slice.get(bs);
+            finish(contentType, bs);
+            return;
+        }
+        this.contentType = contentType;
+        this.contentLength = slice.remaining();
+        if (this.headWritedSize < 0) createHeader();
+        ByteBuffer head = ByteBuffer.wrap(headerArray.content(), 0, headerArray.length());
+        this.channel.write(new ByteBuffer[]{head, slice}, null, finishBodyBufferHandler);
+    }
+
+    //ETag列表中是否包含指定的ETag, 弱比较
+    static boolean matchETag(String match, String etag) {
+        if ("*".equals(match.trim())) return true;
+        for (String item : match.split(",")) {
+            item = item.trim();
+            if (item.startsWith("W/")) item = item.substring(2);
+            if (etag.equals(item)) return true;
+        }
+        return false;
+    }
+
+    //files按顺序拼接后从start开始输出count个字节, 每个文件由连接以零拷贝方式输出, 写满socket缓存时等待可写再续传, 不占用线程
+    private void finishFile(ByteArray headerData, File[] files, long[] lengths, long start, long count) throws IOException {
         final Logger logger = context.getLogger();
         this.channel.write(headerData, new CompletionHandler<Integer, Void>() {
 
+            //当前输出的文件下标
+            private int index = -1;
+
+            //尚需跳过的字节数
+            private long skip = start;
+
+            //尚未输出的字节数
+            private long remain = count;
+
+            private FileChannel fileChannel;
+
+            private final CompletionHandler<Long, Void> fileHandler = new CompletionHandler<Long, Void>() {
+
+                @Override
+                public void completed(Long result, Void attachment) {
+                    closeFile();
+                    remain -= result;
+                    transferNext();
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    closeFile();
+                    transferFailed(exc);
+                }
+            };
+
             @Override
             public void completed(Integer result, Void attachment) {
-                FileChannel fileChannel = null;
+                transferNext();
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                transferFailed(exc);
+            }
+
+            private void transferNext() {
                 try {
-                    fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-                    WritableByteChannel writeChannel = channel.writableByteChannel();
-                    long remain = length > 0 ? length : file.length();
-                    long start = offset < 0 ? 0 : offset;
-                    while (remain > 0) {
-                        long c = fileChannel.transferTo(start, remain, writeChannel);
-                        start += c;
-                        remain -= c;
+                    while (remain > 0 && ++index < files.length) {
+                        if (skip >= lengths[index]) {
+                            skip -= lengths[index];
+                            continue;
+                        }
+                        long position = skip;
+                        skip = 0;
+                        fileChannel = FileChannel.open(files[index].toPath(), StandardOpenOption.READ);
+                        channel.transferFile(fileChannel, position, Math.min(lengths[index] - position, remain), null, fileHandler);
+                        return;
                     }
-                    fileChannel.close();
                     finish();
                 } catch (Exception e) {
-                    if (fileChannel != null) {
-                        try {
-                            fileChannel.close();
-                        } catch (IOException ie) {
-                        }
-                    }
-                    failed(e, attachment);
+                    closeFile();
+                    transferFailed(e);
                 }
             }
 
-            @Override
-            public void failed(Throwable exc, Void attachment) {
+            private void transferFailed(Throwable exc) {
                 if (logger.isLoggable(Level.FINER)) logger.log(Level.FINER, "finishFile error", exc);
                 finish(true);
             }
+
+            private void closeFile() {
+                FileChannel fc = this.fileChannel;
+                this.fileChannel = null;
+                if (fc != null) {
+                    try {
+                        fc.close();
+                    } catch (IOException ie) {
+                    }
+                }
+            }
         });
     }
 
@@ -1166,7 +1911,8 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
     }
 
     /**
-     * 设置输出时的拦截器
+     * 设置输出时的拦截器 <br>
+     * 在生成响应头之前回调一次， 参数为压缩前的body; 没有以byte[]输出body(如分块输出、 输出文件)时在回收前以null回调
      *
      * @param cacheHandler 拦截器
      */
@@ -1174,6 +1920,57 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
         this.cacheHandler = cacheHandler;
     }
 
+    private void releaseCacheHandler(byte[] body) {
+        BiConsumer<HttpResponse, byte[]> handler = this.cacheHandler;
+        this.cacheHandler = null;
+        handler.accept(this, body);
+    }
+
+    /**
+     * 结果缓存保存action设置的header， 命中时回放; 不含Connection
+     *
+     * @return name与value交替排列的数组
+     */
+    String[] getCacheHeaders() {
+        Entry<String>[] entrys = this.header.getStringEntrys();
+        if (entrys == null || entrys.length == 0) return null;
+        List<String> list = new ArrayList<>(entrys.length * 2);
+        for (Entry<String> en : entrys) {
+            if ("Connection".equalsIgnoreCase(en.name)) continue;
+            list.add(en.name);
+            list.add(en.getValue());
+        }
+        return list.isEmpty() ? null : list.toArray(new String[list.size()]);
+    }
+
+    /**
+     * 结果缓存保存action设置的cookie的副本， 命中时回放
+     *
+     * @return HttpCookie[]
+     */
+    HttpCookie[] getCacheCookies() {
+        if (this.cookies == null) return null;
+        List<HttpCookie> list = new ArrayList<>(this.cookies.length);
+        for (HttpCookie cookie : this.cookies) {
+            if (cookie != null) list.add((HttpCookie) cookie.clone());
+        }
+        return list.isEmpty() ? null : list.toArray(new HttpCookie[list.size()]);
+    }
+
+    /**
+     * 在连接所属IO线程的时间轮上执行定时任务
+     *
+     * @param task  任务
+     * @param delay 延迟时间
+     * @param unit  时间单位
+     *
+     * @return 不在IO线程上的连接返回null
+     */
+    ScheduledFuture<?> scheduleTimeout(Runnable task, long delay, TimeUnit unit) {
+        AsyncIOThread ioThread = this.channel == null ? null : this.channel.getIOThread();
+        return ioThread == null ? null : ioThread.scheduleTimeout(task, delay, unit);
+    }
+
     /**
      * 获取输出RetResult时的拦截器
      *
@@ -1299,6 +2096,17 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
 
         public HttpRender httpRender;
 
+        //压缩级别, 小于0表示不压缩
+        public int compressLevel = -1;
+
+        public int compressThreshold = 1024;
+
+        public String[] compressMimeTypes;
+
+        public ObjectPool<Deflater> deflaterPool;
+
+        public byte[] zlibHeader = zlibHeader(Deflater.DEFAULT_COMPRESSION);
+
         public final byte[][] plainLiveContentLengthArray = new byte[cacheMaxContentLength][];
 
         public final byte[][] jsonLiveContentLengthArray = new byte[cacheMaxContentLength][];
@@ -1323,6 +2131,17 @@ public class HttpResponse extends Response<HttpContext, HttpRequest> {
                     jsonCloseContentLengthArray[i] = append(append(status200_server_close_Bytes, jsonContentTypeBytes), lenbytes);
                 }
             }
+            if (this.compressLevel >= 0 && this.deflaterPool == null) {
+                if (this.compressMimeTypes == null || this.compressMimeTypes.length == 0) {
+                    this.compressMimeTypes = new String[]{"text/", "application/json", "application/javascript", "application/xml", "image/svg+xml"};
+                }
+                final int level = Math.min(this.compressLevel, Deflater.BEST_COMPRESSION);
+                this.zlibHeader = zlibHeader(level);
+                this.deflaterPool = ObjectPool.createSafePool(Runtime.getRuntime().availableProcessors() * 2, () -> new Deflater(level, true), null, (Deflater t) -> {
+                    t.reset();
+                    return true;
+                });
+            }
             return this;
         }
 
@@ -0,0 +1,591 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+import org.redkale.util.ByteArray;
+
+/**
+ * HttpMapping.cacheseconds 对应的结果缓存 <br>
+ * 缓存key由url、 请求参数、 指定的header和当前用户组成， 条目数超过上限时按W-TinyLFU淘汰:
+ * 新条目先进入占1%容量的LRU窗口， 被挤出窗口后与主区(SLRU)中最久未访问的条目比较访问频率， 频率高的留下。 <br>
+ * 同一key的多个请求同时未命中时只执行一次action， 其余请求等待其结果， 等待超时后各自执行action;
+ * 命中时回放action设置的header与cookie， 根据If-None-Match输出304， 并按Accept-Encoding输出已缓存的压缩内容。 <br>
+ * 读取不加锁， 访问记录先放入有损的环形缓冲区， 由拿到锁的线程批量更新访问频率与LRU顺序， 锁被占用时直接跳过。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+public final class HttpResponseCache {
+
+    private static final Logger logger = Logger.getLogger(HttpResponseCache.class.getSimpleName());
+
+    private static final String[] EMPTY_HEADERS = new String[0];
+
+    //所在区域
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    //访问记录缓冲区的大小， 须为2的幂
+    private static final int READ_BUFFER_SIZE = 128;
+
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    //缓冲区中的访问记录达到该数量时才尝试批量更新
+    private static final int READ_BUFFER_DRAIN = 32;
+
+    //等待同一key正在执行的action的最长秒数， 超时后等待的请求各自执行action
+    private static final int LOADING_WAIT_SECONDS = 5;
+
+    private final int seconds;
+
+    private final int limit;
+
+    private final boolean params;
+
+    private final boolean user;
+
+    private final String[] headers;
+
+    private final ConcurrentHashMap<String, Node> map = new ConcurrentHashMap<>();
+
+    //正在执行action的key
+    private final ConcurrentHashMap<String, Loading> loadings = new ConcurrentHashMap<>();
+
+    private final FrequencySketch sketch;
+
+    //保护sketch与三个LRU链表
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //访问记录: 命中为Node， 未命中为key
+    private final AtomicReferenceArray<Object> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+    private final AtomicLong readWriteCount = new AtomicLong();
+
+    //已处理的访问记录数， 只在锁内修改
+    private volatile long readDrainCount;
+
+    private final Node window = new Node(null);
+
+    private final Node probation = new Node(null);
+
+    private final Node protect = new Node(null);
+
+    private final int windowMax;
+
+    private final int protectMax;
+
+    private int windowSize;
+
+    private int probationSize;
+
+    private int protectSize;
+
+    private final LongAdder hitCounter = new LongAdder();
+
+    private final LongAdder missCounter = new LongAdder();
+
+    private final LongAdder evictionCounter = new LongAdder();
+
+    private final LongAdder notModifiedCounter = new LongAdder();
+
+    /**
+     * 创建结果缓存
+     *
+     * @param seconds 缓存秒数
+     * @param limit   最大条目数
+     * @param params  key是否包含请求参数
+     * @param user    key是否包含当前用户ID
+     * @param headers key包含的header名
+     */
+    HttpResponseCache(int seconds, int limit, boolean params, boolean user, String[] headers) {
+        this.seconds = seconds;
+        this.limit = Math.max(limit, 1);
+        this.params = params;
+        this.user = user;
+        this.headers = headers == null ? EMPTY_HEADERS : headers;
+        this.windowMax = Math.max(1, this.limit / 100);
+        this.protectMax = Math.max(0, (this.limit - this.windowMax) * 4 / 5);
+        this.sketch = new FrequencySketch(this.limit);
+    }
+
+    static HttpResponseCache create(HttpMapping mapping) {
+        if (mapping == null || mapping.cacheseconds() <= 0) return null;
+        return new HttpResponseCache(mapping.cacheseconds(), mapping.cachelimit(), mapping.cacheparams(), mapping.cacheuser(), mapping.cacheheaders());
+    }
+
+    /**
+     * 命中则输出缓存内容， 否则执行action并在输出时写入缓存
+     *
+     * @param request  HttpRequest
+     * @param response HttpResponse
+     * @param servlet  action对应的HttpServlet
+     *
+     * @throws IOException IOException
+     */
+    void execute(final HttpRequest request, final HttpResponse response, final HttpServlet servlet) throws IOException {
+        final String key = key(request);
+        for (;;) {
+            CachedResponse cached = get(key);
+            if (cached != null) {
+                hitCounter.increment();
+                finish(cached, request, response);
+                return;
+            }
+            Loading loading = new Loading();
+            Loading exists = loadings.putIfAbsent(key, loading);
+            if (exists == null) {
+                missCounter.increment();
+                response.setCacheHandler((resp, body) -> loaded(key, loading, resp, body));
+                servlet.execute(request, response);
+                return;
+            }
+            boolean direct = false;
+            synchronized (exists) {
+                if (!exists.done) { //等待正在执行的请求的结果
+                    if (exists.timeout == null) {
+                        exists.timeout = response.scheduleTimeout(() -> timeout(key, exists), LOADING_WAIT_SECONDS, TimeUnit.SECONDS);
+                    }
+                    if (exists.timeout != null) {
+                        missCounter.increment();
+                        exists.waiters.add(new Waiter(request, response, servlet));
+                        return;
+                    }
+                    direct = true; //无法定时的连接不等待
+                }
+            }
+            if (direct) { //直接执行， 结果不写入缓存
+                missCounter.increment();
+                servlet.execute(request, response);
+                return;
+            }
+            //正在执行的请求刚结束， 重新查找
+        }
+    }
+
+    private void loaded(String key, Loading loading, HttpResponse response, byte[] body) {
+        CachedResponse cached = null;
+        if (body != null && response.getStatus() == 200) {
+            cached = new CachedResponse(response.getContentType(), body, response.getCacheHeaders(), response.getCacheCookies());
+            put(key, cached);
+            response.setHeader("ETag", cached.etag);
+        }
+        List<Waiter> waiters = release(key, loading);
+        if (loading.timeout != null) loading.timeout.cancel(false);
+        for (Waiter waiter : waiters) {
+            if (cached == null) { //结果不可缓存(非200、 分块输出等)， 各自交由工作线程执行， 不能在当前请求的输出过程中执行
+                waiter.request.getContext().execute(waiter.servlet, waiter.request, waiter.response);
+                continue;
+            }
+            try {
+                finish(cached, waiter.request, waiter.response);
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "HttpResponseCache finish waiting request error, request = " + waiter.request, t);
+                waiter.response.finish(500, null);
+            }
+        }
+    }
+
+    //action执行超时， 等待的请求各自执行action， 结果不写入缓存
+    private void timeout(String key, Loading loading) {
+        for (Waiter waiter : release(key, loading)) {
+            waiter.request.getContext().execute(waiter.servlet, waiter.request, waiter.response);
+        }
+    }
+
+    //结束等待， 返回等待中的请求; 重复调用返回空列表
+    private List<Waiter> release(String key, Loading loading) {
+        synchronized (loading) {
+            loadings.remove(key, loading);
+            if (loading.done) return Collections.emptyList();
+            loading.done = true;
+            return loading.waiters;
+        }
+    }
+
+    private void finish(CachedResponse cached, HttpRequest request, HttpResponse response) {
+        if (cached.headers != null) {
+            for (int i = 0; i < cached.headers.length; i += 2) {
+                response.addHeader(cached.headers[i], cached.headers[i + 1]);
+            }
+        }
+        if (cached.cookies != null) response.addCookie(cached.cookies);
+        String match = request.getHeader("If-None-Match");
+        if (match != null && HttpResponse.matchETag(match, cached.etag)) {
+            notModifiedCounter.increment();
+            response.finishNotModified(cached.etag);
+            return;
+        }
+        response.setHeader("ETag", cached.etag);
+        byte[] body = cached.body;
+        String encoding = response.compressEncoding(cached.contentType, body.length);
+        if (encoding != null) {
+            body = cached.compressed(response, encoding);
+            response.setHeader("Content-Encoding", encoding).setHeader("Vary", "Accept-Encoding");
+        }
+        response.finish(cached.contentType, body);
+    }
+
+    String key(HttpRequest request) {
+        if (!params && !user && headers.length == 0) return request.getRequestURI();
+        StringBuilder sb = new StringBuilder(request.getRequestURI());
+        if (params) sb.append('?').append(request.getParametersToString());
+        for (String name : headers) {
+            sb.append('\n').append(request.getHeader(name, ""));
+        }
+        if (user) sb.append('\n').append(request.currentUserid);
+        return sb.toString();
+    }
+
+    private CachedResponse get(String key) {
+        Node node = map.get(key);
+        recordRead(node == null ? key : node);
+        if (node == null || node.zone < 0) return null;
+        CachedResponse cached = node.value;
+        return cached.time + seconds * 1000L > System.currentTimeMillis() ? cached : null;
+    }
+
+    //记录一次访问， 缓冲区已满或CAS失败时丢弃本次记录
+    private void recordRead(Object access) {
+        final long w = readWriteCount.get();
+        final long pending = w - readDrainCount;
+        if (pending < READ_BUFFER_SIZE && readWriteCount.compareAndSet(w, w + 1)) {
+            readBuffer.lazySet((int) (w & READ_BUFFER_MASK), access);
+        }
+        if (pending >= READ_BUFFER_DRAIN && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //须在锁内调用， 按记录顺序更新访问频率与LRU顺序
+    private void drainReads() {
+        final long w = readWriteCount.get();
+        long i = readDrainCount;
+        for (; i < w; i++) {
+            final int index = (int) (i & READ_BUFFER_MASK);
+            Object access = readBuffer.get(index);
+            if (access == null) break; //记录者尚未写入， 下次再处理
+            readBuffer.lazySet(index, null);
+            if (access instanceof Node) {
+                Node node = (Node) access;
+                sketch.increment(node.key.hashCode());
+                if (node.zone >= 0) onAccess(node);
+            } else {
+                sketch.increment(access.hashCode());
+            }
+        }
+        readDrainCount = i;
+    }
+
+    private void put(String key, CachedResponse value) {
+        lock.lock();
+        try {
+            drainReads();
+            doPut(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doPut(String key, CachedResponse value) {
+        Node node = map.get(key);
+        if (node != null) { //过期后重新写入
+            node.value = value;
+            onAccess(node);
+            return;
+        }
+        node = new Node(key);
+        node.value = value;
+        node.zone = WINDOW;
+        map.put(key, node);
+        linkFirst(window, node);
+        windowSize++;
+        if (windowSize <= windowMax) return;
+        //窗口中最久未访问的条目进入主区， 主区满则与主区中最久未访问的条目比较频率
+        Node candidate = window.prev;
+        unlink(candidate);
+        windowSize--;
+        candidate.zone = PROBATION;
+        linkFirst(probation, candidate);
+        probationSize++;
+        if (probationSize + protectSize <= limit - windowMax) return;
+        Node victim = probation.prev;
+        if (victim == candidate) {
+            evict(candidate);
+        } else {
+            evict(sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode()) ? victim : candidate);
+        }
+    }
+
+    private void onAccess(Node node) {
+        if (node.zone == WINDOW) {
+            unlink(node);
+            linkFirst(window, node);
+        } else if (node.zone == PROBATION) { //再次访问的条目进入保护区
+            unlink(node);
+            probationSize--;
+            node.zone = PROTECTED;
+            linkFirst(protect, node);
+            protectSize++;
+            if (protectSize > protectMax) {
+                Node demote = protect.prev;
+                unlink(demote);
+                protectSize--;
+                demote.zone = PROBATION;
+                linkFirst(probation, demote);
+                probationSize++;
+            }
+        } else if (node.zone == PROTECTED) {
+            unlink(node);
+            linkFirst(protect, node);
+        }
+    }
+
+    private void evict(Node node) {
+        unlink(node);
+        if (node.zone == PROBATION) {
+            probationSize--;
+        } else if (node.zone == PROTECTED) {
+            protectSize--;
+        } else {
+            windowSize--;
+        }
+        node.zone = -1;
+        map.remove(node.key, node);
+        evictionCounter.increment();
+    }
+
+    private static void linkFirst(Node head, Node node) {
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    public int getSeconds() {
+        return seconds;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hitCounter.sum();
+    }
+
+    public long getMissCount() {
+        return missCounter.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCounter.sum();
+    }
+
+    public long getNotModifiedCount() {
+        return notModifiedCounter.sum();
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "{seconds:" + seconds + ", limit:" + limit + ", size:" + size()
+            + ", hit:" + getHitCount() + ", miss:" + getMissCount() + ", eviction:" + getEvictionCount() + ", notModified:" + getNotModifiedCount() + "}";
+    }
+
+    private static final class Node {
+
+        final String key;
+
+        volatile CachedResponse value;
+
+        //所在区域， 为-1表示已淘汰; 只在锁内修改
+        volatile int zone;
+
+        Node prev;
+
+        Node next;
+
+        Node(String key) {
+            this.key = key;
+            if (key == null) { //链表头
+                this.prev = this;
+                this.next = this;
+            }
+        }
+    }
+
+    private static final class Loading {
+
+        final List<Waiter> waiters = new ArrayList<>();
+
+        //第一个等待的请求加入时创建
+        ScheduledFuture<?> timeout;
+
+        boolean done;
+    }
+
+    private static final class Waiter {
+
+        final HttpRequest request;
+
+        final HttpResponse response;
+
+        final HttpServlet servlet;
+
+        Waiter(HttpRequest request, HttpResponse response, HttpServlet servlet) {
+            this.request = request;
+            this.response = response;
+            this.servlet = servlet;
+        }
+    }
+
+    private static final class CachedResponse {
+
+        final long time = System.currentTimeMillis();
+
+        final String contentType;
+
+        final byte[] body;
+
+        final String etag;
+
+        //action设置的header， name与value交替排列， 可为null
+        final String[] headers;
+
+        final HttpCookie[] cookies;
+
+        private volatile byte[] gzip;
+
+        private volatile byte[] deflate;
+
+        CachedResponse(String contentType, byte[] body, String[] headers, HttpCookie[] cookies) {
+            this.contentType = contentType;
+            this.body = body;
+            this.headers = headers;
+            this.cookies = cookies;
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            this.etag = "\"" + Long.toHexString(body.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+        }
+
+        //压缩内容只生成一次
+        byte[] compressed(HttpResponse response, String encoding) {
+            final boolean isgzip = "gzip".equals(encoding);
+            byte[] bs = isgzip ? gzip : deflate;
+            if (bs == null) {
+                bs = response.compress(encoding, body, 0, body.length, new ByteArray()).getBytes();
+                if (isgzip) {
+                    this.gzip = bs;
+                } else {
+                    this.deflate = bs;
+                }
+            }
+            return bs;
+        }
+    }
+
+    //4位计数的Count-Min Sketch， 计数总和达到容量10倍时全部减半， 使旧的访问频率逐渐失效
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private static final long ONE_MASK = 0x1111111111111111L;
+
+        private final long[] table;
+
+        private final int tableMask;
+
+        private final int sampleSize;
+
+        private int size;
+
+        FrequencySketch(int capacity) {
+            int len = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            this.table = new long[len];
+            this.tableMask = len - 1;
+            this.sampleSize = 10 * Math.max(capacity, 16);
+        }
+
+        int frequency(int hashCode) {
+            final int hash = spread(hashCode);
+            final int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hashCode) {
+            final int hash = spread(hashCode);
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                long mask = 0xfL << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++size == sampleSize) reset();
+        }
+
+        private void reset() {
+            int count = 0;
+            for (int i = 0; i < table.length; i++) {
+                count += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size = (size >>> 1) - (count >>> 2);
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int spread(int h) {
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.util.*;
+import java.util.function.Predicate;
+import org.redkale.util.Utility;
+
+/**
+ * HttpPrepareServlet中正则url的路由表, 创建后不可变, 添加或删除HttpServlet时整体重建后替换 <br>
+ * 形如 ^/pipes/user/.* 的前缀规则编译进按字符压缩的前缀树(radix trie), 遍历一次url即可找出所有匹配的前缀规则;
+ * 其他正则规则仍使用Predicate匹配。 多个规则同时匹配时与逐个遍历regArray的结果一致, 取最先添加的规则。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+final class HttpRouter {
+
+    static final HttpRouter EMPTY = new HttpRouter(null);
+
+    private static final Node[] EMPTY_NODES = new Node[0];
+
+    private final Node root = new Node("");
+
+    //无法编译进前缀树的规则, 按添加顺序排列
+    private final int[] regIndexes;
+
+    private final Predicate<String>[] regPredicates;
+
+    private final HttpServlet[] regServlets;
+
+    @SuppressWarnings("unchecked")
+    HttpRouter(HttpPrepareServlet.MappingEntry[] entries) {
+        List<Integer> indexes = new ArrayList<>();
+        if (entries != null) {
+            for (int i = 0; i < entries.length; i++) {
+                String prefix = literalPrefix(entries[i].mapping);
+                if (prefix == null) {
+                    indexes.add(i);
+                } else {
+                    insert(prefix, i, entries[i].servlet);
+                }
+            }
+        }
+        this.regIndexes = new int[indexes.size()];
+        this.regPredicates = (Predicate<String>[]) new Predicate<?>[indexes.size()];
+        this.regServlets = new HttpServlet[indexes.size()];
+        for (int i = 0; i < regIndexes.length; i++) {
+            HttpPrepareServlet.MappingEntry entry = entries[indexes.get(i)];
+            this.regIndexes[i] = indexes.get(i);
+            this.regPredicates[i] = entry.predicate;
+            this.regServlets[i] = entry.servlet;
+        }
+    }
+
+    /**
+     * 获取匹配url的HttpServlet
+     *
+     * @param uri 请求url
+     *
+     * @return HttpServlet, 没有匹配的规则返回null
+     */
+    HttpServlet match(String uri) {
+        int best = Integer.MAX_VALUE;
+        HttpServlet servlet = null;
+        Node node = root;
+        int pos = 0;
+        final int len = uri.length();
+        for (;;) {
+            if (node.index < best) {
+                best = node.index;
+                servlet = node.servlet;
+            }
+            if (pos >= len) break;
+            Node next = node.child(uri.charAt(pos));
+            if (next == null || !uri.startsWith(next.label, pos)) break;
+            pos += next.label.length();
+            node = next;
+        }
+        //只需检查比已匹配的前缀规则更早添加的正则规则
+        final int[] indexes = this.regIndexes;
+        for (int i = 0; i < indexes.length && indexes[i] < best; i++) {
+            if (regPredicates[i].test(uri)) return regServlets[i];
+        }
+        return servlet;
+    }
+
+    private void insert(String key, int index, HttpServlet servlet) {
+        Node node = root;
+        int pos = 0;
+        while (pos < key.length()) {
+            Node child = node.child(key.charAt(pos));
+            if (child == null) {
+                child = new Node(key.substring(pos));
+                node.children = Utility.append(node.children, child);
+                node = child;
+                break;
+            }
+            final String label = child.label;
+            final int max = Math.min(label.length(), key.length() - pos);
+            int common = 1;
+            while (common < max && label.charAt(common) == key.charAt(pos + common)) common++;
+            if (common < label.length()) { //拆分节点
+                Node mid = new Node(label.substring(0, common));
+                child.label = label.substring(common);
+                mid.children = new Node[]{child};
+                Node[] children = node.children;
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] == child) children[i] = mid;
+                }
+                child = mid;
+            }
+            node = child;
+            pos += common;
+        }
+        if (index < node.index) {
+            node.index = index;
+            node.servlet = servlet;
+        }
+    }
+
+    //形如 ^/pipes/user/.* 的规则返回 /pipes/user/, 其他返回null
+    static String literalPrefix(String mapping) {
+        if (mapping.length() < 3 || mapping.charAt(0) != '^' || !mapping.endsWith(".*")) return null;
+        String prefix = mapping.substring(1, mapping.length() - 2);
+        return Utility.contains(prefix, '.', '*', '{', '}', '[', ']', '(', ')', '|', '^', '$', '+', '?', '\\') ? null : prefix;
+    }
+
+    private static final class Node {
+
+        String label;
+
+        Node[] children = EMPTY_NODES;
+
+        //以此节点结尾的前缀规则在regArray中的下标
+        int index = Integer.MAX_VALUE;
+
+        HttpServlet servlet;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node child(char ch) {
+            for (Node node : children) {
+                if (node.label.charAt(0) == ch) return node;
+            }
+            return null;
+        }
+    }
+}
@@ -315,6 +315,9 @@ public class HttpServer extends Server<String, HttpContext, HttpRequest, HttpRes
         String jsonContentType = null;
         HttpCookie defaultCookie = null;
         String remoteAddrHeader = null;
+        int compressLevel = -1;
+        int compressThreshold = 1024;
+        String[] compressMimeTypes = null;
 
         if (config != null) {
             AnyValue reqs = config.getAnyValue("request");
@@ -386,6 +389,14 @@ public class HttpServer extends Server<String, HttpContext, HttpRequest, HttpRes
 
                 AnyValue dates = resps.getAnyValue("date");
                 datePeriod = dates == null ? 0 : dates.getIntValue("period", 0);
+
+                AnyValue compress = resps.getAnyValue("compress");
+                if (compress != null && compress.getBoolValue("enabled", true)) {
+                    compressLevel = compress.getIntValue("level", 6);
+                    compressThreshold = compress.getIntValue("threshold", 1024);
+                    String mimetypes = compress.getValue("mimetypes", "").trim();
+                    if (!mimetypes.isEmpty()) compressMimeTypes = mimetypes.split("\\s*[,;]\\s*");
+                }
             }
 
         }
@@ -441,6 +452,9 @@ public class HttpServer extends Server<String, HttpContext, HttpRequest, HttpRes
         respConfig.autoOptions = autoOptions;
         respConfig.dateSupplier = dateSupplier;
         respConfig.httpRender = httpRender;
+        respConfig.compressLevel = compressLevel;
+        respConfig.compressThreshold = compressThreshold;
+        respConfig.compressMimeTypes = compressMimeTypes;
         respConfig.init(config);
 
         final HttpContextConfig contextConfig = new HttpContextConfig();
@@ -458,7 +472,10 @@ public class HttpServer extends Server<String, HttpContext, HttpRequest, HttpRes
         contextConfig.aliveTimeoutSeconds = this.aliveTimeoutSeconds;
         contextConfig.readTimeoutSeconds = this.readTimeoutSeconds;
         contextConfig.writeTimeoutSeconds = this.writeTimeoutSeconds;
+        contextConfig.ioThreadExecute = this.ioThreadExecute;
+        contextConfig.ioThreadBlockMillis = this.ioThreadBlockMillis;
         contextConfig.remoteAddrHeader = addrHeader;
+        contextConfig.http2 = config != null && config.getBoolValue("http2", false);
 
         HttpContext c = new HttpContext(contextConfig);
         if (httpRender != null) httpRender.init(c, renderConfig);
@@ -9,8 +9,6 @@ import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.*;
 import org.redkale.asm.*;
 import static org.redkale.asm.ClassWriter.COMPUTE_FRAMES;
 import static org.redkale.asm.Opcodes.*;
@@ -47,16 +45,9 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
                 response.finish(503, null);
                 return;
             }
-            if (entry.cacheseconds > 0) {//有缓存设置
-                CacheEntry ce = entry.modeOneCache ? entry.oneCache : entry.cache.get(request.getRequestURI());
-                if (ce != null && ce.time + entry.cacheseconds * 1000 > System.currentTimeMillis()) { //缓存有效
-                    response.setStatus(ce.status);
-                    response.setContentType(ce.contentType);
-                    response.skipHeader();
-                    response.finish(ce.getBytes());
-                    return;
-                }
-                response.setCacheHandler(entry.cacheHandler);
+            if (entry.cache != null) {//有缓存设置
+                entry.cache.execute(request, response, entry.servlet);
+                return;
             }
             entry.servlet.execute(request, response);
         }
@@ -124,6 +115,37 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
         Arrays.sort(mappings, (o1, o2) -> o2.getKey().compareTo(o1.getKey()));
     }
 
+    //preInit之后调用, 获取iothread=true且非正则的url
+    void collectIOThreadURIs(Collection<String> uris) {
+        if (this.mappings == null) return;
+        for (Map.Entry<String, ActionEntry> en : mappings) {
+            if (en.getValue().iothread && en.getValue().modeOneCache) uris.add(en.getKey());
+        }
+    }
+
+    //preInit之后调用, 获取streambody=true且非正则的url
+    void collectStreamBodyURIs(Collection<String> uris) {
+        if (this.mappings == null) return;
+        for (Map.Entry<String, ActionEntry> en : mappings) {
+            if (en.getValue().streambody && en.getValue().modeOneCache) uris.add(en.getKey());
+        }
+    }
+
+    /**
+     * 获取设置了cacheseconds的url对应的结果缓存, 可用于查看命中、未命中和淘汰次数 <br>
+     * 需在Server启动后调用
+     *
+     * @return Map
+     */
+    public Map<String, HttpResponseCache> getResponseCaches() {
+        Map<String, HttpResponseCache> map = new LinkedHashMap<>();
+        if (this.mappings == null) return map;
+        for (Map.Entry<String, ActionEntry> en : mappings) {
+            if (en.getValue().cache != null) map.put(en.getKey(), en.getValue().cache);
+        }
+        return map;
+    }
+
     void postDestroy(HttpContext context, AnyValue config) {
     }
 
@@ -235,6 +257,9 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
         ActionEntry(int moduleid, int actionid, String name, String[] methods, Method method, HttpServlet servlet) {
             this(moduleid, actionid, name, methods, method, rpconly(method), auth(method), cacheseconds(method), servlet);
             this.annotations = annotations(method);
+            this.iothread = iothread(method);
+            this.streambody = streambody(method);
+            if (this.cache != null) this.cache = HttpResponseCache.create(method.getAnnotation(HttpMapping.class));
         }
 
         //供Rest类使用，参数不能随便更改
@@ -248,24 +273,9 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
             this.rpconly = rpconly;
             this.auth = auth;
             this.cacheseconds = cacheseconds;
-            if (Utility.contains(name, '*', '{', '[', '(', '|', '^', '$', '+', '?', '\\') || name.endsWith("/")) { //是否是正则表达式
-                this.modeOneCache = false;
-                this.cache = cacheseconds > 0 ? new ConcurrentHashMap<>() : null;
-                this.cacheHandler = cacheseconds > 0 ? (HttpResponse response, byte[] content) -> {
-                    int status = response.getStatus();
-                    if (status != 200) return;
-                    CacheEntry ce = new CacheEntry(response.getStatus(), response.getContentType(), content);
-                    cache.put(response.getRequest().getRequestURI(), ce);
-                } : null;
-            } else { //单一url
-                this.modeOneCache = true;
-                this.cache = null;
-                this.cacheHandler = cacheseconds > 0 ? (HttpResponse response, byte[] content) -> {
-                    int status = response.getStatus();
-                    if (status != 200) return;
-                    oneCache = new CacheEntry(response.getStatus(), response.getContentType(), content);
-                } : null;
-            }
+            //是否是正则表达式
+            this.modeOneCache = !(Utility.contains(name, '*', '{', '[', '(', '|', '^', '$', '+', '?', '\\') || name.endsWith("/"));
+            this.cache = cacheseconds > 0 ? new HttpResponseCache(cacheseconds, 1024, true, false, null) : null;
         }
 
         protected static boolean auth(Method method) {
@@ -278,6 +288,16 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
             return mapping == null || mapping.rpconly();
         }
 
+        protected static boolean iothread(Method method) {
+            HttpMapping mapping = method.getAnnotation(HttpMapping.class);
+            return mapping != null && mapping.iothread();
+        }
+
+        protected static boolean streambody(Method method) {
+            HttpMapping mapping = method.getAnnotation(HttpMapping.class);
+            return mapping != null && mapping.streambody();
+        }
+
         protected static int cacheseconds(Method method) {
             HttpMapping mapping = method.getAnnotation(HttpMapping.class);
             return mapping == null ? 0 : mapping.cacheseconds();
@@ -300,10 +320,6 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
             return false;
         }
 
-        final BiConsumer<HttpResponse, byte[]> cacheHandler;
-
-        final ConcurrentHashMap<String, CacheEntry> cache;
-
         final boolean modeOneCache;
 
         final int cacheseconds;
@@ -324,9 +340,13 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
 
         Method method;
 
-        CacheEntry oneCache;
+        HttpResponseCache cache; //结果缓存, Rest生成时按RestMapping重新赋值
 
         Annotation[] annotations;
+
+        boolean iothread; //是否在IO线程中执行, Rest生成时赋值
+
+        boolean streambody; //是否流式读取请求body, Rest生成时赋值
     }
 
     private HttpServlet createActionServlet(final Method method) {
@@ -408,27 +428,6 @@ public class HttpServlet extends Servlet<HttpContext, HttpRequest, HttpResponse>
         }
     }
 
-    private static final class CacheEntry {
-
-        public final long time = System.currentTimeMillis();
-
-        private final byte[] cacheBytes;
-
-        private final int status;
-
-        private final String contentType;
-
-        public CacheEntry(int status, String contentType, byte[] cacheBytes) {
-            this.status = status;
-            this.contentType = contentType;
-            this.cacheBytes = cacheBytes;
-        }
-
-        public byte[] getBytes() {
-            return cacheBytes;
-        }
-    }
-
     static class HttpActionServlet extends HttpServlet {
 
         final ActionEntry action;
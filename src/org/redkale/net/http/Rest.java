@@ -1237,7 +1237,12 @@ public final class Rest {
                 av0.visit("url", url);
                 av0.visit("rpconly", entry.rpconly);
                 av0.visit("auth", entry.auth);
+                av0.visit("iothread", entry.iothread);
+                av0.visit("streambody", entry.streambody);
                 av0.visit("cacheseconds", entry.cacheseconds);
+                av0.visit("cachelimit", entry.cachelimit);
+                av0.visit("cacheparams", entry.cacheparams);
+                av0.visit("cacheuser", entry.cacheuser);
                 av0.visit("actionid", entry.actionid);
                 av0.visit("comment", entry.comment);
 
@@ -1247,6 +1252,12 @@ public final class Rest {
                 }
                 av1.visitEnd();
 
+                av1 = av0.visitArray("cacheheaders");
+                for (String h : entry.cacheheaders) {
+                    av1.visit(null, h);
+                }
+                av1.visitEnd();
+
                 java.lang.reflect.Type grt = TypeToken.getGenericType(method.getGenericReturnType(), serviceType);
                 av0.visit("result", grt == returnType ? returnType.getName() : String.valueOf(grt));
 
@@ -1254,7 +1265,13 @@ public final class Rest {
                 mappingMap.put("url", url);
                 mappingMap.put("rpconly", entry.rpconly);
                 mappingMap.put("auth", entry.auth);
+                mappingMap.put("iothread", entry.iothread);
+                mappingMap.put("streambody", entry.streambody);
                 mappingMap.put("cacheseconds", entry.cacheseconds);
+                mappingMap.put("cachelimit", entry.cachelimit);
+                mappingMap.put("cacheparams", entry.cacheparams);
+                mappingMap.put("cacheuser", entry.cacheuser);
+                mappingMap.put("cacheheaders", entry.cacheheaders);
                 mappingMap.put("actionid", entry.actionid);
                 mappingMap.put("comment", entry.comment);
                 mappingMap.put("methods", entry.methods);
@@ -2167,6 +2184,16 @@ public final class Rest {
                 Method m = mappingurlToMethod.get(en.getKey());
                 if (m != null) en.getValue().annotations = HttpServlet.ActionEntry.annotations(m);
             }
+            for (MappingEntry entry : entrys) {
+                HttpServlet.ActionEntry action = innerEntryMap.get(entry.mappingurl);
+                if (action != null) {
+                    action.iothread = entry.iothread;
+                    action.streambody = entry.streambody;
+                    if (entry.cacheseconds > 0) {
+                        action.cache = new HttpResponseCache(entry.cacheseconds, entry.cachelimit, entry.cacheparams, entry.cacheuser, entry.cacheheaders);
+                    }
+                }
+            }
             tmpentrysfield.set(obj, innerEntryMap);
             return obj;
         } catch (Throwable e) {
@@ -2259,9 +2286,15 @@ public final class Rest {
             this.mappingMethod = method;
             this.methods = mapping.methods();
             this.auth = mapping.auth();
+            this.iothread = mapping.iothread();
+            this.streambody = mapping.streambody();
             this.rpconly = serrpconly || mapping.rpconly();
             this.actionid = mapping.actionid();
             this.cacheseconds = mapping.cacheseconds();
+            this.cachelimit = mapping.cachelimit();
+            this.cacheparams = mapping.cacheparams();
+            this.cacheuser = mapping.cacheuser();
+            this.cacheheaders = mapping.cacheheaders();
             this.comment = mapping.comment();
             boolean pound = false;
             Parameter[] params = method.getParameters();
@@ -2297,10 +2330,22 @@ public final class Rest {
 
         public final boolean auth;
 
+        public final boolean iothread;
+
+        public final boolean streambody;
+
         public final int actionid;
 
         public final int cacheseconds;
 
+        public final int cachelimit;
+
+        public final boolean cacheparams;
+
+        public final boolean cacheuser;
+
+        public final String[] cacheheaders;
+
         public final boolean existsPound;  //是否包含#的参数
 
         String mappingurl; //在生成方法时赋值， 供 _createRestActionEntry 使用
@@ -60,6 +60,20 @@ public @interface RestMapping {
      */
     boolean auth() default true;
 
+    /**
+     * 是否在IO线程中直接执行, 方法内不能有阻塞操作, 对应&#64;HttpMapping.iothread
+     *
+     * @return boolean
+     */
+    boolean iothread() default false;
+
+    /**
+     * 是否流式读取请求body, 不受maxbody限制, 对应&#64;HttpMapping.streambody
+     *
+     * @return boolean
+     */
+    boolean streambody() default false;
+
     /**
      * 操作ID值，鉴权时用到, 对应&#64;HttpMapping.actionid
      *
@@ -74,6 +88,34 @@ public @interface RestMapping {
      */
     int cacheseconds() default 0;
 
+    /**
+     * 结果缓存的最大条目数, 对应&#64;HttpMapping.cachelimit
+     *
+     * @return int
+     */
+    int cachelimit() default 1024;
+
+    /**
+     * 结果缓存的key是否包含请求参数, 对应&#64;HttpMapping.cacheparams
+     *
+     * @return boolean
+     */
+    boolean cacheparams() default true;
+
+    /**
+     * 结果缓存的key是否包含当前用户ID, 对应&#64;HttpMapping.cacheuser
+     *
+     * @return boolean
+     */
+    boolean cacheuser() default false;
+
+    /**
+     * 结果缓存的key包含的header名, 对应&#64;HttpMapping.cacheheaders
+     *
+     * @return String[]
+     */
+    String[] cacheheaders() default {};
+
     /**
      * 允许方法(不区分大小写),如:GET/POST/PUT,为空表示允许所有方法, 对应&#64;HttpMapping.methods
      *
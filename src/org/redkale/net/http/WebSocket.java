@@ -15,7 +15,6 @@ import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.Stream;
-import java.util.zip.*;
 import org.redkale.convert.Convert;
 import org.redkale.net.AsyncConnection;
 import org.redkale.util.Comment;
@@ -53,6 +52,9 @@ public abstract class WebSocket<G extends Serializable, T> {
     @Comment("异常数据强制关闭")
     public static final int CLOSECODE_ILLPACKET = 3004;
 
+    @Comment("待发送消息队列已满强制关闭")
+    public static final int CLOSECODE_SENDQUEUEFULL = 3005;
+
     //---------------------------- RETCODE --------------------------------
     @Comment("消息不合法")
     public static final int RETCODE_SEND_ILLPACKET = 1 << 1; //2
@@ -81,6 +83,9 @@ public abstract class WebSocket<G extends Serializable, T> {
     @Comment("WebSocket将延迟发送")
     public static final int RETCODE_DEAYSEND = 1 << 9; //512
 
+    @Comment("待发送消息队列已满, 消息被丢弃或被同key的新消息合并")
+    public static final int RETCODE_SENDDROPPED = 1 << 10; //1024
+
     WebSocketEngine _engine; //不可能为空 
 
     //WebSocketRunner _runner; //不可能为空 
@@ -108,13 +113,12 @@ public abstract class WebSocket<G extends Serializable, T> {
 
     java.lang.reflect.Type _messageTextType; //不可能为空
 
-    Deflater deflater; //压缩
-
-    Inflater inflater; //解压
+    WebSocketDeflate.Context _deflate; //permessage-deflate压缩上下文, 可能为空
 
     long createtime = System.currentTimeMillis();
 
-    List<WebSocketPacket> delayPackets;
+    //连接建立前的待发送消息, 读写需在synchronized(this)内
+    volatile List<WebSocketPacket> delayPackets;
 
     private Map<String, Object> attributes = new HashMap<>(); //非线程安全
 
@@ -124,9 +128,11 @@ public abstract class WebSocket<G extends Serializable, T> {
 
     long lastSendTime;
 
+    ScheduledFuture<?> _keepaliveFuture; //keepalive定时任务, 可能为空
+
     boolean initiateClosed; //收到客户端发送的CLOSE消息
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     protected WebSocket() {
     }
@@ -236,11 +242,7 @@ public abstract class WebSocket<G extends Serializable, T> {
      * @return 0表示成功， 非0表示错误码
      */
     CompletableFuture<Integer> sendPacket(WebSocketPacket packet) {
-        if (this._writeHandler == null) {
-            if (delayPackets == null) delayPackets = new ArrayList<>();
-            delayPackets.add(packet);
-            return CompletableFuture.completedFuture(RETCODE_DEAYSEND);
-        }
+        if (addDelayPacket(packet)) return CompletableFuture.completedFuture(RETCODE_DEAYSEND);
         CompletableFuture<Integer> rs = this._writeHandler.send(packet);
         if (_engine.logger.isLoggable(Level.FINER) && packet != WebSocketPacket.DEFAULT_PING_PACKET) {
             _engine.logger.finer("userid:" + getUserid() + " send websocket message(" + packet + ")" + " on " + this);
@@ -248,6 +250,44 @@ public abstract class WebSocket<G extends Serializable, T> {
         return rs == null ? CompletableFuture.completedFuture(RETCODE_WSOCKET_CLOSED) : rs;
     }
 
+    //连接未建立或待发送消息尚未输出时加入delayPackets, 返回false表示可直接输出
+    private boolean addDelayPacket(WebSocketPacket packet) {
+        if (this._writeHandler != null && this.delayPackets == null) return false;
+        synchronized (this) {
+            if (this._writeHandler != null && this.delayPackets == null) return false;
+            if (this.delayPackets == null) this.delayPackets = new ArrayList<>();
+            this.delayPackets.add(packet);
+            return true;
+        }
+    }
+
+    /**
+     * 连接建立后输出delayPackets中的消息
+     *
+     * @return 没有待发送的消息时返回null
+     */
+    CompletableFuture<Integer> sendDelayPackets() {
+        synchronized (this) {
+            List<WebSocketPacket> packets = this.delayPackets;
+            if (packets == null) return null;
+            this.delayPackets = null;
+            return this._writeHandler.send(packets.toArray(new WebSocketPacket[packets.size()]));
+        }
+    }
+
+    /**
+     * 群发时给自身发送已编码的共享帧, 结果汇总到future中, 不单独创建future
+     *
+     * @param future WebSocketBroadcastFuture
+     */
+    void sendBroadcast(WebSocketWriteHandler.WebSocketBroadcastFuture future) {
+        if (addDelayPacket(future.packets[0])) {
+            future.release(RETCODE_DEAYSEND);
+            return;
+        }
+        this._writeHandler.send(future);
+    }
+
     //----------------------------------------------------------------
     /**
      * 给指定userid的WebSocket节点发送 二进制消息/文本消息/JavaBean对象消息
@@ -853,6 +893,16 @@ public abstract class WebSocket<G extends Serializable, T> {
         return this._engine.logger;
     }
 
+    /**
+     * 获取待发送消息队列的长度， 不含正在输出的消息
+     *
+     * @return int
+     */
+    public int getSendQueueSize() {
+        WebSocketWriteHandler handler = this._writeHandler;
+        return handler == null ? 0 : handler.queueSize.get();
+    }
+
     /**
      * 获取最后一次发送消息的时间
      *
@@ -884,8 +934,6 @@ public abstract class WebSocket<G extends Serializable, T> {
      * 显式地关闭WebSocket
      */
     public final void close() {
-        if (this.deflater != null) this.deflater.end();
-        if (this.inflater != null) this.inflater.end();
         CompletableFuture<Void> future = kill(CLOSECODE_SERVERCLOSE, "user close");
         if (future != null) future.join();
     }
@@ -896,9 +944,12 @@ public abstract class WebSocket<G extends Serializable, T> {
         synchronized (this) {
             if (closed) return null;
             closed = true;
+            if (_deflate != null) _deflate.release();
+            if (_keepaliveFuture != null) _keepaliveFuture.cancel(false);
             if (_channel == null) return null;
             CompletableFuture<Void> future = _engine.removeLocalThenDisconnect(this);
             _channel.dispose();
+            if (_writeHandler != null) _writeHandler.clearQueue(RETCODE_WSOCKET_CLOSED);
             CompletableFuture closeFuture = onClose(code, reason);
             if (closeFuture == null) return future;
             return CompletableFuture.allOf(future, closeFuture);
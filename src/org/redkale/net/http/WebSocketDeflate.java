@@ -0,0 +1,334 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+import org.redkale.util.*;
+
+/**
+ * WebSocket的permessage-deflate扩展(RFC 7692) <br>
+ * 默认与客户端协商server_no_context_takeover与client_no_context_takeover， 每条消息独立压缩/解压，
+ * Deflater与Inflater放在有上限的对象池中复用， 不随连接数与线程数增长; 群发消息只压缩一次， 所有no_context_takeover的连接共享压缩后的帧。 <br>
+ * 配置了contextmemory时， 在总量内的连接可保留独占的压缩上下文(context_takeover)以获得更高的压缩率， 超出后的连接仍使用no_context_takeover。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.4.0
+ */
+public final class WebSocketDeflate {
+
+    //独占压缩上下文的连接占用的native内存估算值: Deflater约256K(windowBits=15, memLevel=8)， Inflater约44K
+    static final int CONTEXT_MEMORY = 300 * 1024;
+
+    //SYNC_FLUSH输出末尾的空块, 发送时去掉, 解压时补上
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    private final int level;
+
+    //小于该长度的消息不压缩
+    private final int threshold;
+
+    //独占压缩上下文的连接可占用的native内存总量， 为0表示所有连接都使用no_context_takeover
+    private final long contextMemory;
+
+    //单条消息解压后的最大长度， 小于1表示无限制
+    private final int maxInflateLength;
+
+    private final AtomicLong usedContextMemory = new AtomicLong();
+
+    //no_context_takeover连接共用的Deflater/Inflater， 池满时归还的对象直接释放native内存， destroy时释放池中所有对象
+    private final ArrayBlockingQueue<Deflater> deflaterPool;
+
+    private final ArrayBlockingQueue<Inflater> inflaterPool;
+
+    private volatile boolean destroyed;
+
+    //按线程复用的临时缓冲只占用堆内存， 随线程回收
+    private final ThreadLocal<byte[]> threadChunk = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final ThreadLocal<ByteArray> threadCompressBytes = ThreadLocal.withInitial(ByteArray::new);
+
+    public WebSocketDeflate(int level, int threshold, long contextMemory, int maxInflateLength) {
+        this.level = level;
+        this.threshold = threshold;
+        this.contextMemory = contextMemory;
+        this.maxInflateLength = maxInflateLength;
+        int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+        this.deflaterPool = new ArrayBlockingQueue<>(poolSize);
+        this.inflaterPool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    static WebSocketDeflate create(AnyValue props) {
+        int level = props == null ? Deflater.DEFAULT_COMPRESSION : props.getIntValue("deflatelevel", Deflater.DEFAULT_COMPRESSION);
+        int threshold = props == null ? 256 : props.getIntValue("deflatethreshold", 256);
+        long contextMemory = HttpResourceServlet.parseLenth(props == null ? null : props.getValue("deflatecontextmemory"), 0L);
+        int maxInflateLength = (int) HttpResourceServlet.parseLenth(props == null ? null : props.getValue("deflatemaxinflate"), 4 * 1024 * 1024L);
+        return new WebSocketDeflate(Math.min(level, Deflater.BEST_COMPRESSION), threshold, contextMemory, maxInflateLength);
+    }
+
+    /**
+     * 协商permessage-deflate， 返回响应头Sec-WebSocket-Extensions的值与对应的连接压缩上下文
+     *
+     * @param extensions 请求头Sec-WebSocket-Extensions
+     *
+     * @return Context， 为null表示不启用压缩
+     */
+    Context negotiate(String extensions) {
+        if (extensions == null || extensions.isEmpty()) return null;
+        for (String offer : extensions.split(",")) {
+            String[] items = offer.split(";");
+            if (!"permessage-deflate".equalsIgnoreCase(items[0].trim())) continue;
+            boolean serverNoContext = false;
+            boolean clientNoContext = false;
+            boolean acceptable = true;
+            for (int i = 1; i < items.length; i++) {
+                String item = items[i].trim();
+                int pos = item.indexOf('=');
+                String name = (pos > 0 ? item.substring(0, pos) : item).trim().toLowerCase();
+                String value = pos > 0 ? item.substring(pos + 1).trim().replace("\"", "") : null;
+                if ("server_no_context_takeover".equals(name)) {
+                    serverNoContext = true;
+                } else if ("client_no_context_takeover".equals(name)) {
+                    clientNoContext = true;
+                } else if ("server_max_window_bits".equals(name)) {
+                    //java.util.zip无法指定窗口大小, 只能接受15
+                    if (value == null || !"15".equals(value)) acceptable = false;
+                } else if (!"client_max_window_bits".equals(name)) { //client_max_window_bits无需响应, Inflater可解压任意窗口
+                    acceptable = false;
+                }
+            }
+            if (!acceptable) continue;
+            boolean takeover = (!serverNoContext || !clientNoContext) && reserveContextMemory();
+            if (!takeover) {
+                serverNoContext = true;
+                clientNoContext = true;
+            }
+            return new Context(this, !serverNoContext, !clientNoContext, "permessage-deflate"
+                + (serverNoContext ? "; server_no_context_takeover" : "") + (clientNoContext ? "; client_no_context_takeover" : ""));
+        }
+        return null;
+    }
+
+    private boolean reserveContextMemory() {
+        for (;;) {
+            long used = usedContextMemory.get();
+            if (used + CONTEXT_MEMORY > contextMemory) return false;
+            if (usedContextMemory.compareAndSet(used, used + CONTEXT_MEMORY)) return true;
+        }
+    }
+
+    //是否需要压缩, 控制帧与较短的消息不压缩
+    boolean compressible(WebSocketPacket packet) {
+        return (packet.type == WebSocketPacket.FrameType.TEXT || packet.type == WebSocketPacket.FrameType.BINARY)
+            && packet.payload != null && packet.payload.length >= threshold;
+    }
+
+    /**
+     * 群发时no_context_takeover连接共享的压缩帧， 每个packet只压缩一次
+     *
+     * @param packet 已编码共享帧的WebSocketPacket
+     *
+     * @return 只读的帧数据
+     */
+    ByteBuffer sharedFrame(WebSocketPacket packet) {
+        if (!compressible(packet)) return packet.frame;
+        ByteBuffer frame = packet.deflateFrame;
+        if (frame != null) return frame;
+        synchronized (packet) {
+            if (packet.deflateFrame == null) {
+                ByteArray array = new ByteArray(packet.payload.length / 2 + 16);
+                encodeFrame(array, packet, null);
+                packet.deflateFrame = ByteBuffer.wrap(array.content(), 0, array.length()).slice().asReadOnlyBuffer();
+            }
+            return packet.deflateFrame;
+        }
+    }
+
+    //压缩payload并编码成RSV1置位的帧写入array, deflater为null时从对象池中借用Deflater
+    void encodeFrame(ByteArray array, WebSocketPacket packet, Deflater deflater) {
+        ByteArray compressed = threadCompressBytes.get();
+        compressed.clear();
+        if (deflater == null) {
+            Deflater d = deflaterPool.poll();
+            if (d == null) d = new Deflater(level, true);
+            try {
+                compress(d, packet.payload, compressed);
+            } finally {
+                d.reset();
+                if (destroyed || !deflaterPool.offer(d)) d.end();
+            }
+        } else {
+            compress(deflater, packet.payload, compressed);
+        }
+        WebSocketWriteHandler.encodeFrame(array, (byte) (packet.type.getValue() | 0x80 | 0x40), compressed.content(), 0, compressed.length());
+    }
+
+    private void compress(Deflater deflater, byte[] payload, ByteArray out) {
+        byte[] chunk = threadChunk.get();
+        deflater.setInput(payload);
+        int count;
+        do {
+            count = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            out.put(chunk, 0, count);
+        } while (count == chunk.length);
+        for (int i = 0; i < TAIL.length; i++) { //去掉末尾的00 00 ff ff
+            out.backCount();
+        }
+    }
+
+    /**
+     * 解压一条消息， inflater为null时从对象池中借用Inflater
+     *
+     * @param inflater Inflater
+     * @param payload  压缩的消息内容
+     * @param out      解压后的内容
+     *
+     * @return 是否成功， 数据格式错误或超过maxInflateLength时返回false
+     */
+    boolean decompress(Inflater inflater, ByteBuffer payload, ByteArray out) {
+        Inflater i = inflater == null ? inflaterPool.poll() : inflater;
+        if (i == null) i = new Inflater(true);
+        try {
+            return inflate(i, payload, out) && inflate(i, ByteBuffer.wrap(TAIL), out);
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            if (inflater == null) {
+                i.reset();
+                if (destroyed || !inflaterPool.offer(i)) i.end();
+            }
+        }
+    }
+
+    private boolean inflate(Inflater inflater, ByteBuffer input, ByteArray out) throws DataFormatException {
+        byte[] chunk = threadChunk.get();
+        inflater.setInput(input);
+        for (;;) {
+            int count = inflater.inflate(chunk);
+            out.put(chunk, 0, count);
+            if (maxInflateLength > 0 && out.length() > maxInflateLength) return false;
+            if (count == 0 && (inflater.needsInput() || inflater.finished())) return true;
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getContextMemory() {
+        return contextMemory;
+    }
+
+    public long getUsedContextMemory() {
+        return usedContextMemory.get();
+    }
+
+    public int getMaxInflateLength() {
+        return maxInflateLength;
+    }
+
+    void destroy() {
+        destroyed = true;
+        Deflater deflater;
+        while ((deflater = deflaterPool.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = inflaterPool.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{level:" + level + ", threshold:" + threshold + ", contextMemory:" + contextMemory
+            + ", usedContextMemory:" + usedContextMemory.get() + ", maxInflateLength:" + maxInflateLength + "}";
+    }
+
+    /**
+     * 连接的压缩上下文， no_context_takeover的一方不占用独占的Deflater/Inflater
+     */
+    static final class Context {
+
+        final WebSocketDeflate deflate;
+
+        //响应头Sec-WebSocket-Extensions的值
+        final String extension;
+
+        //server_no_context_takeover时为null
+        private final Deflater deflater;
+
+        //client_no_context_takeover时为null
+        private final Inflater inflater;
+
+        private final boolean reserved;
+
+        private volatile boolean released;
+
+        Context(WebSocketDeflate deflate, boolean serverTakeover, boolean clientTakeover, String extension) {
+            this.deflate = deflate;
+            this.extension = extension;
+            this.deflater = serverTakeover ? new Deflater(deflate.level, true) : null;
+            this.inflater = clientTakeover ? new Inflater(true) : null;
+            this.reserved = serverTakeover || clientTakeover;
+        }
+
+        //是否可使用群发共享的压缩帧
+        boolean isShared() {
+            return deflater == null;
+        }
+
+        void encodeFrame(ByteArray array, WebSocketPacket packet) {
+            final Deflater d = this.deflater;
+            if (d == null) {
+                deflate.encodeFrame(array, packet, null);
+                return;
+            }
+            synchronized (d) {
+                deflate.encodeFrame(array, packet, released ? null : d); //连接已关闭时输出无意义, 改用对象池中的Deflater
+            }
+        }
+
+        boolean decompress(ByteBuffer payload, ByteArray out) {
+            final Inflater i = this.inflater;
+            if (i == null) return deflate.decompress(null, payload, out);
+            synchronized (i) {
+                if (released) return false;
+                return deflate.decompress(i, payload, out);
+            }
+        }
+
+        void release() {
+            synchronized (this) {
+                if (released) return;
+                released = true;
+            }
+            final Deflater d = this.deflater;
+            final Inflater i = this.inflater;
+            if (d != null) {
+                synchronized (d) {
+                    d.end();
+                }
+            }
+            if (i != null) {
+                synchronized (i) {
+                    i.end();
+                }
+            }
+            if (reserved) deflate.usedContextMemory.addAndGet(-CONTEXT_MEMORY);
+        }
+    }
+}
@@ -7,6 +7,7 @@ package org.redkale.net.http;
 
 import static org.redkale.net.http.WebSocketServlet.DEFAILT_LIVEINTERVAL;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
@@ -14,8 +15,10 @@ import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 import org.redkale.convert.Convert;
-import org.redkale.net.Cryptor;
+import org.redkale.net.*;
 import static org.redkale.net.http.WebSocket.RETCODE_GROUP_EMPTY;
+import org.redkale.net.http.WebSocketPacket.FrameType;
+import org.redkale.net.http.WebSocketWriteHandler.WebSocketBroadcastFuture;
 import static org.redkale.net.http.WebSocketServlet.*;
 import org.redkale.util.*;
 
@@ -28,12 +31,6 @@ import org.redkale.util.*;
  */
 public class WebSocketEngine {
 
-    @Comment("全局自增长ID, 为了确保在一个进程里多个WebSocketEngine定时发送ping时不会同时进行")
-    private static final AtomicInteger sequence = new AtomicInteger();
-
-    @Comment("Engine自增长序号ID")
-    private final int index;
-
     @Comment("当前WebSocket对应的Engine")
     private final String engineid;
 
@@ -58,9 +55,15 @@ public class WebSocketEngine {
     @Comment("当前连接数")
     protected final AtomicInteger currconns = new AtomicInteger();
 
-    @Comment("用于PING的定时器")
+    @Comment("用于PING的定时器, 只用于不属于IO线程的连接, 其他连接使用所属IO线程的时间轮")
     private ScheduledThreadPoolExecutor scheduler;
 
+    @Comment("keepalive到期时发送的PING数")
+    protected final LongAdder keepalivePingCount = new LongAdder();
+
+    @Comment("keepalive到期时因期间有读写而顺延的次数")
+    protected final LongAdder keepaliveDelayCount = new LongAdder();
+
     @Comment("日志")
     protected final Logger logger;
 
@@ -82,6 +85,41 @@ public class WebSocketEngine {
     @Comment("加密解密器")
     protected Cryptor cryptor;
 
+    @Comment("permessage-deflate压缩, 为null表示不启用")
+    protected WebSocketDeflate deflate;
+
+    @Comment("单个连接待发送消息队列的最大长度, 小于1表示无限制")
+    protected int wsmaxqueue;
+
+    @Comment("待发送消息队列已满时的处理策略")
+    protected SendQueuePolicy wsqueuepolicy = SendQueuePolicy.DISCONNECT;
+
+    @Comment("所有连接待发送消息队列的总长度")
+    protected final LongAdder sendQueueSize = new LongAdder();
+
+    @Comment("因队列已满被丢弃的消息数")
+    protected final LongAdder sendDroppedCount = new LongAdder();
+
+    @Comment("被同key新消息合并的消息数")
+    protected final LongAdder sendCoalescedCount = new LongAdder();
+
+    @Comment("因队列已满被强制关闭的连接数")
+    protected final LongAdder sendQueueKilledCount = new LongAdder();
+
+    /**
+     * 待发送消息队列已满时的处理策略
+     */
+    public static enum SendQueuePolicy {
+        @Comment("丢弃队列中最早的消息")
+        DROP_OLDEST,
+        @Comment("丢弃新消息")
+        DROP_NEWEST,
+        @Comment("带coalesceKey的消息入队时替换队列中同key的旧消息, 队列仍满时丢弃最早的消息")
+        COALESCE,
+        @Comment("关闭连接")
+        DISCONNECT;
+    }
+
     protected WebSocketEngine(String engineid, boolean single, HttpContext context, int liveinterval, int wsmaxconns,
         int wsthreads, int wsmaxbody, boolean mergemsg, Cryptor cryptor, WebSocketNode node, Convert sendConvert, Logger logger) {
         this.engineid = engineid;
@@ -96,38 +134,76 @@ public class WebSocketEngine {
         this.mergemsg = mergemsg;
         this.cryptor = cryptor;
         this.logger = logger;
-        this.index = sequence.getAndIncrement();
     }
 
     void init(AnyValue conf) {
         AnyValue props = conf;
         if (conf != null && conf.getAnyValue("properties") != null) props = conf.getAnyValue("properties");
         this.liveinterval = props == null ? (liveinterval < 0 ? DEFAILT_LIVEINTERVAL : liveinterval) : props.getIntValue(WEBPARAM__LIVEINTERVAL, (liveinterval < 0 ? DEFAILT_LIVEINTERVAL : liveinterval));
+        if (props != null) this.wsmaxqueue = props.getIntValue(WEBPARAM__WSMAXQUEUE, this.wsmaxqueue);
+        if (props != null && props.getValue(WEBPARAM__WSQUEUEPOLICY) != null) {
+            this.wsqueuepolicy = SendQueuePolicy.valueOf(props.getValue(WEBPARAM__WSQUEUEPOLICY).trim().toUpperCase().replace('-', '_'));
+        }
         if (liveinterval <= 0) return;
         if (props != null) this.wsmaxconns = props.getIntValue(WEBPARAM__WSMAXCONNS, this.wsmaxconns);
         if (props != null) this.wsthreads = props.getIntValue(WEBPARAM__WSTHREADS, this.wsthreads);
         if (props != null) this.wsmaxbody = props.getIntValue(WEBPARAM__WSMAXBODY, this.wsmaxbody);
-        if (scheduler != null) return;
-        this.scheduler = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
-            final Thread t = new Thread(r, "Redkale-" + engineid + "-WebSocket-LiveInterval-Thread");
-            t.setDaemon(true);
-            return t;
-        });
-        long delay = (liveinterval - System.currentTimeMillis() / 1000 % liveinterval) + index * 5;
-        final int intervalms = liveinterval * 1000;
-        scheduler.scheduleWithFixedDelay(() -> {
-            try {
-                long now = System.currentTimeMillis();
-                getLocalWebSockets().stream().filter(x -> ((now - x.getLastReadTime()) > intervalms && (now - x.getLastSendTime()) > intervalms)).forEach(x -> x.sendPing());
-            } catch (Throwable t) {
-                logger.log(Level.SEVERE, "WebSocketEngine schedule(interval=" + liveinterval + "s) ping error", t);
-            }
-        }, delay, liveinterval, TimeUnit.SECONDS);
-        if (logger.isLoggable(Level.FINEST)) logger.finest(this.getClass().getSimpleName() + "(" + engineid + ")" + " start keeplive(wsmaxconns:" + wsmaxconns + ", delay:" + delay + "s, interval:" + liveinterval + "s) scheduler executor");
+        if (logger.isLoggable(Level.FINEST)) logger.finest(this.getClass().getSimpleName() + "(" + engineid + ")" + " start keeplive(wsmaxconns:" + wsmaxconns + ", interval:" + liveinterval + "s) on io timer");
     }
 
     void destroy(AnyValue conf) {
-        if (scheduler != null) scheduler.shutdownNow();
+        synchronized (this) {
+            if (scheduler != null) scheduler.shutdownNow();
+        }
+        if (deflate != null) deflate.destroy();
+    }
+
+    //首次PING的空闲时间在(liveinterval/2, liveinterval]内随机分布, 避免同时建立的连接在同一时刻发送PING
+    private void startKeepalive(final WebSocket<?, ?> socket) {
+        if (liveinterval <= 0) return;
+        final long intervalms = liveinterval * 1000L;
+        final long delayms = intervalms / 2 + 1 + ThreadLocalRandom.current().nextLong(intervalms - intervalms / 2);
+        scheduleKeepalive(socket, delayms, delayms);
+    }
+
+    //每个连接在所属IO线程的时间轮上只有一个定时任务, 读写时只更新时间, 到期时再判断是否需要PING
+    private void scheduleKeepalive(final WebSocket<?, ?> socket, final long delayms, final long idlems) {
+        if (socket.isClosed()) return;
+        final Runnable task = () -> keepalive(socket, idlems);
+        final AsyncIOThread ioThread = socket._channel.getIOThread();
+        socket._keepaliveFuture = ioThread != null ? ioThread.scheduleTimeout(task, delayms, TimeUnit.MILLISECONDS)
+            : keepaliveScheduler().schedule(task, delayms, TimeUnit.MILLISECONDS);
+    }
+
+    //idlems: 需要PING的最小空闲时间
+    private void keepalive(final WebSocket<?, ?> socket, final long idlems) {
+        if (socket.isClosed()) return;
+        try {
+            final long intervalms = liveinterval * 1000L;
+            final long idle = System.currentTimeMillis() - Math.max(socket.getCreatetime(), Math.max(socket.getLastReadTime(), socket.getLastSendTime()));
+            if (idle >= idlems - 100) { //上一次PING的输出完成时也会更新lastSendTime, 允许100毫秒误差以免每次都顺延
+                keepalivePingCount.increment();
+                socket.sendPing();
+                scheduleKeepalive(socket, intervalms, intervalms);
+            } else { //期间有读写, 顺延到最后一次读写后的liveinterval
+                keepaliveDelayCount.increment();
+                scheduleKeepalive(socket, intervalms - idle, intervalms);
+            }
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "WebSocketEngine keepalive(interval=" + liveinterval + "s) ping error", t);
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor keepaliveScheduler() {
+        if (scheduler == null) {
+            this.scheduler = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+                final Thread t = new Thread(r, "Redkale-" + engineid + "-WebSocket-LiveInterval-Thread");
+                t.setDaemon(true);
+                return t;
+            });
+            this.scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
     }
 
     @Comment("添加WebSocket")
@@ -144,6 +220,7 @@ public class WebSocketEngine {
             currconns.incrementAndGet();
             list.add(socket);
         }
+        startKeepalive(socket);
         if (node != null) return node.connect(socket._userid);
         return null;
     }
@@ -228,65 +305,25 @@ public class WebSocketEngine {
         if (message instanceof CompletableFuture) {
             return ((CompletableFuture) message).thenCompose((json) -> WebSocketEngine.this.broadcastLocalMessage(predicate, json, last));
         }
-//        final boolean more = (!(message instanceof WebSocketPacket) || ((WebSocketPacket) message).sendBuffers == null);
-//        if (more) {
-//            Supplier<ByteBuffer> bufferSupplier = null;
-//            Consumer<ByteBuffer> bufferConsumer = null;
-//            //此处的WebSocketPacket只能是包含payload或bytes内容的，不能包含sendConvert、sendJson、sendBuffers
-//            final WebSocketPacket packet = (message instanceof WebSocketPacket) ? (WebSocketPacket) message
-//                : ((message == null || message instanceof CharSequence || message instanceof byte[])
-//                    ? new WebSocketPacket((Serializable) message, last) : new WebSocketPacket(this.sendConvert, message, last));
-//            //packet.setSendBuffers(packet.encode(context.getBufferSupplier(), context.getBufferConsumer(), cryptor));
-//            CompletableFuture<Integer> future = null;
-//            if (single) {
-//                for (WebSocket websocket : websockets.values()) {
-//                    if (predicate != null && !predicate.test(websocket)) continue;
-//                    if (bufferSupplier == null) {
-//                        bufferSupplier = websocket.getBufferSupplier();
-//                        bufferConsumer = websocket.getBufferConsumer();
-//                        packet.encodePacket(bufferSupplier, bufferConsumer, cryptor);
-//                    }
-//                    future = future == null ? websocket.sendPacket(packet) : future.thenCombine(websocket.sendPacket(packet), (a, b) -> a | (Integer) b);
-//                }
-//            } else {
-//                for (List<WebSocket> list : websockets2.values()) {
-//                    for (WebSocket websocket : list) {
-//                        if (predicate != null && !predicate.test(websocket)) continue;
-//                        if (bufferSupplier == null) {
-//                            bufferSupplier = websocket.getBufferSupplier();
-//                            bufferConsumer = websocket.getBufferConsumer();
-//                            packet.encodePacket(bufferSupplier, bufferConsumer, cryptor);
-//                        }
-//                        future = future == null ? websocket.sendPacket(packet) : future.thenCombine(websocket.sendPacket(packet), (a, b) -> a | (Integer) b);
-//                    }
-//                }
-//            }
-//            final Consumer<ByteBuffer> bufferConsumer0 = bufferConsumer;
-//            if (future != null) future.whenComplete((rs, ex) -> {
-//                    if (packet.sendBuffers != null && bufferConsumer0 != null) {
-//                        for (ByteBuffer buffer : packet.sendBuffers) {
-//                            bufferConsumer0.accept(buffer);
-//                        }
-//                    }
-//                });
-//            return future == null ? CompletableFuture.completedFuture(RETCODE_GROUP_EMPTY) : future;
-//        } else {
-        CompletableFuture<Integer> future = null;
+        final Map<AsyncIOThread, List<WebSocket>> groups = new HashMap<>();
+        int count = 0;
         if (single) {
             for (WebSocket websocket : websockets.values()) {
                 if (predicate != null && !predicate.test(websocket)) continue;
-                future = future == null ? websocket.send(message, last) : future.thenCombine(websocket.send(message, last), (a, b) -> a | (Integer) b);
+                groupByIOThread(groups, websocket);
+                count++;
             }
         } else {
             for (List<WebSocket> list : websockets2.values()) {
                 for (WebSocket websocket : list) {
                     if (predicate != null && !predicate.test(websocket)) continue;
-                    future = future == null ? websocket.send(message, last) : future.thenCombine(websocket.send(message, last), (a, b) -> a | (Integer) b);
+                    groupByIOThread(groups, websocket);
+                    count++;
                 }
             }
         }
-        return future == null ? CompletableFuture.completedFuture(RETCODE_GROUP_EMPTY) : future;
-        //}
+        if (count == 0) return CompletableFuture.completedFuture(RETCODE_GROUP_EMPTY);
+        return broadcastPacket(createBroadcastPacket(message, last), groups, count);
     }
 
     @Comment("给指定用户组发送消息")
@@ -304,51 +341,27 @@ public class WebSocketEngine {
         if (message instanceof CompletableFuture) {
             return ((CompletableFuture) message).thenCompose((json) -> WebSocketEngine.this.sendLocalMessage(json, last, userids));
         }
-//        final boolean more = userids.length > 1;
-//        if (more) {
-//            Supplier<ByteBuffer> bufferSupplier = null;
-//            Consumer<ByteBuffer> bufferConsumer = null;
-//            //此处的WebSocketPacket只能是包含payload或bytes内容的，不能包含sendConvert、sendJson、sendBuffers
-//            final WebSocketPacket packet = (message instanceof WebSocketPacket) ? (WebSocketPacket) message
-//                : ((message == null || message instanceof CharSequence || message instanceof byte[])
-//                    ? new WebSocketPacket((Serializable) message, last) : new WebSocketPacket(this.sendConvert, message, last));
-//            //packet.encode(context.getBufferSupplier(), context.getBufferConsumer(), cryptor);
-//            CompletableFuture<Integer> future = null;
-//            if (single) {
-//                for (Serializable userid : userids) {
-//                    WebSocket websocket = websockets.get(userid);
-//                    if (websocket == null) continue;
-//                    if (bufferSupplier == null) {
-//                        bufferSupplier = websocket.getBufferSupplier();
-//                        bufferConsumer = websocket.getBufferConsumer();
-//                        packet.encodePacket(bufferSupplier, bufferConsumer, cryptor);
-//                    }
-//                    future = future == null ? websocket.sendPacket(packet) : future.thenCombine(websocket.sendPacket(packet), (a, b) -> a | (Integer) b);
-//                }
-//            } else {
-//                for (Serializable userid : userids) {
-//                    List<WebSocket> list = websockets2.get(userid);
-//                    if (list == null) continue;
-//                    for (WebSocket websocket : list) {
-//                        if (bufferSupplier == null) {
-//                            bufferSupplier = websocket.getBufferSupplier();
-//                            bufferConsumer = websocket.getBufferConsumer();
-//                            packet.encodePacket(bufferSupplier, bufferConsumer, cryptor);
-//                        }
-//                        future = future == null ? websocket.sendPacket(packet) : future.thenCombine(websocket.sendPacket(packet), (a, b) -> a | (Integer) b);
-//                    }
-//                }
-//            }
-//            final Consumer<ByteBuffer> bufferConsumer0 = bufferConsumer;
-//            if (future != null) future.whenComplete((rs, ex) -> {
-//                    if (packet.sendBuffers != null && bufferConsumer0 != null) {
-//                        for (ByteBuffer buffer : packet.sendBuffers) {
-//                            bufferConsumer0.accept(buffer);
-//                        }
-//                    }
-//                });
-//            return future == null ? CompletableFuture.completedFuture(RETCODE_GROUP_EMPTY) : future;
-//        } else {
+        if (userids.length > 1) { //多个接收方时只编码一次
+            final Map<AsyncIOThread, List<WebSocket>> groups = new HashMap<>();
+            int count = 0;
+            for (Serializable userid : userids) {
+                if (single) {
+                    WebSocket websocket = websockets.get(userid);
+                    if (websocket == null) continue;
+                    groupByIOThread(groups, websocket);
+                    count++;
+                } else {
+                    List<WebSocket> list = websockets2.get(userid);
+                    if (list == null) continue;
+                    for (WebSocket websocket : list) {
+                        groupByIOThread(groups, websocket);
+                        count++;
+                    }
+                }
+            }
+            if (count == 0) return CompletableFuture.completedFuture(RETCODE_GROUP_EMPTY);
+            return broadcastPacket(createBroadcastPacket(message, last), groups, count);
+        }
         CompletableFuture<Integer> future = null;
         if (single) {
             for (Serializable userid : userids) {
@@ -366,7 +379,39 @@ public class WebSocketEngine {
             }
         }
         return future == null ? CompletableFuture.completedFuture(RETCODE_GROUP_EMPTY) : future;
-        //}
+    }
+
+    //将消息编码成群发用的共享帧, 所有接收方只序列化、编码一次
+    private WebSocketPacket createBroadcastPacket(final Object message, final boolean last) {
+        final WebSocketPacket packet;
+        if (message instanceof WebSocketPacket) {
+            packet = (WebSocketPacket) message;
+        } else if (message instanceof CharSequence) {
+            packet = new WebSocketPacket(FrameType.TEXT, message.toString().getBytes(StandardCharsets.UTF_8), last);
+        } else if (message == null || message instanceof byte[]) {
+            packet = new WebSocketPacket(FrameType.BINARY, (byte[]) message, last);
+        } else {
+            packet = new WebSocketPacket(sendConvert.isBinary() ? FrameType.BINARY : FrameType.TEXT, sendConvert.convertToBytes(message), last);
+        }
+        return WebSocketWriteHandler.encodeSharedFrame(packet);
+    }
+
+    //按连接所属的IO线程分组
+    private static void groupByIOThread(final Map<AsyncIOThread, List<WebSocket>> groups, final WebSocket websocket) {
+        groups.computeIfAbsent(websocket._channel.getIOThread(), t -> new ArrayList<>()).add(websocket);
+    }
+
+    //每个IO线程只执行一次批量输出任务, 所有接收方共享同一个帧与同一个future
+    private CompletableFuture<Integer> broadcastPacket(final WebSocketPacket packet, final Map<AsyncIOThread, List<WebSocket>> groups, final int count) {
+        final WebSocketBroadcastFuture future = new WebSocketBroadcastFuture(packet, count);
+        groups.forEach((ioThread, list) -> {
+            if (ioThread == null) {
+                list.forEach(websocket -> websocket.sendBroadcast(future));
+            } else {
+                ioThread.register(selector -> list.forEach(websocket -> websocket.sendBroadcast(future)));
+            }
+        });
+        return future;
     }
 
     @Comment("给指定WebSocket连接用户发起操作指令")
@@ -428,6 +473,55 @@ public class WebSocketEngine {
         return currconns.get() >= this.wsmaxconns;
     }
 
+    @Comment("获取单个连接待发送消息队列的最大长度")
+    public int getLocalWsmaxqueue() {
+        return this.wsmaxqueue;
+    }
+
+    @Comment("获取待发送消息队列已满时的处理策略")
+    public SendQueuePolicy getLocalWsqueuepolicy() {
+        return this.wsqueuepolicy;
+    }
+
+    @Comment("获取所有连接待发送消息队列的总长度")
+    public long getLocalSendQueueSize() {
+        return sendQueueSize.sum();
+    }
+
+    @Comment("获取待发送消息队列最长的连接的队列长度, 需遍历所有连接")
+    public int getLocalSendQueueMaxSize() {
+        int max = 0;
+        for (WebSocket websocket : getLocalWebSockets()) {
+            max = Math.max(max, websocket.getSendQueueSize());
+        }
+        return max;
+    }
+
+    @Comment("获取因队列已满被丢弃的消息数")
+    public long getLocalSendDroppedCount() {
+        return sendDroppedCount.sum();
+    }
+
+    @Comment("获取被同key新消息合并的消息数")
+    public long getLocalSendCoalescedCount() {
+        return sendCoalescedCount.sum();
+    }
+
+    @Comment("获取因队列已满被强制关闭的连接数")
+    public long getLocalSendQueueKilledCount() {
+        return sendQueueKilledCount.sum();
+    }
+
+    @Comment("获取keepalive发送的PING数")
+    public long getLocalKeepalivePingCount() {
+        return keepalivePingCount.sum();
+    }
+
+    @Comment("获取keepalive因期间有读写而顺延的次数")
+    public long getLocalKeepaliveDelayCount() {
+        return keepaliveDelayCount.sum();
+    }
+
     @Comment("获取所有连接")
     public Collection<WebSocket> getLocalWebSockets() {
         if (single) return websockets.values();
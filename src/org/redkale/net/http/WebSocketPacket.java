@@ -6,6 +6,7 @@
 package org.redkale.net.http;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import org.redkale.net.http.WebSocketPacket.FrameType;
 
@@ -61,6 +62,15 @@ public final class WebSocketPacket {
 
     protected boolean last = true;
 
+    //合并key, 连接的发送队列策略为COALESCE时, 队列中同一key只保留最新的消息, 适用于状态类消息
+    protected String coalesceKey;
+
+    //已编码的完整帧(只读), 群发时所有接收方共享同一份, 输出时各自使用duplicate
+    ByteBuffer frame;
+
+    //frame对应的permessage-deflate压缩帧(只读), 首次输出给no_context_takeover的连接时生成
+    volatile ByteBuffer deflateFrame;
+
     public WebSocketPacket() {
     }
 
@@ -110,6 +120,14 @@ public final class WebSocketPacket {
         this.last = last;
     }
 
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
     public String toSimpleString() {
         if (payload == null) return null;
         return type == FrameType.TEXT ? new String(payload, StandardCharsets.UTF_8) : ("bytes(" + payload.length + ")");
@@ -6,10 +6,9 @@
 package org.redkale.net.http;
 
 import java.util.logging.*;
-import java.nio.ByteBuffer;
+import java.nio.*;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.StandardCharsets;
-import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
@@ -34,23 +33,38 @@ public class WebSocketReadHandler implements CompletionHandler<Integer, ByteBuff
 
     protected final boolean debug;
 
-    protected final List<WebSocketPacket> currPackets = new ArrayList<>();
+    //消息的最大字节数(分包消息按合并后计算), 小于1表示不限制
+    protected final int wsmaxbody;
 
-    protected ByteArray currSeriesMergeMessageBytes;
+    //分包(last=false)消息的合并缓存, 复用同一个ByteArray, 超过RETAIN_BYTES时处理完即释放
+    protected ByteArray currSeriesMergeMessageBytes = new ByteArray();
 
     protected FrameType currSeriesMergeMessageType;
 
-    protected final ByteArray halfFrameBytes = new ByteArray();
+    //分包消息的第一帧rsv1为1, 即permessage-deflate压缩的消息
+    protected boolean currSeriesCompressed;
 
-    protected byte halfFrameOpcode;
+    //permessage-deflate解压后的消息, 复用同一个ByteArray
+    protected ByteArray inflateBytes = new ByteArray();
 
-    protected byte halfFrameCrcode;
+    //跨越多次读取的帧, 包含帧头
+    protected ByteArray halfFrameBytes = new ByteArray();
 
-    protected byte[] halfFrameMasks;
+    //非堆内存的文本消息转String时使用
+    protected ByteArray textBytes = new ByteArray();
 
-    protected int halfFrameStart;
+    //连接复用的缓存超过该容量时在消息处理完后释放, 避免偶尔的大消息使每个连接长期占用峰值内存
+    protected static final int RETAIN_BYTES = 64 * 1024;
 
-    protected int halfFrameLength = -1;
+    protected byte frameOpcode;
+
+    protected int frameMask;
+
+    protected boolean frameMasked;
+
+    protected int frameStart;
+
+    protected int frameLength = -1;
 
     public WebSocketReadHandler(HttpContext context, WebSocket webSocket, BiConsumer<WebSocket, Object> messageConsumer) {
         this.context = context;
@@ -58,6 +72,7 @@ public class WebSocketReadHandler implements CompletionHandler<Integer, ByteBuff
         this.webSocket = webSocket;
         this.logger = context.getLogger();
         this.debug = context.getLogger().isLoggable(Level.FINEST);
+        this.wsmaxbody = webSocket._engine == null ? 0 : webSocket._engine.wsmaxbody;
     }
 
     public void startRead() {
@@ -93,134 +108,138 @@ public class WebSocketReadHandler implements CompletionHandler<Integer, ByteBuff
      * | Payload Data continued |
      * +-----------------------------------------------------------------------+
      *
+     * 完整的帧直接在读缓存中解码并处理, 不复制payload; 跨越多次读取的帧才复制到halfFrameBytes
+     *
      * @param realbuf ByteBuffer
      *
+     * @return false表示连接已关闭， 不可继续读取
      */
-    protected void readDecode(final ByteBuffer realbuf) {
+    protected boolean readDecode(final ByteBuffer realbuf) {
         if (debug && realbuf.remaining() > 6) logger.log(Level.FINEST, "read websocket message's length = " + realbuf.remaining());
-        if (!realbuf.hasRemaining()) return;
-        ByteBuffer buffer = realbuf;
-        byte frameOpcode;
-        byte frameCrcode;
-        byte[] frameMasks;
-        int frameLength;
-        //System.out.println("realbuf读到的长度: " + realbuf.remaining() + ", halfFrameBytes=" + (halfFrameBytes == null ? -1 : halfFrameBytes.length()));
-        if (halfFrameBytes.length() > 0) {  //存在半包
-            int remain = realbuf.remaining();
-            if (halfFrameLength == -1) {
-                int cha = 2 - halfFrameBytes.length();
-                if (remain < cha) { //还是不够2字节
-                    halfFrameBytes.put(realbuf);
-                    return;
+        while (realbuf.hasRemaining()) {
+            if (halfFrameBytes.length() > 0) {  //存在半包
+                if (this.frameLength < 0) { //帧头还不完整
+                    int headerLength = readFrameHeaderLength(halfFrameBytes);
+                    while (headerLength < 0 && realbuf.hasRemaining()) {
+                        halfFrameBytes.put(realbuf.get());
+                        headerLength = readFrameHeaderLength(halfFrameBytes);
+                    }
+                    if (headerLength < 0) return true;
+                    if (!readFrameHeader(ByteBuffer.wrap(halfFrameBytes.content(), 0, halfFrameBytes.length()), 0)) return false;
                 }
-                final byte opcode0 = halfFrameBytes.get(0);   //第一个字节
-                final byte crcode0 = halfFrameBytes.get(1);   //第二个字节
-                byte lengthCode = crcode0;
-                final boolean masked = (lengthCode & 0x80) == 0x80;
-                if (masked) lengthCode ^= 0x80; //mask
-                int minLength = ((lengthCode <= 0x7D) ? 0 : (lengthCode == 0x7E ? 2 : 8)) + (masked ? 4 : 0);
-                cha = minLength + 2 - halfFrameBytes.length();
-                if (remain < cha) { //还不够读取长度值和mask
+                int bulen = this.frameStart + this.frameLength - halfFrameBytes.length(); //还差多少字节
+                if (bulen > realbuf.remaining()) { //不够，继续读取
                     halfFrameBytes.put(realbuf);
-                    return;
-                }
-                int length;
-                if (lengthCode <= 0x7D) { //125  长度<=125
-                    length = lengthCode;
-                } else if (lengthCode == 0x7E) {//0x7E=126  长度:126~65535
-                    length = (int) realbuf.getChar();
-                } else if (lengthCode == 0x7F) {//0x7E=127   长度>65535
-                    length = (int) realbuf.getLong();
-                } else {
-                    throw new RuntimeException("read webSocket packet lengthCode (" + (int) lengthCode + ") error");
-                }
-                byte[] masks0 = null;
-                if (masked) {
-                    masks0 = new byte[4];
-                    realbuf.get(masks0);
+                    return true;
                 }
-                this.halfFrameOpcode = opcode0;
-                this.halfFrameCrcode = crcode0;
-                this.halfFrameMasks = masks0;
-                this.halfFrameStart = 2 + minLength;
-                this.halfFrameLength = length;
-            }
-            //此时必然有halfFrameLength
-            int bulen = halfFrameLength + halfFrameStart - halfFrameBytes.length(); //还差多少字节
-            if (bulen > remain) { //不够，继续读取
-                halfFrameBytes.put(realbuf);
-                return;
-            }
-            halfFrameBytes.put(realbuf, bulen);
-            //此时halfFrameBytes是完整的frame数据            
-            buffer = ByteBuffer.wrap(halfFrameBytes.content(), halfFrameStart, halfFrameBytes.length());
-
-            frameOpcode = this.halfFrameOpcode;
-            frameCrcode = this.halfFrameCrcode;
-            frameMasks = this.halfFrameMasks;
-            frameLength = this.halfFrameLength;
-
-            this.halfFrameBytes.clear();
-            this.halfFrameLength = -1;
-        } else { //第一次就只有几个字节buffer
-            int remain = realbuf.remaining();
-            if (remain < 2) {
-                this.halfFrameBytes.put(realbuf);
-                return;
-            }
-            final byte opcode0 = realbuf.get();   //第一个字节
-            final byte crcode0 = realbuf.get();   //第二个字节
-            byte lengthCode = crcode0;
-            final boolean masked = (lengthCode & 0x80) == 0x80;
-            if (masked) lengthCode ^= 0x80; //mask
-            int minLength = ((lengthCode <= 0x7D) ? 0 : (lengthCode == 0x7E ? 2 : 8)) + (masked ? 4 : 0);
-            if (remain < minLength + 2) { //还不够读取长度值
-                this.halfFrameBytes.put(opcode0, crcode0);
-                this.halfFrameBytes.put(realbuf);
-                return;
-            }
-            int length;
-            if (lengthCode <= 0x7D) { //125  长度<=125
-                length = lengthCode;
-            } else if (lengthCode == 0x7E) {//0x7E=126  长度:126~65535
-                length = (int) realbuf.getChar();
-            } else if (lengthCode == 0x7F) {//0x7E=127   长度>65535
-                length = (int) realbuf.getLong();
+                halfFrameBytes.put(realbuf, bulen);
+                //此时halfFrameBytes是完整的frame数据
+                ByteBuffer buffer = ByteBuffer.wrap(halfFrameBytes.content(), this.frameStart, this.frameLength).slice();
+                if (this.frameMasked) unmask(buffer, 0, this.frameLength, this.frameMask);
+                boolean rs = readFrame(this.frameOpcode, buffer);
+                this.halfFrameBytes = release(this.halfFrameBytes);
+                this.frameLength = -1;
+                if (!rs) return false;
             } else {
-                throw new RuntimeException("read webSocket packet lengthCode (" + (int) lengthCode + ") error");
-            }
-            byte[] masks0 = null;
-            if (masked) {
-                masks0 = new byte[4];
-                realbuf.get(masks0);
-            }
-            int bulen = length + minLength + 2; //还差多少字节
-            if (bulen > remain) { //不够，继续读取
-                this.halfFrameBytes.put(opcode0, crcode0);
-                if (lengthCode <= 0x7D) { //125  长度<=125
-                    this.halfFrameBytes.put((byte) length);
-                } else if (lengthCode == 0x7E) {//0x7E=126  长度:126~65535
-                    this.halfFrameBytes.putChar((char) length);
-                } else if (lengthCode == 0x7F) {//0x7E=127   长度>65535
-                    this.halfFrameBytes.putLong((long) length);
+                final int start = realbuf.position();
+                final int remain = realbuf.remaining();
+                if (remain < 2 || !readFrameHeader(realbuf, start) || remain < this.frameStart + this.frameLength) {
+                    if (remain >= 2 && this.frameLength < 0) return false; //帧头非法
+                    this.frameLength = -1; //帧头在补齐后重新解析
+                    this.halfFrameBytes.put(realbuf);
+                    return true;
                 }
-                if (masks0 != null) this.halfFrameBytes.put(masks0);
-                this.halfFrameBytes.put(realbuf);
-                this.halfFrameOpcode = opcode0;
-                this.halfFrameCrcode = crcode0;
-                this.halfFrameMasks = masks0;
-                this.halfFrameStart = 2 + minLength;
-                this.halfFrameLength = length;
-                return;
+                int payloadStart = start + this.frameStart;
+                if (this.frameMasked) unmask(realbuf, payloadStart, this.frameLength, this.frameMask);
+                ByteBuffer buffer = realbuf.duplicate();
+                buffer.limit(payloadStart + this.frameLength).position(payloadStart);
+                realbuf.position(payloadStart + this.frameLength);
+                boolean rs = readFrame(this.frameOpcode, buffer.slice());
+                this.frameLength = -1;
+                if (!rs) return false;
             }
-            frameOpcode = opcode0;
-            frameCrcode = crcode0;
-            frameMasks = masks0;
-            frameLength = length;
         }
+        return true;
+    }
+
+    //帧头长度, 不足2字节时返回-1, 不足完整帧头时也返回-1
+    private static int readFrameHeaderLength(ByteArray bytes) {
+        if (bytes.length() < 2) return -1;
+        byte lengthCode = bytes.get(1);
+        final boolean masked = (lengthCode & 0x80) == 0x80;
+        if (masked) lengthCode ^= 0x80; //mask
+        int headerLength = 2 + ((lengthCode <= 0x7D) ? 0 : (lengthCode == 0x7E ? 2 : 8)) + (masked ? 4 : 0);
+        return bytes.length() < headerLength ? -1 : headerLength;
+    }
 
-        final boolean last = (frameOpcode & 0B1000_0000) != 0;
-        final FrameType type = FrameType.valueOf(frameOpcode & 0B0000_1111);
+    //从start位置读取帧头, 帧头不完整时frameLength为0且返回false, 帧头非法时frameLength为-1且返回false
+    private boolean readFrameHeader(ByteBuffer buffer, int start) {
+        final int remain = buffer.limit() - start;
+        final byte opcode0 = buffer.get(start);   //第一个字节
+        byte lengthCode = buffer.get(start + 1);   //第二个字节
+        final boolean masked = (lengthCode & 0x80) == 0x80;
+        if (masked) lengthCode ^= 0x80; //mask
+        int headerLength = 2 + ((lengthCode <= 0x7D) ? 0 : (lengthCode == 0x7E ? 2 : 8)) + (masked ? 4 : 0);
+        if (remain < headerLength) { //还不够读取长度值和mask
+            this.frameLength = 0;
+            return false;
+        }
+        long length;
+        if (lengthCode <= 0x7D) { //125  长度<=125
+            length = lengthCode;
+        } else if (lengthCode == 0x7E) {//0x7E=126  长度:126~65535
+            length = buffer.getChar(start + 2);
+        } else {//0x7F=127   长度>65535
+            length = buffer.getLong(start + 2);
+        }
+        if (length < 0 || length > Integer.MAX_VALUE - headerLength) {
+            logger.log(Level.WARNING, "WebSocket(" + webSocket + ") read illegal frame length (" + length + ")");
+            webSocket.kill(CLOSECODE_ILLPACKET, "illegal frame length");
+            this.frameLength = -1;
+            return false;
+        }
+        if (wsmaxbody > 0 && length > wsmaxbody) {
+            logger.log(Level.WARNING, "WebSocket(" + webSocket + ") read frame length (" + length + ") exceeds wsmaxbody (" + wsmaxbody + ")");
+            webSocket.kill(CLOSECODE_ILLPACKET, "frame length exceeds wsmaxbody");
+            this.frameLength = -1;
+            return false;
+        }
+        this.frameOpcode = opcode0;
+        this.frameMasked = masked;
+        if (masked) { //mask按网络字节序组装, 与ByteBuffer的字节序无关
+            int p = start + headerLength - 4;
+            this.frameMask = ((buffer.get(p) & 0xff) << 24) | ((buffer.get(p + 1) & 0xff) << 16) | ((buffer.get(p + 2) & 0xff) << 8) | (buffer.get(p + 3) & 0xff);
+        }
+        this.frameStart = headerLength;
+        this.frameLength = (int) length;
+        return true;
+    }
+
+    /**
+     * 原地解码mask， 每次异或8个字节， 尾部不足8字节的逐字节处理
+     *
+     * @param buffer ByteBuffer
+     * @param start  payload开始位置
+     * @param length payload长度
+     * @param mask   4字节的mask
+     */
+    static void unmask(ByteBuffer buffer, int start, int length, int mask) {
+        final long m = buffer.order() == ByteOrder.BIG_ENDIAN ? mask : Integer.reverseBytes(mask);
+        final long mask8 = (m << 32) | (m & 0xFFFFFFFFL);
+        final int end = start + length;
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ mask8);
+        }
+        for (int k = 0; i < end; i++, k++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ (mask >>> (24 - ((k & 3) << 3)))));
+        }
+    }
+
+    //处理一个完整的帧, payload为已解码mask的内容, 返回false表示连接已关闭
+    protected boolean readFrame(final byte opcode, final ByteBuffer payload) {
+        final boolean last = (opcode & 0B1000_0000) != 0;
+        final FrameType type = FrameType.valueOf(opcode & 0B0000_1111);
         //0x00 表示一个后续帧 
         //0x01 表示一个文本帧 
         //0x02 表示一个二进制帧 
@@ -229,50 +248,139 @@ public class WebSocketReadHandler implements CompletionHandler<Integer, ByteBuff
         //0x9 表示一个ping
         //0xA 表示一个pong
         //0x0B-0F 为以后的控制帧保留
-        final boolean control = (frameOpcode & 0B0000_1000) != 0; //是否控制帧
-        // this.receiveCompress = !control && webSocket.inflater != null && (opcode & 0B0100_0000) != 0; //rsv1 为 1
-
-        if (type == FrameType.CLOSE) {
-            if (debug) logger.log(Level.FINEST, " receive close command from websocket client");
-        }
-        if (type == null) {
-            logger.log(Level.SEVERE, " receive unknown frametype(opcode=" + (frameOpcode & 0B0000_1111) + ") from websocket client");
+        final boolean compressed = (opcode & 0B0100_0000) != 0; //rsv1 为 1 表示permessage-deflate压缩的消息, 只能出现在消息的第一帧
+        if (compressed && (webSocket._deflate == null || (type != FrameType.TEXT && type != FrameType.BINARY))) {
+            logger.log(Level.WARNING, "WebSocket(" + webSocket + ") receive rsv1 frame without permessage-deflate or on frame-type : " + (opcode & 0B0000_1111));
+            webSocket.kill(CLOSECODE_ILLPACKET, "received illegal rsv1 frame");
+            return false;
         }
         final boolean checkrsv = false;//暂时不校验
-        if (checkrsv && (frameOpcode & 0B0111_0000) != 0) {
-            if (debug) logger.log(Level.FINE, "rsv1 rsv2 rsv3 must be 0, but not (" + frameOpcode + ")");
-            return; //rsv1 rsv2 rsv3 must be 0     
+        if (checkrsv && (opcode & 0B0011_0000) != 0) {
+            if (debug) logger.log(Level.FINE, "rsv2 rsv3 must be 0, but not (" + opcode + ")");
+            return true; //rsv2 rsv3 must be 0     
         }
-        byte[] content = new byte[frameLength];
-        if (frameLength > 0) {
-            buffer.get(content);
-            int mi = 0;
-            if (frameMasks != null) {
-                for (int i = 0; i < content.length; i++) {
-                    content[i] = (byte) (content[i] ^ frameMasks[mi++ % 4]);
-                }
+        if (type == FrameType.TEXT || type == FrameType.BINARY) {
+            if (last) {
+                ByteBuffer message = compressed ? inflate(payload) : payload;
+                if (message == null) return false;
+                onMessage(type, message);
+                if (compressed) this.inflateBytes = release(this.inflateBytes);
+            } else { //分包消息的第一帧
+                this.currSeriesMergeMessageBytes.clear();
+                this.currSeriesMergeMessageBytes.put(payload);
+                this.currSeriesMergeMessageType = type;
+                this.currSeriesCompressed = compressed;
             }
-        }
-        if (!last && (type == FrameType.TEXT || type == FrameType.BINARY)) {
-            this.currSeriesMergeMessageBytes = new ByteArray();
-            this.currSeriesMergeMessageBytes.put(content);
-            this.currSeriesMergeMessageType = type;
         } else if (type == FrameType.SERIES) {
-            this.currSeriesMergeMessageBytes.put(content);
-        } else if (last && this.currSeriesMergeMessageBytes != null) {
-            this.currSeriesMergeMessageBytes.put(content);
-            byte[] bs = this.currSeriesMergeMessageBytes.getBytes();
-            FrameType t = this.currSeriesMergeMessageType;
-            this.currSeriesMergeMessageBytes = null;
-            this.currSeriesMergeMessageType = null;
-            currPackets.add(new WebSocketPacket(t, bs, last));
+            if (this.currSeriesMergeMessageType == null) {
+                logger.log(Level.WARNING, "WebSocket(" + webSocket + ") receive series frame without first frame");
+                webSocket.kill(CLOSECODE_ILLPACKET, "received series frame without first frame");
+                return false;
+            }
+            if (wsmaxbody > 0 && this.currSeriesMergeMessageBytes.length() + payload.remaining() > wsmaxbody) {
+                logger.log(Level.WARNING, "WebSocket(" + webSocket + ") read series message exceeds wsmaxbody (" + wsmaxbody + ")");
+                this.currSeriesMergeMessageBytes = release(this.currSeriesMergeMessageBytes);
+                webSocket.kill(CLOSECODE_ILLPACKET, "series message exceeds wsmaxbody");
+                return false;
+            }
+            this.currSeriesMergeMessageBytes.put(payload);
+            if (last) {
+                FrameType t = this.currSeriesMergeMessageType;
+                this.currSeriesMergeMessageType = null;
+                ByteBuffer message = ByteBuffer.wrap(currSeriesMergeMessageBytes.content(), 0, currSeriesMergeMessageBytes.length());
+                if (this.currSeriesCompressed) message = inflate(message);
+                if (message == null) return false;
+                onMessage(t, message);
+                this.currSeriesMergeMessageBytes = release(this.currSeriesMergeMessageBytes);
+                if (this.currSeriesCompressed) this.inflateBytes = release(this.inflateBytes);
+            }
+        } else if (type == FrameType.PING) {
+            try {
+                webSocket.onPing(toBytes(payload));
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "WebSocket onPing error (" + payload.remaining() + " bytes)", e);
+            }
+        } else if (type == FrameType.PONG) {
+            try {
+                //if (debug) logger.log(Level.FINEST, "WebSocket onMessage by PONG FrameType");
+                webSocket.onPong(toBytes(payload));
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "WebSocket(" + webSocket + ") onPong error (" + payload.remaining() + " bytes)", e);
+            }
+        } else if (type == FrameType.CLOSE) {
+            webSocket.initiateClosed = true;
+            if (debug) logger.log(Level.FINEST, "WebSocket(" + webSocket + ") onMessage by CLOSE FrameType");
+            webSocket.kill(CLOSECODE_CLIENTCLOSE, "received CLOSE frame-type message");
+            return false;
+        } else {
+            logger.log(Level.WARNING, "WebSocket(" + webSocket + ") onMessage by unknown FrameType : " + (opcode & 0B0000_1111));
+            webSocket.kill(CLOSECODE_ILLPACKET, "received unknown frame-type message");
+            return false;
+        }
+        return true;
+    }
+
+    //解压permessage-deflate消息, 返回null表示数据错误或超过解压长度限制, 连接已关闭
+    private ByteBuffer inflate(final ByteBuffer payload) {
+        inflateBytes.clear();
+        if (!webSocket._deflate.decompress(payload, inflateBytes)) {
+            logger.log(Level.WARNING, "WebSocket(" + webSocket + ") inflate message error or exceed " + webSocket._deflate.deflate.getMaxInflateLength() + " bytes");
+            inflateBytes = release(inflateBytes);
+            webSocket.kill(CLOSECODE_ILLPACKET, "inflate message error");
+            return null;
+        }
+        return ByteBuffer.wrap(inflateBytes.content(), 0, inflateBytes.length());
+    }
+
+    //消息处理, RestWebSocket与JSON解析直接读取payload, 无需中间byte[]
+    protected void onMessage(final FrameType type, final ByteBuffer payload) {
+        if (type == FrameType.TEXT) {
+            try {
+                if (restMessageConsumer != null) { //主要供RestWebSocket使用
+                    restMessageConsumer.accept(webSocket, convertFrom(webSocket.getTextConvert(), payload));
+                } else if (payload.hasArray()) {
+                    webSocket.onMessage(new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8), true);
+                } else {
+                    textBytes.clear();
+                    textBytes.put(payload);
+                    String text = textBytes.toString(StandardCharsets.UTF_8);
+                    textBytes = release(textBytes);
+                    webSocket.onMessage(text, true);
+                }
+            } catch (Throwable e) {
+                logger.log(Level.SEVERE, "WebSocket onTextMessage error (" + payload.remaining() + " bytes)", e);
+            }
         } else {
-            currPackets.add(new WebSocketPacket(type, content, last));
+            try {
+                if (restMessageConsumer != null) { //主要供RestWebSocket使用
+                    restMessageConsumer.accept(webSocket, convertFrom(webSocket.getBinaryConvert(), payload));
+                } else {
+                    webSocket.onMessage(toBytes(payload), true);
+                }
+            } catch (Throwable e) {
+                logger.log(Level.SEVERE, "WebSocket onBinaryMessage error (" + payload.remaining() + " bytes)", e);
+            }
         }
-        buffer = realbuf;
-        while (buffer.hasRemaining()) {
-            readDecode(realbuf);
+    }
+
+    //清空复用的缓存, 容量超过RETAIN_BYTES时换成新的ByteArray
+    private static ByteArray release(final ByteArray array) {
+        if (array.content().length > RETAIN_BYTES) return new ByteArray();
+        array.clear();
+        return array;
+    }
+
+    private Object convertFrom(final Convert convert, final ByteBuffer payload) {
+        if (payload.hasArray()) {
+            return convert.convertFrom(webSocket._messageTextType, payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
         }
+        return convert.convertFrom(webSocket._messageTextType, payload);
+    }
+
+    private static byte[] toBytes(final ByteBuffer payload) {
+        byte[] bs = new byte[payload.remaining()];
+        payload.get(bs);
+        return bs;
     }
 
     @Override
@@ -284,65 +392,16 @@ public class WebSocketReadHandler implements CompletionHandler<Integer, ByteBuff
         }
         try {
             webSocket.lastReadTime = System.currentTimeMillis();
-            currPackets.clear();
-
             readBuffer.flip();
-            readDecode(readBuffer);
-            readBuffer.clear();
-            webSocket._channel.setReadBuffer(readBuffer);
+            boolean alive = true;
             try {
-                //消息处理
-                for (final WebSocketPacket packet : currPackets) {
-                    if (packet.type == FrameType.TEXT) {
-                        try {
-                            Convert convert = webSocket.getTextConvert();
-                            if (restMessageConsumer != null) { //主要供RestWebSocket使用
-                                restMessageConsumer.accept(webSocket, convert.convertFrom(webSocket._messageTextType, packet.getPayload()));
-                            } else {
-                                webSocket.onMessage(packet.getPayload() == null ? null : new String(packet.getPayload(), StandardCharsets.UTF_8), packet.last);
-                            }
-                        } catch (Throwable e) {
-                            logger.log(Level.SEVERE, "WebSocket onTextMessage error (" + packet + ")", e);
-                        }
-                    } else if (packet.type == FrameType.BINARY) {
-                        try {
-                            Convert convert = webSocket.getBinaryConvert();
-                            if (restMessageConsumer != null) { //主要供RestWebSocket使用
-                                restMessageConsumer.accept(webSocket, convert.convertFrom(webSocket._messageTextType, packet.getPayload()));
-                            } else {
-                                webSocket.onMessage(packet.getPayload(), packet.last);
-                            }
-                        } catch (Throwable e) {
-                            logger.log(Level.SEVERE, "WebSocket onBinaryMessage error (" + packet + ")", e);
-                        }
-                    } else if (packet.type == FrameType.PING) {
-                        try {
-                            webSocket.onPing(packet.getPayload());
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE, "WebSocket onPing error (" + packet + ")", e);
-                        }
-                    } else if (packet.type == FrameType.PONG) {
-                        try {
-                            //if (debug) logger.log(Level.FINEST, "WebSocket onMessage by PONG FrameType : " + packet);
-                            webSocket.onPong(packet.getPayload());
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE, "WebSocket(" + webSocket + ") onPong error (" + packet + ")", e);
-                        }
-                    } else if (packet.type == FrameType.CLOSE) {
-                        webSocket.initiateClosed = true;
-                        if (debug) logger.log(Level.FINEST, "WebSocket(" + webSocket + ") onMessage by CLOSE FrameType : " + packet);
-                        webSocket.kill(CLOSECODE_CLIENTCLOSE, "received CLOSE frame-type message");
-                        return;
-                    } else {
-                        logger.log(Level.WARNING, "WebSocket(" + webSocket + ") onMessage by unknown FrameType : " + packet);
-                        webSocket.kill(CLOSECODE_ILLPACKET, "received unknown frame-type message");
-                        return;
-                    }
-                }
+                alive = readDecode(readBuffer); //帧在读缓存中原地解码并处理
             } catch (Throwable t) {
                 logger.log(Level.WARNING, "WebSocket(" + webSocket + ") onMessage error", t);
             }
-            webSocket._channel.read(this);
+            readBuffer.clear();
+            webSocket._channel.setReadBuffer(readBuffer);
+            if (alive) webSocket._channel.read(this);
         } catch (Exception e) {
             logger.log(Level.WARNING, "WebSocket(" + webSocket + ") onMessage by received error", e);
             webSocket.kill(CLOSECODE_WSEXCEPTION, "websocket-received error");
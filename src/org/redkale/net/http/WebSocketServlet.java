@@ -15,7 +15,6 @@ import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.*;
 import java.util.logging.*;
-import java.util.zip.*;
 import javax.annotation.*;
 import org.redkale.convert.Convert;
 import org.redkale.mq.MessageAgent;
@@ -61,9 +60,30 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
     @Comment("接收客户端的分包(last=false)消息时是否自动合并包")
     public static final String WEBPARAM__WSMERGEMSG = "wsmergemsg";
 
+    @Comment("单个连接待发送消息队列的最大长度, 小于1表示无限制")
+    public static final String WEBPARAM__WSMAXQUEUE = "wsmaxqueue";
+
+    @Comment("待发送消息队列已满时的处理策略: DROP_OLDEST/DROP_NEWEST/COALESCE/DISCONNECT, 默认值: DISCONNECT")
+    public static final String WEBPARAM__WSQUEUEPOLICY = "wsqueuepolicy";
+
     @Comment("加密解密器")
     public static final String WEBPARAM__CRYPTOR = "cryptor";
 
+    @Comment("是否启用permessage-deflate压缩")
+    public static final String WEBPARAM__PERMESSAGEDEFLATE = "permessagedeflate";
+
+    @Comment("permessage-deflate的压缩级别, 默认值: -1")
+    public static final String WEBPARAM__DEFLATELEVEL = "deflatelevel";
+
+    @Comment("permessage-deflate压缩的最小消息长度, 默认值: 256")
+    public static final String WEBPARAM__DEFLATETHRESHOLD = "deflatethreshold";
+
+    @Comment("允许独占压缩上下文(context_takeover)的连接可占用的内存总量, 每个连接约300K, 为0表示所有连接都使用no_context_takeover, 可带K/M/G单位")
+    public static final String WEBPARAM__DEFLATECONTEXTMEMORY = "deflatecontextmemory";
+
+    @Comment("permessage-deflate单条消息解压后的最大长度, 默认值: 4M, 小于1表示无限制, 可带K/M/G单位")
+    public static final String WEBPARAM__DEFLATEMAXINFLATE = "deflatemaxinflate";
+
     @Comment("WebScoket服务器给客户端进行ping操作的默认间隔时间, 单位: 秒")
     public static final int DEFAILT_LIVEINTERVAL = 15;
 
@@ -99,6 +119,7 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
     //同RestWebSocket.cryptor, 变量名不可改， 被Rest.createRestWebSocketServlet用到
     protected Cryptor cryptor;
 
+    //是否启用permessage-deflate压缩, 可被properties中的permessagedeflate覆盖
     protected boolean permessageDeflate = false;
 
     protected MessageAgent messageAgent;
@@ -152,9 +173,9 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
         }
         if (this.node.sendConvert == null) this.node.sendConvert = this.sendConvert;
         if (this.messageAgent != null) this.node.messageAgent = this.messageAgent;
+        AnyValue props = conf;
+        if (conf != null && conf.getAnyValue("properties") != null) props = conf.getAnyValue("properties");
         {
-            AnyValue props = conf;
-            if (conf != null && conf.getAnyValue("properties") != null) props = conf.getAnyValue("properties");
             if (props != null) {
                 String cryptorClass = props.getValue(WEBPARAM__CRYPTOR);
                 if (cryptorClass != null && !cryptorClass.isEmpty()) {
@@ -170,6 +191,8 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
         //存在WebSocketServlet，则此WebSocketNode必须是本地模式Service
         this.node.localEngine = new WebSocketEngine("WebSocketEngine-" + addr.getHostString() + ":" + addr.getPort() + "-[" + resourceName() + "]",
             this.single, context, liveinterval, wsmaxconns, wsthreads, wsmaxbody, mergemsg, this.cryptor, this.node, this.sendConvert, logger);
+        if (props != null) this.permessageDeflate = props.getBoolValue(WEBPARAM__PERMESSAGEDEFLATE, this.permessageDeflate);
+        if (this.permessageDeflate) this.node.localEngine.deflate = WebSocketDeflate.create(props);
         this.node.init(conf);
         this.node.localEngine.init(conf);
 
@@ -216,10 +239,6 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
         webSocket._remoteAddress = request.getRemoteAddress();
         webSocket._remoteAddr = request.getRemoteAddr();
         webSocket._sncpAddress = this.node.localSncpAddress;
-        if (this.permessageDeflate && request.getHeader("Sec-WebSocket-Extensions", "").contains("permessage-deflate")) {
-            webSocket.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-            webSocket.inflater = new Inflater(true);
-        }
         initRestWebSocket(webSocket);
         CompletableFuture<String> sessionFuture = webSocket.onOpen(request);
         if (sessionFuture == null) {
@@ -244,7 +263,9 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
             response.setHeader("Connection", "Upgrade");
             response.addHeader("Upgrade", "websocket");
             response.addHeader("Sec-WebSocket-Accept", Base64.getEncoder().encodeToString(bytes));
-            if (webSocket.deflater != null) response.addHeader("Sec-WebSocket-Extensions", "permessage-deflate");
+            final WebSocketDeflate deflate = this.node.localEngine.deflate;
+            if (deflate != null) webSocket._deflate = deflate.negotiate(request.getHeader("Sec-WebSocket-Extensions"));
+            if (webSocket._deflate != null) response.addHeader("Sec-WebSocket-Extensions", webSocket._deflate.extension);
 
             response.sendBody((ByteBuffer) null, new CompletionHandler<Integer, Void>() {
 
@@ -256,12 +277,14 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
                         CompletableFuture<Serializable> userFuture = webSocket.createUserid();
                         if (userFuture == null) {
                             if (debug) logger.finest("WebSocket connect abort, Create userid abort. request = " + request);
+                            if (webSocket._deflate != null) webSocket._deflate.release();
                             response.finish(true);
                             return;
                         }
                         userFuture.whenComplete((userid, ex2) -> {
                             if ((userid == null && webSocket.delayPackets == null) || ex2 != null) {
                                 if (debug || ex2 != null) logger.log(ex2 == null ? Level.FINEST : Level.FINE, "WebSocket connect abort, Create userid abort. request = " + request, ex2);
+                                if (webSocket._deflate != null) webSocket._deflate.release();
                                 response.finish(true);
                                 return;
                             }
@@ -281,6 +304,7 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
 //                                                    runner.run(); //context.runAsync(runner);
                                                     response.finish(true);
                                                 } else { //关闭新连接
+                                                    if (webSocket._deflate != null) webSocket._deflate.release();
                                                     response.finish(true);
                                                 }
                                             };
@@ -289,6 +313,7 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
                                             } else {
                                                 rcFuture.whenComplete((r, e) -> {
                                                     if (e != null) {
+                                                        if (webSocket._deflate != null) webSocket._deflate.release();
                                                         response.finish(true);
                                                     } else {
                                                         task.accept(r);
@@ -315,10 +340,8 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
                                     response.finish(true);
                                 }
                             };
-                            if (webSocket.delayPackets != null) { //存在待发送的消息
-                                List<WebSocketPacket> delayPackets = webSocket.delayPackets;
-                                webSocket.delayPackets = null;
-                                CompletableFuture<Integer> cf = webSocket._writeHandler.send(delayPackets.toArray(new WebSocketPacket[delayPackets.size()]));
+                            CompletableFuture<Integer> cf = webSocket.sendDelayPackets();
+                            if (cf != null) { //存在待发送的消息
                                 cf.whenComplete((Integer v, Throwable t) -> {
                                     if (userid == null || t != null) {
                                         if (t != null) logger.log(Level.FINEST, "WebSocket connect abort, Response send delayPackets abort. request = " + request, t);
@@ -332,10 +355,8 @@ public abstract class WebSocketServlet extends HttpServlet implements Resourcabl
                             }
                         });
                     };
-                    if (webSocket.delayPackets != null) { //存在待发送的消息
-                        List<WebSocketPacket> delayPackets = webSocket.delayPackets;
-                        webSocket.delayPackets = null;
-                        CompletableFuture<Integer> cf = webSocket._writeHandler.send(delayPackets.toArray(new WebSocketPacket[delayPackets.size()]));
+                    CompletableFuture<Integer> cf = webSocket.sendDelayPackets();
+                    if (cf != null) { //存在待发送的消息
                         cf.whenComplete((Integer v, Throwable t) -> {
                             if (sessionid == null || t != null) {
                                 if (t != null) logger.log(Level.FINEST, "WebSocket connect abort, Response send delayPackets abort. request = " + request, t);
@@ -8,7 +8,8 @@ package org.redkale.net.http;
 import java.util.*;
 import java.util.logging.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.CompletionHandler;
 import org.redkale.util.ByteArray;
 import static org.redkale.net.http.WebSocket.*;
@@ -31,27 +32,101 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
 
     protected final ConcurrentLinkedDeque<WebSocketFuture<Integer>> requestQueue = new ConcurrentLinkedDeque();
 
+    //requestQueue的长度, ConcurrentLinkedDeque.size()需遍历
+    protected final AtomicInteger queueSize = new AtomicInteger();
+
     public WebSocketWriteHandler(HttpContext context, WebSocket webSocket) {
         this.context = context;
         this.webSocket = webSocket;
     }
 
     public CompletableFuture<Integer> send(WebSocketPacket... packets) {
-        WebSocketFuture<Integer> future = new WebSocketFuture<>(packets);
+        return send(new WebSocketFuture<>(packets));
+    }
+
+    protected CompletableFuture<Integer> send(WebSocketFuture<Integer> future) {
         if (writePending.compareAndSet(false, true)) {
             respList.clear();
             respList.add(future);
             writeArray.clear();
+            WebSocketPacket[] packets = future.packets;
+            ByteBuffer frame = packets.length == 1 ? sharedFrame(packets[0]) : null;
+            if (frame != null) { //共享的已编码帧直接输出, 无需复制
+                webSocket._channel.write(frame.duplicate(), null, this);
+                return future;
+            }
             for (WebSocketPacket p : packets) {
                 writeEncode(p);
             }
             webSocket._channel.write(writeArray, this);
         } else {
-            requestQueue.offer(future);
+            enqueue(future);
         }
         return future;
     }
 
+    //加入待发送队列, 队列长度超过wsmaxqueue时按wsqueuepolicy处理, 避免慢连接无限占用内存
+    private void enqueue(final WebSocketFuture<Integer> future) {
+        final WebSocketEngine engine = webSocket._engine;
+        final int maxQueue = engine.wsmaxqueue;
+        if (maxQueue > 0) {
+            final WebSocketEngine.SendQueuePolicy policy = engine.wsqueuepolicy;
+            if (policy == WebSocketEngine.SendQueuePolicy.COALESCE && future.packets.length == 1 && future.packets[0].coalesceKey != null) {
+                coalesce(future.packets[0].coalesceKey);
+            }
+            if (queueSize.get() >= maxQueue) {
+                if (policy == WebSocketEngine.SendQueuePolicy.DROP_NEWEST) {
+                    engine.sendDroppedCount.increment();
+                    future.complete(RETCODE_SENDDROPPED);
+                    return;
+                } else if (policy == WebSocketEngine.SendQueuePolicy.DISCONNECT) {
+                    engine.sendQueueKilledCount.increment();
+                    future.complete(RETCODE_WSOCKET_CLOSED);
+                    if (context.getLogger().isLoggable(Level.FINE)) {
+                        context.getLogger().fine("WebSocket(" + webSocket + ") send queue exceed " + maxQueue + ", force to close channel");
+                    }
+                    webSocket.kill(CLOSECODE_SENDQUEUEFULL, "send queue exceed " + maxQueue);
+                    return;
+                }
+                WebSocketFuture<Integer> old; //DROP_OLDEST与COALESCE
+                while (queueSize.get() >= maxQueue && (old = requestQueue.pollFirst()) != null) {
+                    queueSize.decrementAndGet();
+                    engine.sendQueueSize.decrement();
+                    engine.sendDroppedCount.increment();
+                    old.complete(RETCODE_SENDDROPPED);
+                }
+            }
+        }
+        queueSize.incrementAndGet();
+        engine.sendQueueSize.increment();
+        requestQueue.offer(future);
+        if (webSocket.isClosed()) clearQueue(RETCODE_WSOCKET_CLOSED);
+    }
+
+    //连接关闭后清空待发送队列, 不再输出
+    void clearQueue(final int retcode) {
+        WebSocketFuture<Integer> req;
+        while ((req = requestQueue.poll()) != null) {
+            queueSize.decrementAndGet();
+            webSocket._engine.sendQueueSize.decrement();
+            req.complete(retcode);
+        }
+    }
+
+    //移除队列中同key的旧消息, 入队时都会合并, 故队列中同一key最多只有一条
+    private void coalesce(final String key) {
+        for (WebSocketFuture<Integer> old : requestQueue) {
+            if (old.packets.length != 1 || !key.equals(old.packets[0].coalesceKey)) continue;
+            if (requestQueue.removeFirstOccurrence(old)) {
+                queueSize.decrementAndGet();
+                webSocket._engine.sendQueueSize.decrement();
+                webSocket._engine.sendCoalescedCount.increment();
+                old.complete(RETCODE_SENDDROPPED);
+            }
+            return;
+        }
+    }
+
     @Override
     public void completed(Integer result, Void attachment) {
         webSocket.lastSendTime = System.currentTimeMillis();
@@ -62,6 +137,8 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
         writeArray.clear();
         WebSocketFuture req;
         while ((req = requestQueue.poll()) != null) {
+            queueSize.decrementAndGet();
+            webSocket._engine.sendQueueSize.decrement();
             respList.add(req);
             for (WebSocketPacket p : req.packets) {
                 writeEncode(p);
@@ -70,6 +147,9 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
         if (writeArray.isEmpty()) {
             if (!writePending.compareAndSet(true, false)) {
                 completed(0, attachment);
+            } else if (!requestQueue.isEmpty() && writePending.compareAndSet(false, true)) {
+                //send可在任意线程调用, 释放writePending前入队的消息需继续输出
+                completed(0, attachment);
             }
         } else {
             webSocket._channel.write(writeArray, this);
@@ -81,6 +161,8 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
         WebSocketFuture req;
         try {
             while ((req = requestQueue.poll()) != null) {
+                queueSize.decrementAndGet();
+                webSocket._engine.sendQueueSize.decrement();
                 req.completeExceptionally(exc);
             }
             for (WebSocketFuture<Integer> future : respList) {
@@ -97,10 +179,35 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
 
     //消息编码
     protected void writeEncode(final WebSocketPacket packet) {
-        final ByteArray array = writeArray;
-        final byte opcode = (byte) (packet.type.getValue() | 0x80);
+        final ByteBuffer frame = sharedFrame(packet);
+        if (frame != null) {
+            writeArray.put(frame.duplicate(), frame.remaining());
+            return;
+        }
+        final WebSocketDeflate.Context deflate = webSocket._deflate;
+        if (deflate != null && deflate.deflate.compressible(packet)) {
+            deflate.encodeFrame(writeArray, packet);
+        } else {
+            encodeFrame(writeArray, packet);
+        }
+    }
+
+    //可直接输出的共享帧, 启用压缩时no_context_takeover的连接共享压缩后的帧, 独占压缩上下文的连接需各自编码
+    private ByteBuffer sharedFrame(final WebSocketPacket packet) {
+        if (packet.frame == null) return null;
+        final WebSocketDeflate.Context deflate = webSocket._deflate;
+        if (deflate == null) return packet.frame;
+        return deflate.isShared() ? deflate.deflate.sharedFrame(packet) : null;
+    }
+
+    //将packet编码成完整的帧写入array
+    static void encodeFrame(final ByteArray array, final WebSocketPacket packet) {
         final byte[] content = packet.getPayload();
-        final int len = content.length;
+        encodeFrame(array, (byte) (packet.type.getValue() | 0x80), content, 0, content == null ? 0 : content.length);
+    }
+
+    //opcode含FIN与RSV位
+    static void encodeFrame(final ByteArray array, final byte opcode, final byte[] content, final int offset, final int len) {
         if (len <= 0x7D) { //125
             array.put(opcode);
             array.put((byte) len);
@@ -113,7 +220,17 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
             array.put((byte) 0x7F); //127
             array.putLong(len);
         }
-        array.put(content);
+        if (len > 0) array.put(content, offset, len);
+    }
+
+    //编码成只读的共享帧, 群发时只编码一次; 使用堆内存, 避免每次群发分配由GC延迟回收的堆外内存
+    static WebSocketPacket encodeSharedFrame(final WebSocketPacket packet) {
+        final ByteArray array = new ByteArray(packet.getPayload() == null ? 16 : packet.getPayload().length + 16);
+        encodeFrame(array, packet);
+        final WebSocketPacket rs = new WebSocketPacket(packet.type, packet.payload, packet.last);
+        rs.coalesceKey = packet.coalesceKey;
+        rs.frame = ByteBuffer.wrap(array.content(), 0, array.length()).slice().asReadOnlyBuffer();
+        return rs;
     }
 
     protected static class WebSocketFuture<T> extends CompletableFuture<T> {
@@ -129,4 +246,34 @@ public class WebSocketWriteHandler implements CompletionHandler<Integer, Void> {
             this.packets = packets;
         }
     }
+
+    //群发的共享future, 按接收方数量计数, 所有接收方都输出完成(或失败)后才完成, 结果为各接收方结果码的按位或
+    protected static class WebSocketBroadcastFuture extends WebSocketFuture<Integer> {
+
+        private final AtomicInteger refCount;
+
+        private final AtomicInteger retcode = new AtomicInteger();
+
+        public WebSocketBroadcastFuture(WebSocketPacket packet, int count) {
+            super(packet);
+            this.refCount = new AtomicInteger(count);
+        }
+
+        void release(int code) {
+            if (code != 0) retcode.accumulateAndGet(code, (a, b) -> a | b);
+            if (refCount.decrementAndGet() == 0) super.complete(retcode.get());
+        }
+
+        @Override
+        public boolean complete(Integer code) {
+            release(code == null ? 0 : code);
+            return true;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            release(RETCODE_SENDEXCEPTION);
+            return true;
+        }
+    }
 }
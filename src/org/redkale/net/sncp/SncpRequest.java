@@ -71,7 +71,10 @@ public class SncpRequest extends Request<SncpContext> {
         }
         //---------------------head----------------------------------
         if (this.readState == READ_STATE_ROUTE) {
-            if (buffer.remaining() < HEADER_SIZE) return 1; //小于60
+            if (buffer.remaining() < HEADER_SIZE) { //小于60
+                buffer.compact();
+                return 1;
+            }
             this.seqid = buffer.getLong(); //8
             if (buffer.getChar() != HEADER_SIZE) { //2
                 if (context.getLogger().isLoggable(Level.FINEST)) context.getLogger().finest("sncp buffer header.length not " + HEADER_SIZE);
@@ -92,11 +95,15 @@ public class SncpRequest extends Request<SncpContext> {
         }
         //---------------------body----------------------------------
         if (this.readState == READ_STATE_BODY) {
-            int len = Math.min(this.bodylength, buffer.remaining());
-            buffer.get(body, 0, len);
-            this.bodyoffset = len;
-            int rs = bodylength - len;
-            if (rs == 0) this.readState = READ_STATE_END;
+            int len = Math.min(this.bodylength - this.bodyoffset, buffer.remaining());
+            buffer.get(body, this.bodyoffset, len);
+            this.bodyoffset += len;
+            int rs = this.bodylength - this.bodyoffset;
+            if (rs == 0) {
+                this.readState = READ_STATE_END;
+            } else {
+                buffer.clear();
+            }
             return rs;
         }
         return 0;
@@ -52,6 +52,10 @@ public class SncpServer extends Server<DLong, SncpContext, SncpRequest, SncpResp
     @Override
     public void init(AnyValue config) throws Exception {
         super.init(config);
+        //SNCP的客户端连接(Transport)不支持SSL, 服务端启用SSL后客户端的明文请求都会握手失败
+        if (this.sslContext != null) {
+            throw new IllegalArgumentException("SncpServer(" + this.address + ") not support <ssl>, SNCP client connections cannot perform TLS handshake");
+        }
     }
 
     public List<SncpServlet> getSncpServlets() {
@@ -126,6 +130,8 @@ public class SncpServer extends Server<DLong, SncpContext, SncpRequest, SncpResp
         contextConfig.aliveTimeoutSeconds = this.aliveTimeoutSeconds;
         contextConfig.readTimeoutSeconds = this.readTimeoutSeconds;
         contextConfig.writeTimeoutSeconds = this.writeTimeoutSeconds;
+        contextConfig.ioThreadExecute = this.ioThreadExecute;
+        contextConfig.ioThreadBlockMillis = this.ioThreadBlockMillis;
 
         return new SncpContext(contextConfig);
     }
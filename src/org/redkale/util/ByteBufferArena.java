@@ -0,0 +1,463 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.util;
+
+import java.lang.ref.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * 按尺寸分级的堆外ByteBuffer分配器 <br>
+ * 每个尺寸级别从较大的堆外内存块(slab)中切分出ByteBuffer, 回收的ByteBuffer先放入线程缓存({@link Cache}, 非线程安全, 由IO线程独占),
+ * 线程缓存满了或非IO线程回收时放入全局的无锁空闲队列。 <br>
+ * 默认尺寸为最大级别, get()/accept()的行为与原ObjectPool&#60;ByteBuffer&#62;一致; get(int)返回不小于指定大小的最小级别。 <br>
+ * 切分出的每个ByteBuffer都登记了弱引用标记, 归还时按对象标识校验, 非本分配器分配的或重复归还的ByteBuffer直接丢弃, 不影响计数。 <br>
+ * 被GC回收而未调用accept归还的ByteBuffer视为泄漏, 日志通过系统属性 net.buffer.leak.detection 设置:
+ * disabled(只计数)、simple(默认, 抽样记录日志)、paranoid(全部记录日志与分配堆栈)。
+ *
+ * <p>
+ * 详情见: https://redkale.org
+ *
+ * @author zhangjx
+ *
+ * @since 2.3.0
+ */
+public class ByteBufferArena implements Supplier<ByteBuffer>, Consumer<ByteBuffer> {
+
+    protected static final Logger logger = Logger.getLogger(ByteBufferArena.class.getSimpleName());
+
+    static final String LEAK_DETECTION = System.getProperty("net.buffer.leak.detection", "simple").trim().toLowerCase();
+
+    //simple模式下每128个泄漏抽样记录一次日志
+    static final int LEAK_SAMPLE_MASK = 127;
+
+    //每个slab的字节数
+    static final int SLAB_BYTES = Integer.getInteger("net.buffer.slab.bytes", 512 * 1024);
+
+    //每个线程缓存每个级别最多缓存的字节数
+    static final int CACHE_BYTES = Integer.getInteger("net.buffer.cache.bytes", 2 * 1024 * 1024);
+
+    //最小的尺寸级别
+    static final int MIN_CLASS_SIZE = 1024;
+
+    protected final SizeClass[] sizeClasses;
+
+    protected final SizeClass defaultClass;
+
+    protected final int defaultCapacity;
+
+    protected final boolean leakDetection;
+
+    protected final boolean leakParanoid;
+
+    //所有切分出的ByteBuffer的标记, key为BufferRef或按对象标识查找的BufferProbe
+    private final ConcurrentHashMap<Object, BufferRef> bufferRefs = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<ByteBuffer> leakQueue = new ReferenceQueue<>();
+
+    /**
+     * 创建分配器， 尺寸级别为从1K开始按4倍递增且小于defaultCapacity的尺寸, 加上defaultCapacity
+     *
+     * @param defaultCapacity 默认尺寸, 即最大级别的尺寸
+     * @param maxFreeBytes    全局空闲队列每个级别最多保留的字节数
+     */
+    public ByteBufferArena(int defaultCapacity, long maxFreeBytes) {
+        this(defaultSizes(defaultCapacity), maxFreeBytes);
+    }
+
+    /**
+     * 创建分配器
+     *
+     * @param sizes        尺寸级别, 最大值为默认尺寸
+     * @param maxFreeBytes 全局空闲队列每个级别最多保留的字节数
+     */
+    public ByteBufferArena(int[] sizes, long maxFreeBytes) {
+        int[] ss = sizes.clone();
+        Arrays.sort(ss);
+        if (ss.length == 0 || ss[0] < 1) throw new IllegalArgumentException("sizes(" + Arrays.toString(sizes) + ") is illegal");
+        this.sizeClasses = new SizeClass[ss.length];
+        for (int i = 0; i < ss.length; i++) {
+            if (i > 0 && ss[i] == ss[i - 1]) throw new IllegalArgumentException("sizes(" + Arrays.toString(sizes) + ") is repeat");
+            this.sizeClasses[i] = new SizeClass(i, ss[i], (int) Math.max(16, maxFreeBytes / ss[i]));
+        }
+        this.defaultClass = this.sizeClasses[ss.length - 1];
+        this.defaultCapacity = this.defaultClass.size;
+        this.leakDetection = !"disabled".equals(LEAK_DETECTION);
+        this.leakParanoid = "paranoid".equals(LEAK_DETECTION);
+    }
+
+    protected static int[] defaultSizes(int defaultCapacity) {
+        List<Integer> list = new ArrayList<>();
+        for (int s = MIN_CLASS_SIZE; s < defaultCapacity; s *= 4) {
+            list.add(s);
+        }
+        list.add(defaultCapacity);
+        int[] rs = new int[list.size()];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = list.get(i);
+        }
+        return rs;
+    }
+
+    /**
+     * 创建线程缓存, 非线程安全, 只能由单一线程使用
+     *
+     * @return Cache
+     */
+    public Cache createCache() {
+        return new Cache();
+    }
+
+    public int getDefaultCapacity() {
+        return defaultCapacity;
+    }
+
+    /**
+     * 获取默认尺寸的ByteBuffer
+     *
+     * @return ByteBuffer
+     */
+    @Override
+    public ByteBuffer get() {
+        return defaultClass.poll();
+    }
+
+    /**
+     * 获取容量不小于size的ByteBuffer, size大于最大级别时分配不池化的ByteBuffer
+     *
+     * @param size 最小容量
+     *
+     * @return ByteBuffer
+     */
+    public ByteBuffer get(int size) {
+        SizeClass sc = sizeClass(size);
+        return sc == null ? ByteBuffer.allocateDirect(size) : sc.poll();
+    }
+
+    /**
+     * 归还ByteBuffer, 非本分配器分配的或已归还过的ByteBuffer将被丢弃
+     *
+     * @param buffer ByteBuffer
+     */
+    @Override
+    public void accept(ByteBuffer buffer) {
+        if (buffer == null) return;
+        BufferRef ref = returned(buffer);
+        if (ref != null) ref.sizeClass.release(ref);
+    }
+
+    protected SizeClass sizeClass(int size) {
+        for (SizeClass sc : sizeClasses) {
+            if (sc.size >= size) return sc;
+        }
+        return null;
+    }
+
+    //校验并标记为已归还, 只有本分配器借出且未归还的ByteBuffer才返回其标记
+    private BufferRef returned(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly()) return null;
+        BufferRef ref = bufferRefs.get(new BufferProbe(buffer));
+        if (ref == null || !LENT_UPDATER.compareAndSet(ref, 1, 0)) return null;
+        ref.sizeClass.outstanding.decrement();
+        ref.trace = null;
+        buffer.clear();
+        ref.pooled = buffer;
+        return ref;
+    }
+
+    /**
+     * 尺寸级别
+     *
+     * @return int[]
+     */
+    public int[] getSizes() {
+        int[] rs = new int[sizeClasses.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = sizeClasses[i].size;
+        }
+        return rs;
+    }
+
+    /**
+     * 每个尺寸级别已分配且未归还的ByteBuffer数
+     *
+     * @return long[]
+     */
+    public long[] getOutstandingCounts() {
+        long[] rs = new long[sizeClasses.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = sizeClasses[i].outstanding.sum();
+        }
+        return rs;
+    }
+
+    /**
+     * 每个尺寸级别从slab中切分出的ByteBuffer数
+     *
+     * @return long[]
+     */
+    public long[] getCreatedCounts() {
+        long[] rs = new long[sizeClasses.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = sizeClasses[i].created.sum();
+        }
+        return rs;
+    }
+
+    /**
+     * 每个尺寸级别检测到的泄漏ByteBuffer数(抽样值)
+     *
+     * @return long[]
+     */
+    public long[] getLeakCounts() {
+        checkLeaks();
+        long[] rs = new long[sizeClasses.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = sizeClasses[i].leaked.sum();
+        }
+        return rs;
+    }
+
+    /**
+     * 已申请的堆外内存字节数
+     *
+     * @return long
+     */
+    public long getReservedBytes() {
+        long rs = 0;
+        for (SizeClass sc : sizeClasses) {
+            rs += sc.slabs.sum() * sc.slabBytes;
+        }
+        return rs;
+    }
+
+    /**
+     * 处理已被GC回收而未归还的ByteBuffer, 记录日志并计数
+     */
+    public void checkLeaks() {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = leakQueue.poll()) != null) {
+            BufferRef br = (BufferRef) ref;
+            if (bufferRefs.remove(br) == null || br.lent == 0) continue;
+            br.sizeClass.leaked.increment();
+            br.sizeClass.outstanding.decrement();
+            if (!leakDetection) continue;
+            if (br.trace != null) {
+                logger.log(Level.WARNING, "ByteBuffer(capacity=" + br.sizeClass.size + ") leaked, it was not returned before GC", br.trace);
+            } else if (logger.isLoggable(Level.WARNING) && (ThreadLocalRandom.current().nextInt() & LEAK_SAMPLE_MASK) == 0) {
+                logger.log(Level.WARNING, "ByteBuffer(capacity=" + br.sizeClass.size + ") leaked, it was not returned before GC. "
+                    + "Enable advanced leak reporting by -Dnet.buffer.leak.detection=paranoid");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "{sizes:" + Arrays.toString(getSizes()) + ", created:" + Arrays.toString(getCreatedCounts())
+            + ", outstanding:" + Arrays.toString(getOutstandingCounts()) + ", leaked:" + Arrays.toString(getLeakCounts())
+            + ", reservedBytes:" + getReservedBytes() + "}";
+    }
+
+    private static final AtomicIntegerFieldUpdater<BufferRef> LENT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(BufferRef.class, "lent");
+
+    //切分出的ByteBuffer的标记, 按对象标识比较; 借出后只有弱引用, 未归还就被GC回收时进入leakQueue
+    private static final class BufferRef extends WeakReference<ByteBuffer> {
+
+        final SizeClass sizeClass;
+
+        final int hash;
+
+        //在空闲队列或线程缓存中时的强引用, 借出时置为null
+        ByteBuffer pooled;
+
+        //为1表示已借出未归还
+        volatile int lent;
+
+        //paranoid模式下记录的分配堆栈
+        Throwable trace;
+
+        BufferRef(ByteBuffer referent, ReferenceQueue<ByteBuffer> queue, SizeClass sizeClass) {
+            super(referent, queue);
+            this.sizeClass = sizeClass;
+            this.hash = System.identityHashCode(referent);
+            this.pooled = referent;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    //按对象标识查找BufferRef, 不创建弱引用
+    private static final class BufferProbe {
+
+        final ByteBuffer buffer;
+
+        BufferProbe(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(buffer);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof BufferRef && ((BufferRef) obj).get() == buffer;
+        }
+    }
+
+    protected final class SizeClass {
+
+        final int index;
+
+        final int size;
+
+        final int slabBytes;
+
+        //全局空闲队列最多保留的个数
+        final int maxFree;
+
+        //线程缓存最多保留的个数
+        final int maxCache;
+
+        final ConcurrentLinkedQueue<BufferRef> freeQueue = new ConcurrentLinkedQueue<>();
+
+        final LongAdder freeCount = new LongAdder();
+
+        final LongAdder created = new LongAdder();
+
+        final LongAdder outstanding = new LongAdder();
+
+        final LongAdder leaked = new LongAdder();
+
+        final LongAdder slabs = new LongAdder();
+
+        //当前正在切分的slab
+        private ByteBuffer slab;
+
+        SizeClass(int index, int size, int maxFree) {
+            this.index = index;
+            this.size = size;
+            this.slabBytes = Math.max(1, SLAB_BYTES / size) * size;
+            this.maxFree = maxFree;
+            this.maxCache = Math.max(8, CACHE_BYTES / size);
+        }
+
+        ByteBuffer poll() {
+            BufferRef ref = freeQueue.poll();
+            if (ref != null) {
+                freeCount.decrement();
+            } else {
+                checkLeaks();
+                ref = allocate();
+            }
+            return polled(ref);
+        }
+
+        ByteBuffer polled(BufferRef ref) {
+            ByteBuffer buffer = ref.pooled;
+            ref.pooled = null;
+            if (leakParanoid) ref.trace = new Throwable("ByteBuffer allocated at");
+            ref.lent = 1;
+            outstanding.increment();
+            return buffer;
+        }
+
+        //放入全局空闲队列, 超出上限则丢弃并注销标记
+        void release(BufferRef ref) {
+            if (freeCount.sum() >= maxFree) {
+                bufferRefs.remove(ref);
+                ref.clear();
+                ref.pooled = null;
+                return;
+            }
+            freeCount.increment();
+            freeQueue.offer(ref);
+        }
+
+        synchronized BufferRef allocate() {
+            ByteBuffer s = this.slab;
+            if (s == null || s.remaining() < size) {
+                s = ByteBuffer.allocateDirect(slabBytes);
+                this.slab = s;
+                slabs.increment();
+            }
+            s.limit(s.position() + size);
+            BufferRef ref = new BufferRef(s.slice(), leakQueue, this);
+            s.position(s.limit());
+            s.limit(s.capacity());
+            bufferRefs.put(ref, ref);
+            created.increment();
+            return ref;
+        }
+    }
+
+    /**
+     * 线程缓存, 非线程安全
+     */
+    public final class Cache implements Supplier<ByteBuffer>, Consumer<ByteBuffer> {
+
+        private final ArrayDeque<BufferRef>[] deques;
+
+        @SuppressWarnings("unchecked")
+        Cache() {
+            this.deques = (ArrayDeque<BufferRef>[]) new ArrayDeque<?>[sizeClasses.length];
+            for (int i = 0; i < deques.length; i++) {
+                this.deques[i] = new ArrayDeque<>();
+            }
+        }
+
+        @Override
+        public ByteBuffer get() {
+            return poll(defaultClass);
+        }
+
+        public ByteBuffer get(int size) {
+            SizeClass sc = sizeClass(size);
+            return sc == null ? ByteBuffer.allocateDirect(size) : poll(sc);
+        }
+
+        private ByteBuffer poll(SizeClass sc) {
+            BufferRef ref = deques[sc.index].pollLast();
+            return ref == null ? sc.poll() : sc.polled(ref);
+        }
+
+        @Override
+        public void accept(ByteBuffer buffer) {
+            if (buffer == null) return;
+            BufferRef ref = returned(buffer);
+            if (ref == null) return;
+            SizeClass sc = ref.sizeClass;
+            ArrayDeque<BufferRef> deque = deques[sc.index];
+            if (deque.size() < sc.maxCache) {
+                deque.offerLast(ref);
+            } else {
+                sc.release(ref);
+            }
+        }
+
+        public ByteBufferArena getArena() {
+            return ByteBufferArena.this;
+        }
+
+        //释放缓存到全局空闲队列
+        public void clear() {
+            for (int i = 0; i < deques.length; i++) {
+                BufferRef ref;
+                while ((ref = deques[i].poll()) != null) {
+                    sizeClasses[i].release(ref);
+                }
+            }
+        }
+    }
+}
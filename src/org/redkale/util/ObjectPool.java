@@ -207,7 +207,18 @@ public class ObjectPool<T> implements Supplier<T>, Consumer<T> {
 
     @Override
     public void accept(final T e) {
-        if (e == null) return;
+        offer(e);
+    }
+
+    /**
+     * 归还对象， 与accept相同， 但返回是否被池接收
+     *
+     * @param e 对象
+     *
+     * @return 为false表示对象被丢弃， 持有native资源的对象需调用方自行释放
+     */
+    public boolean offer(final T e) {
+        if (e == null) return false;
         if (recycler.test(e)) {
             if (cycleCounter != null) cycleCounter.incrementAndGet();
 //            if (debug) {
@@ -219,8 +230,10 @@ public class ObjectPool<T> implements Supplier<T>, Consumer<T> {
 //                }
 //            }
             boolean rs = unsafeDequeable ? queue.size() < max && queue.offer(e) : queue.offer(e);
-            if (!rs && parent != null) parent.accept(e);
+            if (!rs && parent != null) return parent.offer(e);
+            return rs;
         }
+        return false;
     }
 
     public long getCreatCount() {
@@ -7,10 +7,15 @@ package org.redkale.util;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
 
 /**
- * 线程池
+ * 线程池 <br>
+ * 带hash值(非0)的任务固定由同一个工作线程按提交顺序执行, 保证同一hash的任务顺序性, 且不会被其他线程窃取; <br>
+ * hash值为0的任务放入工作线程的无锁队列, 空闲的工作线程会从有积压的线程队列中窃取任务。 <br>
+ * 提交任务时只比较随机两个工作线程的队列深度(power of two choices), 不再遍历所有队列。
  *
  * <p>
  * 详情见: https://redkale.org
@@ -21,9 +26,37 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class ThreadHashExecutor extends AbstractExecutorService {
 
-    private final LinkedBlockingQueue<Runnable>[] queues;
+    private static final Logger logger = Logger.getLogger(ThreadHashExecutor.class.getSimpleName());
 
-    private final ThreadPoolExecutor[] executors;
+    //空闲线程的最长休眠时间, 提交任务时会主动唤醒, 此处只是防止极端情况下丢失唤醒
+    private static final long PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    //每16个任务采样一次等待时间, System.nanoTime的开销与极小任务本身相当
+    private static final int WAIT_SAMPLE_MASK = 15;
+
+    private static final int STATE_RUNNING = 0;
+
+    private static final int STATE_SHUTDOWN = 1;
+
+    private static final int STATE_STOP = 2;
+
+    private final Worker[] workers;
+
+    //空闲(即将休眠)的工作线程
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+
+    //是否有被唤醒来窃取任务、但尚未醒来的空闲线程, 同一时刻只唤醒一个, 避免极小任务时频繁唤醒线程
+    private final AtomicBoolean waking = new AtomicBoolean();
+
+    private final ThreadLocal<Worker> localWorker = new ThreadLocal<>();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final AtomicInteger state = new AtomicInteger(STATE_RUNNING);
+
+    private final CountDownLatch terminated;
+
+    private ThreadFactory threadFactory;
 
     public ThreadHashExecutor() {
         this(Runtime.getRuntime().availableProcessors(), null);
@@ -34,144 +67,378 @@ public class ThreadHashExecutor extends AbstractExecutorService {
     }
 
     public ThreadHashExecutor(int size, ThreadFactory factory) {
-        ThreadPoolExecutor[] array = new ThreadPoolExecutor[size];
-        LinkedBlockingQueue[] ques = new LinkedBlockingQueue[size];
+        if (size < 1) throw new IllegalArgumentException("size(" + size + ") must be greater than 0");
         final AtomicInteger counter = new AtomicInteger();
-        for (int i = 0; i < array.length; i++) {
-            LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
-            ques[i] = queue;
-            array[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue,
-                factory == null ? (Runnable r) -> {
-                        Thread t = new Thread(r);
-                        t.setDaemon(true);
-                        int c = counter.incrementAndGet();
-                        t.setName("Redkale-HashThread-" + (c > 9 ? c : ("0" + c)));
-                        return t;
-                    } : factory);
-        }
-        this.queues = ques;
-        this.executors = array;
-    }
-
-    private ExecutorService hashExecutor(int hash) {
-        if (hash == 0) {
-            int k = 0;
-            int minsize = queues[0].size();
-            for (int i = 1; i < queues.length; i++) {
-                int size = queues[i].size();
-                if (size < minsize) {
-                    minsize = size;
-                    k = i;
-                }
-            }
-            return this.executors[k];
-        } else {
-            return this.executors[(hash < 0 ? -hash : hash) % this.executors.length];
+        this.threadFactory = factory == null ? (Runnable r) -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            int c = counter.incrementAndGet();
+            t.setName("Redkale-HashThread-" + (c > 9 ? c : ("0" + c)));
+            return t;
+        } : factory;
+        this.workers = new Worker[size];
+        for (int i = 0; i < size; i++) {
+            this.workers[i] = new Worker(i);
         }
+        this.terminated = new CountDownLatch(size);
     }
 
-    public void setThreadFactory(ThreadFactory factory) {
-        for (ThreadPoolExecutor executor : this.executors) {
-            executor.setThreadFactory(factory);
+    //线程在首次提交任务时才创建, 与ThreadPoolExecutor一致, 便于setThreadFactory
+    private void start() {
+        if (started.get() || !started.compareAndSet(false, true)) return;
+        for (Worker worker : workers) {
+            Thread t = threadFactory.newThread(worker);
+            worker.thread = t;
+            t.start();
         }
     }
 
+    private Worker hashWorker(int hash) {
+        return workers[(hash & 0x7fffffff) % workers.length];
+    }
+
+    //hash为0的任务: 工作线程内提交的放入自身队列, 否则随机取两个选择队列较短的
+    private Worker randomWorker() {
+        Worker local = localWorker.get();
+        if (local != null) return local;
+        if (workers.length == 1) return workers[0];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(workers.length);
+        int j = random.nextInt(workers.length - 1);
+        if (j >= i) j++;
+        Worker w1 = workers[i];
+        Worker w2 = workers[j];
+        return w1.depth.get() <= w2.depth.get() ? w1 : w2;
+    }
+
+    public void setThreadFactory(ThreadFactory factory) {
+        this.threadFactory = Objects.requireNonNull(factory);
+    }
+
     public int size() {
-        return executors.length;
+        return workers.length;
     }
 
     @Override
     public void execute(Runnable command) {
-        hashExecutor(0).execute(command);
+        execute(0, command);
     }
 
     public void execute(int hash, Runnable command) {
-        hashExecutor(hash).execute(command);
+        Objects.requireNonNull(command);
+        if (state.get() != STATE_RUNNING) throw new RejectedExecutionException(this.getClass().getSimpleName() + " is shutdown");
+        if (!started.get()) start();
+        final Task task = new Task(command, (ThreadLocalRandom.current().nextInt() & WAIT_SAMPLE_MASK) == 0 ? System.nanoTime() : 0);
+        if (hash == 0) {
+            Worker worker = randomWorker();
+            worker.depth.incrementAndGet();
+            worker.taskQueue.offer(task);
+            if (!worker.unpark() && !waking.get() && waking.compareAndSet(false, true)) { //目标线程繁忙则唤醒一个空闲线程来窃取, 不必等目标线程执行完当前任务
+                Worker idle;
+                boolean woken = false;
+                while (!woken && (idle = idleWorkers.poll()) != null) { //被hash任务唤醒的线程仍留在空闲队列中, 跳过这些已醒的线程
+                    idle.idle.set(false);
+                    woken = idle.unpark();
+                }
+                if (!woken) waking.set(false);
+            }
+        } else {
+            Worker worker = hashWorker(hash);
+            worker.depth.incrementAndGet();
+            worker.hashQueue.offer(task);
+            worker.unpark();
+        }
     }
 
-    @Override
-    public Future<?> submit(Runnable task) {
-        return hashExecutor(0).submit(task);
+    public Future<?> submit(int hash, Runnable task) {
+        RunnableFuture<Void> future = newTaskFor(task, null);
+        execute(hash, future);
+        return future;
     }
 
-    public Future<?> submit(int hash, Runnable task) {
-        return hashExecutor(hash).submit(task);
+    public <T> Future<T> submit(int hash, Runnable task, T result) {
+        RunnableFuture<T> future = newTaskFor(task, result);
+        execute(hash, future);
+        return future;
     }
 
-    @Override
-    public <T> Future<T> submit(Runnable task, T result) {
-        return hashExecutor(0).submit(task, result);
+    public <T> Future<T> submit(int hash, Callable<T> task) {
+        RunnableFuture<T> future = newTaskFor(task);
+        execute(hash, future);
+        return future;
     }
 
-    public <T> Future<T> submit(int hash, Runnable task, T result) {
-        return hashExecutor(hash).submit(task, result);
+    /**
+     * 所有工作线程中等待执行的任务数
+     *
+     * @return int
+     */
+    public int waitingSize() {
+        int wsize = 0;
+        for (Worker worker : workers) {
+            wsize += worker.depth.get();
+        }
+        return wsize;
     }
 
-    @Override
-    public <T> Future<T> submit(Callable<T> task) {
-        return hashExecutor(0).submit(task);
+    /**
+     * 每个工作线程的队列深度
+     *
+     * @return int[]
+     */
+    public int[] getQueueDepths() {
+        int[] rs = new int[workers.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = workers[i].depth.get();
+        }
+        return rs;
     }
 
-    public <T> Future<T> submit(int hash, Callable<T> task) {
-        return hashExecutor(hash).submit(task);
+    /**
+     * 已执行完的任务数
+     *
+     * @return long
+     */
+    public long getCompletedCount() {
+        long rs = 0;
+        for (Worker worker : workers) {
+            rs += worker.completedCount;
+        }
+        return rs;
     }
 
-    public int waitingSize() {
-        int wsize = queues[0].size();
-        for (int i = 1; i < queues.length; i++) {
-            wsize += queues[i].size();
+    /**
+     * 被其他工作线程窃取执行的任务数
+     *
+     * @return long
+     */
+    public long getStolenCount() {
+        long rs = 0;
+        for (Worker worker : workers) {
+            rs += worker.stolenCount;
         }
-        return wsize;
+        return rs;
+    }
+
+    /**
+     * 任务在队列中的平均等待微秒数(采样值)
+     *
+     * @return long
+     */
+    public long getAvgWaitMicros() {
+        long count = 0;
+        long nanos = 0;
+        for (Worker worker : workers) {
+            count += worker.waitSampleCount;
+            nanos += worker.waitNanos;
+        }
+        return count == 0 ? 0 : (nanos / count / 1000);
+    }
+
+    /**
+     * 任务在队列中的最大等待微秒数(采样值)
+     *
+     * @return long
+     */
+    public long getMaxWaitMicros() {
+        long max = 0;
+        for (Worker worker : workers) {
+            max = Math.max(max, worker.maxWaitNanos);
+        }
+        return max / 1000;
     }
 
     @Override
     public void shutdown() {
-        for (ExecutorService executor : this.executors) {
-            executor.shutdown();
-        }
+        state.compareAndSet(STATE_RUNNING, STATE_SHUTDOWN);
+        wakeupAll();
     }
 
     @Override
     public List<Runnable> shutdownNow() {
+        state.set(STATE_STOP);
         List<Runnable> list = new ArrayList<>();
-        for (ExecutorService executor : this.executors) {
-            list.addAll(executor.shutdownNow());
+        for (Worker worker : workers) {
+            Task task;
+            while ((task = worker.hashQueue.poll()) != null) {
+                list.add(task.command);
+            }
+            while ((task = worker.taskQueue.poll()) != null) {
+                list.add(task.command);
+            }
+            worker.depth.set(0);
+            if (worker.thread != null) worker.thread.interrupt();
         }
+        wakeupAll();
         return list;
     }
 
+    private void wakeupAll() {
+        if (!started.get()) {
+            if (started.compareAndSet(false, true)) { //未启动过的直接终止
+                for (Worker worker : workers) terminated.countDown();
+            }
+            return;
+        }
+        for (Worker worker : workers) {
+            if (worker.thread != null) LockSupport.unpark(worker.thread);
+        }
+    }
+
     @Override
     public boolean isShutdown() {
-        return this.executors[0].isShutdown();
+        return state.get() != STATE_RUNNING;
     }
 
     @Override
     public boolean isTerminated() {
-        return this.executors[0].isTerminated();
+        return terminated.getCount() == 0;
     }
 
     @Override
     public boolean awaitTermination(long l, TimeUnit tu) throws InterruptedException {
-        return this.executors[0].awaitTermination(l, tu);
+        return terminated.await(l, tu);
     }
 
     @Override
-    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-        return hashExecutor(0).invokeAny(tasks);
+    public String toString() {
+        return this.getClass().getSimpleName() + "{size:" + workers.length + ", depths:" + Arrays.toString(getQueueDepths())
+            + ", completed:" + getCompletedCount() + ", stolen:" + getStolenCount()
+            + ", avgWaitMicros:" + getAvgWaitMicros() + ", maxWaitMicros:" + getMaxWaitMicros() + "}";
     }
 
-    @Override
-    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        return hashExecutor(0).invokeAny(tasks, timeout, unit);
-    }
+    private static final class Task {
 
-    @Override
-    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-        return hashExecutor(0).invokeAll(tasks);
+        final Runnable command;
+
+        final long createNanos; //为0表示不采样
+
+        Task(Runnable command, long createNanos) {
+            this.command = command;
+            this.createNanos = createNanos;
+        }
     }
 
-    @Override
-    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-        return hashExecutor(0).invokeAll(tasks, timeout, unit);
+    private final class Worker implements Runnable {
+
+        final int index;
+
+        //带hash的任务, 只能由本线程执行
+        final ConcurrentLinkedQueue<Task> hashQueue = new ConcurrentLinkedQueue<>();
+
+        //无hash的任务, 可被其他线程窃取(同样从头部取, 先提交的任务优先被执行)
+        final ConcurrentLinkedQueue<Task> taskQueue = new ConcurrentLinkedQueue<>();
+
+        //hashQueue与taskQueue中的任务数
+        final AtomicInteger depth = new AtomicInteger();
+
+        //是否在空闲队列中
+        final AtomicBoolean idle = new AtomicBoolean();
+
+        volatile Thread thread;
+
+        //是否休眠中, 由唤醒方重置, 保证一次休眠只unpark一次
+        final AtomicBoolean parked = new AtomicBoolean();
+
+        //以下统计只由本线程写入
+        volatile long completedCount;
+
+        volatile long stolenCount;
+
+        volatile long waitSampleCount;
+
+        volatile long waitNanos;
+
+        volatile long maxWaitNanos;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        boolean unpark() {
+            if (!parked.get() || !parked.compareAndSet(true, false)) return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+
+        private Task poll() {
+            Task task = hashQueue.poll();
+            if (task == null) task = taskQueue.poll();
+            if (task != null) depth.decrementAndGet();
+            return task;
+        }
+
+        private Task steal() {
+            final int len = workers.length;
+            if (len == 1) return null;
+            int start = ThreadLocalRandom.current().nextInt(len);
+            for (int i = 0; i < len; i++) {
+                Worker victim = workers[(start + i) % len];
+                if (victim == this) continue;
+                Task task = victim.taskQueue.poll();
+                if (task != null) {
+                    victim.depth.decrementAndGet();
+                    stolenCount++;
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        private Task next() {
+            Task task = poll();
+            return task == null ? steal() : task;
+        }
+
+        private void runTask(Task task) {
+            if (task.createNanos != 0) {
+                long wait = System.nanoTime() - task.createNanos;
+                waitSampleCount++;
+                waitNanos += wait;
+                if (wait > maxWaitNanos) maxWaitNanos = wait;
+            }
+            try {
+                task.command.run();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "ThreadHashExecutor run task(" + task.command + ") error", t);
+            }
+            completedCount++;
+        }
+
+        @Override
+        public void run() {
+            localWorker.set(this);
+            try {
+                for (;;) {
+                    if (state.get() == STATE_STOP) break;
+                    Task task = next();
+                    if (task != null) {
+                        runTask(task);
+                        continue;
+                    }
+                    //先标记休眠并加入空闲队列再复查, 保证提交方要么看到parked要么任务被复查取到
+                    parked.set(true);
+                    if (idle.compareAndSet(false, true)) idleWorkers.offer(this);
+                    task = next();
+                    if (task != null) {
+                        parked.set(false);
+                        runTask(task);
+                        continue;
+                    }
+                    if (state.get() != STATE_RUNNING) {
+                        parked.set(false);
+                        break;
+                    }
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                    parked.set(false);
+                    if (waking.get()) waking.set(false);
+                    Thread.interrupted(); //清除shutdownNow之外的中断标记
+                }
+            } finally {
+                if (idle.compareAndSet(true, false)) idleWorkers.remove(this);
+                localWorker.remove();
+                terminated.countDown();
+            }
+        }
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.net.http;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import org.redkale.net.http.HttpPrepareServlet.MappingEntry;
+
+/**
+ * HttpRouter 路由微基准: 与逐个遍历regArray的结果一致性校验及耗时对比
+ *
+ * @author zhangjx
+ */
+public class HttpRouterBenchmark {
+
+    public static void main(String[] args) throws Throwable {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        List<MappingEntry> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String mapping;
+            if (i % 50 == 7) {
+                mapping = "^/api/v[0-9]+/item" + i + "/.*"; //无法编译进前缀树的正则
+            } else if (i % 3 == 0) {
+                mapping = "^/pipes/module" + i + "/.*";
+            } else {
+                mapping = "^/pipes/module" + (i - i % 3) + "/sub" + i + "/.*"; //与上一条规则共享前缀, 后添加的不会生效
+            }
+            list.add(new MappingEntry(mapping, Pattern.compile(mapping).asPredicate(), new HttpServlet() {
+            }));
+        }
+        list.add(new MappingEntry("^/pipes/.*", Pattern.compile("^/pipes/.*").asPredicate(), new HttpServlet() {
+        }));
+        final MappingEntry[] regArray = list.toArray(new MappingEntry[list.size()]);
+        final HttpRouter router = new HttpRouter(regArray);
+
+        Random random = new Random(1);
+        String[] uris = new String[1024];
+        for (int i = 0; i < uris.length; i++) {
+            int n = random.nextInt(count + 20);
+            switch (i % 4) {
+                case 0:
+                    uris[i] = "/pipes/module" + n + "/query";
+                    break;
+                case 1:
+                    uris[i] = "/pipes/module" + (n - n % 3) + "/sub" + n + "/find/" + i;
+                    break;
+                case 2:
+                    uris[i] = "/api/v" + (i % 3) + "/item" + n + "/" + i;
+                    break;
+                default:
+                    uris[i] = "/static/js/app" + n + ".js";
+            }
+        }
+        int diff = 0;
+        for (String uri : uris) {
+            if (router.match(uri) != linear(regArray, uri)) diff++;
+        }
+        System.out.println(regArray.length + " mappings, " + uris.length + " uris, mismatched: " + diff);
+
+        final int rounds = 2000;
+        for (int k = 0; k < 3; k++) {
+            long s = System.nanoTime();
+            int hits = 0;
+            for (int r = 0; r < rounds; r++) {
+                for (String uri : uris) {
+                    if (linear(regArray, uri) != null) hits++;
+                }
+            }
+            long linear = System.nanoTime() - s;
+            s = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (String uri : uris) {
+                    if (router.match(uri) != null) hits--;
+                }
+            }
+            long trie = System.nanoTime() - s;
+            long ops = (long) rounds * uris.length;
+            System.out.println("regArray: " + (linear / ops) + " ns/op, HttpRouter: " + (trie / ops) + " ns/op" + (hits == 0 ? "" : ", hits differ"));
+        }
+    }
+
+    private static HttpServlet linear(MappingEntry[] regArray, String uri) {
+        for (MappingEntry en : regArray) {
+            if (en.predicate.test(uri)) return en.servlet;
+        }
+        return null;
+    }
+}
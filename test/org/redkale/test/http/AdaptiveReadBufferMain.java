@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.redkale.net.*;
+import org.redkale.net.http.*;
+import org.redkale.util.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * 自适应读缓存测试: 空闲长连接不占用读缓存， 超过读缓存的header和body可跨多次读取
+ *
+ * @author zhangjx
+ */
+public class AdaptiveReadBufferMain {
+
+    private static final int port = 6067;
+
+    private static final int idleConnections = 1000;
+
+    public static void main(String[] args) throws Throwable {
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                String cookie = req.getHeader("X-Big");
+                byte[] body = req.getBody();
+                resp.finish((cookie == null ? 0 : cookie.length()) + "," + (body == null ? 0 : body.length));
+            }
+        }, "/echo");
+        server.init(DefaultAnyValue.create("port", port).addValue("maxbody", "1M"));
+        server.start(null);
+        Thread.sleep(100);
+        ByteBufferArena arena = bufferArena(server);
+
+        char[] big = new char[12 * 1024];
+        Arrays.fill(big, 'x');
+        System.out.println("small       = " + request("GET /echo HTTP/1.1\r\nHost: localhost\r\n\r\n", null));
+        System.out.println("big header  = " + request("GET /echo HTTP/1.1\r\nHost: localhost\r\nX-Big: " + new String(big) + "\r\n\r\n", null));
+        byte[] body = new byte[300 * 1024];
+        System.out.println("big body    = " + request("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length + "\r\n\r\n", body));
+
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < idleConnections; i++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /echo HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n".getBytes());
+            out.flush();
+            readBody(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            sockets.add(socket);
+        }
+        Thread.sleep(200);
+        long[] outstanding = arena.getOutstandingCounts();
+        long holding = 0;
+        int[] sizes = arena.getSizes();
+        for (int i = 0; i < sizes.length; i++) {
+            holding += outstanding[i] * sizes[i];
+        }
+        System.out.println(idleConnections + " idle keep-alive connections hold " + holding + " bytes of read buffers, "
+            + "fixed " + server.getBufferCapacity() + " bytes buffer would hold " + ((long) idleConnections * server.getBufferCapacity()) + " bytes");
+        System.out.println(arena);
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.shutdown();
+        System.exit(0);
+    }
+
+    private static ByteBufferArena bufferArena(Server server) throws Exception {
+        Field field = Server.class.getDeclaredField("serverChannel");
+        field.setAccessible(true);
+        Object protocolServer = field.get(server);
+        Field groupField = protocolServer.getClass().getDeclaredField("ioGroup");
+        groupField.setAccessible(true);
+        return ((AsyncIOGroup) groupField.get(protocolServer)).getBufferArena();
+    }
+
+    private static String request(String header, byte[] body) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            byte[] bs = header.getBytes();
+            for (int i = 0; i < bs.length; i += 1000) { //分段发送, 模拟跨多次读取
+                out.write(bs, i, Math.min(1000, bs.length - i));
+                out.flush();
+            }
+            if (body != null) out.write(body);
+            out.flush();
+            return readBody(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+        }
+    }
+
+    private static String readBody(DataInputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                if (str.toLowerCase().startsWith("content-length:")) contentLength = Integer.parseInt(str.substring(15).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[contentLength];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
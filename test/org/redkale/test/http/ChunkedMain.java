@@ -0,0 +1,210 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.*;
+import org.redkale.convert.json.JsonConvert;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * 流式响应测试: Stream以chunked编码分块输出json数组、 慢速客户端的写背压、 trailer、 HTTP/1.0与pipeline、 HTTP/2
+ *
+ * @author zhangjx
+ */
+public class ChunkedMain {
+
+    private static final int port = 6074;
+
+    //已序列化的元素个数
+    private static final AtomicInteger produced = new AtomicInteger();
+
+    public static class Record {
+
+        public int id;
+
+        public String name;
+
+        public Record() {
+        }
+
+        public Record(int id) {
+            this.id = id;
+            this.name = "record-" + id;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                String uri = req.getRequestURI();
+                if (uri.endsWith("/export")) {
+                    int count = req.getIntParameter("count", 10);
+                    Stream<Record> stream = IntStream.range(0, count).mapToObj(i -> {
+                        produced.incrementAndGet();
+                        return new Record(i);
+                    });
+                    resp.finishJson(JsonConvert.root(), Record.class, stream);
+                } else if (uri.endsWith("/trailer")) {
+                    resp.sendChunk("hello ".getBytes()).thenCompose(v -> resp.sendChunk("world".getBytes()))
+                        .whenComplete((v, e) -> resp.finishChunked(Map.of("X-Checksum", "42")));
+                } else {
+                    resp.finish("pong");
+                }
+            }
+        }, "/stream/*");
+        server.init(DefaultAnyValue.create("port", port).addValue("http2", "true").addValue("bufferCapacity", "8192"));
+        server.start(null);
+        Thread.sleep(100);
+
+        try {
+            //大数组分块输出
+            int count = 200_000;
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.getOutputStream().write(("GET /stream/export?count=" + count + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Map<String, String> headers = readHeaders(in);
+                int[] maxChunk = new int[1];
+                byte[] body = readChunked(in, maxChunk, null);
+                Record[] records = JsonConvert.root().convertFrom(Record[].class, new String(body, StandardCharsets.UTF_8));
+                boolean ok = "chunked".equals(headers.get("transfer-encoding")) && !headers.containsKey("content-length") && records.length == count;
+                for (int i = 0; ok && i < count; i++) {
+                    ok = records[i].id == i && ("record-" + i).equals(records[i].name);
+                }
+                System.out.println("stream " + count + " records: " + ok + ", " + body.length + " bytes, max chunk " + maxChunk[0] + " bytes");
+
+                //同一连接上keep-alive继续请求
+                socket.getOutputStream().write("GET /stream/export?count=3 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                headers = readHeaders(in);
+                byte[] small = new byte[Integer.parseInt(headers.get("content-length"))];
+                in.readFully(small);
+                System.out.println("small stream uses content-length: " + new String(small).startsWith("[{\"id\":0"));
+            }
+
+            //慢速客户端: 停止读取后服务端不再继续序列化
+            produced.set(0);
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setReceiveBufferSize(16 * 1024);
+                socket.getOutputStream().write(("GET /stream/export?count=" + (count * 10) + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+                InputStream in = socket.getInputStream();
+                in.read(new byte[1024]);
+                Thread.sleep(500);
+                int paused = produced.get();
+                System.out.println("backpressure: " + paused + " of " + (count * 10) + " records produced while client paused: " + (paused < count));
+            }
+
+            //trailer
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.getOutputStream().write("GET /stream/trailer HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                readHeaders(in);
+                Map<String, String> trailers = new HashMap<>();
+                byte[] body = readChunked(in, new int[1], trailers);
+                System.out.println("trailer: " + ("hello world".equals(new String(body)) && "42".equals(trailers.get("x-checksum"))));
+            }
+
+            //HTTP/1.0 不支持chunked
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.getOutputStream().write("GET /stream/trailer HTTP/1.0\r\nHost: localhost\r\n\r\n".getBytes());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Map<String, String> headers = readHeaders(in);
+                String body = new String(in.readAllBytes());
+                System.out.println("http/1.0 raw body until close: " + (!headers.containsKey("transfer-encoding") && "hello world".equals(body)));
+            }
+
+            //pipeline中的流式响应保持顺序
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.getOutputStream().write(("GET /stream/trailer HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /stream/ping HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /stream/trailer HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                readHeaders(in);
+                String b1 = new String(readChunked(in, new int[1], null));
+                Map<String, String> headers = readHeaders(in);
+                byte[] pong = new byte[Integer.parseInt(headers.get("content-length"))];
+                in.readFully(pong);
+                readHeaders(in);
+                String b3 = new String(readChunked(in, new int[1], null));
+                System.out.println("pipeline order: " + ("hello world".equals(b1) && "pong".equals(new String(pong)) && "hello world".equals(b3)));
+            }
+
+            //pipeline中HTTP/1.0 keep-alive的流式响应不能用chunked, 以Content-Length输出
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.getOutputStream().write(("GET /stream/trailer HTTP/1.0\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n"
+                    + "GET /stream/ping HTTP/1.0\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n").getBytes());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Map<String, String> headers = readHeaders(in);
+                byte[] b1 = new byte[Integer.parseInt(headers.getOrDefault("content-length", "0"))];
+                in.readFully(b1);
+                boolean raw = !headers.containsKey("transfer-encoding");
+                headers = readHeaders(in);
+                byte[] pong = new byte[Integer.parseInt(headers.get("content-length"))];
+                in.readFully(pong);
+                System.out.println("http/1.0 pipeline: " + (raw && "hello world".equals(new String(b1)) && "pong".equals(new String(pong))));
+            }
+
+            //HTTP/2 以DATA帧输出
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            java.net.http.HttpResponse<String> resp = client.send(java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/stream/export?count=50000")).build(), BodyHandlers.ofString());
+            resp = client.send(java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/stream/export?count=50000")).build(), BodyHandlers.ofString());
+            Record[] records = JsonConvert.root().convertFrom(Record[].class, resp.body());
+            System.out.println("http2 stream: " + (resp.version() == HttpClient.Version.HTTP_2 && records.length == 50000 && records[49999].id == 49999));
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static byte[] readChunked(DataInputStream in, int[] maxChunk, Map<String, String> trailers) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (;;) {
+            int size = Integer.parseInt(readLine(in), 16);
+            if (size == 0) break;
+            maxChunk[0] = Math.max(maxChunk[0], size);
+            byte[] bs = new byte[size];
+            in.readFully(bs);
+            out.write(bs);
+            if (!readLine(in).isEmpty()) throw new IOException("chunk format error");
+        }
+        for (;;) {
+            String line = readLine(in);
+            if (line.isEmpty()) break;
+            int pos = line.indexOf(':');
+            if (trailers != null) trailers.put(line.substring(0, pos).trim().toLowerCase(), line.substring(pos + 1).trim());
+        }
+        return out.toByteArray();
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') return line.toString().trim();
+            line.append((char) b);
+        }
+    }
+
+    private static Map<String, String> readHeaders(DataInputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        for (;;) {
+            String str = readLine(in);
+            if (str.isEmpty()) break;
+            int pos = str.indexOf(':');
+            if (pos > 0 && !str.startsWith("HTTP/")) headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.*;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * 响应压缩测试: 按Accept-Encoding输出gzip/deflate， 小于阈值与不在MIME列表的响应不压缩， 静态资源的压缩内容被缓存
+ *
+ * @author zhangjx
+ */
+public class CompressMain {
+
+    private static final int port = 6073;
+
+    public static void main(String[] args) throws Throwable {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(i).append(",\"name\":\"user-").append(i).append("\",\"status\":\"ACTIVE\"}");
+        }
+        final String json = sb.append(']').toString();
+        final byte[] png = new byte[4096];
+        new Random(1).nextBytes(png);
+
+        File home = Files.createTempDirectory("redkale-compress").toFile();
+        File dir = new File(home, "static");
+        dir.mkdirs();
+        File js = new File(dir, "app.js");
+        Files.write(js.toPath(), json.replace("\"", "'").getBytes());
+        js.deleteOnExit();
+        dir.deleteOnExit();
+        home.deleteOnExit();
+
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                String uri = req.getRequestURI();
+                if (uri.endsWith("/json")) {
+                    resp.finish("application/json; charset=utf-8", json.getBytes(StandardCharsets.UTF_8));
+                } else if (uri.endsWith("/png")) {
+                    resp.finish("image/png", png);
+                } else {
+                    resp.finish("small");
+                }
+            }
+        }, "/api/*");
+        server.addHttpServlet(new HttpResourceServlet(), "", DefaultAnyValue.create("webroot", home.getPath())
+            .addValue("cache", DefaultAnyValue.create("limit", "10M")), "/static/*");
+        server.init(DefaultAnyValue.create("port", port).addValue("response", DefaultAnyValue.create()
+            .addValue("compress", DefaultAnyValue.create("level", "6").addValue("threshold", "256"))));
+        server.start(null);
+        Thread.sleep(100);
+
+        try {
+            byte[] plain = json.getBytes(StandardCharsets.UTF_8);
+            Result gzip = request("/api/json", "gzip, deflate");
+            System.out.println("json gzip: " + ("gzip".equals(gzip.encoding) && Arrays.equals(plain, gunzip(gzip.body)))
+                + ", " + plain.length + " -> " + gzip.body.length + " bytes");
+            Result deflate = request("/api/json", "deflate, gzip;q=0");
+            System.out.println("json deflate: " + ("deflate".equals(deflate.encoding) && Arrays.equals(plain, inflate(deflate.body))));
+            int zlib = ((deflate.body[0] & 0xff) << 8) | (deflate.body[1] & 0xff);
+            System.out.println("zlib header: " + (zlib % 31 == 0 && (zlib & 0xc0) >> 6 == 2) + ", " + Integer.toHexString(zlib));
+            Result identity = request("/api/json", null);
+            System.out.println("json identity: " + (identity.encoding == null && Arrays.equals(plain, identity.body)));
+            Result small = request("/api/small", "gzip");
+            System.out.println("below threshold: " + (small.encoding == null && "small".equals(new String(small.body))));
+            Result image = request("/api/png", "gzip");
+            System.out.println("mime not listed: " + (image.encoding == null && Arrays.equals(png, image.body)));
+
+            byte[] jsbytes = Files.readAllBytes(js.toPath());
+            Result s1 = request("/static/app.js", "gzip");
+            Result s2 = request("/static/app.js", "gzip");
+            System.out.println("static gzip: " + ("gzip".equals(s1.encoding) && Arrays.equals(jsbytes, gunzip(s1.body)) && Arrays.equals(s1.body, s2.body))
+                + ", " + jsbytes.length + " -> " + s1.body.length + " bytes");
+            Result s3 = request("/static/app.js", null);
+            System.out.println("static identity: " + (s3.encoding == null && Arrays.equals(jsbytes, s3.body)));
+
+            int count = 2000;
+            long s = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                request("/static/app.js", "gzip");
+            }
+            long e = System.currentTimeMillis() - s;
+            System.out.println("static gzip " + count + " requests in " + e + " ms");
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static byte[] gunzip(byte[] bs) throws IOException {
+        return new GZIPInputStream(new ByteArrayInputStream(bs)).readAllBytes();
+    }
+
+    private static byte[] inflate(byte[] bs) throws IOException {
+        return new InflaterInputStream(new ByteArrayInputStream(bs)).readAllBytes();
+    }
+
+    private static Result request(String uri, String acceptEncoding) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (acceptEncoding == null ? "" : ("Accept-Encoding: " + acceptEncoding + "\r\n")) + "Connection: close\r\n\r\n").getBytes());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Map<String, String> headers = new HashMap<>();
+            StringBuilder line = new StringBuilder();
+            for (;;) {
+                int b = in.read();
+                if (b < 0) throw new EOFException();
+                if (b == '\n') {
+                    String str = line.toString().trim();
+                    if (str.isEmpty()) break;
+                    int pos = str.indexOf(':');
+                    if (pos > 0) headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+                    line.setLength(0);
+                } else {
+                    line.append((char) b);
+                }
+            }
+            Result rs = new Result();
+            rs.encoding = headers.get("content-encoding");
+            rs.body = new byte[Integer.parseInt(headers.get("content-length"))];
+            in.readFully(rs.body);
+            return rs;
+        }
+    }
+
+    private static class Result {
+
+        String encoding;
+
+        byte[] body;
+    }
+}
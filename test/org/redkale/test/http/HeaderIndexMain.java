@@ -0,0 +1,170 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.redkale.boot.Application;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * header索引解析测试: 常用与自定义header、 同名header、 小写的特殊header、 逐字节到达的header、 非ASCII的value、 keep-alive连续请求
+ *
+ * @author zhangjx
+ */
+public class HeaderIndexMain {
+
+    private static final int port = 6076;
+
+    public static void main(String[] args) throws Throwable {
+        //servlet在工作线程中执行, 避免keep-alive连续请求在IO线程中递归读取
+        File home = Files.createTempDirectory("redkale-header").toFile();
+        new File(home, "conf").mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(home, "conf/application.xml"))) {
+            out.write("<application port=\"0\"><resources><executor threads=\"4\"/></resources></application>".getBytes(StandardCharsets.UTF_8));
+        }
+        System.setProperty(Application.RESNAME_APP_HOME, home.getPath());
+        Application application = Application.create(true);
+
+        HttpServer server = new HttpServer(application, System.currentTimeMillis(), application.getResourceFactory());
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                if (req.getRequestURI().endsWith("/ping")) {
+                    resp.finish(req.getHeader("X-Trace-Id", ""));
+                    return;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("host=").append(req.getHost()).append('\n');
+                sb.append("type=").append(req.getContentType()).append('\n');
+                sb.append("length=").append(req.getContentLength()).append('\n');
+                sb.append("cookie=").append(req.getCookie("a")).append(',').append(req.getCookie("b")).append('\n');
+                sb.append("agent=").append(req.getHeader("User-Agent")).append('\n');
+                sb.append("connection=").append(req.getHeader("Connection")).append('\n');
+                sb.append("custom=").append(req.getHeader("X-Custom")).append('\n');
+                sb.append("dup=").append(req.getHeader("X-Dup")).append('\n');
+                sb.append("empty=").append(req.getHeader("X-Empty")).append('\n');
+                sb.append("utf8=").append(req.getHeader("X-Name")).append('\n');
+                sb.append("int=").append(req.getIntHeader("X-Int", -1)).append('\n');
+                sb.append("missing=").append(req.getHeader("X-Missing", "none")).append('\n');
+                Map<String, String> map = req.getHeadersToMap(null);
+                sb.append("map=").append(map.get("X-Dup")).append(',').append(map.size()).append('\n');
+                sb.append("names=").append(new TreeSet<>(Arrays.asList(req.getHeaderNames()))).append('\n');
+                sb.append("body=").append(req.getBodyUTF8());
+                resp.finish(sb.toString());
+            }
+        }, "/header/*");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(application);
+        Thread.sleep(100);
+
+        try {
+            String expect = "host=localhost:" + port + "\n"
+                + "type=text/plain; charset=utf-8\n"
+                + "length=5\n"
+                + "cookie=1,2\n"
+                + "agent=redkale-test\n"
+                + "connection=keep-alive\n"
+                + "custom=v1 v2\n"
+                + "dup=second\n"
+                + "empty=\n"
+                + "utf8=张三\n"
+                + "int=42\n"
+                + "missing=none\n"
+                + "map=second,7\n"
+                + "names=[Connection, User-Agent, X-Custom, X-Dup, X-Empty, X-Int, X-Name]\n"
+                + "body=hello";
+            byte[] request = ("POST /header/echo HTTP/1.1\r\n"
+                + "host: localhost:" + port + "\r\n"
+                + "content-type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: 5\r\n"
+                + "Cookie: a=1\r\n"
+                + "cookie: b=2\r\n"
+                + "user-agent: redkale-test\r\n"
+                + "Connection:keep-alive\r\n"
+                + "X-Custom:   v1 v2\r\n"
+                + "X-Dup: first\r\n"
+                + "X-Dup: second\r\n"
+                + "X-Empty:\r\n"
+                + "X-Name: 张三\r\n"
+                + "X-Int: 42\r\n"
+                + "\r\nhello").getBytes(StandardCharsets.UTF_8);
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.write(request);
+                System.out.println("headers: " + expect.equals(readResponse(in)));
+
+                //header逐字节到达, 空行跨越多次读取
+                for (byte b : request) {
+                    out.write(b);
+                    out.flush();
+                    Thread.sleep(1);
+                }
+                System.out.println("byte by byte: " + expect.equals(readResponse(in)));
+
+                //上一个请求的header不会残留
+                out.write("GET /header/ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                System.out.println("recycled: " + "".equals(readResponse(in)));
+
+                int count = 20000;
+                byte[] ping = ("GET /header/ping HTTP/1.1\r\nHost: localhost\r\nUser-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+                    + "Accept: text/html,application/xhtml+xml\r\nAccept-Encoding: gzip, deflate\r\nAccept-Language: zh-CN,zh;q=0.9\r\n"
+                    + "Cache-Control: no-cache\r\nReferer: http://localhost/index.html\r\nX-Trace-Id: trace-1\r\nConnection: keep-alive\r\n\r\n").getBytes();
+                boolean ok = true;
+                long s = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    out.write(ping);
+                    ok &= "trace-1".equals(readResponse(in));
+                }
+                long e = System.currentTimeMillis() - s;
+                System.out.println("keep-alive " + count + " requests with 10 headers: " + ok + " in " + e + " ms");
+            }
+
+            //CR之后不是LF的非法header
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(3000);
+                socket.getOutputStream().write("GET /header/ping HTTP/1.1\r\nHost: localhost\rX\r\n\r\n".getBytes());
+                boolean rejected;
+                try {
+                    rejected = socket.getInputStream().read() < 0;
+                } catch (IOException ex) {
+                    rejected = true;
+                }
+                System.out.println("bad line rejected: " + rejected);
+            }
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static String readResponse(DataInputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                int pos = str.indexOf(':');
+                if (pos > 0 && !str.startsWith("HTTP/")) headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[Integer.parseInt(headers.get("content-length"))];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
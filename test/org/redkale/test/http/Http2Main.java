@@ -0,0 +1,198 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * HTTP/2 测试: JDK HttpClient 以 h2c 升级后在同一连接上并发多路请求(含大响应的流量控制与POST body)， 以及 prior-knowledge 方式的原始帧请求
+ *
+ * @author zhangjx
+ */
+public class Http2Main {
+
+    private static final int port = 6071;
+
+    private static final int concurrency = 100;
+
+    private static final int bigSize = 300 * 1024;
+
+    public static void main(String[] args) throws Throwable {
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                String uri = req.getRequestURI();
+                if (uri.endsWith("/echo")) {
+                    resp.finish(req.getMethod() + " " + req.getProtocol() + " " + req.getBodyUTF8());
+                } else if (uri.endsWith("/big")) {
+                    byte[] bs = new byte[req.getIntParameter("size", bigSize)];
+                    for (int i = 0; i < bs.length; i++) {
+                        bs[i] = (byte) (i % 251);
+                    }
+                    resp.finish(bs);
+                } else {
+                    resp.setHeader("X-Index", req.getParameter("index", ""));
+                    resp.finish("hello " + req.getParameter("index", ""));
+                }
+            }
+        }, "/h2/*");
+        server.init(DefaultAnyValue.create("port", port).addValue("http2", "true"));
+        server.start(null);
+        Thread.sleep(100);
+
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            //首个请求以 Upgrade: h2c 升级
+            java.net.http.HttpResponse<String> first = client.send(java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/h2/echo")).build(), BodyHandlers.ofString());
+            System.out.println("h2c upgrade: " + first.version() + ", body: " + first.body());
+
+            long s = System.currentTimeMillis();
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                final int index = i;
+                java.net.http.HttpRequest req;
+                if (i % 10 == 0) {
+                    req = java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/h2/big")).build();
+                    futures.add(client.sendAsync(req, BodyHandlers.ofByteArray()).thenApply(r -> {
+                        byte[] bs = r.body();
+                        if (r.version() != HttpClient.Version.HTTP_2 || bs.length != bigSize) return false;
+                        for (int j = 0; j < bs.length; j++) {
+                            if (bs[j] != (byte) (j % 251)) return false;
+                        }
+                        return true;
+                    }));
+                } else if (i % 10 == 1) {
+                    String body = "body-" + index + "-" + "x".repeat(index * 50);
+                    req = java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/h2/echo")).POST(BodyPublishers.ofString(body)).build();
+                    futures.add(client.sendAsync(req, BodyHandlers.ofString()).thenApply(r -> r.version() == HttpClient.Version.HTTP_2 && r.body().equals("POST HTTP/2.0 " + body)));
+                } else {
+                    req = java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/h2/hello?index=" + index)).build();
+                    futures.add(client.sendAsync(req, BodyHandlers.ofString()).thenApply(r -> r.version() == HttpClient.Version.HTTP_2
+                        && r.body().equals("hello " + index) && String.valueOf(index).equals(r.headers().firstValue("x-index").orElse(null))));
+                }
+            }
+            int ok = 0;
+            for (CompletableFuture<Boolean> future : futures) {
+                if (future.get()) ok++;
+            }
+            long e = System.currentTimeMillis() - s;
+            System.out.println("multiplexed requests: " + ok + "/" + concurrency + " ok in " + e + " ms");
+
+            System.out.println("prior-knowledge: " + priorKnowledge());
+            System.out.println("flow control: " + flowControl());
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    //直接发送连接前言与未压缩的HEADERS帧
+    private static String priorKnowledge() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(3000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            writeFrame(out, 0x4, 0, 0, new byte[0]); //SETTINGS
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            block.write(0x82); //:method GET
+            block.write(0x86); //:scheme http
+            literal(block, 4, "/h2/hello?index=7"); //:path
+            literal(block, 1, "localhost"); //:authority
+            writeFrame(out, 0x1, 0x4 | 0x1, 1, block.toByteArray()); //HEADERS END_HEADERS|END_STREAM
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String status = null;
+            StringBuilder body = new StringBuilder();
+            for (;;) {
+                int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamid = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x4 && (flags & 0x1) == 0) {
+                    writeFrame(out, 0x4, 0x1, 0, new byte[0]); //SETTINGS ACK
+                } else if (type == 0x1 && streamid == 1) {
+                    status = (payload[0] & 0xff) == 0x88 ? "200" : ("0x" + Integer.toHexString(payload[0] & 0xff));
+                    if ((flags & 0x1) != 0) break;
+                } else if (type == 0x0 && streamid == 1) {
+                    body.append(new String(payload, StandardCharsets.UTF_8));
+                    if ((flags & 0x1) != 0) break;
+                }
+            }
+            return "status " + status + ", body: " + body;
+        }
+    }
+
+    //不等待WINDOW_UPDATE持续发送超出maxbody的DATA帧, 接收窗口不超过maxbody, 超出窗口时以FLOW_CONTROL_ERROR重置流
+    private static String flowControl() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(3000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            writeFrame(out, 0x4, 0, 0, new byte[0]); //SETTINGS
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            block.write(0x83); //:method POST
+            block.write(0x86); //:scheme http
+            literal(block, 4, "/h2/echo"); //:path
+            literal(block, 1, "localhost"); //:authority
+            writeFrame(out, 0x1, 0x4, 1, block.toByteArray()); //HEADERS END_HEADERS
+            for (int i = 0; i < 5; i++) {
+                writeFrame(out, 0x0, 0, 1, new byte[16384]); //DATA, 共80K, 超出默认64K的maxbody
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int credit = 65535;
+            for (;;) {
+                int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamid = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x4 && (flags & 0x1) == 0) {
+                    writeFrame(out, 0x4, 0x1, 0, new byte[0]); //SETTINGS ACK
+                } else if (type == 0x8 && streamid == 1) {
+                    credit += ByteBuffer.wrap(payload).getInt();
+                } else if (type == 0x3 && streamid == 1) {
+                    int error = ByteBuffer.wrap(payload).getInt();
+                    return (error == 0x3 && credit <= 64 * 1024) + ", stream credit " + credit + ", RST_STREAM error " + error;
+                }
+            }
+        }
+    }
+
+    //Literal Header Field without Indexing, 使用静态表的name
+    private static void literal(ByteArrayOutputStream block, int nameIndex, String value) {
+        byte[] bs = value.getBytes(StandardCharsets.UTF_8);
+        block.write(nameIndex);
+        block.write(bs.length);
+        block.write(bs, 0, bs.length);
+    }
+
+    private static void writeFrame(DataOutputStream out, int type, int flags, int streamid, byte[] payload) throws IOException {
+        out.write(payload.length >>> 16);
+        out.write(payload.length >>> 8);
+        out.write(payload.length);
+        out.write(type);
+        out.write(flags);
+        out.writeInt(streamid);
+        out.write(payload);
+    }
+}
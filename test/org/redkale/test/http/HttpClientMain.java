@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import org.redkale.net.AsyncIOGroup;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * HttpClient测试: keep-alive复用连接、 pipeline、 chunked与gzip响应、 Connection: close、 读超时、 body与解压后body的maxbody限制、 按host的延迟统计与host连接池数量上限
+ *
+ * @author zhangjx
+ */
+public class HttpClientMain {
+
+    private static final int port = 6077;
+
+    private static final Set<String> remotes = ConcurrentHashMap.newKeySet();
+
+    public static void main(String[] args) throws Throwable {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i).append("\"}");
+        }
+        final String json = sb.toString();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                remotes.add(String.valueOf(req.getRemoteAddress()));
+                String uri = req.getRequestURI();
+                if (uri.endsWith("/echo")) {
+                    resp.finish(req.getBodyUTF8() + "#" + req.getParameter("id", ""));
+                } else if (uri.endsWith("/json")) {
+                    resp.finish("application/json; charset=utf-8", json.getBytes());
+                } else if (uri.endsWith("/chunked")) {
+                    resp.sendChunk("hello ".getBytes()).thenCompose(v -> resp.sendChunk("world".getBytes()))
+                        .whenComplete((v, e) -> resp.finishChunked());
+                } else if (uri.endsWith("/big")) {
+                    resp.finish("application/octet-stream", new byte[20000]);
+                } else if (uri.endsWith("/close")) {
+                    resp.setHeader("Connection", "close");
+                    resp.finish("bye");
+                } else if (uri.endsWith("/slow")) {
+                    try {
+                        Thread.sleep(2500);
+                    } catch (InterruptedException e) {
+                    }
+                    resp.finish("slow");
+                } else {
+                    resp.finish("pong");
+                }
+            }
+        }, "/api/*");
+        server.init(DefaultAnyValue.create("port", port).addValue("response", DefaultAnyValue.create()
+            .addValue("compress", DefaultAnyValue.create("level", "6").addValue("threshold", "256"))));
+        server.start(null);
+        Thread.sleep(100);
+
+        final AsyncIOGroup asyncGroup = new AsyncIOGroup(8192, 16);
+        asyncGroup.start();
+        HttpClient client = HttpClient.create(asyncGroup);
+        client.setMaxConnsPerHost(2);
+        String base = "http://127.0.0.1:" + port;
+        try {
+            HttpResult<byte[]> rs = client.postAsync(base + "/api/echo?id=7", "hello").join();
+            System.out.println("post: " + (rs.getStatus() == 200 && "hello#7".equals(new String(rs.getResult()))));
+            rs = client.getAsync(base + "/api/json").join();
+            System.out.println("gzip: " + ("gzip".equals(rs.getHeader("Content-Encoding")) && json.equals(new String(rs.getResult()))));
+            rs = client.getAsync(base + "/api/chunked").join();
+            System.out.println("chunked: " + "hello world".equals(new String(rs.getResult())));
+            rs = client.getAsync(base + "/api/close").join();
+            rs = client.getAsync(base + "/api/ping").join();
+            System.out.println("connection close: " + "pong".equals(new String(rs.getResult())));
+
+            remotes.clear();
+            int count = 2000;
+            long s = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                client.getAsync(base + "/api/ping").join();
+            }
+            long e = System.currentTimeMillis() - s;
+            System.out.println("keep-alive: " + (remotes.size() == 1) + ", " + count + " sequential requests in " + e + " ms over " + remotes.size() + " connections");
+
+            remotes.clear();
+            List<CompletableFuture<HttpResult<byte[]>>> futures = new ArrayList<>();
+            s = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                futures.add(client.getAsync(base + "/api/echo?id=" + i));
+            }
+            boolean ok = true;
+            for (int i = 0; i < count; i++) {
+                ok = ok && ("#" + i).equals(new String(futures.get(i).join().getResult()));
+            }
+            e = System.currentTimeMillis() - s;
+            System.out.println("concurrent: " + (ok && remotes.size() <= 2) + ", " + count + " requests in " + e + " ms over " + remotes.size() + " connections");
+
+            HttpClient pipeClient = HttpClient.create(asyncGroup);
+            pipeClient.setMaxConnsPerHost(1);
+            pipeClient.setMaxPipelines(16);
+            remotes.clear();
+            futures.clear();
+            s = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                futures.add(pipeClient.getAsync(base + "/api/echo?id=" + i));
+            }
+            ok = true;
+            for (int i = 0; i < count; i++) {
+                ok = ok && ("#" + i).equals(new String(futures.get(i).join().getResult()));
+            }
+            e = System.currentTimeMillis() - s;
+            System.out.println("pipeline: " + (ok && remotes.size() == 1) + ", " + count + " requests in " + e + " ms");
+            pipeClient.close();
+
+            HttpClient timeoutClient = HttpClient.create(asyncGroup);
+            timeoutClient.setReadTimeoutSeconds(1);
+            s = System.currentTimeMillis();
+            try {
+                timeoutClient.getAsync(base + "/api/slow").join();
+                System.out.println("read timeout: false");
+            } catch (CompletionException ex) {
+                System.out.println("read timeout: " + (ex.getCause() instanceof TimeoutException) + ", after " + (System.currentTimeMillis() - s) + " ms");
+            }
+            timeoutClient.close();
+
+            HttpClient bodyClient = HttpClient.create(asyncGroup);
+            bodyClient.setMaxbody(8 * 1024);
+            String error = "";
+            for (String uri : new String[]{"/api/big", "/api/json"}) { //json压缩后小于8K, 解压后超过
+                try {
+                    bodyClient.getAsync(base + uri).join();
+                } catch (CompletionException ex) {
+                    if (ex.getCause() instanceof IOException) error += uri + " ";
+                }
+            }
+            rs = bodyClient.getAsync(base + "/api/ping").join();
+            System.out.println("maxbody: " + ("/api/big /api/json ".equals(error) && "pong".equals(new String(rs.getResult()))) + ", failed " + error.trim());
+            bodyClient.close();
+
+            HttpClient hostClient = HttpClient.create(asyncGroup);
+            hostClient.setMaxHosts(2);
+            ok = true;
+            for (String h : new String[]{"127.0.0.1", "localhost", "127.0.0.2", "127.0.0.1"}) {
+                ok = ok && "pong".equals(new String(hostClient.getAsync("http://" + h + ":" + port + "/api/ping").join().getResult()));
+            }
+            System.out.println("max hosts: " + (ok && hostClient.getHostStats().size() == 2) + ", " + hostClient.getHostStats().keySet());
+            hostClient.close();
+            System.out.println("stats: " + client.getHostStats());
+        } finally {
+            client.close();
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * HTTPS 本地回环吞吐量测试， 使用keytool生成的自签名证书
+ *
+ * @author zhangjx
+ */
+public class HttpsLoopbackMain {
+
+    private static final int port = 6443;
+
+    private static final int clients = 8;
+
+    private static final int requests = 20000;
+
+    private static final int bodySize = 4 * 1024;
+
+    public static void main(String[] args) throws Throwable {
+        File keystore = File.createTempFile("redkale-https", ".jks");
+        keystore.delete();
+        keystore.deleteOnExit();
+        Process process = new ProcessBuilder("keytool", "-genkeypair", "-alias", "redkale", "-keyalg", "RSA", "-keysize", "2048",
+            "-validity", "1", "-dname", "CN=localhost", "-keystore", keystore.getPath(), "-storetype", "JKS",
+            "-storepass", "redkale", "-keypass", "redkale").inheritIO().start();
+        if (process.waitFor() != 0) throw new IOException("keytool generate keystore failed");
+
+        final byte[] body = new byte[bodySize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + (i % 26));
+        }
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                resp.finish(body);
+            }
+        }, "/bench");
+        DefaultAnyValue sslConf = DefaultAnyValue.create("keystorefile", keystore.getPath()).addValue("keystorepass", "redkale");
+        server.init(DefaultAnyValue.create("port", port).addValue("ssl", sslConf));
+        server.start(null);
+        Thread.sleep(500);
+
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        final SSLSocketFactory factory = clientContext.getSocketFactory();
+        final byte[] reqBytes = ("GET /bench HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n").getBytes();
+        final AtomicLong bytes = new AtomicLong();
+        final CountDownLatch cdl = new CountDownLatch(clients);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long s = System.currentTimeMillis();
+        for (int c = 0; c < clients; c++) {
+            pool.execute(() -> {
+                try (SSLSocket socket = (SSLSocket) factory.createSocket("127.0.0.1", port)) {
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    for (int i = 0; i < requests / clients; i++) {
+                        out.write(reqBytes);
+                        out.flush();
+                        bytes.addAndGet(readResponse(in));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+        cdl.await();
+        long e = System.currentTimeMillis() - s;
+        System.out.println("HTTPS " + clients + " clients, " + requests + " requests in " + e + " ms, "
+            + (requests * 1000L / Math.max(e, 1)) + " req/s, " + (bytes.get() * 1000L / Math.max(e, 1) / 1024 / 1024) + " MB/s");
+
+        //会话复用: 使用同一SSLContext的新连接应复用session(TLSv1.2下session id相同)
+        SSLSocket s1 = (SSLSocket) factory.createSocket("127.0.0.1", port);
+        s1.setEnabledProtocols(new String[]{"TLSv1.2"});
+        s1.startHandshake();
+        SSLSocket s2 = (SSLSocket) factory.createSocket("127.0.0.1", port);
+        s2.setEnabledProtocols(new String[]{"TLSv1.2"});
+        s2.startHandshake();
+        System.out.println("session resumed: " + Arrays.equals(s1.getSession().getId(), s2.getSession().getId()));
+        s1.close();
+        s2.close();
+        pool.shutdown();
+        server.shutdown();
+    }
+
+    private static int readResponse(DataInputStream in) throws IOException {
+        int contentLength = 0;
+        int total = 0;
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            total++;
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                if (str.toLowerCase().startsWith("content-length:")) contentLength = Integer.parseInt(str.substring(15).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[contentLength];
+        in.readFully(content);
+        return total + contentLength;
+    }
+}
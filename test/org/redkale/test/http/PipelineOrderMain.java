@@ -0,0 +1,115 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.redkale.boot.Application;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * HTTP pipeline 乱序完成测试: 后面的请求先处理完， 响应仍须按请求顺序输出
+ *
+ * @author zhangjx
+ */
+public class PipelineOrderMain {
+
+    private static final int port = 6069;
+
+    private static final int pipelines = 32;
+
+    private static final int rounds = 2000;
+
+    public static void main(String[] args) throws Throwable {
+        File home = Files.createTempDirectory("redkale-pipeline").toFile();
+        new File(home, "conf").mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(home, "conf/application.xml"))) {
+            out.write("<application port=\"0\"><resources><executor threads=\"8\"/></resources></application>".getBytes(StandardCharsets.UTF_8));
+        }
+        System.setProperty(Application.RESNAME_APP_HOME, home.getPath());
+        Application application = Application.create(true);
+
+        HttpServer server = new HttpServer(application, System.currentTimeMillis(), application.getResourceFactory());
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                int index = Integer.parseInt(req.getRequstURILastPath());
+                int sleep = req.getIntParameter("sleep", 0);
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                resp.finish(String.valueOf(index));
+            }
+        }, "/pipe/*");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(application);
+        Thread.sleep(100);
+
+        try {
+            //后面的请求睡眠时间更短, 先完成
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i <= pipelines; i++) {
+                sb.append("GET /pipe/").append(i).append("?sleep=").append(pipelines - i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            }
+            System.out.println("out of order pipeline keep order: " + check(sb.toString().getBytes(), pipelines, 1));
+
+            //每轮响应写完前客户端已可收到数据并发出下一轮请求, 前后两轮的写操作需排队合并
+            sb.setLength(0);
+            for (int i = 1; i <= pipelines; i++) {
+                sb.append("GET /pipe/").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            }
+            long s = System.currentTimeMillis();
+            boolean ok = check(sb.toString().getBytes(), pipelines, rounds);
+            long e = System.currentTimeMillis() - s;
+            System.out.println("tiny pipeline keep order: " + ok + ", " + (pipelines * rounds) + " responses in " + e + " ms, " + (pipelines * rounds * 1000L / Math.max(1, e)) + " resp/s");
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static boolean check(byte[] reqs, int count, int times) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            boolean ok = true;
+            for (int t = 0; t < times; t++) {
+                out.write(reqs);
+                out.flush();
+                for (int i = 1; i <= count; i++) {
+                    if (!String.valueOf(i).equals(readBody(in))) ok = false;
+                }
+            }
+            return ok;
+        }
+    }
+
+    private static String readBody(DataInputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                if (str.toLowerCase().startsWith("content-length:")) contentLength = Integer.parseInt(str.substring(15).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[contentLength];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
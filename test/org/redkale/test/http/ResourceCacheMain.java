@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * 堆外静态资源缓存测试: 缓存内容正确输出， ETag命中输出304， Range请求， gzip压缩内容缓存， 超出缓存总大小时淘汰最久未访问的文件， 未开启watch时文件修改或删除后不输出旧内容
+ *
+ * @author zhangjx
+ */
+public class ResourceCacheMain {
+
+    private static final int port = 6076;
+
+    public static void main(String[] args) throws Throwable {
+        File home = Files.createTempDirectory("redkale-rescache").toFile();
+        File dir = new File(home, "static");
+        dir.mkdirs();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("function f").append(i).append("(){return ").append(i).append(";}\n");
+        }
+        final byte[] js = sb.toString().getBytes();
+        final byte[] small = "<html><body>index</body></html>".getBytes();
+        Files.write(new File(dir, "app.js").toPath(), js);
+        Files.write(new File(dir, "index.html").toPath(), small);
+        final byte[][] thumbs = new byte[10][];
+        Random random = new Random(1);
+        for (int i = 0; i < thumbs.length; i++) {
+            thumbs[i] = new byte[100 * 1024];
+            random.nextBytes(thumbs[i]);
+            Files.write(new File(dir, "thumb" + i + ".png").toPath(), thumbs[i]);
+        }
+
+        HttpResourceServlet servlet = new HttpResourceServlet();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(servlet, "", DefaultAnyValue.create("webroot", home.getPath())
+            .addValue("cache", DefaultAnyValue.create("limit", "512K").addValue("lengthmax", "256K").addValue("offheap", "true")), "/static/*");
+        server.init(DefaultAnyValue.create("port", port).addValue("response", DefaultAnyValue.create()
+            .addValue("compress", DefaultAnyValue.create("level", "6").addValue("threshold", "256"))));
+        server.start(null);
+        Thread.sleep(100);
+
+        try {
+            Result r1 = request("/static/app.js", null, null, null);
+            Result r2 = request("/static/app.js", null, null, null);
+            System.out.println("cached: " + (r1.status == 200 && Arrays.equals(js, r1.body) && Arrays.equals(js, r2.body))
+                + ", etag = " + r1.headers.get("etag") + ", last-modified = " + r1.headers.get("last-modified"));
+            Result r3 = request("/static/index.html", null, null, null);
+            System.out.println("direct: " + (r3.status == 200 && Arrays.equals(small, r3.body)) + ", " + r3.headers.get("content-type"));
+            Result r4 = request("/static/app.js", null, null, r1.headers.get("etag"));
+            System.out.println("if-none-match: " + (r4.status == 304 && r4.body.length == 0));
+            Result r5 = request("/static/app.js", null, "bytes=100-199", null);
+            System.out.println("range: " + (r5.status == 206 && Arrays.equals(Arrays.copyOfRange(js, 100, 200), r5.body)) + ", " + r5.headers.get("content-range"));
+            Result r6 = request("/static/app.js", null, "bytes=" + js.length + "-", null);
+            System.out.println("range unsatisfiable: " + (r6.status == 416));
+            Result r7 = request("/static/app.js", "gzip", null, null);
+            Result r8 = request("/static/app.js", "gzip", null, null);
+            System.out.println("gzip: " + ("gzip".equals(r7.headers.get("content-encoding")) && Arrays.equals(js, gunzip(r7.body)) && Arrays.equals(r7.body, r8.body))
+                + ", " + js.length + " -> " + r7.body.length + " bytes, etag = " + r7.headers.get("etag"));
+
+            for (int k = 0; k < 2; k++) {
+                for (int i = 0; i < thumbs.length; i++) {
+                    Result r = request("/static/thumb" + i + ".png", null, null, null);
+                    if (!Arrays.equals(thumbs[i], r.body)) throw new IOException("thumb" + i + " content error");
+                }
+            }
+            System.out.println("evicted: " + (servlet.getEvictedCount() > 0 && servlet.getCachedLength() <= 512 * 1024)
+                + ", evicted = " + servlet.getEvictedCount() + ", cached = " + servlet.getCachedLength());
+
+            final byte[] edited = "<html><body>edited index</body></html>".getBytes();
+            Files.write(new File(dir, "index.html").toPath(), edited);
+            Result r9 = request("/static/index.html", null, null, null);
+            new File(dir, "index.html").delete();
+            Result r10 = request("/static/index.html", null, null, null);
+            System.out.println("unwatched edit: " + (Arrays.equals(edited, r9.body) && r10.status == 404));
+
+            int count = 2000;
+            long s = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                request("/static/app.js", null, null, null);
+            }
+            long e = System.currentTimeMillis() - s;
+            System.out.println("cached " + count + " requests in " + e + " ms");
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static byte[] gunzip(byte[] bs) throws IOException {
+        return new GZIPInputStream(new ByteArrayInputStream(bs)).readAllBytes();
+    }
+
+    private static Result request(String uri, String acceptEncoding, String range, String etag) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (acceptEncoding == null ? "" : ("Accept-Encoding: " + acceptEncoding + "\r\n"))
+                + (range == null ? "" : ("Range: " + range + "\r\n"))
+                + (etag == null ? "" : ("If-None-Match: " + etag + "\r\n")) + "Connection: close\r\n\r\n").getBytes());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Result rs = new Result();
+            StringBuilder line = new StringBuilder();
+            for (;;) {
+                int b = in.read();
+                if (b < 0) throw new EOFException();
+                if (b == '\n') {
+                    String str = line.toString().trim();
+                    if (str.isEmpty()) break;
+                    int pos = str.indexOf(':');
+                    if (str.startsWith("HTTP/")) {
+                        rs.status = Integer.parseInt(str.split(" ")[1]);
+                    } else if (pos > 0) {
+                        rs.headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+                    }
+                    line.setLength(0);
+                } else {
+                    line.append((char) b);
+                }
+            }
+            rs.body = new byte[Integer.parseInt(rs.headers.getOrDefault("content-length", "0"))];
+            in.readFully(rs.body);
+            return rs;
+        }
+    }
+
+    private static class Result {
+
+        int status;
+
+        final Map<String, String> headers = new HashMap<>();
+
+        byte[] body;
+    }
+}
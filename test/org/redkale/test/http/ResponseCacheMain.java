@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * 结果缓存测试: key包含请求参数与指定header， 条目数超过cachelimit时淘汰， 命中时回放header与cookie， If-None-Match输出304， 并发未命中时只执行一次action， action超时后等待的请求各自执行
+ *
+ * @author zhangjx
+ */
+public class ResponseCacheMain {
+
+    private static final int port = 6075;
+
+    private static final AtomicInteger listCounter = new AtomicInteger();
+
+    private static final AtomicInteger slowCounter = new AtomicInteger();
+
+    private static final AtomicInteger hangCounter = new AtomicInteger();
+
+    @WebServlet({"/cache/*"})
+    public static class CacheServlet extends HttpServlet {
+
+        @HttpMapping(url = "/cache/list", auth = false, cacheseconds = 60, cachelimit = 8, cacheheaders = {"Accept-Language"})
+        public void list(HttpRequest req, HttpResponse resp) throws IOException {
+            resp.setHeader("Cache-Control", "max-age=60").addCookie(new java.net.HttpCookie("lang", "zh"));
+            resp.finish("list-" + req.getParameter("page", "0") + "-" + req.getHeader("Accept-Language", "") + "-" + listCounter.incrementAndGet());
+        }
+
+        @HttpMapping(url = "/cache/slow", auth = false, cacheseconds = 60)
+        public void slow(HttpRequest req, HttpResponse resp) throws IOException {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+            }
+            resp.finish("slow-" + slowCounter.incrementAndGet());
+        }
+
+        @HttpMapping(url = "/cache/hang", auth = false, cacheseconds = 60)
+        public void hang(HttpRequest req, HttpResponse resp) throws IOException {
+            final int index = hangCounter.incrementAndGet();
+            if (index == 1) { //第一次异步执行， 超过等待时间后才输出
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(8000);
+                    } catch (InterruptedException e) {
+                    }
+                    resp.finish("hang-" + index);
+                }).start();
+                return;
+            }
+            resp.finish("hang-" + index);
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        CacheServlet servlet = new CacheServlet();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(servlet, "/cache/*");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        try {
+            Result r1 = request("/cache/list?page=1", null, null);
+            Result r2 = request("/cache/list?page=1", null, null);
+            System.out.println("hit: " + (r1.body.equals(r2.body) && r1.etag != null && r1.etag.equals(r2.etag)) + ", " + r2.body);
+            System.out.println("replay headers: " + ("max-age=60".equals(r2.headers.get("cache-control")) && r2.headers.getOrDefault("set-cookie", "").startsWith("lang=zh")));
+            Result r3 = request("/cache/list?page=2", null, null);
+            System.out.println("params in key: " + !r3.body.equals(r1.body) + ", " + r3.body);
+            Result r4 = request("/cache/list?page=1", "en", null);
+            System.out.println("header in key: " + !r4.body.equals(r1.body) + ", " + r4.body);
+            Result r5 = request("/cache/list?page=1", null, r1.etag);
+            System.out.println("if-none-match: " + (r5.status == 304 && r5.body.isEmpty() && !r5.headers.containsKey("content-length") && r1.etag.equals(r5.etag)));
+            Result r6 = request("/cache/list?page=1", null, "\"other\"");
+            System.out.println("etag mismatch: " + (r6.status == 200 && r6.body.equals(r1.body)));
+
+            for (int i = 0; i < 50; i++) {
+                request("/cache/list?page=" + (100 + i), null, null);
+            }
+            HttpResponseCache listCache = servlet.getResponseCaches().get("/cache/list");
+            System.out.println("bounded: " + (listCache.size() <= listCache.getLimit() && listCache.getEvictionCount() > 0) + ", " + listCache);
+
+            int count = 20;
+            ExecutorService pool = Executors.newFixedThreadPool(count);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return request("/cache/slow", null, null);
+                }));
+            }
+            start.countDown();
+            Set<String> bodies = new HashSet<>();
+            for (Future<Result> f : futures) {
+                bodies.add(f.get().body);
+            }
+            pool.shutdown();
+            System.out.println("single-flight: " + (slowCounter.get() == 1 && bodies.size() == 1) + ", executed " + slowCounter.get() + " times for " + count + " requests");
+            System.out.println(servlet.getResponseCaches().get("/cache/slow"));
+
+            ExecutorService hangPool = Executors.newFixedThreadPool(2);
+            Future<Result> first = hangPool.submit(() -> request("/cache/hang", null, null));
+            Thread.sleep(200);
+            long s = System.currentTimeMillis();
+            Result waiter = hangPool.submit(() -> request("/cache/hang", null, null)).get();
+            long e = System.currentTimeMillis() - s;
+            System.out.println("loading timeout: " + ("hang-2".equals(waiter.body) && e < 7000) + ", waited " + e + " ms, first = " + first.get().body);
+            hangPool.shutdown();
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static Result request(String uri, String language, String etag) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (language == null ? "" : ("Accept-Language: " + language + "\r\n"))
+                + (etag == null ? "" : ("If-None-Match: " + etag + "\r\n")) + "Connection: close\r\n\r\n").getBytes());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Map<String, String> headers = new HashMap<>();
+            StringBuilder line = new StringBuilder();
+            Result rs = new Result();
+            for (;;) {
+                int b = in.read();
+                if (b < 0) throw new EOFException();
+                if (b == '\n') {
+                    String str = line.toString().trim();
+                    if (str.isEmpty()) break;
+                    int pos = str.indexOf(':');
+                    if (str.startsWith("HTTP/")) {
+                        rs.status = Integer.parseInt(str.split(" ")[1]);
+                    } else if (pos > 0) {
+                        headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+                    }
+                    line.setLength(0);
+                } else {
+                    line.append((char) b);
+                }
+            }
+            rs.etag = headers.get("etag");
+            rs.headers = headers;
+            byte[] body = new byte[rs.status == 304 ? 0 : Integer.parseInt(headers.getOrDefault("content-length", "0"))];
+            in.readFully(body);
+            rs.body = new String(body);
+            return rs;
+        }
+    }
+
+    private static class Result {
+
+        int status;
+
+        String etag;
+
+        String body;
+
+        Map<String, String> headers;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * SO_REUSEPORT 多监听通道测试: 模拟重连高峰， 输出每个监听通道的接收数
+ *
+ * @author zhangjx
+ */
+public class ReusePortAcceptorsMain {
+
+    private static final int port = 6068;
+
+    private static final int clients = 8;
+
+    private static final int connections = 4000;
+
+    public static void main(String[] args) throws Throwable {
+        storm(1);
+        storm(4);
+        System.exit(0);
+    }
+
+    private static void storm(int acceptors) throws Exception {
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                resp.finish("ok");
+            }
+        }, "/ping");
+        server.init(DefaultAnyValue.create("port", port).addValue("acceptors", String.valueOf(acceptors)));
+        server.start(null);
+        Thread.sleep(100);
+
+        final byte[] reqBytes = "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n".getBytes();
+        final AtomicInteger oks = new AtomicInteger();
+        final CountDownLatch cdl = new CountDownLatch(clients);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long s = System.currentTimeMillis();
+        for (int c = 0; c < clients; c++) {
+            pool.execute(() -> {
+                try {
+                    for (int i = 0; i < connections / clients; i++) {
+                        try (Socket socket = new Socket("127.0.0.1", port)) {
+                            socket.getOutputStream().write(reqBytes);
+                            if ("ok".equals(readBody(new DataInputStream(new BufferedInputStream(socket.getInputStream()))))) {
+                                oks.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+        cdl.await();
+        long e = System.currentTimeMillis() - s;
+        Thread.sleep(1100);
+        System.out.println("acceptors: " + acceptors + ", " + oks.get() + " connections in " + e + " ms, " + (oks.get() * 1000L / Math.max(1, e)) + " conn/s"
+            + ", accept counts: " + Arrays.toString(server.getAcceptConnectionCounts())
+            + ", accept rates: " + Arrays.toString(server.getAcceptConnectionRates()));
+        pool.shutdown();
+        server.shutdown();
+    }
+
+    private static String readBody(DataInputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                if (str.toLowerCase().startsWith("content-length:")) contentLength = Integer.parseInt(str.substring(15).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[contentLength];
+        in.readFully(content);
+        return new String(content);
+    }
+}
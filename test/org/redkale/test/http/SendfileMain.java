@@ -0,0 +1,165 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * 零拷贝文件输出测试: 慢速客户端下载大文件时， 同一IO线程上的小请求延迟不受影响； 并校验Range与多文件拼接输出
+ *
+ * @author zhangjx
+ */
+public class SendfileMain {
+
+    private static final int port = 6070;
+
+    private static final int bigSize = 32 * 1024 * 1024;
+
+    public static void main(String[] args) throws Throwable {
+        File home = Files.createTempDirectory("redkale-sendfile").toFile();
+        final File big = createFile(new File(home, "big.bin"), 0, bigSize);
+        final File part1 = createFile(new File(home, "part1.js"), 0, 1000);
+        final File part2 = createFile(new File(home, "part2.js"), 1000, 3000);
+
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new HttpServlet() {
+            @Override
+            public void execute(HttpRequest req, HttpResponse resp) throws IOException {
+                String uri = req.getRequestURI();
+                if (uri.endsWith("/big")) {
+                    resp.finish(big);
+                } else if (uri.endsWith("/files")) {
+                    resp.finishFiles(null, part1, part2);
+                } else {
+                    resp.finish("pong");
+                }
+            }
+        }, "/file/*");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        try {
+            //慢速下载大文件, 同时测量小请求延迟
+            final AtomicLong downloaded = new AtomicLong(-1);
+            Thread downloader = new Thread(() -> {
+                try (Socket socket = new Socket("127.0.0.1", port)) {
+                    socket.setReceiveBufferSize(64 * 1024);
+                    socket.getOutputStream().write("GET /file/big HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    Map<String, String> headers = readHeaders(in);
+                    long len = Long.parseLong(headers.get("content-length"));
+                    byte[] bs = new byte[64 * 1024];
+                    long pos = 0;
+                    while (pos < len) {
+                        int rs = in.read(bs, 0, (int) Math.min(bs.length, len - pos));
+                        if (rs < 0) throw new EOFException();
+                        for (int i = 0; i < rs; i++) {
+                            if (bs[i] != (byte) ((pos + i) % 251)) throw new IOException("content error at " + (pos + i));
+                        }
+                        pos += rs;
+                        Thread.sleep(1);
+                    }
+                    downloaded.set(pos);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            long s = System.currentTimeMillis();
+            downloader.start();
+            long maxLatency = 0;
+            long totalLatency = 0;
+            int pings = 0;
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (downloader.isAlive()) {
+                    long t = System.nanoTime();
+                    out.write("GET /file/ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                    out.flush();
+                    Map<String, String> headers = readHeaders(in);
+                    byte[] body = new byte[Integer.parseInt(headers.get("content-length"))];
+                    in.readFully(body);
+                    if (!"pong".equals(new String(body))) throw new IOException("ping error");
+                    long latency = (System.nanoTime() - t) / 1000;
+                    maxLatency = Math.max(maxLatency, latency);
+                    totalLatency += latency;
+                    pings++;
+                    Thread.sleep(5);
+                }
+            }
+            long e = System.currentTimeMillis() - s;
+            System.out.println("download " + downloaded.get() + "/" + bigSize + " bytes in " + e + " ms, " + pings + " pings during download, avg latency "
+                + (totalLatency / Math.max(1, pings)) + " us, max latency " + maxLatency + " us");
+
+            System.out.println("range 100-199: " + checkRange("/file/big", "bytes=100-199", 206, 100, 100));
+            System.out.println("range -50: " + checkRange("/file/big", "bytes=-50", 206, bigSize - 50, 50));
+            System.out.println("range open end: " + checkRange("/file/big", "bytes=" + (bigSize - 1000) + "-", 206, bigSize - 1000, 1000));
+            System.out.println("range unsatisfiable: " + checkRange("/file/big", "bytes=" + bigSize + "-", 416, 0, 0));
+            System.out.println("files concat: " + checkRange("/file/files", null, 200, 0, 4000));
+            System.out.println("files range across: " + checkRange("/file/files", "bytes=900-1099", 206, 900, 200));
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static File createFile(File file, long start, int size) throws IOException {
+        byte[] bs = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bs[i] = (byte) ((start + i) % 251);
+        }
+        Files.write(file.toPath(), bs);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static boolean checkRange(String uri, String range, int status, long start, int length) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n" + (range == null ? "" : ("Range: " + range + "\r\n")) + "\r\n").getBytes());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Map<String, String> headers = readHeaders(in);
+            if (!String.valueOf(status).equals(headers.get(":status"))) return false;
+            if (status != 200 && status != 206) return true;
+            if (Integer.parseInt(headers.get("content-length")) != length) return false;
+            byte[] body = new byte[length];
+            in.readFully(body);
+            for (int i = 0; i < length; i++) {
+                if (body[i] != (byte) ((start + i) % 251)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static Map<String, String> readHeaders(DataInputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                int pos = str.indexOf(':');
+                if (headers.isEmpty()) {
+                    headers.put(":status", str.split(" ")[1]);
+                } else if (pos > 0) {
+                    headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.redkale.boot.Application;
+import org.redkale.net.http.*;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * &#64;HttpMapping.streambody 测试: 超过maxbody的body边读边写入文件、 分批读取的大小受读缓存限制、 body读完后连接可复用、
+ * multipart按需解析、 未开启streambody的url仍受maxbody限制
+ *
+ * @author zhangjx
+ */
+public class StreamBodyMain {
+
+    private static final int port = 6075;
+
+    private static final int bodySize = 8 * 1024 * 1024;
+
+    private static File home;
+
+    public static class UploadServlet extends HttpServlet {
+
+        @HttpMapping(url = "/upload/file", auth = false, streambody = true)
+        public void file(HttpRequest req, HttpResponse resp) throws IOException {
+            File file = new File(home, "body-" + System.nanoTime());
+            req.readBodyTo(file).whenComplete((size, e) -> {
+                if (e != null) {
+                    resp.finish(500, e.toString());
+                } else {
+                    resp.finish(size + ":" + crc(file));
+                }
+                file.delete();
+            });
+        }
+
+        @HttpMapping(url = "/upload/chunks", auth = false, streambody = true)
+        public void chunks(HttpRequest req, HttpResponse resp) throws IOException {
+            final AtomicInteger max = new AtomicInteger();
+            final CRC32 crc = new CRC32();
+            req.readBody(new CompletionHandler<Integer, ByteBuffer>() {
+                long total;
+
+                @Override
+                public void completed(Integer count, ByteBuffer buffer) {
+                    if (count < 0) {
+                        resp.finish(total + ":" + crc.getValue() + ":" + max.get());
+                        return;
+                    }
+                    total += count;
+                    max.set(Math.max(max.get(), count));
+                    crc.update(buffer);
+                    req.readBody(this);
+                }
+
+                @Override
+                public void failed(Throwable exc, ByteBuffer buffer) {
+                    resp.finish(500, exc.toString());
+                }
+            });
+        }
+
+        @HttpMapping(url = "/upload/multi", auth = false, streambody = true)
+        public void multi(HttpRequest req, HttpResponse resp) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (MultiPart part : req.multiParts()) {
+                File file = new File(home, "part-" + System.nanoTime());
+                part.save(file);
+                sb.append(part.getFilename()).append('=').append(file.length()).append(':').append(crc(file)).append(';');
+                file.delete();
+            }
+            resp.finish(sb.toString());
+        }
+
+        @HttpMapping(url = "/upload/normal", auth = false)
+        public void normal(HttpRequest req, HttpResponse resp) throws IOException {
+            resp.finish("normal " + req.getContentLength());
+        }
+
+        @HttpMapping(url = "/upload/ping", auth = false)
+        public void ping(HttpRequest req, HttpResponse resp) throws IOException {
+            resp.finish("pong");
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        home = Files.createTempDirectory("redkale-streambody").toFile();
+        byte[] body = new byte[bodySize];
+        new Random(1).nextBytes(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        final String expect = bodySize + ":" + crc.getValue();
+
+        //multipart的阻塞式解析须在工作线程中执行
+        new File(home, "conf").mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(home, "conf/application.xml"))) {
+            out.write("<application port=\"0\"><resources><executor threads=\"4\"/></resources></application>".getBytes(StandardCharsets.UTF_8));
+        }
+        System.setProperty(Application.RESNAME_APP_HOME, home.getPath());
+        Application application = Application.create(true);
+
+        HttpServer server = new HttpServer(application, System.currentTimeMillis(), application.getResourceFactory());
+        server.addHttpServlet(new UploadServlet(), "/upload/*");
+        server.init(DefaultAnyValue.create("port", port).addValue("bufferCapacity", "16384"));
+        server.start(application);
+        Thread.sleep(100);
+
+        try {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                long s = System.currentTimeMillis();
+                out.write(("POST /upload/file HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + bodySize + "\r\n\r\n").getBytes());
+                out.write(body);
+                Map<String, String> headers = new HashMap<>();
+                String rs = readResponse(in, headers);
+                long e = System.currentTimeMillis() - s;
+                System.out.println("stream to file: " + expect.equals(rs) + ", " + bodySize + " bytes in " + e + " ms");
+
+                //body读完后同一连接继续请求
+                out.write("GET /upload/ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                System.out.println("keep-alive after body: " + "pong".equals(readResponse(in, headers)));
+
+                out.write(("POST /upload/chunks HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + bodySize + "\r\n\r\n").getBytes());
+                out.write(body);
+                String[] items = readResponse(in, headers).split(":");
+                System.out.println("readBody: " + expect.equals(items[0] + ":" + items[1]) + ", max chunk " + items[2] + " bytes (bufferCapacity 16384)");
+            }
+
+            //multipart 边解析边保存
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                String boundary = "----redkale" + System.nanoTime();
+                ByteArrayOutputStream multi = new ByteArrayOutputStream();
+                multi.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"f1\"; filename=\"a.bin\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes());
+                multi.write(body);
+                multi.write(("\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"f2\"; filename=\"b.txt\"\r\nContent-Type: text/plain\r\n\r\n").getBytes());
+                multi.write("hello".getBytes());
+                multi.write(("\r\n--" + boundary + "--\r\n").getBytes());
+                byte[] bs = multi.toByteArray();
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /upload/multi HTTP/1.1\r\nHost: localhost\r\nContent-Type: multipart/form-data; boundary=" + boundary
+                    + "\r\nContent-Length: " + bs.length + "\r\n\r\n").getBytes());
+                out.write(bs);
+                CRC32 crc2 = new CRC32();
+                crc2.update("hello".getBytes());
+                String rs = readResponse(new DataInputStream(new BufferedInputStream(socket.getInputStream())), new HashMap<>());
+                System.out.println("multipart: " + ("a.bin=" + expect + ";b.txt=5:" + crc2.getValue() + ";").equals(rs));
+            }
+
+            //未开启streambody的url仍受maxbody限制
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(3000);
+                socket.getOutputStream().write(("POST /upload/normal HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + bodySize + "\r\n\r\n").getBytes());
+                boolean rejected;
+                try {
+                    rejected = socket.getInputStream().read() < 0;
+                } catch (IOException ex) {
+                    rejected = true;
+                }
+                System.out.println("normal url over maxbody rejected: " + rejected);
+            }
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static long crc(File file) {
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(Files.readAllBytes(file.toPath()));
+            return crc.getValue();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static String readResponse(DataInputStream in, Map<String, String> headers) throws IOException {
+        headers.clear();
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                int pos = str.indexOf(':');
+                if (pos > 0 && !str.startsWith("HTTP/")) headers.put(str.substring(0, pos).trim().toLowerCase(), str.substring(pos + 1).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[Integer.parseInt(headers.get("content-length"))];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.redkale.convert.json.JsonConvert;
+import org.redkale.net.http.*;
+import org.redkale.service.WebSocketNodeService;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * WebSocket群发测试: 消息只编码一次， 所有连接收到相同的帧， 返回单个汇总结果
+ *
+ * @author zhangjx
+ */
+public class WebSocketBroadcastMain {
+
+    private static final int port = 6078;
+
+    private static final AtomicInteger userSequence = new AtomicInteger();
+
+    private static final AtomicInteger connected = new AtomicInteger();
+
+    public static class LocalNodeService extends WebSocketNodeService {
+
+        @Override
+        public CompletableFuture<Void> connect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> disconnect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> changeUserid(Serializable fromuserid, Serializable touserid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @WebServlet({"/ws/broadcast"})
+    public static class BroadcastServlet extends WebSocketServlet {
+
+        public BroadcastServlet() {
+            this.jsonConvert = JsonConvert.root();
+            this.liveinterval = 0;
+        }
+
+        @Override
+        protected WebSocketNode createWebSocketNode() {
+            return new LocalNodeService();
+        }
+
+        @Override
+        protected WebSocket<Integer, String> createWebSocket() {
+            return new WebSocket<Integer, String>() {
+
+                @Override
+                public void onMessage(String message, boolean last) {
+                }
+
+                @Override
+                protected CompletableFuture<Integer> createUserid() {
+                    return CompletableFuture.completedFuture(userSequence.incrementAndGet());
+                }
+
+                @Override
+                public CompletableFuture<String> onOpen(HttpRequest request) {
+                    return CompletableFuture.completedFuture("s");
+                }
+
+                @Override
+                public CompletableFuture onConnected() {
+                    connected.incrementAndGet();
+                    return null;
+                }
+            };
+        }
+
+        public CompletableFuture<Integer> broadcast(Object message) {
+            return node.broadcastMessage(message);
+        }
+
+        public CompletableFuture<Integer> sendTo(Object message, Integer... userids) {
+            return node.sendMessage(message, (Serializable[]) userids);
+        }
+    }
+
+    //toString被调用的次数即为编码次数
+    private static class CountingText implements CharSequence {
+
+        final String text;
+
+        final AtomicInteger encodes = new AtomicInteger();
+
+        CountingText(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            encodes.incrementAndGet();
+            return text;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        BroadcastServlet servlet = new BroadcastServlet();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(servlet, "/ws/broadcast");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        final int count = 2000;
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(10_000);
+                socket.getOutputStream().write(("GET /ws/broadcast HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+                    + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes());
+                readHandshake(socket.getInputStream());
+                sockets.add(socket);
+            }
+            while (connected.get() < count) Thread.sleep(10);
+
+            CountingText text = new CountingText("hello everyone");
+            long s = System.nanoTime();
+            int rs = servlet.broadcast(text).join();
+            long e = System.nanoTime() - s;
+            boolean ok = true;
+            for (Socket socket : sockets) {
+                Frame frame = readFrame(socket.getInputStream());
+                ok = ok && frame.opcode == 0x01 && frame.fin && "hello everyone".equals(new String(frame.payload));
+            }
+            System.out.println("broadcast text: " + (rs == 0 && ok && text.encodes.get() == 1) + ", " + count + " sockets in " + (e / 1000_000) + " ms, encodes = " + text.encodes.get());
+
+            final byte[] big = new byte[70000];
+            new Random(1).nextBytes(big);
+            rs = servlet.broadcast(big).join();
+            ok = true;
+            for (Socket socket : sockets) {
+                Frame frame = readFrame(socket.getInputStream());
+                ok = ok && frame.opcode == 0x02 && Arrays.equals(big, frame.payload);
+            }
+            System.out.println("broadcast 64K+ binary: " + (rs == 0 && ok));
+
+            CountingText part = new CountingText("to some users");
+            rs = servlet.sendTo(part, 1, 2, 3).join();
+            ok = true;
+            for (int i = 0; i < 3; i++) {
+                Frame frame = readFrame(sockets.get(i).getInputStream());
+                ok = ok && "to some users".equals(new String(frame.payload));
+            }
+            System.out.println("send to userids: " + (rs == 0 && ok && part.encodes.get() == 1));
+
+            sockets.get(count - 1).close();
+            Thread.sleep(200);
+            int loops = 20;
+            s = System.nanoTime();
+            for (int i = 0; i < loops; i++) {
+                servlet.broadcast("tick-" + i).join();
+            }
+            e = System.nanoTime() - s;
+            System.out.println("repeat broadcast: " + loops + " x " + (count - 1) + " sockets, avg " + (e / loops / 1000) + " us");
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static void readHandshake(InputStream in) throws IOException {
+        int state = 0;
+        while (state < 4) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+        }
+    }
+
+    private static Frame readFrame(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        Frame frame = new Frame();
+        int b0 = din.readUnsignedByte();
+        frame.fin = (b0 & 0x80) != 0;
+        frame.opcode = b0 & 0x0F;
+        int b1 = din.readUnsignedByte() & 0x7F;
+        long len = b1 == 126 ? din.readUnsignedShort() : (b1 == 127 ? din.readLong() : b1);
+        frame.payload = new byte[(int) len];
+        din.readFully(frame.payload);
+        return frame;
+    }
+
+    private static class Frame {
+
+        boolean fin;
+
+        int opcode;
+
+        byte[] payload;
+    }
+}
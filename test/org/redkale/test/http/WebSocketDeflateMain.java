@@ -0,0 +1,312 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.*;
+import org.redkale.convert.json.JsonConvert;
+import org.redkale.net.http.*;
+import org.redkale.service.WebSocketNodeService;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * WebSocket permessage-deflate测试: 协商no_context_takeover、 解压客户端的压缩消息(含分包)、 输出压缩帧、 群发共享压缩帧、
+ * 压缩阈值、 内存总量内的context_takeover、 非法rsv1与超过解压长度限制时关闭连接
+ *
+ * @author zhangjx
+ */
+public class WebSocketDeflateMain {
+
+    private static final int port = 6080;
+
+    private static final AtomicInteger userSequence = new AtomicInteger();
+
+    private static final AtomicInteger connected = new AtomicInteger();
+
+    private static final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    public static class LocalNodeService extends WebSocketNodeService {
+
+        @Override
+        public CompletableFuture<Void> connect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> disconnect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> changeUserid(Serializable fromuserid, Serializable touserid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @WebServlet({"/ws/echo"})
+    public static class EchoServlet extends WebSocketServlet {
+
+        public EchoServlet() {
+            this.jsonConvert = JsonConvert.root();
+            this.liveinterval = 0;
+            this.permessageDeflate = true;
+        }
+
+        @Override
+        protected WebSocketNode createWebSocketNode() {
+            return new LocalNodeService();
+        }
+
+        @Override
+        protected WebSocket<Integer, String> createWebSocket() {
+            return new WebSocket<Integer, String>() {
+
+                @Override
+                public void onMessage(String message, boolean last) {
+                    received.add(message);
+                    send(message);
+                }
+
+                @Override
+                protected CompletableFuture<Integer> createUserid() {
+                    return CompletableFuture.completedFuture(userSequence.incrementAndGet());
+                }
+
+                @Override
+                public CompletableFuture<String> onOpen(HttpRequest request) {
+                    return CompletableFuture.completedFuture("s");
+                }
+
+                @Override
+                public CompletableFuture onConnected() {
+                    connected.incrementAndGet();
+                    return null;
+                }
+            };
+        }
+
+        public CompletableFuture<Integer> broadcast(Object message) {
+            return node.broadcastMessage(message);
+        }
+    }
+
+    @WebServlet({"/ws/ctx"})
+    public static class ContextServlet extends EchoServlet {
+    }
+
+    @WebServlet({"/ws/plain"})
+    public static class PlainServlet extends EchoServlet {
+
+        public PlainServlet() {
+            this.permessageDeflate = false;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        EchoServlet echo = new EchoServlet();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(echo, "/ws/echo");
+        server.addHttpServlet(new ContextServlet(), null, DefaultAnyValue.create("deflatecontextmemory", "1M").addValue("deflatemaxinflate", "64K"), "/ws/ctx");
+        server.addHttpServlet(new PlainServlet(), "/ws/plain");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        final String big = repeat("compress me please, ", 100);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            Socket socket = new Socket("127.0.0.1", port);
+            String ext = connect(socket, "/ws/echo", "permessage-deflate; client_max_window_bits");
+            System.out.println("negotiate no_context_takeover: " + "permessage-deflate; server_no_context_takeover; client_no_context_takeover".equals(ext));
+            sockets.add(socket);
+
+            OutputStream out = socket.getOutputStream();
+            out.write(frame(0xC1, deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), big.getBytes())));
+            Frame rs = readFrame(socket.getInputStream());
+            boolean ok = big.equals(received.poll(5, TimeUnit.SECONDS));
+            ok = ok && rs.rsv1 && rs.payload.length < big.length() && big.equals(new String(inflate(new Inflater(true), rs.payload)));
+            System.out.println("compressed message echo: " + ok);
+
+            byte[] compressed = deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), (big + "series").getBytes());
+            out.write(frame(0x41, Arrays.copyOfRange(compressed, 0, compressed.length / 2)));
+            out.write(frame(0x80, Arrays.copyOfRange(compressed, compressed.length / 2, compressed.length)));
+            rs = readFrame(socket.getInputStream());
+            ok = (big + "series").equals(received.poll(5, TimeUnit.SECONDS)) && (big + "series").equals(new String(inflate(new Inflater(true), rs.payload)));
+            System.out.println("compressed fragments: " + ok);
+
+            out.write(frame(0x81, "short".getBytes()));
+            rs = readFrame(socket.getInputStream());
+            System.out.println("below threshold not compressed: " + (!rs.rsv1 && "short".equals(new String(rs.payload))));
+
+            final int count = 200;
+            for (int i = 1; i < count; i++) {
+                Socket s = new Socket("127.0.0.1", port);
+                connect(s, "/ws/echo", "permessage-deflate");
+                sockets.add(s);
+            }
+            while (connected.get() < count) Thread.sleep(10);
+            int code = echo.broadcast(big).join();
+            byte[] first = null;
+            ok = code == 0;
+            for (Socket s : sockets) {
+                rs = readFrame(s.getInputStream());
+                if (first == null) first = rs.payload;
+                ok = ok && rs.rsv1 && Arrays.equals(first, rs.payload);
+            }
+            ok = ok && big.equals(new String(inflate(new Inflater(true), first)));
+            System.out.println("broadcast shared compressed frame: " + ok + ", " + count + " sockets, " + first.length + " of " + big.length() + " bytes");
+
+            try (Socket ctx = new Socket("127.0.0.1", port)) {
+                ext = connect(ctx, "/ws/ctx", "permessage-deflate");
+                Inflater inflater = new Inflater(true);
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                ctx.getOutputStream().write(frame(0xC1, deflate(deflater, big.getBytes())));
+                Frame f1 = readFrame(ctx.getInputStream());
+                ctx.getOutputStream().write(frame(0xC1, deflate(deflater, big.getBytes())));
+                Frame f2 = readFrame(ctx.getInputStream());
+                ok = "permessage-deflate".equals(ext) && big.equals(new String(inflate(inflater, f1.payload)))
+                    && big.equals(new String(inflate(inflater, f2.payload))) && f2.payload.length < f1.payload.length;
+                received.clear();
+                System.out.println("context takeover: " + ok + ", second message " + f2.payload.length + " of " + f1.payload.length + " bytes");
+
+                byte[] bomb = deflate(new Deflater(Deflater.BEST_COMPRESSION, true), new byte[100 * 1024]);
+                try (Socket ctx2 = new Socket("127.0.0.1", port)) {
+                    connect(ctx2, "/ws/ctx", "permessage-deflate; server_no_context_takeover; client_no_context_takeover");
+                    ctx2.getOutputStream().write(frame(0xC2, bomb));
+                    System.out.println("exceed max inflate closed: " + closed(ctx2));
+                }
+            }
+
+            try (Socket plain = new Socket("127.0.0.1", port)) {
+                ext = connect(plain, "/ws/plain", "permessage-deflate");
+                plain.getOutputStream().write(frame(0xC1, deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), big.getBytes())));
+                System.out.println("rsv1 without negotiate closed: " + (ext == null && closed(plain)));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s).append(i);
+        }
+        return sb.toString();
+    }
+
+    private static boolean closed(Socket socket) throws IOException {
+        try {
+            InputStream in = socket.getInputStream();
+            while (in.read() >= 0) {
+            }
+            return true;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] bs) {
+        deflater.setInput(bs);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int count;
+        do {
+            count = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            out.write(chunk, 0, count);
+        } while (count == chunk.length);
+        byte[] rs = out.toByteArray();
+        return Arrays.copyOf(rs, rs.length - 4);
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] bs) throws DataFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] input = Arrays.copyOf(bs, bs.length + 4);
+        System.arraycopy(TAIL, 0, input, bs.length, 4);
+        inflater.setInput(input);
+        byte[] chunk = new byte[1024];
+        int count;
+        while ((count = inflater.inflate(chunk)) > 0) {
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    //返回响应头Sec-WebSocket-Extensions
+    private static String connect(Socket socket, String uri, String extensions) throws IOException {
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+            + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Extensions: " + extensions + "\r\n\r\n").getBytes());
+        InputStream in = socket.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4 || !sb.substring(sb.length() - 4).equals("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            sb.append((char) b);
+        }
+        for (String line : sb.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("sec-websocket-extensions:")) return line.substring(line.indexOf(':') + 1).trim();
+        }
+        return null;
+    }
+
+    //客户端发送的帧必须带mask
+    private static byte[] frame(int opcode, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(opcode);
+        int len = payload.length;
+        if (len <= 125) {
+            out.write(0x80 | len);
+        } else if (len <= 0xFFFF) {
+            out.write(0x80 | 126);
+            out.write(len >>> 8);
+            out.write(len);
+        } else {
+            out.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write((int) ((long) len >>> (i * 8)));
+            }
+        }
+        byte[] masks = {0x12, 0x34, 0x56, 0x78};
+        out.write(masks, 0, 4);
+        for (int i = 0; i < len; i++) {
+            out.write(payload[i] ^ masks[i % 4]);
+        }
+        return out.toByteArray();
+    }
+
+    private static Frame readFrame(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        Frame frame = new Frame();
+        int b0 = din.readUnsignedByte();
+        frame.rsv1 = (b0 & 0x40) != 0;
+        frame.opcode = b0 & 0x0F;
+        int b1 = din.readUnsignedByte() & 0x7F;
+        long len = b1 == 126 ? din.readUnsignedShort() : (b1 == 127 ? din.readLong() : b1);
+        frame.payload = new byte[(int) len];
+        din.readFully(frame.payload);
+        return frame;
+    }
+
+    private static class Frame {
+
+        boolean rsv1;
+
+        int opcode;
+
+        byte[] payload;
+    }
+}
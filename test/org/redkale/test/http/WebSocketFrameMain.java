@@ -0,0 +1,263 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.redkale.convert.json.JsonConvert;
+import org.redkale.net.http.*;
+import org.redkale.service.WebSocketNodeService;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * WebSocket帧解码测试: 一次读取多个帧、 帧跨越多次读取、 分包合并与中间穿插的控制帧、 大于读缓存的帧、 超过wsmaxbody的帧与分包消息、 JSON消息直接从读缓存解析
+ *
+ * @author zhangjx
+ */
+public class WebSocketFrameMain {
+
+    private static final int port = 6079;
+
+    private static final AtomicInteger userSequence = new AtomicInteger();
+
+    private static final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+
+    public static class LocalNodeService extends WebSocketNodeService {
+
+        @Override
+        public CompletableFuture<Void> connect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> disconnect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> changeUserid(Serializable fromuserid, Serializable touserid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    public static class ChatMessage {
+
+        public int id;
+
+        public String content;
+    }
+
+    @WebServlet({"/ws/echo"})
+    public static class EchoServlet extends WebSocketServlet {
+
+        public EchoServlet() {
+            this.jsonConvert = JsonConvert.root();
+            this.liveinterval = 0;
+            this.wsmaxbody = 256 * 1024;
+        }
+
+        @Override
+        protected WebSocketNode createWebSocketNode() {
+            return new LocalNodeService();
+        }
+
+        @Override
+        protected WebSocket<Integer, String> createWebSocket() {
+            return new WebSocket<Integer, String>() {
+
+                @Override
+                public void onMessage(String message, boolean last) {
+                    received.add(message);
+                }
+
+                @Override
+                public void onMessage(byte[] bytes, boolean last) {
+                    received.add(bytes);
+                }
+
+                @Override
+                public void onPing(byte[] bytes) {
+                    received.add("ping:" + new String(bytes));
+                }
+
+                @Override
+                protected CompletableFuture<Integer> createUserid() {
+                    return CompletableFuture.completedFuture(userSequence.incrementAndGet());
+                }
+
+                @Override
+                public CompletableFuture<String> onOpen(HttpRequest request) {
+                    return CompletableFuture.completedFuture("s");
+                }
+            };
+        }
+    }
+
+    @WebServlet({"/ws/json"})
+    public static class JsonServlet extends EchoServlet {
+
+        public JsonServlet() {
+            this.messageTextType = ChatMessage.class;
+        }
+
+        @Override
+        protected BiConsumer<WebSocket, Object> createRestOnMessageConsumer() {
+            return (ws, message) -> received.add(message);
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(new EchoServlet(), "/ws/echo");
+        server.addHttpServlet(new JsonServlet(), "/ws/json");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        Random random = new Random(1);
+        try (Socket socket = connect("/ws/echo")) {
+            OutputStream out = socket.getOutputStream();
+            ByteArrayOutputStream many = new ByteArrayOutputStream();
+            int count = 1000;
+            for (int i = 0; i < count; i++) {
+                many.write(frame(0x81, ("message-" + i).getBytes(), random.nextInt()));
+            }
+            out.write(many.toByteArray());
+            boolean ok = true;
+            for (int i = 0; i < count; i++) {
+                ok = ok && ("message-" + i).equals(received.poll(5, TimeUnit.SECONDS));
+            }
+            System.out.println("many frames in one read: " + ok);
+
+            socket.setTcpNoDelay(true);
+            byte[] split = frame(0x81, "split across reads, 33 bytes long".getBytes(), random.nextInt());
+            for (byte b : split) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(2);
+            }
+            System.out.println("frame split byte by byte: " + "split across reads, 33 bytes long".equals(received.poll(5, TimeUnit.SECONDS)));
+
+            ByteArrayOutputStream series = new ByteArrayOutputStream();
+            series.write(frame(0x01, "hello ".getBytes(), random.nextInt()));
+            series.write(frame(0x89, "p".getBytes(), random.nextInt()));
+            series.write(frame(0x00, "fragmented ".getBytes(), random.nextInt()));
+            series.write(frame(0x80, "world".getBytes(), random.nextInt()));
+            out.write(series.toByteArray());
+            Object ping = received.poll(5, TimeUnit.SECONDS);
+            Object merged = received.poll(5, TimeUnit.SECONDS);
+            System.out.println("fragments with ping between: " + ("ping:p".equals(ping) && "hello fragmented world".equals(merged)));
+
+            for (int len : new int[]{0, 1, 7, 8, 9, 125, 126, 65535, 65536, 200003}) {
+                byte[] bs = new byte[len];
+                random.nextBytes(bs);
+                out.write(frame(0x82, bs, random.nextInt()));
+                Object rs = received.poll(5, TimeUnit.SECONDS);
+                if (!(rs instanceof byte[]) || !Arrays.equals(bs, (byte[]) rs)) {
+                    ok = false;
+                    System.out.println("binary length " + len + " error");
+                }
+            }
+            System.out.println("binary lengths 0..200003: " + ok);
+
+            int loops = 200_000;
+            many.reset();
+            for (int i = 0; i < 100; i++) {
+                many.write(frame(0x81, "{\"id\":1,\"content\":\"0123456789abcdefghij\"}".getBytes(), random.nextInt()));
+            }
+            byte[] batch = many.toByteArray();
+            long s = System.currentTimeMillis();
+            for (int i = 0; i < loops / 100; i++) {
+                out.write(batch);
+                for (int j = 0; j < 100; j++) {
+                    received.take();
+                }
+            }
+            System.out.println("small frames: " + loops + " in " + (System.currentTimeMillis() - s) + " ms");
+        }
+
+        //超过wsmaxbody的帧只需读到帧头即关闭连接, 分包消息按合并后的长度计算
+        try (Socket socket = connect("/ws/echo"); Socket series = connect("/ws/echo")) {
+            byte[] head = Arrays.copyOf(frame(0x82, new byte[300 * 1024], random.nextInt()), 14);
+            socket.getOutputStream().write(head);
+            series.getOutputStream().write(frame(0x02, new byte[200 * 1024], random.nextInt()));
+            series.getOutputStream().write(frame(0x80, new byte[100 * 1024], random.nextInt()));
+            System.out.println("exceed wsmaxbody closed: " + (closed(socket) && closed(series) && received.isEmpty()));
+        }
+
+        try (Socket socket = connect("/ws/json")) {
+            OutputStream out = socket.getOutputStream();
+            out.write(frame(0x81, "{\"id\":12,\"content\":\"json from buffer\"}".getBytes(StandardCharsets.UTF_8), random.nextInt()));
+            Object rs = received.poll(5, TimeUnit.SECONDS);
+            boolean ok = rs instanceof ChatMessage && ((ChatMessage) rs).id == 12 && "json from buffer".equals(((ChatMessage) rs).content);
+            out.write(frame(0x01, "{\"id\":13,".getBytes(), random.nextInt()));
+            out.write(frame(0x80, "\"content\":\"merged json\"}".getBytes(), random.nextInt()));
+            rs = received.poll(5, TimeUnit.SECONDS);
+            ok = ok && rs instanceof ChatMessage && ((ChatMessage) rs).id == 13 && "merged json".equals(((ChatMessage) rs).content);
+            System.out.println("json message: " + ok);
+        } finally {
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static Socket connect(String uri) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+            + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes());
+        InputStream in = socket.getInputStream();
+        int state = 0;
+        while (state < 4) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+        }
+        return socket;
+    }
+
+    //读到连接关闭为止
+    private static boolean closed(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] bs = new byte[1024];
+            while (in.read(bs) >= 0);
+            return true;
+        } catch (IOException e) {
+            return e instanceof SocketException;
+        }
+    }
+
+    //客户端发送的帧必须带mask
+    private static byte[] frame(int opcode, byte[] payload, int mask) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(opcode);
+        int len = payload.length;
+        if (len <= 125) {
+            out.write(0x80 | len);
+        } else if (len <= 0xFFFF) {
+            out.write(0x80 | 126);
+            out.write(len >>> 8);
+            out.write(len);
+        } else {
+            out.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write((int) ((long) len >>> (i * 8)));
+            }
+        }
+        byte[] masks = {(byte) (mask >>> 24), (byte) (mask >>> 16), (byte) (mask >>> 8), (byte) mask};
+        out.write(masks, 0, 4);
+        for (int i = 0; i < len; i++) {
+            out.write(payload[i] ^ masks[i % 4]);
+        }
+        return out.toByteArray();
+    }
+}
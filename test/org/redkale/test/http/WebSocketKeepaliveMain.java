@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.redkale.convert.json.JsonConvert;
+import org.redkale.net.http.*;
+import org.redkale.service.WebSocketNodeService;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * WebSocket keepalive测试: 空闲连接按各自的时间点收到PING且分布均匀, 有读写的连接不会收到PING
+ *
+ * @author zhangjx
+ */
+public class WebSocketKeepaliveMain {
+
+    private static final int port = 6082;
+
+    private static final AtomicInteger userSequence = new AtomicInteger();
+
+    private static final AtomicInteger connected = new AtomicInteger();
+
+    public static class LocalNodeService extends WebSocketNodeService {
+
+        @Override
+        public CompletableFuture<Void> connect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> disconnect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> changeUserid(Serializable fromuserid, Serializable touserid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @WebServlet({"/ws/live"})
+    public static class LiveServlet extends WebSocketServlet {
+
+        public LiveServlet() {
+            this.jsonConvert = JsonConvert.root();
+            this.liveinterval = 2;
+        }
+
+        @Override
+        protected WebSocketNode createWebSocketNode() {
+            return new LocalNodeService();
+        }
+
+        @Override
+        protected WebSocket<Integer, String> createWebSocket() {
+            return new WebSocket<Integer, String>() {
+
+                @Override
+                public void onMessage(String message, boolean last) {
+                }
+
+                @Override
+                protected CompletableFuture<Integer> createUserid() {
+                    return CompletableFuture.completedFuture(userSequence.incrementAndGet());
+                }
+
+                @Override
+                public CompletableFuture<String> onOpen(HttpRequest request) {
+                    return CompletableFuture.completedFuture("s");
+                }
+
+                @Override
+                public CompletableFuture onConnected() {
+                    connected.incrementAndGet();
+                    return null;
+                }
+            };
+        }
+
+        public WebSocketEngine engine() {
+            return node.getLocalWebSocketEngine();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        LiveServlet servlet = new LiveServlet();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(servlet, "/ws/live");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        final int count = 2000;
+        final int active = 20;
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            long s = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                channel.write(ByteBuffer.wrap(("GET /ws/live HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+                    + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes()));
+                ByteBuffer one = ByteBuffer.allocate(1);
+                int state = 0;
+                while (state < 4) {
+                    one.clear();
+                    if (channel.read(one) < 0) throw new EOFException();
+                    byte b = one.get(0);
+                    state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+                }
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+                channels.add(channel);
+            }
+            while (connected.get() < count) Thread.sleep(10);
+            System.out.println(count + " sockets connected in " + (System.currentTimeMillis() - s) + " ms");
+            final long start = System.currentTimeMillis();
+
+            //前active个连接每500毫秒发送一次消息
+            final byte[] text = {(byte) 0x81, (byte) 0x82, 0, 0, 0, 0, 'h', 'i'};
+            //连接期间的PING不统计, 只统计之后两个liveinterval内收到的PING
+            final int[] pings = new int[count];
+            final int[] buckets = new int[20];
+            final ByteBuffer buffer = ByteBuffer.allocate(1024);
+            final long from = start + 2500;
+            final long end = from + 4000;
+            long nextSend = start;
+            while (System.currentTimeMillis() < end) {
+                long now = System.currentTimeMillis();
+                if (now >= nextSend) {
+                    for (int i = 0; i < active; i++) {
+                        channels.get(i).write(ByteBuffer.wrap(text));
+                    }
+                    nextSend += 500;
+                }
+                selector.select(Math.max(1, Math.min(nextSend, end) - now));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    int index = (Integer) key.attachment();
+                    buffer.clear();
+                    int n = ((SocketChannel) key.channel()).read(buffer);
+                    for (int i = 0; i + 1 < n; i += 2) { //PING帧为0x89 0x00
+                        long time = System.currentTimeMillis();
+                        if (buffer.get(i) == (byte) 0x89 && time >= from) {
+                            pings[index]++;
+                            buckets[(int) ((time - from) % 2000 / 100)]++;
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+
+            int activePings = 0;
+            for (int i = 0; i < active; i++) {
+                activePings += pings[i];
+            }
+            boolean ok = true;
+            int total = 0;
+            for (int i = active; i < count; i++) {
+                ok = ok && pings[i] >= 1 && pings[i] <= 3;
+                total += pings[i];
+            }
+            int maxBucket = Arrays.stream(buckets).max().getAsInt();
+            System.out.println("idle sockets pinged: " + ok + ", " + total + " pings in 2 intervals");
+            System.out.println("active sockets not pinged: " + (activePings == 0));
+            System.out.println("pings spread: " + (maxBucket < total / 5) + ", per 100ms " + Arrays.toString(buckets));
+            System.out.println("engine: pings " + servlet.engine().getLocalKeepalivePingCount() + ", delays " + servlet.engine().getLocalKeepaliveDelayCount());
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+}
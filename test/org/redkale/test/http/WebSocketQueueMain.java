@@ -0,0 +1,308 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.redkale.convert.json.JsonConvert;
+import org.redkale.net.http.*;
+import org.redkale.service.WebSocketNodeService;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * WebSocket待发送队列测试: 慢连接不读取数据时, 队列长度受wsmaxqueue限制, 分别验证DROP_OLDEST/DROP_NEWEST/COALESCE/DISCONNECT策略,
+ * 以及部分慢连接时群发不影响其他连接且内存可控
+ *
+ * @author zhangjx
+ */
+public class WebSocketQueueMain {
+
+    private static final int port = 6081;
+
+    private static final AtomicInteger userSequence = new AtomicInteger();
+
+    private static final AtomicInteger connected = new AtomicInteger();
+
+    private static final int maxqueue = 8;
+
+    public static class LocalNodeService extends WebSocketNodeService {
+
+        @Override
+        public CompletableFuture<Void> connect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> disconnect(Serializable userid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> changeUserid(Serializable fromuserid, Serializable touserid, WebSocketAddress wsaddr) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @WebServlet({"/ws/queue"})
+    public static class QueueServlet extends WebSocketServlet {
+
+        public QueueServlet() {
+            this.jsonConvert = JsonConvert.root();
+            this.liveinterval = 0;
+        }
+
+        @Override
+        protected WebSocketNode createWebSocketNode() {
+            return new LocalNodeService();
+        }
+
+        @Override
+        protected WebSocket<Integer, String> createWebSocket() {
+            return new WebSocket<Integer, String>() {
+
+                @Override
+                public void onMessage(String message, boolean last) {
+                }
+
+                @Override
+                protected CompletableFuture<Integer> createUserid() {
+                    return CompletableFuture.completedFuture(userSequence.incrementAndGet());
+                }
+
+                @Override
+                public CompletableFuture<String> onOpen(HttpRequest request) {
+                    return CompletableFuture.completedFuture("s");
+                }
+
+                @Override
+                public CompletableFuture onConnected() {
+                    connected.incrementAndGet();
+                    return null;
+                }
+            };
+        }
+
+        public WebSocketEngine engine() {
+            return node.getLocalWebSocketEngine();
+        }
+
+        public CompletableFuture<Integer> broadcast(Object message) {
+            return node.broadcastMessage(message);
+        }
+    }
+
+    public static class OldestServlet extends QueueServlet {
+    }
+
+    public static class NewestServlet extends QueueServlet {
+    }
+
+    public static class CoalesceServlet extends QueueServlet {
+    }
+
+    public static class DisconnectServlet extends QueueServlet {
+    }
+
+    public static class BroadcastServlet extends QueueServlet {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        OldestServlet oldest = new OldestServlet();
+        NewestServlet newest = new NewestServlet();
+        CoalesceServlet coalesce = new CoalesceServlet();
+        DisconnectServlet disconnect = new DisconnectServlet();
+        BroadcastServlet broadcast = new BroadcastServlet();
+        HttpServer server = new HttpServer();
+        server.addHttpServlet(oldest, null, conf("DROP_OLDEST"), "/ws/oldest");
+        server.addHttpServlet(newest, null, conf("DROP_NEWEST"), "/ws/newest");
+        server.addHttpServlet(coalesce, null, conf("COALESCE"), "/ws/coalesce");
+        server.addHttpServlet(disconnect, null, conf("DISCONNECT"), "/ws/disconnect");
+        server.addHttpServlet(broadcast, null, DefaultAnyValue.create("wsmaxqueue", "64").addValue("wsqueuepolicy", "drop-oldest"), "/ws/broadcast");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(null);
+        Thread.sleep(100);
+
+        final byte[] filler = new byte[8 * 1024 * 1024]; //超过socket缓存, 使输出一直处于pending状态
+        final int count = 200;
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            //DROP_OLDEST: 保留最新的消息
+            Socket socket = connect("/ws/oldest", sockets);
+            WebSocket ws = oldest.engine().findLocalWebSocket(userSequence.get());
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            futures.add(ws.send(filler));
+            for (int i = 0; i < count; i++) {
+                futures.add(ws.send("msg-" + i));
+            }
+            boolean ok = ws.getSendQueueSize() <= maxqueue && oldest.engine().getLocalSendQueueSize() <= maxqueue;
+            List<String> texts = readTexts(socket, futures);
+            ok = ok && texts.size() <= maxqueue + 1 && texts.get(texts.size() - 1).equals("msg-" + (count - 1)) && ordered(texts);
+            System.out.println("drop oldest: " + ok + ", received " + texts.size() + ", dropped " + oldest.engine().getLocalSendDroppedCount()
+                + ", retcodes " + retcodes(futures));
+
+            //DROP_NEWEST: 保留最早的消息
+            socket = connect("/ws/newest", sockets);
+            ws = newest.engine().findLocalWebSocket(userSequence.get());
+            futures.clear();
+            futures.add(ws.send(filler));
+            for (int i = 0; i < count; i++) {
+                futures.add(ws.send("msg-" + i));
+            }
+            ok = ws.getSendQueueSize() <= maxqueue;
+            texts = readTexts(socket, futures);
+            ok = ok && texts.size() <= maxqueue + 1 && texts.get(0).equals("msg-0") && ordered(texts);
+            System.out.println("drop newest: " + ok + ", received " + texts.size() + ", dropped " + newest.engine().getLocalSendDroppedCount()
+                + ", retcodes " + retcodes(futures));
+
+            //COALESCE: 同key只保留最新的状态
+            socket = connect("/ws/coalesce", sockets);
+            ws = coalesce.engine().findLocalWebSocket(userSequence.get());
+            futures.clear();
+            futures.add(ws.send(filler));
+            for (int i = 0; i < count; i++) {
+                WebSocketPacket packet = new WebSocketPacket(WebSocketPacket.FrameType.TEXT, ("price-" + (i % 5) + "=" + i).getBytes());
+                packet.setCoalesceKey("price-" + (i % 5));
+                futures.add(ws.send(packet));
+            }
+            ok = ws.getSendQueueSize() <= 5;
+            texts = readTexts(socket, futures);
+            Map<String, String> latest = new TreeMap<>();
+            for (String text : texts) {
+                latest.put(text.substring(0, text.indexOf('=')), text);
+            }
+            ok = ok && texts.size() <= 6 && latest.equals(new TreeMap<>(Map.of("price-0", "price-0=195", "price-1", "price-1=196",
+                "price-2", "price-2=197", "price-3", "price-3=198", "price-4", "price-4=199")));
+            System.out.println("coalesce: " + ok + ", received " + texts + ", coalesced " + coalesce.engine().getLocalSendCoalescedCount());
+
+            //DISCONNECT: 队列已满时关闭连接
+            socket = connect("/ws/disconnect", sockets);
+            ws = disconnect.engine().findLocalWebSocket(userSequence.get());
+            futures.clear();
+            futures.add(ws.send(filler));
+            for (int i = 0; i < count; i++) {
+                futures.add(ws.send("msg-" + i));
+            }
+            Thread.sleep(100);
+            ok = ws.isClosed() && disconnect.engine().getLocalSendQueueKilledCount() == 1 && disconnect.engine().getLocalSendQueueSize() == 0;
+            int code = 0;
+            for (int i = 1; i < futures.size(); i++) {
+                code |= futures.get(i).get(5, TimeUnit.SECONDS);
+            }
+            System.out.println("disconnect: " + (ok && (code & WebSocket.RETCODE_WSOCKET_CLOSED) != 0));
+
+            //5%的慢连接: 群发时慢连接只丢弃旧消息, 其他连接正常接收, 队列总长度可控
+            final int total = 100;
+            final int slow = 5;
+            final int loops = 2000;
+            final int window = 16;
+            final AtomicInteger received = new AtomicInteger();
+            final AtomicInteger errors = new AtomicInteger();
+            List<Socket> group = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
+                group.add(connect("/ws/broadcast", sockets));
+            }
+            for (int i = 0; i < slow; i++) {
+                broadcast.engine().findLocalWebSocket(userSequence.get() - i).send(filler);
+            }
+            for (int i = 0; i < total - slow; i++) {
+                final DataInputStream in = new DataInputStream(group.get(i).getInputStream());
+                new Thread(() -> {
+                    try {
+                        for (int j = 0; j < loops; j++) {
+                            if (!("tick-" + j).equals(new String(readFrame(in)))) errors.incrementAndGet();
+                            received.incrementAndGet();
+                        }
+                    } catch (IOException ex) {
+                        errors.incrementAndGet();
+                    }
+                }).start();
+            }
+            long s = System.currentTimeMillis();
+            long maxQueued = 0;
+            for (int i = 0; i < loops; i++) {
+                while (received.get() < (long) (i - window) * (total - slow)) Thread.onSpinWait(); //正常连接最多落后window条消息
+                broadcast.broadcast("tick-" + i);
+                maxQueued = Math.max(maxQueued, broadcast.engine().getLocalSendQueueSize());
+            }
+            while (received.get() < loops * (total - slow) && errors.get() == 0 && System.currentTimeMillis() - s < 10_000) Thread.sleep(1);
+            long e = System.currentTimeMillis() - s;
+            ok = errors.get() == 0 && received.get() == loops * (total - slow) && broadcast.engine().getLocalSendQueueMaxSize() <= 64;
+            System.out.println("5% slow clients: " + ok + ", " + loops + " broadcasts to " + total + " sockets in " + e + " ms, max queued " + maxQueued
+                + ", slow queue max " + broadcast.engine().getLocalSendQueueMaxSize() + ", dropped " + broadcast.engine().getLocalSendDroppedCount());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.shutdown();
+            System.exit(0);
+        }
+    }
+
+    private static DefaultAnyValue conf(String policy) {
+        return DefaultAnyValue.create("wsmaxqueue", String.valueOf(maxqueue)).addValue("wsqueuepolicy", policy);
+    }
+
+    private static String retcodes(List<CompletableFuture<Integer>> futures) throws Exception {
+        Map<Integer, Integer> codes = new TreeMap<>();
+        for (CompletableFuture<Integer> future : futures) {
+            codes.merge(future.get(5, TimeUnit.SECONDS), 1, Integer::sum);
+        }
+        return codes.toString();
+    }
+
+    private static boolean ordered(List<String> texts) {
+        int prev = -1;
+        for (String text : texts) {
+            int v = Integer.parseInt(text.substring(text.indexOf('-') + 1));
+            if (v <= prev) return false;
+            prev = v;
+        }
+        return true;
+    }
+
+    //读取所有future完成前已输出的文本帧, 跳过第一个填充帧
+    private static List<String> readTexts(Socket socket, List<CompletableFuture<Integer>> futures) throws Exception {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        readFrame(in);
+        List<String> texts = new ArrayList<>();
+        for (int i = 1; i < futures.size(); i++) {
+            if (futures.get(i).get(5, TimeUnit.SECONDS) == 0) texts.add(new String(readFrame(in)));
+        }
+        return texts;
+    }
+
+    private static Socket connect(String uri, List<Socket> sockets) throws Exception {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new java.net.InetSocketAddress("127.0.0.1", port));
+        sockets.add(socket);
+        int c = connected.get();
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+            + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes());
+        InputStream in = socket.getInputStream();
+        int state = 0;
+        while (state < 4) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+        }
+        while (connected.get() <= c) Thread.sleep(1);
+        return socket;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        in.readUnsignedByte();
+        int b1 = in.readUnsignedByte() & 0x7F;
+        long len = b1 == 126 ? in.readUnsignedShort() : (b1 == 127 ? in.readLong() : b1);
+        byte[] payload = new byte[(int) len];
+        in.readFully(payload);
+        return payload;
+    }
+}
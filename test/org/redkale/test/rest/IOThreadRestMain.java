@@ -0,0 +1,127 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.rest;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import org.redkale.boot.Application;
+import org.redkale.net.http.*;
+import org.redkale.service.Service;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * &#64;RestMapping.iothread 与 server.ioThreadExecute 测试: iothread的方法应在IO线程中执行, 其他方法在工作线程中执行
+ *
+ * @author zhangjx
+ */
+public class IOThreadRestMain {
+
+    private static final int port = 6066;
+
+    @RestService(name = "thread", automapping = true)
+    public static class ThreadService implements Service {
+
+        @RestMapping(name = "io", auth = false, iothread = true)
+        public String ioThread() {
+            return Thread.currentThread().getName();
+        }
+
+        @RestMapping(name = "future", auth = false, iothread = true)
+        public CompletableFuture<String> futureThread() {
+            return CompletableFuture.completedFuture(Thread.currentThread().getName());
+        }
+
+        @RestMapping(name = "work", auth = false)
+        public String workThread() {
+            return Thread.currentThread().getName();
+        }
+
+        @RestMapping(name = "block", auth = false, iothread = true)
+        public String blockThread() {
+            try {
+                Thread.sleep(200); //阻塞IO线程， 会输出警告日志
+            } catch (InterruptedException e) {
+            }
+            return Thread.currentThread().getName();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        File home = Files.createTempDirectory("redkale-iothread").toFile();
+        new File(home, "conf").mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(home, "conf/application.xml"))) {
+            out.write("<application port=\"0\"><resources><executor threads=\"4\" hash=\"true\"/></resources></application>".getBytes(StandardCharsets.UTF_8));
+        }
+        System.setProperty(Application.RESNAME_APP_HOME, home.getPath());
+        Application application = Application.create(true);
+
+        HttpServer server = new HttpServer(application, System.currentTimeMillis(), application.getResourceFactory());
+        server.addRestServlet(null, new ThreadService(), null, HttpServlet.class, "/pipes");
+        server.init(DefaultAnyValue.create("port", port));
+        server.start(application);
+        Thread.sleep(100);
+
+        System.out.println("io     = " + request("/pipes/thread/io"));
+        System.out.println("future = " + request("/pipes/thread/future"));
+        System.out.println("work   = " + request("/pipes/thread/work"));
+        System.out.println("block  = " + request("/pipes/thread/block"));
+        System.out.println("pipeline = " + pipeline("/pipes/thread/io", 16));
+        server.shutdown();
+
+        server = new HttpServer(application, System.currentTimeMillis(), application.getResourceFactory());
+        server.addRestServlet(null, new ThreadService(), null, HttpServlet.class, "/pipes");
+        server.init(DefaultAnyValue.create("port", port).addValue("ioThreadExecute", "true"));
+        server.start(application);
+        Thread.sleep(100);
+        System.out.println("ioThreadExecute work = " + request("/pipes/thread/work"));
+        server.shutdown();
+        System.exit(0);
+    }
+
+    private static String request(String uri) throws IOException {
+        return pipeline(uri, 1);
+    }
+
+    //同一连接连续发送count个请求, 返回最后一个响应体
+    private static String pipeline(String uri, int count) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                sb.append("GET ").append(uri).append(" HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n");
+            }
+            socket.getOutputStream().write(sb.toString().getBytes());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            String body = null;
+            for (int i = 0; i < count; i++) {
+                body = readBody(in);
+            }
+            return body;
+        }
+    }
+
+    private static String readBody(DataInputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (b == '\n') {
+                String str = line.toString().trim();
+                if (str.isEmpty()) break;
+                if (str.toLowerCase().startsWith("content-length:")) contentLength = Integer.parseInt(str.substring(15).trim());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] content = new byte[contentLength];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.sncp;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.redkale.net.sncp.SncpServer;
+import org.redkale.util.AnyValue.DefaultAnyValue;
+
+/**
+ * UDP批量收包测试: 多个客户端以PING数据报压测SNCP.UDP服务， 对比逐个数据报创建连接与批量收包两种模式的每秒收发包数
+ *
+ * @author zhangjx
+ */
+public class UdpBatchReceiveMain {
+
+    private static final int port = 4050;
+
+    private static final int clients = 4;
+
+    private static final int window = 32;
+
+    private static final long millis = 3000;
+
+    public static void main(String[] args) throws Throwable {
+        bench(0);
+        bench(64);
+        System.exit(0);
+    }
+
+    private static void bench(int receiveBatch) throws Exception {
+        DefaultAnyValue conf = DefaultAnyValue.create("port", port).addValue("protocol", "SNCP.UDP").addValue("receiveBatch", String.valueOf(receiveBatch));
+        SncpServer server = new SncpServer(null, System.currentTimeMillis(), conf, null);
+        server.init(conf);
+        server.start(null);
+        Thread.sleep(100);
+
+        final byte[] ping = "PING".getBytes();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch cdl = new CountDownLatch(clients);
+        final long end = System.currentTimeMillis() + millis;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        for (int c = 0; c < clients; c++) {
+            pool.execute(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.connect(new InetSocketAddress("127.0.0.1", port));
+                    socket.setSoTimeout(100);
+                    DatagramPacket out = new DatagramPacket(ping, ping.length);
+                    DatagramPacket in = new DatagramPacket(new byte[64], 64);
+                    while (System.currentTimeMillis() < end) {
+                        for (int i = 0; i < window; i++) {
+                            socket.send(out);
+                        }
+                        sent.addAndGet(window);
+                        try {
+                            for (int i = 0; i < window; i++) {
+                                socket.receive(in);
+                                if (in.getLength() == 4) received.incrementAndGet();
+                            }
+                        } catch (SocketTimeoutException e) { //丢包
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+        cdl.await();
+        System.out.println("receiveBatch: " + receiveBatch + ", sent " + sent.get() + " PING, received " + received.get() + " PONG in " + millis + " ms, "
+            + (received.get() * 1000 / millis) + " packets/s, loss " + (sent.get() - received.get()));
+        pool.shutdown();
+        server.shutdown();
+        Thread.sleep(100);
+    }
+}
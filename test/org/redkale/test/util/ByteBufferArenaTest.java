@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.redkale.util.ByteBufferArena;
+
+/**
+ * ByteBufferArena 测试, 泄漏检测需加参数: -Dnet.buffer.leak.detection=paranoid
+ *
+ * @author zhangjx
+ */
+public class ByteBufferArenaTest {
+
+    public static void main(String[] args) throws Throwable {
+        ByteBufferArena arena = new ByteBufferArena(32 * 1024, 32 * 1024 * 16);
+        System.out.println("sizes: " + Arrays.toString(arena.getSizes()));
+
+        ByteBuffer b1 = arena.get();
+        ByteBuffer b2 = arena.get(100);
+        ByteBuffer b3 = arena.get(5000);
+        ByteBuffer b4 = arena.get(100 * 1024);
+        System.out.println("get()       = " + b1.capacity() + ", direct: " + b1.isDirect());
+        System.out.println("get(100)    = " + b2.capacity());
+        System.out.println("get(5000)   = " + b3.capacity());
+        System.out.println("get(100K)   = " + b4.capacity() + " (超出最大级别, 不池化)");
+        System.out.println("outstanding = " + Arrays.toString(arena.getOutstandingCounts()));
+        arena.accept(b1);
+        arena.accept(b2);
+        arena.accept(b3);
+        arena.accept(b4);
+        System.out.println("outstanding = " + Arrays.toString(arena.getOutstandingCounts()));
+        System.out.println("reuse       = " + (arena.get(100) == b2));
+
+        ByteBufferArena.Cache cache = arena.createCache();
+        ByteBuffer c1 = cache.get();
+        cache.accept(c1);
+        System.out.println("cache reuse = " + (cache.get() == c1));
+        cache.accept(c1);
+        cache.clear();
+
+        ByteBuffer d1 = arena.get(2000);
+        arena.accept(d1);
+        arena.accept(d1); //重复归还
+        cache.accept(d1);
+        arena.accept(ByteBuffer.allocateDirect(4096)); //非本分配器分配的
+        cache.accept(ByteBuffer.allocateDirect(1024));
+        System.out.println("foreign/double return ignored = " + (arena.getOutstandingCounts()[1] == 0) + ", " + Arrays.toString(arena.getOutstandingCounts()));
+        ByteBuffer d2 = arena.get(2000);
+        ByteBuffer d3 = arena.get(2000);
+        System.out.println("double return not reissued = " + (d2 == d1 && d3 != d1));
+        arena.accept(d2);
+        arena.accept(d3);
+
+        for (int i = 0; i < 1000; i++) {
+            arena.get(2000).putInt(i); //不归还
+        }
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        arena.checkLeaks();
+        System.out.println("leaks       = " + Arrays.toString(arena.getLeakCounts()));
+        System.out.println(arena);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.redkale.test.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import org.redkale.util.ThreadHashExecutor;
+
+/**
+ * ThreadHashExecutor 与旧实现(每线程一个LinkedBlockingQueue, 提交时遍历所有队列的size)的吞吐量对比 <br>
+ * 工程中没有JMH依赖, 采用预热+多轮取最优的方式, 运行: java -cp ... org.redkale.test.util.ThreadHashExecutorBenchmark
+ *
+ * @author zhangjx
+ */
+public class ThreadHashExecutorBenchmark {
+
+    private static final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private static final int producers = 4;
+
+    private static final int tasks = 400_000;
+
+    private static final int rounds = 5;
+
+    public static void main(String[] args) throws Throwable {
+        System.out.println("threads: " + threads + ", producers: " + producers + ", tasks: " + tasks);
+        checkOrder(new ThreadHashExecutor(threads));
+        checkSteal(new ThreadHashExecutor(threads));
+
+        bench("unkeyed-tiny", LegacyHashExecutor::new, i -> 0, i -> 0);
+        bench("unkeyed-skewed", LegacyHashExecutor::new, i -> 0, i -> i % 64 == 0 ? 20_000 : 50);
+        bench("keyed-tiny", LegacyHashExecutor::new, i -> i % 1024 + 1, i -> 0);
+        bench("mixed", LegacyHashExecutor::new, i -> i % 4 == 0 ? i % 1024 + 1 : 0, i -> i % 32 == 0 ? 5_000 : 50);
+    }
+
+    //同一hash的任务必须按提交顺序执行
+    private static void checkOrder(ThreadHashExecutor executor) throws Exception {
+        final int keys = 64;
+        final int count = 10_000;
+        final AtomicIntegerArray last = new AtomicIntegerArray(keys);
+        final AtomicBoolean ok = new AtomicBoolean(true);
+        final CountDownLatch cdl = new CountDownLatch(keys * count);
+        for (int i = 1; i <= count; i++) {
+            for (int k = 0; k < keys; k++) {
+                final int key = k;
+                final int seq = i;
+                executor.execute(key + 1, () -> {
+                    if (last.getAndSet(key, seq) != seq - 1) ok.set(false);
+                    cdl.countDown();
+                });
+            }
+        }
+        cdl.await();
+        System.out.println("hash order keep: " + ok.get() + ", " + executor);
+        executor.shutdown();
+    }
+
+    //工作线程被长任务占用时, 提交到其队列的无hash任务应立即被空闲线程窃取, 而不是等到休眠超时
+    private static void checkSteal(ThreadHashExecutor executor) throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        for (int i = 1; i <= threads - 1; i++) { //除一个线程外全部占住
+            executor.execute(i, () -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                }
+            });
+        }
+        Thread.sleep(50);
+        long max = 0;
+        for (int i = 0; i < 20; i++) {
+            final CountDownLatch done = new CountDownLatch(1);
+            long s = System.nanoTime();
+            executor.execute(done::countDown);
+            done.await();
+            max = Math.max(max, System.nanoTime() - s);
+            Thread.sleep(5);
+        }
+        blocker.countDown();
+        System.out.println("busy worker task stolen: " + (max < 100_000_000L) + ", max latency " + max / 1000 + " micros");
+        executor.shutdown();
+    }
+
+    private static void bench(String name, Supplier<ExecutorService> legacy, IntUnaryOperator hasher, IntUnaryOperator costs) throws Exception {
+        long best1 = Long.MAX_VALUE;
+        long best2 = Long.MAX_VALUE;
+        String info = null;
+        for (int r = 0; r < rounds; r++) { //第一轮为预热
+            ExecutorService old = legacy.get();
+            long t1 = run(old, hasher, costs);
+            old.shutdown();
+            ThreadHashExecutor executor = new ThreadHashExecutor(threads);
+            long t2 = run(executor, hasher, costs);
+            info = executor.toString();
+            executor.shutdown();
+            if (r > 0) {
+                best1 = Math.min(best1, t1);
+                best2 = Math.min(best2, t2);
+            }
+        }
+        System.out.println(String.format("%-16s legacy: %8d ops/s    new: %8d ops/s    %s", name,
+            tasks * 1000_000_000L / best1, tasks * 1000_000_000L / best2, info));
+    }
+
+    private static long run(ExecutorService executor, IntUnaryOperator hasher, IntUnaryOperator costs) throws Exception {
+        final CountDownLatch cdl = new CountDownLatch(tasks);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final Thread[] ths = new Thread[producers];
+        final int per = tasks / producers;
+        for (int p = 0; p < producers; p++) {
+            final int base = p * per;
+            ths[p] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                }
+                for (int i = base; i < base + per; i++) {
+                    final int cost = costs.applyAsInt(i);
+                    Runnable task = () -> {
+                        spin(cost);
+                        cdl.countDown();
+                    };
+                    int hash = hasher.applyAsInt(i);
+                    if (executor instanceof ThreadHashExecutor) {
+                        ((ThreadHashExecutor) executor).execute(hash, task);
+                    } else {
+                        ((LegacyHashExecutor) executor).execute(hash, task);
+                    }
+                }
+            });
+            ths[p].start();
+        }
+        long s = System.nanoTime();
+        startLatch.countDown();
+        cdl.await();
+        return System.nanoTime() - s;
+    }
+
+    private static long sink;
+
+    private static void spin(int nanos) {
+        if (nanos <= 0) return;
+        long end = System.nanoTime() + nanos;
+        long v = 0;
+        while (System.nanoTime() < end) v++;
+        sink += v;
+    }
+
+    //2.3.0之前的ThreadHashExecutor实现
+    private static class LegacyHashExecutor extends AbstractExecutorService {
+
+        private final LinkedBlockingQueue<Runnable>[] queues;
+
+        private final ThreadPoolExecutor[] executors;
+
+        public LegacyHashExecutor() {
+            int size = threads;
+            ThreadPoolExecutor[] array = new ThreadPoolExecutor[size];
+            LinkedBlockingQueue[] ques = new LinkedBlockingQueue[size];
+            for (int i = 0; i < array.length; i++) {
+                LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+                ques[i] = queue;
+                array[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue, (Runnable r) -> {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            this.queues = ques;
+            this.executors = array;
+        }
+
+        private ExecutorService hashExecutor(int hash) {
+            if (hash == 0) {
+                int k = 0;
+                int minsize = queues[0].size();
+                for (int i = 1; i < queues.length; i++) {
+                    int size = queues[i].size();
+                    if (size < minsize) {
+                        minsize = size;
+                        k = i;
+                    }
+                }
+                return this.executors[k];
+            } else {
+                return this.executors[(hash < 0 ? -hash : hash) % this.executors.length];
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            hashExecutor(0).execute(command);
+        }
+
+        public void execute(int hash, Runnable command) {
+            hashExecutor(hash).execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+            for (ExecutorService executor : this.executors) {
+                executor.shutdown();
+            }
+        }
+
+        @Override
+        public java.util.List<Runnable> shutdownNow() {
+            java.util.List<Runnable> list = new java.util.ArrayList<>();
+            for (ExecutorService executor : this.executors) {
+                list.addAll(executor.shutdownNow());
+            }
+            return list;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return this.executors[0].isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return this.executors[0].isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long l, TimeUnit tu) throws InterruptedException {
+            return this.executors[0].awaitTermination(l, tu);
+        }
+    }
+}